@@ -0,0 +1,129 @@
+/*
+ * BenchmarkComparison - Compares two JMH JSON result files, e.g. the last
+ * release against the current build. Prints score and allocation per
+ * operation (from -prof gc) side by side and exits with status 1 if any
+ * benchmark got slower, or allocates more, by more than the threshold.
+ */
+package com.caladan.latency;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public final class BenchmarkComparison {
+
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+    private BenchmarkComparison() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BenchmarkComparison <baseline.json> <current.json> [threshold percent, default 10]");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> current = read(args[1]);
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        int regressions = 0;
+        System.out.printf("%-70s %12s %12s %8s %10s %10s%n",
+            "benchmark", "baseline", "current", "change", "B/op base", "B/op now");
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-70s %12s %12.3f %8s %10s %10s  new%n", entry.getKey(), "-", now.score,
+                    "", "-", bytes(now.allocation));
+                continue;
+            }
+            double change = 100 * (now.score - before.score) / before.score;
+            // Average time and sample time regress upwards, throughput downwards
+            double worse = now.mode.equals("thrpt") ? -change : change;
+            boolean slower = worse > threshold;
+            boolean allocates = now.allocation > Math.max(before.allocation * (1 + threshold / 100),
+                before.allocation + 8);
+            if (slower || allocates) {
+                regressions++;
+            }
+            System.out.printf("%-70s %12.3f %12.3f %+7.1f%% %10s %10s%s%n", entry.getKey(), before.score,
+                now.score, change, bytes(before.allocation), bytes(now.allocation),
+                slower ? "  SLOWER" : allocates ? "  ALLOCATES MORE" : "");
+        }
+        for (String missing : baseline.keySet()) {
+            if (!current.containsKey(missing)) {
+                System.out.printf("%-70s  removed%n", missing);
+            }
+        }
+        System.out.printf("%d regression(s) beyond %.1f%%%n", regressions, threshold);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    private static Map<String, Result> read(String file) throws IOException {
+        Map<String, Result> results = new TreeMap<>();
+        try (Reader reader = Files.newBufferedReader(Paths.get(file))) {
+            JsonArray runs = JsonParser.parseReader(reader).getAsJsonArray();
+            for (JsonElement element : runs) {
+                JsonObject run = element.getAsJsonObject();
+                String mode = run.get("mode").getAsString();
+                JsonObject primary = run.getAsJsonObject("primaryMetric");
+                JsonObject secondary = run.getAsJsonObject("secondaryMetrics");
+                double allocation = secondary != null && secondary.has(ALLOCATION)
+                    ? secondary.getAsJsonObject(ALLOCATION).get("score").getAsDouble() : -1;
+                results.put(key(run), new Result(mode, primary.get("score").getAsDouble(), allocation));
+                // Group benchmarks also report each thread role, e.g. "record", separately
+                if (secondary == null) {
+                    continue;
+                }
+                for (Map.Entry<String, JsonElement> metric : secondary.entrySet()) {
+                    if (!metric.getKey().contains(".") && metric.getValue().isJsonObject()) {
+                        results.put(key(run) + ":" + metric.getKey(), new Result(mode,
+                            metric.getValue().getAsJsonObject().get("score").getAsDouble(), -1));
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Benchmark name with its parameters, e.g. RenderBenchmark.render{format=SUMMARY, ...}.
+     */
+    private static String key(JsonObject run) {
+        String name = run.get("benchmark").getAsString();
+        name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+        Map<String, String> params = new LinkedHashMap<>();
+        JsonObject object = run.getAsJsonObject("params");
+        if (object != null) {
+            for (Map.Entry<String, JsonElement> param : new TreeMap<>(object.asMap()).entrySet()) {
+                params.put(param.getKey(), param.getValue().getAsString());
+            }
+        }
+        return params.isEmpty() ? name : name + params;
+    }
+
+    private static String bytes(double allocation) {
+        return allocation < 0 ? "-" : String.format("%.0f", allocation);
+    }
+
+    private static final class Result {
+        final String mode;
+        final double score;
+        final double allocation;
+
+        Result(String mode, double score, double allocation) {
+            this.mode = mode;
+            this.score = score;
+            this.allocation = allocation;
+        }
+    }
+}
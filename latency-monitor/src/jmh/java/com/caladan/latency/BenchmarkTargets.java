@@ -0,0 +1,74 @@
+/*
+ * BenchmarkTargets - A monitor with recorded history that never touches the network.
+ * Targets are IP literals that are never started; latencies go in through
+ * the same listener callbacks the reactors use, and intervals are reported
+ * by a private IntervalReporter, so benchmarks see realistic snapshots.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.LatencyMonitor.Statistics;
+import com.caladan.latency.measure.ResolverCache;
+import com.caladan.latency.util.LatencyBuckets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+final class BenchmarkTargets {
+
+    final ResolverCache resolver = new ResolverCache(ResolverCache.DEFAULT_TTL_MS);
+    final PauseDetector pauses = new PauseDetector(PauseDetector.DEFAULT_THRESHOLD_NANOS, false);
+    final LatencyMonitor monitor;
+    final List<TargetMonitor> targets;
+    final IntervalReporter reporter;
+
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    /**
+     * @param probe probe type of every target, e.g. "tcp" or "http"
+     */
+    BenchmarkTargets(int count, String probe) {
+        List<TargetSpec> specs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            specs.add(new TargetSpec("10.0." + (i >> 8) + "." + (i & 0xff), 7007, 10,
+                Map.of("probe", probe)));
+        }
+        this.monitor = new LatencyMonitor(specs, 1, 1, TargetMonitor.ProbeMode.OPEN, 1000,
+            LatencyMonitor.DEFAULT_WINDOW_SLOT_MS, LatencyBuckets.DEFAULT, resolver, pauses);
+        this.targets = monitor.getTargets();
+        this.reporter = new IntervalReporter(monitor, targets, List.of(), resolver, pauses, 1000);
+    }
+
+    /**
+     * Record samples into every target and report them as a few intervals.
+     */
+    BenchmarkTargets fill(int samplesPerTarget, int intervals) {
+        for (int interval = 0; interval < intervals; interval++) {
+            for (TargetMonitor target : targets) {
+                for (int i = 0; i < samplesPerTarget / intervals; i++) {
+                    record(target, sampleNanos(random));
+                }
+            }
+            reporter.run();
+        }
+        return this;
+    }
+
+    /**
+     * One completed probe of 100us to ~50ms, response time including a little queueing.
+     */
+    static void record(TargetMonitor target, long serviceNanos) {
+        long start = System.nanoTime();
+        target.exchangeCompleted(start - (serviceNanos >> 4), start, start + serviceNanos);
+    }
+
+    static long sampleNanos(SplittableRandom random) {
+        // Log-uniform, so every order of magnitude gets buckets and quantiles
+        return (long) (100_000 * Math.pow(500, random.nextDouble()));
+    }
+
+    List<Statistics> statistics() {
+        return reporter.getStatistics();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * ContentionBenchmark - Probe threads recording while the reporter publishes
+ * and a scraper renders, all at once, as in a running monitor. Recording
+ * should cost the same as uncontended (compare TimerBenchmark.record):
+ * Recorder flips never block writers, and scrapers only read the published
+ * snapshot. Each recording thread owns its own targets, like a reactor shard.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.LatencyMonitor.Statistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.CharArrayWriter;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentionBenchmark {
+
+    /** Recording threads in the group */
+    static final int RECORDERS = 3;
+
+    @State(Scope.Group)
+    public static class Monitor {
+        @Param({"100"})
+        public int targets;
+
+        BenchmarkTargets fixture;
+        CachedResponse.Renderer<List<Statistics>> renderer;
+
+        @Setup
+        public void setUp() {
+            fixture = new BenchmarkTargets(targets, "tcp").fill(10_000, 10);
+            renderer = new MetricsServer(0, fixture.monitor, MetricsServer.LatencyFormat.HISTOGRAM)
+                .renderer("prometheus");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Recording {
+        final SplittableRandom random = new SplittableRandom();
+        TargetMonitor[] owned;
+        int next;
+
+        @Setup
+        public void setUp(Monitor monitor, ThreadParams thread) {
+            // Targets are single-writer, so the recording threads split them between them
+            List<TargetMonitor> all = monitor.fixture.targets;
+            int index = thread.getSubgroupThreadIndex();
+            int count = (all.size() - index + RECORDERS - 1) / RECORDERS;
+            owned = new TargetMonitor[Math.max(1, count)];
+            for (int i = 0; i < owned.length; i++) {
+                owned[i] = all.get(Math.min(all.size() - 1, index + i * RECORDERS));
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reporting {
+        int next;
+    }
+
+    @State(Scope.Thread)
+    public static class Scraping {
+        final CharArrayWriter buffer = new CharArrayWriter(1 << 20);
+        final PrintWriter out = new PrintWriter(buffer);
+    }
+
+    @Benchmark
+    @Group("scrapeVsRecord")
+    @GroupThreads(RECORDERS)
+    public void record(Monitor monitor, Recording recording) {
+        TargetMonitor target = recording.owned[recording.next];
+        recording.next = recording.next + 1 == recording.owned.length ? 0 : recording.next + 1;
+        BenchmarkTargets.record(target, BenchmarkTargets.sampleNanos(recording.random));
+    }
+
+    /**
+     * The reporter, one target per operation and back to back instead of
+     * once a second, to maximise overlap with recording.
+     */
+    @Benchmark
+    @Group("scrapeVsRecord")
+    @GroupThreads(1)
+    public Statistics report(Monitor monitor, Reporting reporting) {
+        List<TargetMonitor> targets = monitor.fixture.targets;
+        reporting.next = reporting.next + 1 == targets.size() ? 0 : reporting.next + 1;
+        return targets.get(reporting.next).reportInterval(1000, true);
+    }
+
+    /**
+     * A scrape that always misses the cache and renders the latest snapshot.
+     */
+    @Benchmark
+    @Group("scrapeVsRecord")
+    @GroupThreads(1)
+    public int scrape(Monitor monitor, Scraping scraping) {
+        scraping.buffer.reset();
+        monitor.renderer.render(scraping.out, monitor.fixture.statistics());
+        scraping.out.flush();
+        return scraping.buffer.size();
+    }
+}
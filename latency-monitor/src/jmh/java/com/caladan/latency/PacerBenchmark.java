@@ -0,0 +1,61 @@
+/*
+ * PacerBenchmark - Scheduling bookkeeping per probe.
+ * The rate is high enough that acquire() never sleeps, so this times the
+ * intended-start arithmetic and catch-up logic, not the wait itself.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.util.Pacer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacerBenchmark {
+
+    private Pacer behind;
+    private Pacer onPace;
+
+    @Setup
+    public void setUp() {
+        // Always behind schedule: every call takes the catch-up path
+        behind = new Pacer(1e12);
+        // Far ahead of schedule: every call answers "not yet"
+        onPace = new Pacer(1);
+        onPace.setInitialStartTime(System.nanoTime() + TimeUnit.HOURS.toNanos(1));
+    }
+
+    @Benchmark
+    public void acquire() {
+        behind.acquire(1);
+    }
+
+    @Benchmark
+    public long nsecToNextSendBehind() {
+        return behind.nsecToNextSend();
+    }
+
+    @Benchmark
+    public long nsecToNextSendOnPace() {
+        return onPace.nsecToNextSend();
+    }
+
+    @Benchmark
+    public long expectedStartTime() {
+        return behind.expectedStartTimeNsec();
+    }
+}
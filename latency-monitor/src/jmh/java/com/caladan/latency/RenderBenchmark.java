@@ -0,0 +1,65 @@
+/*
+ * RenderBenchmark - Rendering each cached representation from a snapshot.
+ * Each rendering is paid once per published snapshot, however many readers
+ * there are, but it is the bulk of the scrape-side allocation.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.LatencyMonitor.Statistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.CharArrayWriter;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RenderBenchmark {
+
+    @Param({"1", "100"})
+    public int targets;
+
+    @Param({"dashboard", "prometheus", "openmetrics", "json"})
+    public String representation;
+
+    @Param({"SUMMARY", "HISTOGRAM"})
+    public String format;
+
+    private List<Statistics> snapshot;
+    private CachedResponse.Renderer<List<Statistics>> renderer;
+    private CharArrayWriter buffer;
+    private PrintWriter out;
+
+    @Setup
+    public void setUp() {
+        BenchmarkTargets fixture = new BenchmarkTargets(targets, "tcp").fill(10_000, 10);
+        snapshot = fixture.statistics();
+        renderer = new MetricsServer(0, fixture.monitor, MetricsServer.LatencyFormat.parse(format))
+            .renderer(representation);
+        buffer = new CharArrayWriter(1 << 16);
+        out = new PrintWriter(buffer);
+    }
+
+    @Benchmark
+    public int render() {
+        buffer.reset();
+        renderer.render(out, snapshot);
+        out.flush();
+        return buffer.size();
+    }
+}
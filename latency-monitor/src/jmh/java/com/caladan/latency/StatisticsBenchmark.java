@@ -0,0 +1,56 @@
+/*
+ * StatisticsBenchmark - Reading and publishing statistics snapshots.
+ * getStatistics() is what every scrape pays and should be a volatile read;
+ * reportInterval is what the reporter pays per target and interval.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.LatencyMonitor.Statistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatisticsBenchmark {
+
+    @Param({"1", "100"})
+    public int targets;
+
+    private BenchmarkTargets fixture;
+
+    @Setup
+    public void setUp() {
+        fixture = new BenchmarkTargets(targets, "tcp").fill(10_000, 10);
+    }
+
+    @Benchmark
+    public List<Statistics> getStatistics() {
+        return fixture.monitor.getStatistics();
+    }
+
+    /**
+     * One reporting interval of one target after a few new samples.
+     */
+    @Benchmark
+    public Statistics reportInterval() {
+        TargetMonitor target = fixture.targets.get(0);
+        BenchmarkTargets.record(target, 1_000_000);
+        return target.reportInterval(1000, true);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * TimerBenchmark - Cost of recording one measurement on the probe thread.
+ * Every probe pays this once, so it must stay allocation-free: check
+ * gc.alloc.rate.norm with -prof gc.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.util.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimerBenchmark {
+
+    private Timer timer;
+    private Timer phaseTimer;
+    private long expectedStart;
+
+    @Setup
+    public void setUp() {
+        timer = new Timer();
+        phaseTimer = new Timer(new String[] {"connect", "ttfb"});
+        expectedStart = System.nanoTime();
+    }
+
+    /**
+     * Closed-loop probe: start() before the connect, stop() after it.
+     */
+    @Benchmark
+    public void startStop() {
+        timer.expectedStart(expectedStart);
+        timer.start();
+        timer.stop();
+    }
+
+    /**
+     * Open-loop probe completing on the reactor with explicit timestamps.
+     */
+    @Benchmark
+    public void record() {
+        long now = System.nanoTime();
+        timer.record(now - 2_000, now - 1_000, now);
+    }
+
+    /**
+     * HTTP probe: the measurement plus two phases.
+     */
+    @Benchmark
+    public void recordWithPhases() {
+        long now = System.nanoTime();
+        phaseTimer.record(now - 2_000, now - 1_000, now);
+        phaseTimer.recordPhase(0, 300);
+        phaseTimer.recordPhase(1, 700);
+    }
+}
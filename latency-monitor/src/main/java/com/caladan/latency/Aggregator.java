@@ -0,0 +1,510 @@
+/*
+ * Aggregator - Fleet-wide statistics from the histograms of many monitors.
+ * Polls the /histogram endpoint of every source concurrently, decodes the
+ * responses in parallel and merges the histograms of each target across
+ * sources, plus one fleet-wide entry over every target. Percentiles are
+ * computed from the merged histograms, so they are exact rather than
+ * averages of quantiles. A source that stops answering keeps contributing
+ * its last all-time histograms, but not its windows, and nothing at all
+ * once it has failed a bounded number of polls in a row. Served through the
+ * MetricsServer like a monitor, including /histogram, so aggregators can
+ * poll other aggregators.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.LatencyMonitor.FailureStatistics;
+import com.caladan.latency.LatencyMonitor.PhaseStatistics;
+import com.caladan.latency.LatencyMonitor.Statistics;
+import com.caladan.latency.LatencyMonitor.WindowStatistics;
+import com.caladan.latency.HistogramExport.TargetHistograms;
+import com.caladan.latency.HistogramExport.WindowHistograms;
+import com.caladan.latency.util.LatencyBuckets;
+import com.caladan.latency.util.LatencySummary;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+public class Aggregator implements StatisticsSource {
+
+    private static final Logger logger = LoggerFactory.getLogger(Aggregator.class);
+
+    /** Host and port of the entry that merges every target of every source */
+    public static final String FLEET_HOST = "*";
+    public static final int FLEET_PORT = 0;
+
+    private final List<Source> sources;
+    private final long intervalMs;
+    private final long timeoutMs;
+    private final int expiryPolls;
+    private final int threads;
+    private final LatencyBuckets buckets;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private ExecutorService pool;
+    private HttpClient client;
+    private ScheduledExecutorService scheduler;
+    private long startTimeMs;
+
+    // Published once per poll, read lock-free by any number of scrapers
+    private volatile Merged merged = new Merged(List.of(), List.of(), 0, false);
+
+    /**
+     * @param sources     base URLs of monitors or aggregators, e.g. http://10.0.1.5:8080
+     * @param expiryPolls failed polls in a row after which a source contributes nothing
+     * @param threads     threads decoding and merging histograms
+     * @param buckets     bucket boundaries of the merged bucket counts; should match the sources'
+     */
+    public Aggregator(List<URI> sources, long intervalMs, long timeoutMs, int expiryPolls, int threads,
+                      LatencyBuckets buckets) {
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("At least one source is required");
+        }
+        if (intervalMs <= 0 || timeoutMs <= 0) {
+            throw new IllegalArgumentException("Poll interval and timeout must be positive");
+        }
+        if (expiryPolls < 1) {
+            throw new IllegalArgumentException("Sources must expire after at least one failed poll: " + expiryPolls);
+        }
+        List<Source> list = new ArrayList<>(sources.size());
+        for (URI source : sources) {
+            list.add(new Source(source));
+        }
+        this.sources = Collections.unmodifiableList(list);
+        this.intervalMs = intervalMs;
+        this.timeoutMs = timeoutMs;
+        this.expiryPolls = expiryPolls;
+        this.threads = Math.max(1, threads);
+        this.buckets = buckets;
+    }
+
+    /**
+     * Start polling every source at a fixed rate.
+     */
+    public void start() {
+        if (running.compareAndSet(false, true)) {
+            startTimeMs = System.currentTimeMillis();
+            AtomicInteger threadIndex = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "Aggregator-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(timeoutMs))
+                .executor(pool)
+                .build();
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "AggregatorPoll");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(this::poll, 0, intervalMs, TimeUnit.MILLISECONDS);
+            logger.info("Aggregating {} source(s) every {} ms", sources.size(), intervalMs);
+        }
+    }
+
+    public void stop() {
+        if (running.compareAndSet(true, false)) {
+            scheduler.shutdownNow();
+            pool.shutdownNow();
+            logger.info("Stopped aggregating");
+        }
+    }
+
+    /**
+     * Poll every source, then merge whatever each last answered. A source that
+     * does not answer keeps contributing its last all-time histograms, which are
+     * still exact as of when they were taken, until it expires.
+     */
+    private void poll() {
+        try {
+            List<CompletableFuture<Void>> polls = new ArrayList<>(sources.size());
+            for (Source source : sources) {
+                polls.add(source.poll());
+            }
+            CompletableFuture.allOf(polls.toArray(new CompletableFuture<?>[0])).join();
+            merge();
+        } catch (Exception e) {
+            // Never let an exception cancel the fixed-rate schedule
+            logger.error("Error aggregating", e);
+        }
+    }
+
+    /**
+     * Group the targets of every source by host:port and merge each group on
+     * the pool, then merge the groups into the fleet-wide entry.
+     */
+    private void merge() {
+        Map<String, List<TargetHistograms>> groups = new LinkedHashMap<>();
+        for (Source source : sources) {
+            HistogramExport.Export export = source.latest;
+            Contribution contribution = source.contribution();
+            if (export == null || contribution == Contribution.NONE) {
+                continue;
+            }
+            for (TargetHistograms target : export.targets) {
+                groups.computeIfAbsent(target.key(), key -> new ArrayList<>())
+                    .add(contribution == Contribution.ALL ? target : withoutWindows(target));
+            }
+        }
+
+        List<CompletableFuture<TargetHistograms>> merging = new ArrayList<>(groups.size());
+        for (List<TargetHistograms> group : groups.values()) {
+            TargetHistograms first = group.get(0);
+            merging.add(CompletableFuture.supplyAsync(() -> merge(first.host, first.port, group), pool));
+        }
+        List<TargetHistograms> targets = new ArrayList<>(merging.size());
+        for (CompletableFuture<TargetHistograms> target : merging) {
+            targets.add(target.join());
+        }
+
+        long uptimeMs = getUptimeMs();
+        List<Statistics> statistics = new ArrayList<>(targets.size() + 1);
+        for (TargetHistograms target : targets) {
+            statistics.add(summarize(target, uptimeMs));
+        }
+        if (targets.size() > 1) {
+            statistics.add(summarize(merge(FLEET_HOST, FLEET_PORT, targets), uptimeMs));
+        }
+        // The fleet entry is left out of /histogram, so stacked aggregators do not count it twice
+        merged = new Merged(Collections.unmodifiableList(statistics), Collections.unmodifiableList(targets),
+            uptimeMs, isRunning());
+    }
+
+    /**
+     * Merge the histograms and counters of one target, as seen by several sources.
+     */
+    private static TargetHistograms merge(String host, int port, List<TargetHistograms> parts) {
+        Histogram serviceTimes = new Histogram(3);
+        Histogram responseTimes = new Histogram(3);
+        Histogram schedulingJitter = new Histogram(3);
+        Map<String, Histogram> phaseTimes = new LinkedHashMap<>();
+        Map<String, WindowHistograms> windows = new LinkedHashMap<>();
+        Map<String, Long> counters = new LinkedHashMap<>();
+        Map<String, Long> failureCounts = new LinkedHashMap<>();
+        Map<String, Histogram> failureTimes = new LinkedHashMap<>();
+        TargetHistograms first = parts.get(0);
+        String probe = first.probe;
+        String waitStrategy = first.waitStrategy;
+        double configuredRate = 0;
+        double rate = 0;
+        boolean rateBoosted = false;
+        boolean running = false;
+        long total = 0;
+        long successful = 0;
+        long failed = 0;
+        long pauseAffected = 0;
+
+        for (TargetHistograms part : parts) {
+            serviceTimes.add(part.serviceTimes);
+            responseTimes.add(part.responseTimes);
+            schedulingJitter.add(part.schedulingJitter);
+            for (Map.Entry<String, Histogram> phase : part.phaseTimes.entrySet()) {
+                phaseTimes.computeIfAbsent(phase.getKey(), name -> new Histogram(3)).add(phase.getValue());
+            }
+            for (WindowHistograms window : part.windows) {
+                WindowHistograms sum = windows.get(window.name);
+                if (sum == null) {
+                    sum = new WindowHistograms(window.name, window.windowMs, 0, 0, new Histogram(3), new Histogram(3));
+                }
+                sum.serviceTimes.add(window.serviceTimes);
+                sum.responseTimes.add(window.responseTimes);
+                // Counts are immutable, so the sum is replaced; its histograms carry over
+                windows.put(window.name, new WindowHistograms(window.name, window.windowMs,
+                    sum.operations + window.operations, sum.failures + window.failures,
+                    sum.serviceTimes, sum.responseTimes));
+            }
+            for (Map.Entry<String, Long> counter : part.counters.entrySet()) {
+                counters.merge(counter.getKey(), counter.getValue(), Long::sum);
+            }
+            for (Map.Entry<String, Long> failure : part.failureCounts.entrySet()) {
+                failureCounts.merge(failure.getKey(), failure.getValue(), Long::sum);
+                failureTimes.computeIfAbsent(failure.getKey(), reason -> new Histogram(3))
+                    .add(part.failureTimes.get(failure.getKey()));
+            }
+            if (!part.probe.equals(probe)) {
+                probe = "mixed";
+            }
+            if (!part.waitStrategy.equals(waitStrategy)) {
+                waitStrategy = "mixed";
+            }
+            configuredRate += part.configuredRate;
+            rate += part.rate;
+            rateBoosted |= part.rateBoosted;
+            running |= part.running;
+            total += part.total;
+            successful += part.successful;
+            failed += part.failed;
+            pauseAffected += part.pauseAffected;
+        }
+        return new TargetHistograms(host, port, probe, waitStrategy, configuredRate, rate, rateBoosted, running,
+            total, successful, failed, pauseAffected, Collections.unmodifiableMap(counters),
+            serviceTimes, responseTimes, schedulingJitter, Collections.unmodifiableMap(phaseTimes),
+            Collections.unmodifiableList(new ArrayList<>(windows.values())), Collections.unmodifiableMap(failureCounts),
+            Collections.unmodifiableMap(failureTimes), null, null);
+    }
+
+    /**
+     * The target without its windows, which stop describing the recent past once its source stops answering.
+     */
+    private static TargetHistograms withoutWindows(TargetHistograms target) {
+        return new TargetHistograms(target.host, target.port, target.probe, target.waitStrategy, target.configuredRate,
+            target.rate, target.rateBoosted, target.running, target.total, target.successful, target.failed,
+            target.pauseAffected, target.counters, target.serviceTimes, target.responseTimes, target.schedulingJitter,
+            target.phaseTimes, List.of(), target.failureCounts, target.failureTimes, target.intervalServiceTimes,
+            target.intervalResponseTimes);
+    }
+
+    private Statistics summarize(TargetHistograms target, long uptimeMs) {
+        List<WindowStatistics> windows = new ArrayList<>(target.windows.size());
+        for (WindowHistograms window : target.windows) {
+            windows.add(new WindowStatistics(window.name, window.windowMs, window.operations, window.failures,
+                LatencySummary.of(window.serviceTimes), LatencySummary.of(window.responseTimes)));
+        }
+        List<PhaseStatistics> phases = new ArrayList<>(target.phaseTimes.size());
+        for (Map.Entry<String, Histogram> phase : target.phaseTimes.entrySet()) {
+            phases.add(new PhaseStatistics(phase.getKey(), LatencySummary.of(phase.getValue()),
+                bucketCounts(phase.getValue())));
+        }
+        List<FailureStatistics> failures = new ArrayList<>(target.failureCounts.size());
+        for (Map.Entry<String, Long> failure : target.failureCounts.entrySet()) {
+            failures.add(new FailureStatistics(failure.getKey(), failure.getValue(),
+                LatencySummary.of(target.failureTimes.get(failure.getKey()))));
+        }
+        return new Statistics(target.host, target.port, target.rate, target.total, target.successful, target.failed,
+            uptimeMs, target.running,
+            LatencySummary.of(target.serviceTimes), LatencySummary.of(target.responseTimes),
+            Collections.unmodifiableList(windows),
+            bucketCounts(target.serviceTimes), bucketCounts(target.responseTimes),
+            target.counters, Map.of(), Collections.unmodifiableList(phases),
+            LatencySummary.of(target.schedulingJitter), target.rateBoosted, target.pauseAffected,
+            target.probe, target.waitStrategy, target.configuredRate, Collections.unmodifiableList(failures),
+            List.of(), 0);
+    }
+
+    private long[] bucketCounts(Histogram histogram) {
+        long[] counts = buckets.newCounts();
+        buckets.accumulate(histogram, counts);
+        return LatencyBuckets.cumulative(counts);
+    }
+
+    @Override
+    public List<Statistics> getStatistics() {
+        return merged.statistics;
+    }
+
+    /**
+     * The merged histograms, without the fleet entry, in the /histogram format.
+     */
+    @Override
+    public String getHistogramExport() {
+        return merged.histogramExport();
+    }
+
+    /**
+     * Running while at least one source answers.
+     */
+    @Override
+    public boolean isRunning() {
+        if (!running.get()) {
+            return false;
+        }
+        for (Source source : sources) {
+            if (source.up) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long getUptimeMs() {
+        return System.currentTimeMillis() - startTimeMs;
+    }
+
+    @Override
+    public LatencyBuckets getLatencyBuckets() {
+        return buckets;
+    }
+
+    @Override
+    public List<SourceStatistics> getSourceStatistics() {
+        List<SourceStatistics> statistics = new ArrayList<>(sources.size());
+        for (Source source : sources) {
+            HistogramExport.Export export = source.latest;
+            statistics.add(new SourceStatistics(source.base.toString(), source.up, source.polls, source.failures,
+                source.failedPolls, source.lastSuccessMs, export != null ? export.targets.size() : 0,
+                source.contribution()));
+        }
+        return statistics;
+    }
+
+    /**
+     * What the last answer of a source contributes to the merged statistics.
+     */
+    public enum Contribution {
+        /** Everything: its last poll succeeded */
+        ALL,
+        /** Its all-time histograms and counters, but not its windows */
+        ALL_TIME,
+        /** Nothing, once it has failed expiryPolls polls in a row */
+        NONE
+    }
+
+    /**
+     * One polled monitor or aggregator. Its fields are written by one poll at a time.
+     */
+    private final class Source {
+        final URI base;
+        final URI uri;
+        volatile boolean up;
+        volatile long polls;
+        volatile long failures;
+        volatile int failedPolls;
+        volatile long lastSuccessMs;
+        volatile HistogramExport.Export latest;
+        private String etag;
+
+        Source(URI base) {
+            this.base = base;
+            this.uri = base.resolve("/histogram");
+        }
+
+        /**
+         * Fetch and decode this source's histograms; completes normally either way.
+         */
+        CompletableFuture<Void> poll() {
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMillis(timeoutMs))
+                .header("Accept-Encoding", "gzip");
+            if (etag != null) {
+                // Unchanged since the last poll: 304 without a body
+                request.header("If-None-Match", etag);
+            }
+            return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofInputStream())
+                .thenAcceptAsync(this::read, pool)
+                .handle((ignored, error) -> {
+                    polls++;
+                    if (error == null) {
+                        lastSuccessMs = System.currentTimeMillis();
+                        failedPolls = 0;
+                        if (!up) {
+                            logger.info("Source {} is up", base);
+                            up = true;
+                        }
+                    } else {
+                        failures++;
+                        failedPolls++;
+                        if (up || polls == 1) {
+                            // Once per outage, not once per poll
+                            logger.warn("Source {} is down, keeping its last all-time histograms: {}", base,
+                                String.valueOf(error.getCause() != null ? error.getCause() : error));
+                            up = false;
+                        }
+                        if (failedPolls == expiryPolls && latest != null) {
+                            logger.warn("Source {} expired after {} failed polls, dropping its histograms",
+                                base, expiryPolls);
+                        }
+                    }
+                    return null;
+                });
+        }
+
+        Contribution contribution() {
+            int failed = failedPolls;
+            return failed == 0 ? Contribution.ALL : failed < expiryPolls ? Contribution.ALL_TIME : Contribution.NONE;
+        }
+
+        private void read(HttpResponse<InputStream> response) {
+            try (InputStream body = response.body()) {
+                if (response.statusCode() == 304) {
+                    return;
+                }
+                if (response.statusCode() != 200) {
+                    throw new IllegalStateException("HTTP " + response.statusCode());
+                }
+                boolean gzip = response.headers().firstValue("Content-Encoding").orElse("").contains("gzip");
+                try (Reader reader = new InputStreamReader(gzip ? new GZIPInputStream(body) : body,
+                        StandardCharsets.UTF_8)) {
+                    latest = HistogramExport.read(reader);
+                }
+                etag = response.headers().firstValue("ETag").orElse(null);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Immutable poll statistics of one source.
+     */
+    public static final class SourceStatistics {
+        public final String url;
+        public final boolean up;
+        public final long polls;
+        public final long failures;
+        public final int failedPolls;
+        public final long lastSuccessMs;
+        public final int targets;
+        public final Contribution contribution;
+
+        public SourceStatistics(String url, boolean up, long polls, long failures, int failedPolls,
+                                long lastSuccessMs, int targets, Contribution contribution) {
+            this.url = url;
+            this.up = up;
+            this.polls = polls;
+            this.failures = failures;
+            this.failedPolls = failedPolls;
+            this.lastSuccessMs = lastSuccessMs;
+            this.targets = targets;
+            this.contribution = contribution;
+        }
+    }
+
+    private static final class Merged {
+        final List<Statistics> statistics;
+        final List<TargetHistograms> histograms;
+        final long uptimeMs;
+        final boolean running;
+
+        // Encoded on the first request; guarded by this
+        private String histogramExport;
+
+        Merged(List<Statistics> statistics, List<TargetHistograms> histograms, long uptimeMs, boolean running) {
+            this.statistics = statistics;
+            this.histograms = histograms;
+            this.uptimeMs = uptimeMs;
+            this.running = running;
+        }
+
+        synchronized String histogramExport() {
+            if (histogramExport == null) {
+                histogramExport = HistogramExport.encode(new HistogramExport.Export(uptimeMs, running, histograms));
+            }
+            return histogramExport;
+        }
+    }
+}
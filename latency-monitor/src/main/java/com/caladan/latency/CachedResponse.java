@@ -0,0 +1,150 @@
+/*
+ * CachedResponse - One HTTP representation rendered once per statistics refresh.
+ * The body is kept as identity and gzip byte buffers with a content-derived
+ * ETag, so serving a request is a conditional check and a buffer copy no
+ * matter how many scrapers and dashboards are reading.
+ */
+package com.caladan.latency;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+final class CachedResponse<S> {
+
+    /**
+     * Renders a representation of a published snapshot.
+     */
+    interface Renderer<S> {
+        void render(PrintWriter out, S source);
+    }
+
+    private final String contentType;
+    // Request headers the representation depends on
+    private final String vary;
+    private final Supplier<S> source;
+    private final Renderer<S> renderer;
+
+    // Replaced whenever the source publishes a new snapshot
+    private volatile Rendered<S> current;
+
+    CachedResponse(String contentType, Supplier<S> source, Renderer<S> renderer) {
+        this(contentType, "Accept-Encoding", source, renderer);
+    }
+
+    /**
+     * A representation chosen by more request headers than Accept-Encoding, e.g. "Accept,
+     * Accept-Encoding" when content negotiation picks it, so caches keep one per choice.
+     */
+    CachedResponse(String contentType, String vary, Supplier<S> source, Renderer<S> renderer) {
+        this.contentType = contentType;
+        this.vary = vary;
+        this.source = source;
+        this.renderer = renderer;
+    }
+
+    /**
+     * Serve the current rendering, honouring If-None-Match and Accept-Encoding.
+     */
+    void serve(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Rendered<S> rendered = current();
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+
+        response.setHeader("ETag", gzip ? rendered.gzipEtag : rendered.etag);
+        response.setHeader("Vary", vary);
+        response.setHeader("Cache-Control", "no-cache");
+        if (notModified(request.getHeader("If-None-Match"), rendered)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] body = gzip ? rendered.gzipped : rendered.body;
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(contentType);
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * The rendering of the latest snapshot; renders at most once per snapshot.
+     */
+    private Rendered<S> current() {
+        S snapshot = source.get();
+        Rendered<S> rendered = current;
+        if (rendered != null && rendered.source == snapshot) {
+            return rendered;
+        }
+        synchronized (this) {
+            rendered = current;
+            if (rendered == null || rendered.source != snapshot) {
+                rendered = render(snapshot);
+                current = rendered;
+            }
+            return rendered;
+        }
+    }
+
+    private Rendered<S> render(S snapshot) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8))) {
+            renderer.render(out, snapshot);
+        }
+        byte[] body = buffer.toByteArray();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body);
+        } catch (IOException e) {
+            // In-memory streams do not fail
+            throw new IllegalStateException(e);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        String tag = Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(body.length);
+        return new Rendered<>(snapshot, body, compressed.toByteArray(), "\"" + tag + "\"", "\"" + tag + "-gz\"");
+    }
+
+    private static boolean notModified(String ifNoneMatch, Rendered<?> rendered) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(rendered.etag) || tag.equals(rendered.gzipEtag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Rendered<S> {
+        final S source;
+        final byte[] body;
+        final byte[] gzipped;
+        final String etag;
+        final String gzipEtag;
+
+        Rendered(S source, byte[] body, byte[] gzipped, String etag, String gzipEtag) {
+            this.source = source;
+            this.body = body;
+            this.gzipped = gzipped;
+            this.etag = etag;
+            this.gzipEtag = gzipEtag;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * FlowTracker - Latencies of the fixed flows of one target.
+ * A target probed with flows=K connects from K fixed source ports, so each
+ * flow hashes onto one ECMP path and stays there. Every flow keeps a
+ * CompactHistogram of its service times (under 1 KB, where an HdrHistogram
+ * would take tens), counted over tumbling windows. At the end of a window
+ * each flow is compared with the median of its siblings: a flow whose p50,
+ * p99 or failure rate is well above it likely rides a path of its own that
+ * is congested or lossy, while trouble on all flows points at the target.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.LatencyMonitor.FlowStatistics;
+import com.caladan.latency.util.CompactHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+final class FlowTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(FlowTracker.class);
+
+    public static final long DEFAULT_WINDOW_MS = 60_000;
+    public static final double DEFAULT_DIVERGENCE = 2.0;
+
+    // Probes a flow needs in a window to be compared; fewer say nothing about its path
+    private static final int MIN_PROBES = 10;
+    // Flows needed in a window for their median to stand for the target
+    private static final int MIN_FLOWS = 3;
+    // Failure rate a flow may always have, so that one lost probe among siblings without any is not flagged
+    private static final double MIN_FAILURE_RATE = 0.01;
+
+    private final TargetSpec spec;
+    private final int firstPort;
+    private final long windowMs;
+    private final double divergence;
+
+    // Recorded from the probing threads
+    private final CompactHistogram[] histograms;
+    private final AtomicIntegerArray failures;
+
+    // Reporting state, owned by the IntervalReporter
+    private final int[] counts = new int[CompactHistogram.BUCKETS];
+    private final boolean[] divergent;
+    private long windowStartMs = -1;
+    private volatile List<FlowStatistics> statistics;
+
+    /**
+     * @param firstPort  source port of the first flow; flow i connects from firstPort + i
+     * @param divergence how many times the median of its siblings a flow's p50, p99 or
+     *                   failure rate must be to count as divergent
+     */
+    FlowTracker(TargetSpec spec, int firstPort, int flows, long windowMs, double divergence) {
+        if (windowMs <= 0) {
+            throw new IllegalArgumentException("Flow window of " + spec + " must be positive: " + windowMs);
+        }
+        if (!(divergence > 1)) {
+            throw new IllegalArgumentException("Flow divergence of " + spec + " must be above 1: " + divergence);
+        }
+        this.spec = spec;
+        this.firstPort = firstPort;
+        this.windowMs = windowMs;
+        this.divergence = divergence;
+        this.histograms = new CompactHistogram[flows];
+        for (int i = 0; i < flows; i++) {
+            histograms[i] = new CompactHistogram();
+        }
+        this.failures = new AtomicIntegerArray(flows);
+        this.divergent = new boolean[flows];
+        List<FlowStatistics> empty = new ArrayList<>(flows);
+        for (int i = 0; i < flows; i++) {
+            empty.add(new FlowStatistics(firstPort + i, windowMs, 0, 0, 0, 0, false));
+        }
+        this.statistics = Collections.unmodifiableList(empty);
+    }
+
+    void record(int flow, long serviceNanos) {
+        histograms[flow].recordNanos(serviceNanos);
+    }
+
+    void fail(int flow) {
+        failures.incrementAndGet(flow);
+    }
+
+    /**
+     * Close the window if it is over and compare the flows. Called by the IntervalReporter.
+     */
+    void reportInterval(long nowMs) {
+        if (windowStartMs < 0) {
+            windowStartMs = nowMs;
+            return;
+        }
+        if (nowMs - windowStartMs < windowMs) {
+            return;
+        }
+        windowStartMs = nowMs;
+
+        int flows = histograms.length;
+        long[] probes = new long[flows];
+        long[] failed = new long[flows];
+        double[] p50Us = new double[flows];
+        double[] p99Us = new double[flows];
+        for (int i = 0; i < flows; i++) {
+            long successes = histograms[i].drainTo(counts);
+            failed[i] = failures.getAndSet(i, 0);
+            probes[i] = successes + failed[i];
+            p50Us[i] = CompactHistogram.percentileUs(counts, successes, 50);
+            p99Us[i] = CompactHistogram.percentileUs(counts, successes, 99);
+        }
+
+        // Medians over the flows with enough probes to compare; latencies over those with enough successes
+        double[] comparedP50 = new double[flows];
+        double[] comparedP99 = new double[flows];
+        double[] comparedFailureRate = new double[flows];
+        int compared = 0;
+        int comparedLatencies = 0;
+        for (int i = 0; i < flows; i++) {
+            if (probes[i] >= MIN_PROBES) {
+                comparedFailureRate[compared++] = (double) failed[i] / probes[i];
+            }
+            if (probes[i] - failed[i] >= MIN_PROBES) {
+                comparedP50[comparedLatencies] = p50Us[i];
+                comparedP99[comparedLatencies++] = p99Us[i];
+            }
+        }
+        double medianP50 = median(comparedP50, comparedLatencies);
+        double medianP99 = median(comparedP99, comparedLatencies);
+        double medianFailureRate = median(comparedFailureRate, compared);
+
+        List<FlowStatistics> summaries = new ArrayList<>(flows);
+        for (int i = 0; i < flows; i++) {
+            boolean diverges = false;
+            if (compared >= MIN_FLOWS && probes[i] >= MIN_PROBES) {
+                double failureRate = (double) failed[i] / probes[i];
+                boolean slow = comparedLatencies >= MIN_FLOWS && probes[i] - failed[i] >= MIN_PROBES
+                    && (p50Us[i] > divergence * medianP50 || p99Us[i] > divergence * medianP99);
+                diverges = slow || failureRate > Math.max(divergence * medianFailureRate, MIN_FAILURE_RATE);
+                if (diverges && !divergent[i]) {
+                    logger.warn("Flow from port {} to {} diverges: p50 {} us, p99 {} us, {}% failed"
+                            + " (median of flows: p50 {} us, p99 {} us, {}% failed)",
+                        firstPort + i, spec, p50Us[i], p99Us[i], String.format("%.2f", failureRate * 100),
+                        medianP50, medianP99, String.format("%.2f", medianFailureRate * 100));
+                } else if (!diverges && divergent[i]) {
+                    logger.info("Flow from port {} to {} is in line with its siblings again", firstPort + i, spec);
+                }
+            }
+            divergent[i] = diverges;
+            summaries.add(new FlowStatistics(firstPort + i, windowMs, probes[i], failed[i], p50Us[i], p99Us[i],
+                diverges));
+        }
+        statistics = Collections.unmodifiableList(summaries);
+    }
+
+    /**
+     * Estimated heap taken by the flows' histograms and counters.
+     */
+    long footprintBytes() {
+        return histograms.length * (CompactHistogram.FOOTPRINT_BYTES + 4L);
+    }
+
+    /**
+     * Flows as of the last completed window, in source-port order; zeros before the first.
+     */
+    List<FlowStatistics> getStatistics() {
+        return statistics;
+    }
+
+    private static double median(double[] values, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(values, 0, count);
+        return count % 2 == 1 ? values[count / 2] : (values[count / 2 - 1] + values[count / 2]) / 2;
+    }
+}
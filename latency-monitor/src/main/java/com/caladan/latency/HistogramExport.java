@@ -0,0 +1,336 @@
+/*
+ * HistogramExport - The /histogram representation: every target's histograms
+ * as compressed HdrHistogram encodings (base64), with the counters needed to
+ * rebuild its statistics. Unlike quantiles, histograms from many monitors
+ * merge losslessly, so an aggregator can compute exact fleet-wide
+ * percentiles from them. Written by monitors and aggregators alike, so
+ * aggregators can be stacked (rack, zone, fleet).
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.LatencyMonitor.Statistics;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.HdrHistogram.Histogram;
+
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+final class HistogramExport {
+
+    /** Bumped on incompatible changes; readers reject other versions */
+    static final int VERSION = 1;
+
+    private HistogramExport() {
+    }
+
+    /**
+     * Histograms and counters of one target. The histograms are read-only to
+     * the export, and must not change while it is written.
+     */
+    static final class TargetHistograms {
+        final String host;
+        final int port;
+        final String probe;
+        final String waitStrategy;
+        final double configuredRate;
+        final double rate;
+        final boolean rateBoosted;
+        final boolean running;
+        final long total;
+        final long successful;
+        final long failed;
+        final long pauseAffected;
+        final Map<String, Long> counters;
+
+        // All-time histograms
+        final Histogram serviceTimes;
+        final Histogram responseTimes;
+        final Histogram schedulingJitter;
+        final Map<String, Histogram> phaseTimes;
+        final List<WindowHistograms> windows;
+
+        // All-time failures by reason label: counts, and times of those that got on the wire
+        final Map<String, Long> failureCounts;
+        final Map<String, Histogram> failureTimes;
+
+        // The last reporting interval, carrying its start and end time stamps; null from aggregators
+        final Histogram intervalServiceTimes;
+        final Histogram intervalResponseTimes;
+
+        TargetHistograms(Statistics statistics, Map<String, Long> counters, Histogram serviceTimes,
+                         Histogram responseTimes, Histogram schedulingJitter, Map<String, Histogram> phaseTimes,
+                         List<WindowHistograms> windows, Map<String, Long> failureCounts,
+                         Map<String, Histogram> failureTimes, Histogram intervalServiceTimes,
+                         Histogram intervalResponseTimes) {
+            this(statistics.targetHost, statistics.targetPort, statistics.probe, statistics.waitStrategy,
+                statistics.configuredRate, statistics.ratePerSecond, statistics.rateBoosted, statistics.running,
+                statistics.totalMeasurements, statistics.successfulMeasurements, statistics.failedMeasurements,
+                statistics.pauseAffectedMeasurements, counters, serviceTimes, responseTimes, schedulingJitter,
+                phaseTimes, windows, failureCounts, failureTimes, intervalServiceTimes, intervalResponseTimes);
+        }
+
+        TargetHistograms(String host, int port, String probe, String waitStrategy, double configuredRate,
+                         double rate, boolean rateBoosted, boolean running,
+                         long total, long successful, long failed, long pauseAffected, Map<String, Long> counters,
+                         Histogram serviceTimes, Histogram responseTimes, Histogram schedulingJitter,
+                         Map<String, Histogram> phaseTimes, List<WindowHistograms> windows,
+                         Map<String, Long> failureCounts, Map<String, Histogram> failureTimes,
+                         Histogram intervalServiceTimes, Histogram intervalResponseTimes) {
+            this.host = host;
+            this.port = port;
+            this.probe = probe;
+            this.waitStrategy = waitStrategy;
+            this.configuredRate = configuredRate;
+            this.rate = rate;
+            this.rateBoosted = rateBoosted;
+            this.running = running;
+            this.total = total;
+            this.successful = successful;
+            this.failed = failed;
+            this.pauseAffected = pauseAffected;
+            this.counters = counters;
+            this.serviceTimes = serviceTimes;
+            this.responseTimes = responseTimes;
+            this.schedulingJitter = schedulingJitter;
+            this.phaseTimes = phaseTimes;
+            this.windows = windows;
+            this.failureCounts = failureCounts;
+            this.failureTimes = failureTimes;
+            this.intervalServiceTimes = intervalServiceTimes;
+            this.intervalResponseTimes = intervalResponseTimes;
+        }
+
+        /**
+         * host:port, as in TargetSpec.toString().
+         */
+        String key() {
+            return host.indexOf(':') >= 0 ? "[" + host + "]:" + port : host + ":" + port;
+        }
+    }
+
+    /**
+     * One rolling window of a target.
+     */
+    static final class WindowHistograms {
+        final String name;
+        final long windowMs;
+        final long operations;
+        final long failures;
+        final Histogram serviceTimes;
+        final Histogram responseTimes;
+
+        WindowHistograms(String name, long windowMs, long operations, long failures,
+                         Histogram serviceTimes, Histogram responseTimes) {
+            this.name = name;
+            this.windowMs = windowMs;
+            this.operations = operations;
+            this.failures = failures;
+            this.serviceTimes = serviceTimes;
+            this.responseTimes = responseTimes;
+        }
+    }
+
+    /**
+     * Everything one /histogram response carries.
+     */
+    static final class Export {
+        final long uptimeMs;
+        final boolean running;
+        final List<TargetHistograms> targets;
+
+        Export(long uptimeMs, boolean running, List<TargetHistograms> targets) {
+            this.uptimeMs = uptimeMs;
+            this.running = running;
+            this.targets = targets;
+        }
+    }
+
+    /**
+     * The whole response as one string, for sources that keep it with the statistics it belongs to.
+     */
+    static String encode(Export export) {
+        StringWriter buffer = new StringWriter(8192);
+        try (PrintWriter out = new PrintWriter(buffer)) {
+            write(out, export);
+        }
+        return buffer.toString();
+    }
+
+    static void write(PrintWriter out, Export export) {
+        Encoder encoder = new Encoder();
+        out.println("{");
+        out.printf("  \"version\": %d,%n", VERSION);
+        out.printf("  \"uptimeMs\": %d,%n", export.uptimeMs);
+        out.printf("  \"running\": %b,%n", export.running);
+        out.println("  \"targets\": [");
+        for (int t = 0; t < export.targets.size(); t++) {
+            TargetHistograms target = export.targets.get(t);
+            out.printf("    {\"host\": %s, \"port\": %d, \"probe\": %s, \"wait\": %s, "
+                    + "\"configuredRate\": %s, \"rate\": %s, \"rateBoosted\": %b, \"running\": %b,%n",
+                jsonString(target.host), target.port, jsonString(target.probe), jsonString(target.waitStrategy),
+                target.configuredRate, target.rate, target.rateBoosted, target.running);
+            out.printf("     \"total\": %d, \"successful\": %d, \"failed\": %d, \"pauseAffected\": %d,%n",
+                target.total, target.successful, target.failed, target.pauseAffected);
+            out.print("     \"counters\": {");
+            String separator = "";
+            for (Map.Entry<String, Long> counter : target.counters.entrySet()) {
+                out.printf("%s%s: %d", separator, jsonString(counter.getKey()), counter.getValue());
+                separator = ", ";
+            }
+            out.println("},");
+            out.printf("     \"service\": \"%s\",%n", encoder.encode(target.serviceTimes));
+            out.printf("     \"response\": \"%s\",%n", encoder.encode(target.responseTimes));
+            out.printf("     \"schedulingJitter\": \"%s\",%n", encoder.encode(target.schedulingJitter));
+            out.print("     \"phases\": {");
+            separator = "";
+            for (Map.Entry<String, Histogram> phase : target.phaseTimes.entrySet()) {
+                out.printf("%s%s: \"%s\"", separator, jsonString(phase.getKey()), encoder.encode(phase.getValue()));
+                separator = ", ";
+            }
+            out.println("},");
+            out.print("     \"failures\": {");
+            separator = "";
+            for (Map.Entry<String, Long> failure : target.failureCounts.entrySet()) {
+                out.printf("%s%s: {\"count\": %d, \"times\": \"%s\"}", separator, jsonString(failure.getKey()),
+                    failure.getValue(), encoder.encode(target.failureTimes.get(failure.getKey())));
+                separator = ", ";
+            }
+            out.println("},");
+            if (target.intervalServiceTimes != null) {
+                out.printf("     \"interval\": {\"startMs\": %d, \"endMs\": %d, \"service\": \"%s\", \"response\": \"%s\"},%n",
+                    target.intervalResponseTimes.getStartTimeStamp(), target.intervalResponseTimes.getEndTimeStamp(),
+                    encoder.encode(target.intervalServiceTimes), encoder.encode(target.intervalResponseTimes));
+            }
+            out.println("     \"windows\": [");
+            for (int w = 0; w < target.windows.size(); w++) {
+                WindowHistograms window = target.windows.get(w);
+                out.printf("       {\"name\": %s, \"windowMs\": %d, \"operations\": %d, \"failures\": %d, "
+                        + "\"service\": \"%s\", \"response\": \"%s\"}%s%n",
+                    jsonString(window.name), window.windowMs, window.operations, window.failures,
+                    encoder.encode(window.serviceTimes), encoder.encode(window.responseTimes),
+                    w < target.windows.size() - 1 ? "," : "");
+            }
+            out.println(t < export.targets.size() - 1 ? "     ]}," : "     ]}");
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+
+    /**
+     * Parse and decode a /histogram response.
+     *
+     * @throws IllegalArgumentException if it is not one, or of another version
+     */
+    static Export read(Reader reader) {
+        try {
+            JsonObject root = JsonParser.parseReader(reader).getAsJsonObject();
+            int version = root.get("version").getAsInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported /histogram version " + version);
+            }
+            List<TargetHistograms> targets = new ArrayList<>();
+            for (JsonElement element : root.getAsJsonArray("targets")) {
+                targets.add(readTarget(element.getAsJsonObject()));
+            }
+            return new Export(root.get("uptimeMs").getAsLong(), root.get("running").getAsBoolean(),
+                Collections.unmodifiableList(targets));
+        } catch (RuntimeException | DataFormatException e) {
+            if (e instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) e;
+            }
+            throw new IllegalArgumentException("Malformed /histogram response: " + e, e);
+        }
+    }
+
+    private static TargetHistograms readTarget(JsonObject target) throws DataFormatException {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> counter : target.getAsJsonObject("counters").entrySet()) {
+            counters.put(counter.getKey(), counter.getValue().getAsLong());
+        }
+        Map<String, Histogram> phases = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> phase : target.getAsJsonObject("phases").entrySet()) {
+            phases.put(phase.getKey(), decode(phase.getValue().getAsString()));
+        }
+        // Absent from monitors that predate per-reason failure accounting
+        Map<String, Long> failureCounts = new LinkedHashMap<>();
+        Map<String, Histogram> failureTimes = new LinkedHashMap<>();
+        if (target.has("failures")) {
+            for (Map.Entry<String, JsonElement> failure : target.getAsJsonObject("failures").entrySet()) {
+                JsonObject reason = failure.getValue().getAsJsonObject();
+                failureCounts.put(failure.getKey(), reason.get("count").getAsLong());
+                failureTimes.put(failure.getKey(), decode(reason.get("times").getAsString()));
+            }
+        }
+        List<WindowHistograms> windows = new ArrayList<>();
+        JsonArray windowArray = target.getAsJsonArray("windows");
+        for (JsonElement element : windowArray) {
+            JsonObject window = element.getAsJsonObject();
+            windows.add(new WindowHistograms(window.get("name").getAsString(), window.get("windowMs").getAsLong(),
+                window.get("operations").getAsLong(), window.get("failures").getAsLong(),
+                decode(window.get("service").getAsString()), decode(window.get("response").getAsString())));
+        }
+        Histogram intervalService = null;
+        Histogram intervalResponse = null;
+        JsonObject interval = target.getAsJsonObject("interval");
+        if (interval != null) {
+            intervalService = decode(interval.get("service").getAsString());
+            intervalResponse = decode(interval.get("response").getAsString());
+            for (Histogram histogram : new Histogram[] {intervalService, intervalResponse}) {
+                histogram.setStartTimeStamp(interval.get("startMs").getAsLong());
+                histogram.setEndTimeStamp(interval.get("endMs").getAsLong());
+            }
+        }
+        return new TargetHistograms(target.get("host").getAsString(), target.get("port").getAsInt(),
+            target.get("probe").getAsString(), target.get("wait").getAsString(),
+            target.get("configuredRate").getAsDouble(), target.get("rate").getAsDouble(),
+            target.get("rateBoosted").getAsBoolean(), target.get("running").getAsBoolean(),
+            target.get("total").getAsLong(), target.get("successful").getAsLong(), target.get("failed").getAsLong(),
+            target.get("pauseAffected").getAsLong(), Collections.unmodifiableMap(counters),
+            decode(target.get("service").getAsString()), decode(target.get("response").getAsString()),
+            decode(target.get("schedulingJitter").getAsString()), Collections.unmodifiableMap(phases),
+            Collections.unmodifiableList(windows), Collections.unmodifiableMap(failureCounts),
+            Collections.unmodifiableMap(failureTimes), intervalService, intervalResponse);
+    }
+
+    /**
+     * A quoted JSON string, escaped by Gson as read() will parse it.
+     */
+    private static String jsonString(String value) {
+        return new JsonPrimitive(value).toString();
+    }
+
+    static Histogram decode(String base64) throws DataFormatException {
+        return Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(Base64.getDecoder().decode(base64)), 0);
+    }
+
+    /**
+     * Compresses histograms into one growing buffer, reused for a whole export.
+     */
+    private static final class Encoder {
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        String encode(Histogram histogram) {
+            int needed = histogram.getNeededByteBufferCapacity();
+            if (buffer.capacity() < needed) {
+                buffer = ByteBuffer.allocate(needed);
+            }
+            buffer.clear();
+            int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+            return Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), length));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * IntervalReporter - Background interval-reporting stage.
+ * On a fixed cadence swaps every target's interval histograms out of its
+ * Timer, merges them into the cumulative statistics and publishes an
+ * immutable snapshot. Probe threads only ever call recordValue, and HTTP
+ * readers only ever read the published snapshot.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.LatencyMonitor.Statistics;
+import com.caladan.latency.measure.ResolverCache;
+import com.caladan.latency.util.IntervalSink;
+import com.caladan.latency.util.TimingInterval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class IntervalReporter implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntervalReporter.class);
+
+    private final LatencyMonitor monitor;
+    private final List<TargetMonitor> targets;
+    private final List<ProbeReactor> reactors;
+    private final ResolverCache resolver;
+    private final PauseDetector pauses;
+    private SocketUsage sockets;
+    private final long intervalMs;
+    private ScheduledExecutorService scheduler;
+    private final List<IntervalSink> sinks = new ArrayList<>();
+
+    // Published once per interval, read lock-free by any number of scrapers
+    private volatile List<Statistics> statistics;
+    // As of the published statistics; guarded by this
+    private long publishedUptimeMs;
+    private boolean publishedRunning;
+
+    // The /histogram encoding of the published statistics, made on the first request for them; guarded by this
+    private List<Statistics> exportedStatistics;
+    private String histogramExport;
+
+    public IntervalReporter(LatencyMonitor monitor, List<TargetMonitor> targets,
+                            List<ProbeReactor> reactors, ResolverCache resolver, PauseDetector pauses,
+                            long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("Report interval must be positive: " + intervalMs);
+        }
+        this.monitor = monitor;
+        this.targets = targets;
+        this.reactors = reactors;
+        this.resolver = resolver;
+        this.pauses = pauses;
+        this.intervalMs = intervalMs;
+
+        List<Statistics> initial = new ArrayList<>(targets.size());
+        for (TargetMonitor target : targets) {
+            initial.add(target.getStatistics());
+        }
+        this.statistics = Collections.unmodifiableList(initial);
+    }
+
+    /**
+     * Also hand every interval to a sink (histogram log, store). Must be called before start().
+     */
+    void addSink(IntervalSink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * Also sample local socket and port usage. Must be called before start().
+     */
+    void setSocketUsage(SocketUsage sockets) {
+        this.sockets = sockets;
+    }
+
+    /**
+     * Start reporting at a fixed rate.
+     */
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "IntervalReporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop reporting, flushing one last interval.
+     */
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        run();
+        for (IntervalSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (Exception e) {
+                logger.error("Error closing {}", sink, e);
+            }
+        }
+    }
+
+    /**
+     * Report one interval for every target, reactor shard and resolved host name,
+     * and of the pause detector and socket usage.
+     */
+    @Override
+    public synchronized void run() {
+        try {
+            long uptimeMs = monitor.getUptimeMs();
+            boolean running = monitor.isRunning();
+            List<Statistics> published = new ArrayList<>(targets.size());
+            for (TargetMonitor target : targets) {
+                published.add(target.reportInterval(uptimeMs, running));
+            }
+            for (ProbeReactor reactor : reactors) {
+                reactor.reportInterval();
+            }
+            resolver.reportInterval();
+            pauses.reportInterval();
+            if (sockets != null) {
+                sockets.reportInterval();
+            }
+
+            // Published last: a response rendered for these statistics must see this interval's
+            // reactor, resolver, pause and socket figures too, as it is cached until the next
+            publishedUptimeMs = uptimeMs;
+            publishedRunning = running;
+            statistics = Collections.unmodifiableList(published);
+        } catch (Exception e) {
+            // Never let an exception cancel the fixed-rate schedule
+            logger.error("Error reporting interval", e);
+        }
+
+        for (IntervalSink sink : sinks) {
+            writeSink(sink);
+        }
+    }
+
+    /**
+     * Hand the intervals just reported to a sink; statistics are already published.
+     */
+    private void writeSink(IntervalSink sink) {
+        try {
+            for (TargetMonitor target : targets) {
+                TimingInterval interval = target.lastInterval();
+                if (interval != null) {
+                    sink.write(target.getSpec().toString(), interval, target.lastIntervalFailures());
+                }
+            }
+            sink.flush();
+        } catch (Exception e) {
+            logger.error("Error writing intervals to {}", sink, e);
+        }
+    }
+
+    /**
+     * The histograms behind the published statistics in the /histogram format,
+     * encoded at most once per interval. They belong to this reporter, so they
+     * are encoded under its lock: between two intervals, they are exactly the
+     * ones the published statistics were computed from. Reporting waits while
+     * they are encoded; probes only ever record into their Timer and are not held up.
+     */
+    synchronized String getHistogramExport() {
+        if (exportedStatistics != statistics) {
+            List<HistogramExport.TargetHistograms> histograms = new ArrayList<>(targets.size());
+            for (TargetMonitor target : targets) {
+                histograms.add(target.histograms());
+            }
+            histogramExport = HistogramExport.encode(new HistogramExport.Export(publishedUptimeMs, publishedRunning,
+                histograms));
+            exportedStatistics = statistics;
+        }
+        return histogramExport;
+    }
+
+    /**
+     * Statistics of every target as of the last completed interval.
+     */
+    public List<Statistics> getStatistics() {
+        return statistics;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * IntervalStream - Live reporting intervals as Server-Sent Events on /stream.
+ * Every reporting interval of every target is serialized once into a single
+ * frame (per-interval percentiles, probe rate and failures of all targets),
+ * and that same byte array is handed to every subscriber, so a hundred open
+ * dashboards cost one rendering per interval rather than a hundred.
+ *
+ * Subscribers are written with non-blocking servlet I/O and hold at most one
+ * undelivered frame: a client that falls behind has its pending frame
+ * replaced by the newer one (the event ids skip), and one that has not
+ * taken a frame for the stall limit is disconnected. Nothing is ever queued
+ * per client, so slow or stuck viewers cannot grow the heap.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.util.IntervalSink;
+import com.caladan.latency.util.LatencySummary;
+import com.caladan.latency.util.TimingInterval;
+import com.google.gson.JsonPrimitive;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class IntervalStream implements IntervalSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntervalStream.class);
+
+    public static final int DEFAULT_MAX_CLIENTS = 64;
+    public static final long DEFAULT_MAX_STALL_MS = 10_000;
+
+    // Each summarized in one pass over the interval histogram rather than one scan per percentile
+    private static final double[] SERVICE_PERCENTILES = {50, 90, 99};
+    private static final double[] RESPONSE_PERCENTILES = {50, 99, 99.9};
+
+    // Sent once per connection: how long browsers wait before reconnecting
+    private static final byte[] RETRY = "retry: 2000\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final int maxClients;
+    private final long maxStallMs;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    // Reserved before a subscriber is set up and released when it leaves, so maxClients holds under races
+    private final AtomicInteger clients = new AtomicInteger();
+
+    // The frame being built, owned by the IntervalReporter thread. Whether to build it is decided at
+    // the first target of an interval, so a subscriber arriving mid-interval never gets a partial frame
+    private final StringBuilder targets = new StringBuilder(4096);
+    private boolean intervalStarted;
+    private boolean building;
+    private long sequence;
+
+    // The last complete frame, sent to new subscribers so they need not wait for the next interval
+    private volatile byte[] latest;
+
+    private final AtomicLong coalescedFrames = new AtomicLong();
+    private final AtomicLong droppedClients = new AtomicLong();
+
+    /**
+     * @param maxClients subscribers beyond this are turned away with 503
+     * @param maxStallMs a subscriber that has not taken a frame for this long is disconnected
+     */
+    public IntervalStream(int maxClients, long maxStallMs) {
+        if (maxClients < 1) {
+            throw new IllegalArgumentException("Stream clients must be at least 1: " + maxClients);
+        }
+        if (maxStallMs <= 0) {
+            throw new IllegalArgumentException("Stream stall limit must be positive: " + maxStallMs);
+        }
+        this.maxClients = maxClients;
+        this.maxStallMs = maxStallMs;
+    }
+
+    @Override
+    public void write(String target, TimingInterval interval) {
+        write(target, interval, 0);
+    }
+
+    @Override
+    public void write(String target, TimingInterval interval, long failures) {
+        if (!intervalStarted) {
+            intervalStarted = true;
+            building = clients.get() > 0;
+        }
+        if (!building) {
+            return;
+        }
+        LatencySummary service = LatencySummary.of(interval.getServiceTimesHistogram(), SERVICE_PERCENTILES);
+        LatencySummary response = LatencySummary.of(interval.getResponseTimesHistogram(), RESPONSE_PERCENTILES);
+        if (targets.length() > 0) {
+            targets.append(',');
+        }
+        // Escaped as Gson does for every other JSON response
+        targets.append("{\"target\":").append(new JsonPrimitive(target))
+            .append(",\"count\":").append(interval.operationCount)
+            .append(",\"failed\":").append(failures)
+            .append(",\"rate\":");
+        appendRounded(targets, interval.opRate());
+        targets.append(",\"serviceUs\":{\"p50\":");
+        appendRounded(targets, service.percentileUs(50));
+        targets.append(",\"p90\":");
+        appendRounded(targets, service.percentileUs(90));
+        targets.append(",\"p99\":");
+        appendRounded(targets, service.percentileUs(99));
+        targets.append(",\"max\":");
+        appendRounded(targets, service.maxUs);
+        targets.append("},\"responseUs\":{\"p50\":");
+        appendRounded(targets, response.percentileUs(50));
+        targets.append(",\"p99\":");
+        appendRounded(targets, response.percentileUs(99));
+        targets.append(",\"p999\":");
+        appendRounded(targets, response.percentileUs(99.9));
+        targets.append(",\"max\":");
+        appendRounded(targets, response.maxUs);
+        targets.append("}}");
+    }
+
+    /**
+     * Complete the frame of this interval and offer it to every subscriber.
+     */
+    @Override
+    public void flush() {
+        boolean built = intervalStarted ? building : clients.get() > 0;
+        intervalStarted = false;
+        if (!built) {
+            targets.setLength(0);
+            latest = null;
+            return;
+        }
+        long id = ++sequence;
+        long nowMs = System.currentTimeMillis();
+        String frame = "id: " + id + "\nevent: interval\ndata: {\"seq\":" + id + ",\"timeMs\":" + nowMs
+            + ",\"targets\":[" + targets + "]}\n\n";
+        targets.setLength(0);
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        latest = bytes;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(bytes, nowMs);
+        }
+    }
+
+    /**
+     * End every subscription; browsers reconnect to whatever serves next.
+     */
+    @Override
+    public void close() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.complete();
+        }
+    }
+
+    /**
+     * Turn a request into a subscription. The request goes asynchronous and
+     * is answered with a frame per reporting interval until the client leaves,
+     * falls too far behind, or the stream is closed.
+     */
+    void subscribe(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!reserveClient()) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", "10");
+            response.getWriter().println("Too many stream clients");
+            return;
+        }
+        Subscriber subscriber;
+        try {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/event-stream; charset=utf-8");
+            response.setHeader("Cache-Control", "no-cache");
+            // Reverse proxies must pass every frame on as it comes
+            response.setHeader("X-Accel-Buffering", "no");
+
+            AsyncContext async = request.startAsync();
+            async.setTimeout(0);
+            subscriber = new Subscriber(async, response.getOutputStream(), latest);
+        } catch (IOException | RuntimeException e) {
+            clients.decrementAndGet();
+            throw e;
+        }
+        // From here on the subscriber holds the slot and gives it back when it leaves. It takes
+        // frames only once the write listener has put the output in non-blocking mode: before
+        // that isReady() is always true and offer() would write blocking from the reporter thread.
+        try {
+            subscriber.async.addListener(subscriber);
+            subscriber.out.setWriteListener(subscriber);
+        } catch (RuntimeException e) {
+            subscriber.complete();
+            throw e;
+        }
+        subscriber.join();
+    }
+
+    /**
+     * Take one of the maxClients slots, unless they are all taken.
+     */
+    private boolean reserveClient() {
+        while (true) {
+            int current = clients.get();
+            if (current >= maxClients) {
+                return false;
+            }
+            if (clients.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public int clients() {
+        return clients.get();
+    }
+
+    /**
+     * Frames replaced before a slow subscriber took them.
+     */
+    public long coalescedFrames() {
+        return coalescedFrames.get();
+    }
+
+    /**
+     * Subscribers disconnected for not taking frames within the stall limit.
+     */
+    public long droppedClients() {
+        return droppedClients.get();
+    }
+
+    /**
+     * A non-negative value to one decimal, without the formatter's allocations.
+     */
+    private static void appendRounded(StringBuilder out, double value) {
+        long tenths = Math.round(value * 10);
+        out.append(tenths / 10).append('.').append(tenths % 10);
+    }
+
+    /**
+     * One connection. The pending frame is the only thing kept for it; writes
+     * never block, and whichever thread finds the output ready sends it.
+     */
+    private final class Subscriber implements WriteListener, AsyncListener {
+
+        final AsyncContext async;
+        final ServletOutputStream out;
+
+        // Guarded by this
+        private byte[] pending;
+        // The newest frame taken, so one offered by flush() and by join() is sent once
+        private byte[] newest;
+        private long pendingSinceMs;
+        private boolean unflushed;
+        private boolean done;
+        private boolean left;
+
+        Subscriber(AsyncContext async, ServletOutputStream out, byte[] latest) {
+            this.async = async;
+            this.out = out;
+            this.newest = latest;
+            if (latest == null) {
+                this.pending = RETRY;
+            } else {
+                byte[] first = new byte[RETRY.length + latest.length];
+                System.arraycopy(RETRY, 0, first, 0, RETRY.length);
+                System.arraycopy(latest, 0, first, RETRY.length, latest.length);
+                this.pending = first;
+            }
+            this.pendingSinceMs = System.currentTimeMillis();
+        }
+
+        /**
+         * Make a frame the next one to send, replacing any the client has not taken yet.
+         */
+        synchronized void offer(byte[] frame, long nowMs) {
+            if (done || frame == newest) {
+                return;
+            }
+            newest = frame;
+            if (pending != null) {
+                if (nowMs - pendingSinceMs > maxStallMs) {
+                    droppedClients.incrementAndGet();
+                    logger.info("Dropping stream client {}: no frame taken for {} ms",
+                        async.getRequest().getRemoteAddr(), nowMs - pendingSinceMs);
+                    complete();
+                    return;
+                }
+                coalescedFrames.incrementAndGet();
+            } else {
+                pendingSinceMs = nowMs;
+            }
+            pending = frame;
+            send();
+        }
+
+        @Override
+        public synchronized void onWritePossible() {
+            send();
+        }
+
+        /**
+         * Write and flush while the output takes it without blocking; once it
+         * does not, the container calls onWritePossible() when it does again.
+         */
+        private void send() {
+            try {
+                while (!done && out.isReady()) {
+                    if (unflushed) {
+                        unflushed = false;
+                        out.flush();
+                    } else if (pending != null) {
+                        byte[] frame = pending;
+                        pending = null;
+                        unflushed = true;
+                        out.write(frame);
+                    } else {
+                        return;
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                // Gone; the container reports it through onError as well
+                complete();
+            }
+        }
+
+        synchronized void complete() {
+            leave();
+            if (!done) {
+                done = true;
+                pending = null;
+                try {
+                    async.complete();
+                } catch (IllegalStateException e) {
+                    // Already completed by the container
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            complete();
+        }
+
+        @Override
+        public synchronized void onComplete(AsyncEvent event) {
+            leave();
+        }
+
+        /**
+         * Start taking frames, unless already gone, catching up on any published since construction.
+         */
+        synchronized void join() {
+            if (!left) {
+                subscribers.add(this);
+                byte[] frame = latest;
+                if (frame != null) {
+                    offer(frame, System.currentTimeMillis());
+                }
+            }
+        }
+
+        /**
+         * Stop taking frames and give back the client slot, once.
+         */
+        private void leave() {
+            if (!left) {
+                left = true;
+                subscribers.remove(this);
+                clients.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            complete();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            complete();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
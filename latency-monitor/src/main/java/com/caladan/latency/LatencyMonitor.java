@@ -1,173 +1,297 @@
 /*
  * LatencyMonitor - Main orchestration class for network latency monitoring.
- * Runs periodic measurements with coordinated omission correction.
+ * Runs periodic measurements of many targets on a shared worker pool,
+ * with coordinated omission correction.
  */
 package com.caladan.latency;
 
-import com.caladan.latency.measure.TCPLatencyMeasurer;
-import com.caladan.latency.util.Pacer;
-import com.caladan.latency.util.Timer;
-import com.caladan.latency.util.TimingInterval;
-import org.HdrHistogram.Histogram;
+import com.caladan.latency.measure.ConnectOptions;
+import com.caladan.latency.measure.ResolverCache;
+import com.caladan.latency.util.HistogramSettings;
+import com.caladan.latency.util.IntervalSink;
+import com.caladan.latency.util.LatencyBuckets;
+import com.caladan.latency.util.LatencySummary;
+import com.caladan.latency.util.SlidingWindows;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class LatencyMonitor {
+public class LatencyMonitor implements StatisticsSource {
     
     private static final Logger logger = LoggerFactory.getLogger(LatencyMonitor.class);
     
-    private final TCPLatencyMeasurer measurer;
-    private final double ratePerSecond;
+    private final List<TargetMonitor> targets;
+    private final int workerThreads;
     private final AtomicBoolean running = new AtomicBoolean(false);
-    private Thread monitorThread;
+    private ScheduledExecutorService workers;
+    private final int reactorThreads;
+    private final List<ProbeReactor> reactors = new ArrayList<>();
+    private final IntervalReporter reporter;
+    private final LatencyBuckets buckets;
+    private final ResolverCache resolver;
+    private final PauseDetector pauses;
+    private SocketUsage sockets;
     
-    // Cumulative histograms for all-time statistics
-    private final Histogram cumulativeServiceTimes;
-    private final Histogram cumulativeResponseTimes;
-    
-    // Counters
-    private final AtomicLong totalMeasurements = new AtomicLong(0);
-    private final AtomicLong successfulMeasurements = new AtomicLong(0);
-    private final AtomicLong failedMeasurements = new AtomicLong(0);
+    /** Granularity of the 1m / 5m / 15m sliding windows */
+    public static final long DEFAULT_WINDOW_SLOT_MS = 5000;
     
     // Start time
     private long startTimeMs;
     
     public LatencyMonitor(String targetHost, int targetPort, double ratePerSecond) {
-        this.measurer = new TCPLatencyMeasurer(targetHost, targetPort);
-        this.ratePerSecond = ratePerSecond;
-        
-        // High dynamic range histograms: 1ns to 1 hour, 3 significant digits
-        this.cumulativeServiceTimes = new Histogram(1, 3_600_000_000_000L, 3);
-        this.cumulativeResponseTimes = new Histogram(1, 3_600_000_000_000L, 3);
+        this(List.of(new TargetSpec(targetHost, targetPort, ratePerSecond)), 1, 1,
+            TargetMonitor.ProbeMode.CLOSED, 1000);
+    }
+    
+    public LatencyMonitor(List<TargetSpec> targetSpecs, int workerThreads, int reactorThreads,
+                          TargetMonitor.ProbeMode defaultMode, long reportIntervalMs) {
+        this(targetSpecs, workerThreads, reactorThreads, defaultMode, reportIntervalMs,
+            DEFAULT_WINDOW_SLOT_MS, LatencyBuckets.DEFAULT);
+    }
+    
+    public LatencyMonitor(List<TargetSpec> targetSpecs, int workerThreads, int reactorThreads,
+                          TargetMonitor.ProbeMode defaultMode, long reportIntervalMs, long windowSlotMs,
+                          LatencyBuckets buckets) {
+        this(targetSpecs, workerThreads, reactorThreads, defaultMode, reportIntervalMs, windowSlotMs, buckets,
+            new ResolverCache(ResolverCache.DEFAULT_TTL_MS),
+            new PauseDetector(PauseDetector.DEFAULT_THRESHOLD_NANOS, false));
+    }
+    
+    /**
+     * @param resolver resolves target host names once up front and refreshes them in the background
+     * @param pauses   detects local JVM pauses, which probes overlapping them are marked with
+     */
+    public LatencyMonitor(List<TargetSpec> targetSpecs, int workerThreads, int reactorThreads,
+                          TargetMonitor.ProbeMode defaultMode, long reportIntervalMs, long windowSlotMs,
+                          LatencyBuckets buckets, ResolverCache resolver, PauseDetector pauses) {
+        if (targetSpecs.isEmpty()) {
+            throw new IllegalArgumentException("At least one target is required");
+        }
+        List<TargetMonitor> monitors = new ArrayList<>(targetSpecs.size());
+        for (TargetSpec spec : targetSpecs) {
+            HistogramSettings histograms = TargetMonitor.histogramSettings(spec);
+            monitors.add(new TargetMonitor(spec, defaultMode, histograms,
+                SlidingWindows.standard(windowSlotMs, histograms), buckets, resolver, pauses));
+        }
+        this.targets = Collections.unmodifiableList(monitors);
+        this.buckets = buckets;
+        this.resolver = resolver;
+        this.pauses = pauses;
+        this.workerThreads = Math.max(1, workerThreads);
+        this.reactorThreads = Math.max(1, reactorThreads);
+        this.reporter = new IntervalReporter(this, targets, reactors, resolver, pauses, reportIntervalMs);
     }
     
     /**
-     * Start the monitoring thread.
+     * Start probing: closed-loop targets on the shared worker pool,
+     * open-loop targets hashed onto the probe reactor shards.
      */
-    public void start() {
+    public void start() throws IOException {
         if (running.compareAndSet(false, true)) {
             startTimeMs = System.currentTimeMillis();
-            monitorThread = new Thread(this::measurementLoop, "LatencyMonitor");
-            monitorThread.setDaemon(true);
-            monitorThread.start();
-            logger.info("Started latency monitoring to {}:{} at {} ops/sec",
-                measurer.getTargetHost(), measurer.getTargetPort(), ratePerSecond);
+            resolver.start();
+            pauses.start();
+            AtomicInteger threadIndex = new AtomicInteger();
+            workers = Executors.newScheduledThreadPool(workerThreads, runnable -> {
+                Thread thread = new Thread(runnable, "LatencyMonitor-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            
+            long startTimeNanos = System.nanoTime();
+            List<TargetMonitor> openLoopTargets = new ArrayList<>();
+            for (TargetMonitor target : targets) {
+                if (target.getMode() == TargetMonitor.ProbeMode.OPEN) {
+                    openLoopTargets.add(target);
+                } else {
+                    target.start(workers, startTimeNanos);
+                }
+            }
+            if (!openLoopTargets.isEmpty()) {
+                int shards = Math.min(reactorThreads, openLoopTargets.size());
+                for (int i = 0; i < shards; i++) {
+                    reactors.add(new ProbeReactor(i));
+                }
+                for (TargetMonitor target : openLoopTargets) {
+                    int shard = Math.floorMod(mix(target.getSpec().toString().hashCode()), shards);
+                    reactors.get(shard).addTarget(target);
+                }
+                for (ProbeReactor reactor : reactors) {
+                    reactor.start(startTimeNanos);
+                }
+            }
+            
+            reporter.start();
+            logger.info("Started latency monitoring of {} target(s): {} open-loop on {} reactor shard(s), "
+                    + "{} closed-loop on {} worker thread(s)",
+                targets.size(), openLoopTargets.size(), reactors.size(),
+                targets.size() - openLoopTargets.size(), workerThreads);
         }
     }
     
     /**
-     * Stop the monitoring thread.
+     * Stop all probing and the worker pool.
      */
     public void stop() {
         if (running.compareAndSet(true, false)) {
-            if (monitorThread != null) {
-                monitorThread.interrupt();
+            for (TargetMonitor target : targets) {
+                target.stop();
+            }
+            for (ProbeReactor reactor : reactors) {
+                reactor.stop();
+            }
+            if (workers != null) {
+                workers.shutdownNow();
                 try {
-                    monitorThread.join(5000);
+                    workers.awaitTermination(5, TimeUnit.SECONDS);
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                 }
             }
+            reporter.stop();
+            resolver.stop();
+            pauses.stop();
             logger.info("Stopped latency monitoring");
         }
     }
     
     /**
-     * Main measurement loop.
-     */
-    private void measurementLoop() {
-        Pacer pacer = new Pacer(ratePerSecond);
-        pacer.setInitialStartTime(System.nanoTime());
-        Timer timer = new Timer();
-        
-        while (running.get() && !Thread.currentThread().isInterrupted()) {
-            try {
-                // Get intended start time (for coordinated omission correction)
-                long expectedStart = pacer.expectedStartTimeNsec();
-                timer.expectedStart(expectedStart);
-                
-                // Wait until scheduled time
-                pacer.acquire(1);
-                
-                // Start timing
-                timer.start();
-                
-                // Perform measurement
-                TCPLatencyMeasurer.MeasurementResult result = measurer.measure();
-                
-                // Stop timing
-                timer.stop();
-                
-                // Update counters
-                totalMeasurements.incrementAndGet();
-                if (result.success) {
-                    successfulMeasurements.incrementAndGet();
-                } else {
-                    failedMeasurements.incrementAndGet();
-                    logger.debug("Measurement failed: {}", result.error);
-                }
-                
-                // Get snapshot and add to cumulative histograms
-                TimingInterval snapshot = timer.getSnapshot();
-                synchronized (this) {
-                    cumulativeServiceTimes.add(snapshot.getServiceTimesHistogram());
-                    cumulativeResponseTimes.add(snapshot.getResponseTimesHistogram());
-                }
-                
-            } catch (Exception e) {
-                if (running.get()) {
-                    logger.error("Error in measurement loop", e);
-                }
+     * Hand every reporting interval of every target to a sink, such as a
+     * histogram log. Must be called before start().
+     */
+    public void addIntervalSink(IntervalSink sink) {
+        reporter.addSink(sink);
+    }
+    
+    /**
+     * Sample local socket and port usage once per reporting interval, at most,
+     * including the source-port ranges of the targets. Must be called before start().
+     */
+    public void setSocketUsage(SocketUsage sockets) {
+        for (TargetMonitor target : targets) {
+            ConnectOptions options = target.getConnectOptions();
+            if (options != null && options.bindsSourcePorts()) {
+                sockets.watchRange(options.sourcePortMin, options.sourcePortMax);
             }
         }
-        
-        timer.close();
-    }
-    
-    /**
-     * Get current statistics.
-     */
-    public synchronized Statistics getStatistics() {
-        return new Statistics(
-            measurer.getTargetHost(),
-            measurer.getTargetPort(),
-            ratePerSecond,
-            totalMeasurements.get(),
-            successfulMeasurements.get(),
-            failedMeasurements.get(),
-            System.currentTimeMillis() - startTimeMs,
-            running.get(),
-            // Service times (actual measurement duration)
-            cumulativeServiceTimes.getMean() / 1000.0,           // ns to us
-            cumulativeServiceTimes.getValueAtPercentile(50) / 1000.0,
-            cumulativeServiceTimes.getValueAtPercentile(95) / 1000.0,
-            cumulativeServiceTimes.getValueAtPercentile(99) / 1000.0,
-            cumulativeServiceTimes.getValueAtPercentile(99.9) / 1000.0,
-            cumulativeServiceTimes.getMaxValue() / 1000.0,
-            cumulativeServiceTimes.getMinNonZeroValue() / 1000.0,
-            // Response times (coordinated omission corrected)
-            cumulativeResponseTimes.getMean() / 1000.0,
-            cumulativeResponseTimes.getValueAtPercentile(50) / 1000.0,
-            cumulativeResponseTimes.getValueAtPercentile(95) / 1000.0,
-            cumulativeResponseTimes.getValueAtPercentile(99) / 1000.0,
-            cumulativeResponseTimes.getValueAtPercentile(99.9) / 1000.0,
-            cumulativeResponseTimes.getMaxValue() / 1000.0,
-            cumulativeResponseTimes.getMinNonZeroValue() / 1000.0
-        );
+        this.sockets = sockets;
+        reporter.setSocketUsage(sockets);
+    }
+    
+    /**
+     * Get current statistics, one entry per target in configuration order.
+     * Returns the snapshot published by the last reporting interval without
+     * taking any lock, so scrapers never disturb the measurements.
+     */
+    @Override
+    public List<Statistics> getStatistics() {
+        return reporter.getStatistics();
+    }
+    
+    /**
+     * Every target's histograms as of the last reporting interval in the
+     * /histogram format. Holds up the reporter, never the probes, while encoding.
+     */
+    @Override
+    public String getHistogramExport() {
+        return reporter.getHistogramExport();
+    }
+    
+    /**
+     * Spread similar target names (10.0.2.120, 10.0.2.121, ...) evenly across shards.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+    
+    /**
+     * Resolution statistics of every target host name (IP literals excluded).
+     */
+    @Override
+    public List<ResolverCache.ResolverStatistics> getResolverStatistics() {
+        return resolver.getStatistics();
+    }
+    
+    /**
+     * Hiccups and garbage collections of the monitor's own JVM.
+     */
+    @Override
+    public PauseDetector.PauseStatistics getPauseStatistics() {
+        return pauses.getStatistics();
+    }
+    
+    /**
+     * Local socket and port usage, or null unless setSocketUsage() was called.
+     */
+    @Override
+    public SocketUsage.SocketStatistics getSocketStatistics() {
+        return sockets != null ? sockets.getStatistics() : null;
+    }
+    
+    /**
+     * Get loop statistics of the open-loop reactor shards.
+     */
+    @Override
+    public List<ProbeReactor.ShardStatistics> getShardStatistics() {
+        List<ProbeReactor.ShardStatistics> statistics = new ArrayList<>(reactors.size());
+        for (ProbeReactor reactor : reactors) {
+            statistics.add(reactor.getStatistics());
+        }
+        return statistics;
+    }
+    
+    /**
+     * Bucket boundaries of the per-target bucket counts in Statistics.
+     */
+    @Override
+    public LatencyBuckets getLatencyBuckets() {
+        return buckets;
     }
     
+    public List<TargetMonitor> getTargets() {
+        return targets;
+    }
+    
+    /**
+     * The target with this host:port, as in TargetSpec.toString(), or null.
+     */
+    public TargetMonitor getTarget(String hostPort) {
+        for (TargetMonitor target : targets) {
+            if (target.getSpec().toString().equals(hostPort)) {
+                return target;
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public long getUptimeMs() {
+        return System.currentTimeMillis() - startTimeMs;
+    }
+    
+    @Override
     public boolean isRunning() {
         return running.get();
     }
     
     /**
-     * Statistics snapshot.
+     * Immutable statistics snapshot for one target.
      */
-    public static class Statistics {
+    public static final class Statistics {
         public final String targetHost;
         public final int targetPort;
         public final double ratePerSecond;
@@ -177,6 +301,11 @@ public class LatencyMonitor {
         public final long uptimeMs;
         public final boolean running;
         
+        // Samples in the all-time service and response time histograms: successful probes,
+        // less any left out for overlapping a local JVM pause
+        public final long serviceCount;
+        public final long responseCount;
+        
         // Service times (microseconds)
         public final double serviceMeanUs;
         public final double serviceP50Us;
@@ -195,13 +324,56 @@ public class LatencyMonitor {
         public final double responseMaxUs;
         public final double responseMinUs;
         
+        // Rolling windows (1m / 5m / 15m), shortest first
+        public final List<WindowStatistics> windows;
+        
+        // Cumulative (le) bucket counts of the all-time histograms, last entry is +Inf
+        private final long[] serviceBucketCounts;
+        private final long[] responseBucketCounts;
+        
+        // Events counted by the probe type, e.g. reordered datagrams; empty for TCP
+        public final Map<String, Long> probeCounters;
+        
+        // Latencies measured by the probe type besides the exchange itself, e.g. connect times
+        public final Map<String, LatencySummary> probeTimes;
+        
+        // All-time durations of the phases of each probe (HTTP probes), in probe order
+        public final List<PhaseStatistics> phases;
+        
+        // How late probes started relative to their Pacer slot, all-time; the monitor's own share of response times
+        public final LatencySummary schedulingJitter;
+        
+        // Whether adaptive mode currently probes above the base rate; ratePerSecond is the current rate
+        public final boolean rateBoosted;
+        
+        // Probes that overlapped a local JVM pause; left out of the latencies if the monitor excludes them
+        public final long pauseAffectedMeasurements;
+        
+        // Probe type, wait strategy and configured rate, as in network_latency_target_info
+        public final String probe;
+        public final String waitStrategy;
+        public final double configuredRate;
+        
+        // All-time failures by reason, in FailureReason order; only reasons that occurred
+        public final List<FailureStatistics> failures;
+        
+        // Fixed flows of the target (flows option) as of their last completed window, in source-port order
+        public final List<FlowStatistics> flows;
+        
+        // Estimated heap taken by the target's histograms and windows; 0 if not known (aggregators)
+        public final long histogramBytes;
+        
         public Statistics(String targetHost, int targetPort, double ratePerSecond,
                          long totalMeasurements, long successfulMeasurements, long failedMeasurements,
                          long uptimeMs, boolean running,
-                         double serviceMeanUs, double serviceP50Us, double serviceP95Us,
-                         double serviceP99Us, double serviceP999Us, double serviceMaxUs, double serviceMinUs,
-                         double responseMeanUs, double responseP50Us, double responseP95Us,
-                         double responseP99Us, double responseP999Us, double responseMaxUs, double responseMinUs) {
+                         LatencySummary serviceTimes, LatencySummary responseTimes,
+                         List<WindowStatistics> windows,
+                         long[] serviceBucketCounts, long[] responseBucketCounts,
+                         Map<String, Long> probeCounters, Map<String, LatencySummary> probeTimes,
+                         List<PhaseStatistics> phases, LatencySummary schedulingJitter, boolean rateBoosted,
+                         long pauseAffectedMeasurements, String probe, String waitStrategy,
+                         double configuredRate, List<FailureStatistics> failures, List<FlowStatistics> flows,
+                         long histogramBytes) {
             this.targetHost = targetHost;
             this.targetPort = targetPort;
             this.ratePerSecond = ratePerSecond;
@@ -210,20 +382,63 @@ public class LatencyMonitor {
             this.failedMeasurements = failedMeasurements;
             this.uptimeMs = uptimeMs;
             this.running = running;
-            this.serviceMeanUs = serviceMeanUs;
-            this.serviceP50Us = serviceP50Us;
-            this.serviceP95Us = serviceP95Us;
-            this.serviceP99Us = serviceP99Us;
-            this.serviceP999Us = serviceP999Us;
-            this.serviceMaxUs = serviceMaxUs;
-            this.serviceMinUs = serviceMinUs;
-            this.responseMeanUs = responseMeanUs;
-            this.responseP50Us = responseP50Us;
-            this.responseP95Us = responseP95Us;
-            this.responseP99Us = responseP99Us;
-            this.responseP999Us = responseP999Us;
-            this.responseMaxUs = responseMaxUs;
-            this.responseMinUs = responseMinUs;
+            this.serviceCount = serviceTimes.count;
+            this.responseCount = responseTimes.count;
+            this.serviceMeanUs = serviceTimes.meanUs;
+            this.serviceP50Us = serviceTimes.p50Us();
+            this.serviceP95Us = serviceTimes.p95Us();
+            this.serviceP99Us = serviceTimes.p99Us();
+            this.serviceP999Us = serviceTimes.p999Us();
+            this.serviceMaxUs = serviceTimes.maxUs;
+            this.serviceMinUs = serviceTimes.minUs;
+            this.responseMeanUs = responseTimes.meanUs;
+            this.responseP50Us = responseTimes.p50Us();
+            this.responseP95Us = responseTimes.p95Us();
+            this.responseP99Us = responseTimes.p99Us();
+            this.responseP999Us = responseTimes.p999Us();
+            this.responseMaxUs = responseTimes.maxUs;
+            this.responseMinUs = responseTimes.minUs;
+            this.windows = windows;
+            this.serviceBucketCounts = serviceBucketCounts;
+            this.responseBucketCounts = responseBucketCounts;
+            this.probeCounters = probeCounters;
+            this.probeTimes = probeTimes;
+            this.phases = phases;
+            this.schedulingJitter = schedulingJitter;
+            this.rateBoosted = rateBoosted;
+            this.pauseAffectedMeasurements = pauseAffectedMeasurements;
+            this.probe = probe;
+            this.waitStrategy = waitStrategy;
+            this.configuredRate = configuredRate;
+            this.failures = failures;
+            this.flows = flows;
+            this.histogramBytes = histogramBytes;
+        }
+        
+        /**
+         * Service times at or below bucket i of the monitor's LatencyBuckets; i == size() is +Inf.
+         */
+        public long serviceBucketCount(int bucket) {
+            return serviceBucketCounts.length == 0 ? 0 : serviceBucketCounts[bucket];
+        }
+        
+        /**
+         * Response times at or below bucket i of the monitor's LatencyBuckets; i == size() is +Inf.
+         */
+        public long responseBucketCount(int bucket) {
+            return responseBucketCounts.length == 0 ? 0 : responseBucketCounts[bucket];
+        }
+        
+        /**
+         * Statistics of a named window, or null if there is no such window.
+         */
+        public WindowStatistics window(String name) {
+            for (WindowStatistics window : windows) {
+                if (window.name.equals(name)) {
+                    return window;
+                }
+            }
+            return null;
         }
         
         public double errorRate() {
@@ -231,4 +446,108 @@ public class LatencyMonitor {
             return (failedMeasurements * 100.0) / totalMeasurements;
         }
     }
+    
+    /**
+     * Immutable all-time statistics of one phase of a target's probes, e.g. the TLS handshake.
+     */
+    public static final class PhaseStatistics {
+        public final String name;
+        public final LatencySummary times;
+        
+        // Cumulative (le) bucket counts, last entry is +Inf
+        private final long[] bucketCounts;
+        
+        public PhaseStatistics(String name, LatencySummary times, long[] bucketCounts) {
+            this.name = name;
+            this.times = times;
+            this.bucketCounts = bucketCounts;
+        }
+        
+        /**
+         * Durations at or below bucket i of the monitor's LatencyBuckets; i == size() is +Inf.
+         */
+        public long bucketCount(int bucket) {
+            return bucketCounts[bucket];
+        }
+    }
+    
+    /**
+     * Immutable all-time statistics of one failure reason of a target's probes.
+     * Times run from the probe's actual start to when it was given up on, so
+     * they tell a fast refusal from a timeout; failures that never got on the
+     * wire (nothing to send on) are counted without a time.
+     */
+    public static final class FailureStatistics {
+        // FailureReason label, e.g. "timeout"
+        public final String reason;
+        public final long count;
+        public final LatencySummary times;
+        
+        public FailureStatistics(String reason, long count, LatencySummary times) {
+            this.reason = reason;
+            this.count = count;
+            this.times = times;
+        }
+    }
+    
+    /**
+     * Immutable statistics of one fixed flow of a target over the last completed
+     * flow window. Latencies are service times, so the flows of a target compare
+     * by their paths alone and not by when the monitor got around to them.
+     */
+    public static final class FlowStatistics {
+        // Local source port, which identifies the flow
+        public final int sourcePort;
+        public final long windowMs;
+        // All probes of the window, failed ones included; latencies are of the successful ones
+        public final long probes;
+        public final long failures;
+        public final double p50Us;
+        public final double p99Us;
+        // Whether the flow is well off its siblings, see FlowTracker
+        public final boolean divergent;
+        
+        public FlowStatistics(int sourcePort, long windowMs, long probes, long failures, double p50Us, double p99Us,
+                              boolean divergent) {
+            this.sourcePort = sourcePort;
+            this.windowMs = windowMs;
+            this.probes = probes;
+            this.failures = failures;
+            this.p50Us = p50Us;
+            this.p99Us = p99Us;
+            this.divergent = divergent;
+        }
+        
+        public double errorRate() {
+            if (probes == 0) return 0;
+            return (failures * 100.0) / probes;
+        }
+    }
+    
+    /**
+     * Immutable statistics of one target over a rolling window.
+     */
+    public static final class WindowStatistics {
+        public final String name;
+        public final long windowMs;
+        public final long operations;
+        public final long failures;
+        public final LatencySummary serviceTimes;
+        public final LatencySummary responseTimes;
+        
+        public WindowStatistics(String name, long windowMs, long operations, long failures,
+                                LatencySummary serviceTimes, LatencySummary responseTimes) {
+            this.name = name;
+            this.windowMs = windowMs;
+            this.operations = operations;
+            this.failures = failures;
+            this.serviceTimes = serviceTimes;
+            this.responseTimes = responseTimes;
+        }
+        
+        public double errorRate() {
+            if (operations == 0) return 0;
+            return (failures * 100.0) / operations;
+        }
+    }
 }
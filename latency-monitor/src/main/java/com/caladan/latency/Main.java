@@ -3,44 +3,160 @@
  */
 package com.caladan.latency;
 
+import com.caladan.latency.log.IntervalLogAnalyzer;
+import com.caladan.latency.log.IntervalLogWriter;
+import com.caladan.latency.measure.ResolverCache;
+import com.caladan.latency.store.LatencyStore;
+import com.caladan.latency.util.LatencyBuckets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class Main {
     
     private static final Logger logger = LoggerFactory.getLogger(Main.class);
     
     public static void main(String[] args) {
+        // Offline analysis of histogram logs
+        if (args.length > 0 && args[0].equals("analyze")) {
+            System.exit(IntervalLogAnalyzer.run(Arrays.copyOfRange(args, 1, args.length), System.out, System.err));
+        }
+        
+        // Echo side of UDP and ping-pong probes
+        if (args.length > 0 && args[0].equals("reflect")) {
+            reflect(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
+        // Fleet-wide statistics merged from the histograms of other monitors
+        if (args.length > 0 && args[0].equals("aggregate")) {
+            aggregate(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
         // Parse configuration from environment variables or command line
+        // TARGET_HOST may list several targets: host[:port][;rate=N],...
         String targetHost = getConfig("TARGET_HOST", args, 0, null);
         int targetPort = Integer.parseInt(getConfig("TARGET_PORT", args, 1, "22"));
         double ratePerSecond = Double.parseDouble(getConfig("RATE_PER_SECOND", args, 2, "10"));
         int serverPort = Integer.parseInt(getConfig("SERVER_PORT", args, 3, "8080"));
+        String meshPeers = getConfig("MESH_PEERS", null, 0, null);
         
         // Validate required config
-        if (targetHost == null || targetHost.isEmpty()) {
-            System.err.println("Error: TARGET_HOST is required");
+        if ((targetHost == null || targetHost.isEmpty()) && meshPeers == null) {
+            System.err.println("Error: TARGET_HOST or MESH_PEERS is required");
             System.err.println();
             printUsage();
             System.exit(1);
         }
         
+        // In mesh mode every other peer is a target, ahead of any TARGET_HOST targets
+        List<TargetSpec> targets = new ArrayList<>();
+        Mesh mesh = meshPeers != null ? mesh(meshPeers, serverPort) : null;
+        if (mesh != null) {
+            targets.addAll(mesh.targets(Integer.parseInt(getConfig("MESH_PROBE_PORT", null, 0, "0")),
+                ratePerSecond, getConfig("MESH_PROBE_OPTIONS", null, 0, null)));
+        }
+        targets.addAll(TargetSpec.parseList(targetHost, targetPort, ratePerSecond));
+        int defaultWorkers = Math.min(targets.size(), Math.max(2, Runtime.getRuntime().availableProcessors()));
+        int workerThreads = Integer.parseInt(getConfig("WORKER_THREADS", null, 0, String.valueOf(defaultWorkers)));
+        int reactorThreads = Integer.parseInt(getConfig("REACTOR_THREADS", null, 0,
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+        TargetMonitor.ProbeMode probeMode = TargetMonitor.ProbeMode.parse(getConfig("PROBE_MODE", null, 0, "open"));
+        long reportIntervalMs = Long.parseLong(getConfig("REPORT_INTERVAL_MS", null, 0, "1000"));
+        long windowSlotMs = Long.parseLong(getConfig("WINDOW_SLOT_MS", null, 0,
+            String.valueOf(LatencyMonitor.DEFAULT_WINDOW_SLOT_MS)));
+        String bucketSpec = getConfig("HISTOGRAM_BUCKETS", null, 0, null);
+        LatencyBuckets buckets = bucketSpec == null ? LatencyBuckets.DEFAULT : LatencyBuckets.parse(bucketSpec);
+        MetricsServer.LatencyFormat metricsFormat =
+            MetricsServer.LatencyFormat.parse(getConfig("METRICS_FORMAT", null, 0, "summary"));
+        String histogramLogDir = getConfig("HISTOGRAM_LOG_DIR", null, 0, null);
+        long histogramLogRotateMs = Long.parseLong(getConfig("HISTOGRAM_LOG_ROTATE_MS", null, 0, "3600000"));
+        long histogramLogMaxBytes = Long.parseLong(getConfig("HISTOGRAM_LOG_MAX_BYTES", null, 0, "104857600"));
+        long dnsTtlMs = Long.parseLong(getConfig("DNS_TTL_MS", null, 0, String.valueOf(ResolverCache.DEFAULT_TTL_MS)));
+        String jvmDnsTtlS = getConfig("JVM_DNS_TTL_S", null, 0, null);
+        String tsdbDir = getConfig("TSDB_DIR", null, 0, null);
+        String adminToken = getConfig("ADMIN_TOKEN", null, 0, null);
+        double pauseThresholdMs = Double.parseDouble(getConfig("PAUSE_THRESHOLD_MS", null, 0,
+            String.valueOf(PauseDetector.DEFAULT_THRESHOLD_NANOS / 1_000_000.0)));
+        boolean excludePausedProbes = Boolean.parseBoolean(getConfig("EXCLUDE_PAUSED_PROBES", null, 0, "false"));
+        long socketStatsMs = Long.parseLong(getConfig("SOCKET_STATS_MS", null, 0,
+            String.valueOf(SocketUsage.DEFAULT_SAMPLE_MS)));
+        int tsdbSegmentBytes = Integer.parseInt(getConfig("TSDB_SEGMENT_BYTES", null, 0, "16777216"));
+        int streamMaxClients = Integer.parseInt(getConfig("STREAM_MAX_CLIENTS", null, 0,
+            String.valueOf(IntervalStream.DEFAULT_MAX_CLIENTS)));
+        long streamMaxStallMs = Long.parseLong(getConfig("STREAM_MAX_STALL_MS", null, 0,
+            String.valueOf(IntervalStream.DEFAULT_MAX_STALL_MS)));
+        
         logger.info("=== Network Latency Monitor ===");
-        logger.info("Target: {}:{}", targetHost, targetPort);
-        logger.info("Rate: {} probes/second", ratePerSecond);
+        for (TargetSpec target : targets) {
+            logger.info("Target: {} at {} probes/second", target, target.ratePerSecond);
+        }
+        logger.info("Probe mode: {}", probeMode);
+        logger.info("Reactor shards: {}, worker threads: {}", reactorThreads, workerThreads);
         logger.info("Server port: {}", serverPort);
         
+        // JVM-wide, so only on request: it applies to every lookup, not only the resolver cache's
+        if (jvmDnsTtlS != null) {
+            Security.setProperty("networkaddress.cache.ttl", String.valueOf(Integer.parseInt(jvmDnsTtlS)));
+            Security.setProperty("networkaddress.cache.negative.ttl", String.valueOf(Integer.parseInt(jvmDnsTtlS)));
+            logger.info("JVM DNS cache TTL: {} s", jvmDnsTtlS);
+        }
+        
         // Create and start the latency monitor
-        LatencyMonitor monitor = new LatencyMonitor(targetHost, targetPort, ratePerSecond);
-        monitor.start();
+        LatencyMonitor monitor = new LatencyMonitor(targets, workerThreads, reactorThreads, probeMode,
+            reportIntervalMs, windowSlotMs, buckets, new ResolverCache(dnsTtlMs),
+            new PauseDetector((long) (pauseThresholdMs * 1_000_000), excludePausedProbes));
+        if (socketStatsMs > 0) {
+            monitor.setSocketUsage(new SocketUsage(socketStatsMs));
+        }
+        if (histogramLogDir != null) {
+            try {
+                monitor.addIntervalSink(new IntervalLogWriter(Paths.get(histogramLogDir),
+                    histogramLogRotateMs, histogramLogMaxBytes));
+                logger.info("Histogram log: {}", histogramLogDir);
+            } catch (IOException e) {
+                logger.error("Cannot write histogram logs to {}", histogramLogDir, e);
+                System.exit(1);
+            }
+        }
+        LatencyStore store = null;
+        if (tsdbDir != null) {
+            try {
+                store = new LatencyStore(Paths.get(tsdbDir), tsdbSegmentBytes);
+                monitor.addIntervalSink(store);
+                logger.info("Latency store: {}", tsdbDir);
+            } catch (IOException e) {
+                logger.error("Cannot open latency store in {}", tsdbDir, e);
+                System.exit(1);
+            }
+        }
+        IntervalStream stream = new IntervalStream(streamMaxClients, streamMaxStallMs);
+        monitor.addIntervalSink(stream);
         
         // Create and start the metrics server
-        MetricsServer server = new MetricsServer(serverPort, monitor);
+        MetricsServer server = new MetricsServer(serverPort, monitor, metricsFormat);
+        server.setLatencyStore(store);
+        server.setAdminToken(adminToken);
+        server.setMesh(mesh);
+        server.setIntervalStream(stream);
         try {
+            monitor.start();
+            if (mesh != null) {
+                mesh.start(monitor);
+            }
             server.start();
             
             logger.info("=================================");
             logger.info("Dashboard: http://localhost:{}/", serverPort);
+            logger.info("Stream:    http://localhost:{}/stream", serverPort);
             logger.info("Metrics:   http://localhost:{}/metrics", serverPort);
             logger.info("Health:    http://localhost:{}/health", serverPort);
             logger.info("=================================");
@@ -48,6 +164,9 @@ public class Main {
             // Register shutdown hook
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 logger.info("Shutting down...");
+                if (mesh != null) {
+                    mesh.stop();
+                }
                 monitor.stop();
                 try {
                     server.stop();
@@ -66,6 +185,110 @@ public class Main {
         }
     }
     
+    /**
+     * The mesh this node is a peer of, exiting on an invalid configuration.
+     */
+    private static Mesh mesh(String meshPeers, int serverPort) {
+        try {
+            List<TargetSpec> peers = TargetSpec.parseList(meshPeers, 8080, 1);
+            int self = Mesh.findSelf(peers, getConfig("MESH_SELF", null, 0, null), serverPort);
+            long pollMs = Long.parseLong(getConfig("MESH_POLL_MS", null, 0, getConfig("WINDOW_SLOT_MS", null, 0,
+                String.valueOf(LatencyMonitor.DEFAULT_WINDOW_SLOT_MS))));
+            return new Mesh(peers, self, getConfig("MESH_WINDOW", null, 0, Mesh.DEFAULT_WINDOW), pollMs,
+                Long.parseLong(getConfig("MESH_TIMEOUT_MS", null, 0, "1000")));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+    
+    /**
+     * Run a UDP and TCP reflector until the process is stopped.
+     */
+    private static void reflect(String[] args) {
+        int port = Integer.parseInt(getConfig("REFLECTOR_PORT", args, 0, "7007"));
+        try {
+            Reflector reflector = new Reflector(port);
+            logger.info("Reflecting UDP datagrams and TCP streams on port {}", reflector.getPort());
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                logger.info("Echoed {} datagrams and {} TCP bytes",
+                    reflector.getEchoedDatagrams(), reflector.getEchoedBytes());
+                try {
+                    reflector.close();
+                } catch (IOException e) {
+                    logger.debug("Error closing reflector", e);
+                }
+            }));
+            reflector.start();
+            reflector.join();
+        } catch (IOException e) {
+            logger.error("Cannot reflect on port {}", port, e);
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Poll the /histogram endpoint of every source, and serve the merged
+     * statistics like a monitor until the process is stopped.
+     */
+    private static void aggregate(String[] args) {
+        String sourceList = getConfig("AGGREGATE_SOURCES", args, 0, null);
+        if (sourceList == null) {
+            System.err.println("Error: AGGREGATE_SOURCES is required");
+            System.err.println();
+            printUsage();
+            System.exit(1);
+        }
+        List<URI> sources = new ArrayList<>();
+        for (String source : sourceList.split(",")) {
+            if (!source.isBlank()) {
+                sources.add(URI.create(source.trim()));
+            }
+        }
+        int serverPort = Integer.parseInt(getConfig("SERVER_PORT", args, 1, "8080"));
+        long intervalMs = Long.parseLong(getConfig("REPORT_INTERVAL_MS", null, 0, "1000"));
+        long timeoutMs = Long.parseLong(getConfig("AGGREGATE_TIMEOUT_MS", null, 0, String.valueOf(intervalMs)));
+        int expiryPolls = Integer.parseInt(getConfig("AGGREGATE_EXPIRY_POLLS", null, 0, "10"));
+        int threads = Integer.parseInt(getConfig("AGGREGATE_THREADS", null, 0,
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+        String bucketSpec = getConfig("HISTOGRAM_BUCKETS", null, 0, null);
+        LatencyBuckets buckets = bucketSpec == null ? LatencyBuckets.DEFAULT : LatencyBuckets.parse(bucketSpec);
+        MetricsServer.LatencyFormat metricsFormat =
+            MetricsServer.LatencyFormat.parse(getConfig("METRICS_FORMAT", null, 0, "summary"));
+        
+        logger.info("=== Network Latency Aggregator ===");
+        for (URI source : sources) {
+            logger.info("Source: {}", source);
+        }
+        logger.info("Server port: {}", serverPort);
+        
+        Aggregator aggregator = new Aggregator(sources, intervalMs, timeoutMs, expiryPolls, threads, buckets);
+        MetricsServer server = new MetricsServer(serverPort, aggregator, metricsFormat);
+        try {
+            aggregator.start();
+            server.start();
+            logger.info("Dashboard: http://localhost:{}/", serverPort);
+            
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                logger.info("Shutting down...");
+                aggregator.stop();
+                try {
+                    server.stop();
+                } catch (Exception e) {
+                    logger.error("Error stopping server", e);
+                }
+            }));
+            server.join();
+        } catch (Exception e) {
+            logger.error("Error starting server", e);
+            aggregator.stop();
+            System.exit(1);
+        }
+    }
+    
     /**
      * Get configuration value from environment variable or command line argument.
      */
@@ -95,22 +318,72 @@ public class Main {
     
     private static void printUsage() {
         System.out.println("Usage: java -jar latency-monitor.jar <target-host> [target-port] [rate] [server-port]");
+        System.out.println("       java -jar latency-monitor.jar analyze <log-dir> [options]");
+        System.out.println("       java -jar latency-monitor.jar reflect [port]");
+        System.out.println("       java -jar latency-monitor.jar aggregate <source-url,...> [server-port]");
         System.out.println();
         System.out.println("Arguments:");
-        System.out.println("  target-host   Target server hostname or IP (required)");
+        System.out.println("  target-host   Target server hostname or IP, or a comma separated list of");
+        System.out.println("                host[:port][;rate=N][;probe=udp|pingpong] entries (required)");
         System.out.println("  target-port   Target port to connect to (default: 22)");
         System.out.println("  rate          Measurements per second (default: 10)");
         System.out.println("  server-port   HTTP server port (default: 8080)");
         System.out.println();
         System.out.println("Environment variables:");
-        System.out.println("  TARGET_HOST     Target server hostname or IP");
+        System.out.println("  TARGET_HOST     Target server hostname or IP, or a list of targets");
         System.out.println("  TARGET_PORT     Target port (default: 22)");
         System.out.println("  RATE_PER_SECOND Measurements per second (default: 10)");
         System.out.println("  SERVER_PORT     HTTP server port (default: 8080)");
+        System.out.println("  PROBE_MODE      open (non-blocking, probes on schedule) or closed (blocking)");
+        System.out.println("                  (default: open, per target: host:port;mode=closed)");
+        System.out.println("  REACTOR_THREADS Reactor shards for open-loop targets (default: cores)");
+        System.out.println("  WORKER_THREADS  Probe worker threads for closed-loop targets (default: cores)");
+        System.out.println("  REPORT_INTERVAL_MS  Statistics reporting interval (default: 1000)");
+        System.out.println("  WINDOW_SLOT_MS      Granularity of the 1m/5m/15m rolling windows (default: 5000)");
+        System.out.println("  METRICS_FORMAT      Latency exposition: summary (quantiles) or histogram (buckets)");
+        System.out.println("                      (default: summary)");
+        System.out.println("  HISTOGRAM_BUCKETS   Bucket upper bounds in microseconds, comma separated");
+        System.out.println("                      (default: 10,20,50,...,5000000,10000000)");
+        System.out.println("  HISTOGRAM_LOG_DIR   Append interval histograms to HdrHistogram logs in this directory");
+        System.out.println("  HISTOGRAM_LOG_ROTATE_MS   Start a new log file after this long (default: 3600000)");
+        System.out.println("  HISTOGRAM_LOG_MAX_BYTES   Start a new log file at this size (default: 104857600)");
+        System.out.println("  TSDB_DIR            Keep 1s/1m/1h histograms for 1h/1d/30d here and serve /query");
+        System.out.println("  TSDB_SEGMENT_BYTES  Size of each memory-mapped segment file (default: 16777216)");
+        System.out.println("  DNS_TTL_MS          Re-resolve target host names in the background this often");
+        System.out.println("                      (default: 30000)");
+        System.out.println("  JVM_DNS_TTL_S       Override the JVM-wide DNS cache TTL in seconds, 0 to disable it");
+        System.out.println("                      (default: the JVM's own, 30 s)");
+        System.out.println("  ADMIN_TOKEN         Enable /admin/rate for requests with this bearer token");
+        System.out.println("  PAUSE_THRESHOLD_MS  Local hiccups longer than this count as JVM pauses (default: 5)");
+        System.out.println("  EXCLUDE_PAUSED_PROBES  Leave probes that overlapped a JVM pause out of the latencies");
+        System.out.println("                      (default: false, they are only counted)");
+        System.out.println("  SOCKET_STATS_MS     Sample local TCP sockets and ports this often, 0 disables (default: 5000)");
+        System.out.println("  STREAM_MAX_CLIENTS  Open /stream subscriptions allowed at once (default: 64)");
+        System.out.println("  STREAM_MAX_STALL_MS Disconnect stream clients that take no frame for this long (default: 10000)");
+        System.out.println("  MESH_PEERS          Mesh mode: host:port of every peer's server, this node included;");
+        System.out.println("                      every other peer is probed and /matrix serves the N x N matrix");
+        System.out.println("  MESH_SELF           This node's entry in MESH_PEERS (default: the local one on SERVER_PORT)");
+        System.out.println("  MESH_PROBE_PORT     Port probed on every peer (default: the peer's server port)");
+        System.out.println("  MESH_PROBE_OPTIONS  Target options for every peer, e.g. probe=udp;rate=20");
+        System.out.println("  MESH_WINDOW         Rolling window of the matrix: 1m, 5m or 15m (default: 1m)");
+        System.out.println("  MESH_POLL_MS        Fetch the other peers' rows this often (default: WINDOW_SLOT_MS)");
+        System.out.println("  MESH_TIMEOUT_MS     Give up on a peer's row after this long (default: 1000)");
+        System.out.println("  REFLECTOR_PORT      UDP and TCP port of the reflect mode (default: 7007)");
+        System.out.println("  AGGREGATE_SOURCES   Base URLs of the monitors the aggregate mode merges, comma separated");
+        System.out.println("  AGGREGATE_TIMEOUT_MS  Give up on a source's poll after this long (default: REPORT_INTERVAL_MS)");
+        System.out.println("  AGGREGATE_EXPIRY_POLLS  Failed polls in a row after which a source is left out (default: 10)");
+        System.out.println("  AGGREGATE_THREADS   Threads decoding and merging histograms (default: cores)");
         System.out.println();
         System.out.println("Examples:");
         System.out.println("  java -jar latency-monitor.jar 10.0.2.120");
         System.out.println("  java -jar latency-monitor.jar 10.0.2.120 22 10 8080");
         System.out.println("  TARGET_HOST=10.0.2.120 java -jar latency-monitor.jar");
+        System.out.println("  TARGET_HOST='10.0.2.120,10.0.2.121:443;rate=50' java -jar latency-monitor.jar");
+        System.out.println("  TARGET_HOST='10.0.2.120:7007;probe=udp;rate=10000' java -jar latency-monitor.jar");
+        System.out.println("  TARGET_HOST='10.0.2.120:7007;probe=pingpong;connections=4;rate=2000' java -jar latency-monitor.jar");
+        System.out.println("  MESH_PEERS=10.0.1.5:8080,10.0.1.6:8080,10.0.1.7:8080 java -jar latency-monitor.jar");
+        System.out.println("  java -jar latency-monitor.jar reflect 7007");
+        System.out.println("  java -jar latency-monitor.jar aggregate http://10.0.1.5:8080,http://10.0.1.6:8080 9090");
+        System.out.println("  java -jar latency-monitor.jar analyze /var/log/latency --from=2026-10-16T03:00:00Z --to=2026-10-16T03:30:00Z");
     }
 }
@@ -0,0 +1,585 @@
+/*
+ * Mesh - Full-mesh probing of a group of peers, e.g. every host behind a set
+ * of top-of-rack switches. Every peer runs a monitor that probes all the
+ * others, so the group measures all N×(N-1) paths at O(N) probes per node.
+ * Probes are given staggered phases so no peer receives a burst from every
+ * other one at once. Each node computes its own row of the latency matrix
+ * from the rolling windows of its targets, serves it on /matrix/row, and
+ * polls the rows of the other peers to serve the whole N×N matrix on /matrix.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.LatencyMonitor.Statistics;
+import com.caladan.latency.LatencyMonitor.WindowStatistics;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+public class Mesh {
+
+    private static final Logger logger = LoggerFactory.getLogger(Mesh.class);
+
+    public static final String DEFAULT_WINDOW = "1m";
+
+    // Threads reading peers' rows; rows are small, reading them is cheap
+    private static final int THREADS = 2;
+
+    // Every peer in configured order, this node included; the order of the matrix
+    private final List<Peer> peers;
+    private final Map<String, Integer> index;
+    private final int self;
+    private final String window;
+    private final long pollMs;
+    private final long timeoutMs;
+
+    // Peer probed by each of the targets(), by the host:port they probe
+    private Map<String, Integer> columns = Map.of();
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicBoolean polling = new AtomicBoolean(false);
+    private LatencyMonitor monitor;
+    private ExecutorService pool;
+    private HttpClient client;
+    private ScheduledExecutorService scheduler;
+
+    // Published once per poll, read lock-free by any number of readers
+    private volatile Row localRow;
+    private volatile Matrix matrix;
+
+    /**
+     * @param peers   host:port of every peer's metrics server, this node included
+     * @param self    this node's entry in peers
+     * @param window  rolling window the matrix is computed from, e.g. 1m
+     * @param pollMs  how often rows are computed and the peers' rows are fetched
+     */
+    public Mesh(List<TargetSpec> peers, int self, String window, long pollMs, long timeoutMs) {
+        if (peers.size() < 2) {
+            throw new IllegalArgumentException("A mesh needs at least two peers");
+        }
+        if (self < 0 || self >= peers.size()) {
+            throw new IllegalArgumentException("This node is not one of the mesh peers");
+        }
+        if (pollMs <= 0 || timeoutMs <= 0) {
+            throw new IllegalArgumentException("Poll interval and timeout must be positive");
+        }
+        List<Peer> list = new ArrayList<>(peers.size());
+        Map<String, Integer> index = new HashMap<>();
+        for (TargetSpec peer : peers) {
+            if (index.put(peer.toString(), list.size()) != null) {
+                throw new IllegalArgumentException("Duplicate mesh peer: " + peer);
+            }
+            list.add(new Peer(peer));
+        }
+        this.peers = Collections.unmodifiableList(list);
+        this.index = index;
+        this.self = self;
+        this.window = window;
+        this.pollMs = pollMs;
+        this.timeoutMs = timeoutMs;
+        this.localRow = emptyRow();
+        this.matrix = new Matrix(System.currentTimeMillis(), new Row[peers.size()], new boolean[peers.size()]);
+    }
+
+    /**
+     * The peer running this process: the given one, or else the one on the
+     * server port at a local address.
+     *
+     * @param name host:port of this node, or null to look for it
+     * @throws IllegalArgumentException unless exactly one peer matches
+     */
+    public static int findSelf(List<TargetSpec> peers, String name, int serverPort) {
+        if (name != null) {
+            String self = TargetSpec.parse(name, serverPort, 1).toString();
+            for (int i = 0; i < peers.size(); i++) {
+                if (peers.get(i).toString().equals(self)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("MESH_SELF " + self + " is not one of the mesh peers");
+        }
+        int self = -1;
+        for (int i = 0; i < peers.size(); i++) {
+            if (peers.get(i).port == serverPort && isLocal(peers.get(i).host)) {
+                if (self >= 0) {
+                    throw new IllegalArgumentException("Both " + peers.get(self) + " and " + peers.get(i)
+                        + " are local, set MESH_SELF");
+                }
+                self = i;
+            }
+        }
+        if (self < 0) {
+            throw new IllegalArgumentException("No mesh peer is local on port " + serverPort + ", set MESH_SELF");
+        }
+        return self;
+    }
+
+    private static boolean isLocal(String host) {
+        try {
+            for (InetAddress address : InetAddress.getAllByName(host)) {
+                if (address.isLoopbackAddress() || address.isAnyLocalAddress()
+                        || NetworkInterface.getByInetAddress(address) != null) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Cannot resolve mesh peer {}", host, e);
+        }
+        return false;
+    }
+
+    /**
+     * One target per other peer. Node i probes peer j at phase ((i + j) mod N) / N
+     * of the probe interval: the N-1 targets of a node are spread over the
+     * interval, and so are the N-1 nodes probing the same peer.
+     *
+     * @param probePort port probed on every peer, or 0 for the peer's own (metrics server) port
+     * @param options   per-target options of every peer, e.g. probe=udp;rate=20
+     */
+    public synchronized List<TargetSpec> targets(int probePort, double ratePerSecond, String options) {
+        List<TargetSpec> targets = new ArrayList<>(peers.size() - 1);
+        Map<String, Integer> columns = new HashMap<>();
+        for (int j = 0; j < peers.size(); j++) {
+            if (j == self) {
+                continue;
+            }
+            TargetSpec peer = peers.get(j).address;
+            TargetSpec probe = new TargetSpec(peer.host, probePort > 0 ? probePort : peer.port, ratePerSecond);
+            String phase = String.valueOf((double) ((self + j) % peers.size()) / peers.size());
+            TargetSpec spec = TargetSpec.parse(probe + (options == null || options.isEmpty() ? "" : ";" + options)
+                + ";phase=" + phase, probe.port, ratePerSecond);
+            columns.putIfAbsent(spec.toString(), j);
+            targets.add(spec);
+        }
+        this.columns = columns;
+        return targets;
+    }
+
+    /**
+     * Start computing this node's row and polling the other peers' rows.
+     *
+     * @param monitor probes the targets(), among any others
+     */
+    public void start(LatencyMonitor monitor) {
+        if (running.compareAndSet(false, true)) {
+            this.monitor = monitor;
+            List<Statistics> statistics = monitor.getStatistics();
+            if (!statistics.isEmpty() && statistics.get(0).windows.stream().noneMatch(w -> w.name.equals(window))) {
+                throw new IllegalArgumentException("Unknown window '" + window + "'");
+            }
+            AtomicInteger threadIndex = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "Mesh-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(timeoutMs))
+                .executor(pool)
+                .build();
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "MeshPoll");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(this::poll, 0, pollMs, TimeUnit.MILLISECONDS);
+            logger.info("Mesh of {} peers as {}, polling rows every {} ms", peers.size(), peers.get(self).name, pollMs);
+        }
+    }
+
+    public void stop() {
+        if (running.compareAndSet(true, false)) {
+            scheduler.shutdownNow();
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Compute this node's row, then fetch the other rows and publish the
+     * matrix. A round still waiting for slow peers is not overlapped; a peer
+     * that does not answer keeps its last row.
+     */
+    private void poll() {
+        if (!polling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            localRow = computeLocalRow(monitor.getStatistics());
+            List<CompletableFuture<Void>> polls = new ArrayList<>(peers.size() - 1);
+            for (int i = 0; i < peers.size(); i++) {
+                if (i != self) {
+                    polls.add(peers.get(i).poll());
+                }
+            }
+            CompletableFuture.allOf(polls.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((ignored, error) -> {
+                    publish();
+                    polling.set(false);
+                });
+        } catch (Exception e) {
+            // Never let an exception cancel the fixed-rate schedule
+            logger.error("Error polling mesh", e);
+            polling.set(false);
+        }
+    }
+
+    private void publish() {
+        Row[] rows = new Row[peers.size()];
+        boolean[] up = new boolean[peers.size()];
+        for (int i = 0; i < peers.size(); i++) {
+            rows[i] = i == self ? localRow : peers.get(i).row;
+            up[i] = i == self || peers.get(i).up;
+        }
+        matrix = new Matrix(System.currentTimeMillis(), rows, up);
+    }
+
+    /**
+     * This node's row from the configured window of each target: response
+     * time p50/p99 of the successful probes and the fraction that failed.
+     * Targets are matched to peers by the host:port they probe, so neither
+     * the order of the monitor's statistics nor targets of its own matter.
+     */
+    Row computeLocalRow(List<Statistics> statistics) {
+        Row row = emptyRow();
+        Map<String, Integer> columns;
+        synchronized (this) {
+            columns = this.columns;
+        }
+        boolean[] filled = new boolean[peers.size()];
+        for (Statistics target : statistics) {
+            Integer column = columns.get(TargetSpec.address(target.targetHost, target.targetPort));
+            // A peer also listed in TARGET_HOST is probed twice; one of them is enough
+            if (column == null || filled[column]) {
+                continue;
+            }
+            filled[column] = true;
+            for (WindowStatistics stats : target.windows) {
+                if (!stats.name.equals(window) || stats.operations == 0) {
+                    continue;
+                }
+                if (stats.responseTimes.count > 0) {
+                    row.p50Us[column] = stats.responseTimes.p50Us();
+                    row.p99Us[column] = stats.responseTimes.p99Us();
+                }
+                row.loss[column] = (double) stats.failures / stats.operations;
+            }
+        }
+        return row;
+    }
+
+    private Row emptyRow() {
+        double[] p50 = new double[peers.size()];
+        double[] p99 = new double[peers.size()];
+        double[] loss = new double[peers.size()];
+        Arrays.fill(p50, Double.NaN);
+        Arrays.fill(p99, Double.NaN);
+        Arrays.fill(loss, Double.NaN);
+        return new Row(System.currentTimeMillis(), p50, p99, loss);
+    }
+
+    /**
+     * This node's row, as of the last poll.
+     */
+    public Row getLocalRow() {
+        return localRow;
+    }
+
+    /**
+     * The whole matrix, as of the last poll.
+     */
+    public Matrix getMatrix() {
+        return matrix;
+    }
+
+    public List<String> getPeers() {
+        List<String> names = new ArrayList<>(peers.size());
+        for (Peer peer : peers) {
+            names.add(peer.name);
+        }
+        return names;
+    }
+
+    public String getWindow() {
+        return window;
+    }
+
+    /**
+     * /matrix/row: this node's row, with the peer order it is in so that
+     * peers configured in another order can still place it.
+     */
+    void writeRow(PrintWriter out, Row row) {
+        out.printf("{\"peer\": %s, \"window\": %s, \"timeMs\": %d,%n", jsonString(peers.get(self).name),
+            jsonString(window), row.timeMs);
+        out.print(" \"peers\": [");
+        writePeers(out);
+        out.println("],");
+        writeArray(out, " \"p50Us\": ", row.p50Us, 1, ",");
+        writeArray(out, " \"p99Us\": ", row.p99Us, 1, ",");
+        writeArray(out, " \"loss\": ", row.loss, 4, "");
+        out.println("}");
+    }
+
+    /**
+     * /matrix: rows are the probing peers, columns the probed ones. Written as
+     * arrays of plain numbers, one line per row, so hundreds of peers render
+     * in a few milliseconds.
+     */
+    void writeMatrix(PrintWriter out, Matrix matrix) {
+        out.println("{");
+        out.printf("  \"window\": %s,%n", jsonString(window));
+        out.printf("  \"timeMs\": %d,%n", matrix.timeMs);
+        out.printf("  \"self\": %d,%n", self);
+        out.print("  \"peers\": [");
+        writePeers(out);
+        out.println("],");
+        out.print("  \"up\": [");
+        for (int i = 0; i < peers.size(); i++) {
+            out.print(i == 0 ? "" : ", ");
+            out.print(matrix.up[i]);
+        }
+        out.println("],");
+        out.print("  \"updatedMs\": [");
+        for (int i = 0; i < peers.size(); i++) {
+            out.print(i == 0 ? "" : ", ");
+            out.print(matrix.rows[i] == null ? "null" : String.valueOf(matrix.rows[i].timeMs));
+        }
+        out.println("],");
+        writeMatrix(out, "p50Us", matrix, row -> row.p50Us, 1, ",");
+        writeMatrix(out, "p99Us", matrix, row -> row.p99Us, 1, ",");
+        writeMatrix(out, "loss", matrix, row -> row.loss, 4, "");
+        out.println("}");
+    }
+
+    private void writeMatrix(PrintWriter out, String name, Matrix matrix, Function<Row, double[]> column,
+                             int decimals, String separator) {
+        out.printf("  \"%s\": [%n", name);
+        for (int i = 0; i < peers.size(); i++) {
+            double[] values = matrix.rows[i] == null ? null : column.apply(matrix.rows[i]);
+            out.print("    [");
+            for (int j = 0; j < peers.size(); j++) {
+                if (j > 0) {
+                    out.print(", ");
+                }
+                writeNumber(out, values == null ? Double.NaN : values[j], decimals);
+            }
+            out.println(i < peers.size() - 1 ? "]," : "]");
+        }
+        out.printf("  ]%s%n", separator);
+    }
+
+    private void writePeers(PrintWriter out) {
+        for (int i = 0; i < peers.size(); i++) {
+            out.print(i == 0 ? "" : ", ");
+            out.print(jsonString(peers.get(i).name));
+        }
+    }
+
+    /**
+     * A quoted JSON string, escaped by Gson as the peers' rows are parsed.
+     */
+    private static String jsonString(String value) {
+        return new JsonPrimitive(value).toString();
+    }
+
+    private static void writeArray(PrintWriter out, String prefix, double[] values, int decimals, String separator) {
+        out.print(prefix);
+        out.print('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.print(", ");
+            }
+            writeNumber(out, values[i], decimals);
+        }
+        out.print(']');
+        out.println(separator);
+    }
+
+    private static final long[] SCALES = {1, 10, 100, 1000, 10000};
+
+    /**
+     * A fixed-point number, or null for NaN; much cheaper than a format string per cell.
+     */
+    static void writeNumber(PrintWriter out, double value, int decimals) {
+        if (Double.isNaN(value)) {
+            out.print("null");
+            return;
+        }
+        long scale = SCALES[decimals];
+        long scaled = Math.round(value * scale);
+        if (scaled < 0) {
+            out.print('-');
+            scaled = -scaled;
+        }
+        out.print(scaled / scale);
+        if (decimals > 0) {
+            out.print('.');
+            long fraction = scaled % scale;
+            for (long digit = scale / 10; digit > fraction && digit > 1; digit /= 10) {
+                out.print('0');
+            }
+            out.print(fraction);
+        }
+    }
+
+    /**
+     * Parse a /matrix/row response into this node's peer order; entries
+     * for peers this node does not know are dropped.
+     */
+    Row readRow(Reader reader) {
+        JsonObject root = JsonParser.parseReader(reader).getAsJsonObject();
+        JsonArray names = root.getAsJsonArray("peers");
+        JsonArray p50 = root.getAsJsonArray("p50Us");
+        JsonArray p99 = root.getAsJsonArray("p99Us");
+        JsonArray loss = root.getAsJsonArray("loss");
+        Row row = emptyRow();
+        for (int i = 0; i < names.size(); i++) {
+            Integer column = index.get(names.get(i).getAsString());
+            if (column != null) {
+                row.p50Us[column] = number(p50.get(i));
+                row.p99Us[column] = number(p99.get(i));
+                row.loss[column] = number(loss.get(i));
+            }
+        }
+        return new Row(root.get("timeMs").getAsLong(), row.p50Us, row.p99Us, row.loss);
+    }
+
+    private static double number(JsonElement element) {
+        return element.isJsonNull() ? Double.NaN : element.getAsDouble();
+    }
+
+    /**
+     * One peer and the last row read from it. Its fields are written by one poll at a time.
+     */
+    private final class Peer {
+        final TargetSpec address;
+        final String name;
+        final URI uri;
+        volatile boolean up;
+        volatile Row row;
+        private long polls;
+        private String etag;
+
+        Peer(TargetSpec address) {
+            this.address = address;
+            this.name = address.toString();
+            this.uri = URI.create("http://" + name + "/matrix/row");
+        }
+
+        /**
+         * Fetch this peer's row; completes normally either way.
+         */
+        CompletableFuture<Void> poll() {
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMillis(timeoutMs))
+                .header("Accept-Encoding", "gzip");
+            if (etag != null) {
+                request.header("If-None-Match", etag);
+            }
+            return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofInputStream())
+                .thenAccept(this::read)
+                .handle((ignored, error) -> {
+                    polls++;
+                    if (error == null) {
+                        if (!up) {
+                            logger.info("Mesh peer {} is up", name);
+                            up = true;
+                        }
+                    } else {
+                        if (up || polls == 1) {
+                            // Once per outage, not once per poll
+                            logger.warn("Mesh peer {} is down: {}", name,
+                                String.valueOf(error.getCause() != null ? error.getCause() : error));
+                        }
+                        up = false;
+                    }
+                    return null;
+                });
+        }
+
+        private void read(HttpResponse<InputStream> response) {
+            try (InputStream body = response.body()) {
+                if (response.statusCode() == 304) {
+                    return;
+                }
+                if (response.statusCode() != 200) {
+                    throw new IllegalStateException("HTTP " + response.statusCode());
+                }
+                boolean gzip = response.headers().firstValue("Content-Encoding").orElse("").contains("gzip");
+                try (Reader reader = new InputStreamReader(gzip ? new GZIPInputStream(body) : body,
+                        StandardCharsets.UTF_8)) {
+                    row = readRow(reader);
+                }
+                etag = response.headers().firstValue("ETag").orElse(null);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * One peer's row: what it measured to every peer, in this node's peer
+     * order. NaN where nothing was measured, including the peer itself.
+     */
+    public static final class Row {
+        // When the probing peer computed it
+        public final long timeMs;
+        public final double[] p50Us;
+        public final double[] p99Us;
+        // Fraction of probes that failed
+        public final double[] loss;
+
+        Row(long timeMs, double[] p50Us, double[] p99Us, double[] loss) {
+            this.timeMs = timeMs;
+            this.p50Us = p50Us;
+            this.p99Us = p99Us;
+            this.loss = loss;
+        }
+    }
+
+    /**
+     * Immutable N×N matrix; a row is null until it was first read.
+     */
+    public static final class Matrix {
+        public final long timeMs;
+        final Row[] rows;
+        final boolean[] up;
+
+        Matrix(long timeMs, Row[] rows, boolean[] up) {
+            this.timeMs = timeMs;
+            this.rows = rows;
+            this.up = up;
+        }
+    }
+}
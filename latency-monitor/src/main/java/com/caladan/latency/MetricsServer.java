@@ -1,12 +1,35 @@
 /*
  * MetricsServer - Embedded Jetty HTTP server for exposing latency metrics.
- * Provides endpoints: / (dashboard), /metrics (Prometheus), /health
+ * Provides endpoints: / (dashboard; the live one when an IntervalStream is
+ * attached), /status (the rendered dashboard), /stream (live intervals as
+ * Server-Sent Events), /metrics (Prometheus), /health, /json,
+ * /query (historical percentiles, when a LatencyStore is attached),
+ * /admin/rate (live probe rate changes, when an admin token is set),
+ * /histogram (compressed histograms for aggregators),
+ * /matrix and /matrix/row (the latency matrix, in mesh mode). Serves a
+ * LatencyMonitor or an Aggregator alike.
  */
 package com.caladan.latency;
 
+import com.caladan.latency.Aggregator.SourceStatistics;
+import com.caladan.latency.LatencyMonitor.FailureStatistics;
+import com.caladan.latency.LatencyMonitor.FlowStatistics;
+import com.caladan.latency.LatencyMonitor.PhaseStatistics;
 import com.caladan.latency.LatencyMonitor.Statistics;
+import com.caladan.latency.LatencyMonitor.WindowStatistics;
+import com.caladan.latency.measure.ResolverCache.ResolverStatistics;
+import com.caladan.latency.PauseDetector.CollectorStatistics;
+import com.caladan.latency.PauseDetector.PauseStatistics;
+import com.caladan.latency.ProbeReactor.ShardStatistics;
+import com.caladan.latency.SocketUsage.PortRangeStatistics;
+import com.caladan.latency.SocketUsage.SocketStatistics;
+import com.caladan.latency.util.LatencyBuckets;
+import com.caladan.latency.store.LatencyStore;
+import com.caladan.latency.util.LatencySummary;
+import com.google.gson.JsonPrimitive;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,18 +38,319 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 public class MetricsServer {
     
     private static final Logger logger = LoggerFactory.getLogger(MetricsServer.class);
     
+    /**
+     * How all-time latencies are exposed on /metrics.
+     */
+    public enum LatencyFormat {
+        /** Precomputed quantiles; cheap to read, cannot be aggregated */
+        SUMMARY,
+        /** Cumulative le buckets; can be summed across targets, monitors and time */
+        HISTOGRAM;
+        
+        public static LatencyFormat parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+    
+    // Style and end of the head, shared by the rendered and the live dashboard
+    private static final String PAGE_STYLE =
+        "<style>\n"
+        + "body { font-family: -apple-system, BlinkMacSystemFont, 'Segoe UI', Roboto, sans-serif; \n"
+        + "       max-width: 1200px; margin: 40px auto; padding: 20px; background: #0d1117; color: #c9d1d9; }\n"
+        + "h1 { color: #58a6ff; border-bottom: 1px solid #30363d; padding-bottom: 10px; }\n"
+        + "h2 { color: #8b949e; margin-top: 30px; }\n"
+        + ".stats { background: #161b22; border-radius: 6px; padding: 20px; margin: 20px 0; }\n"
+        + ".stat-row { display: flex; justify-content: space-between; padding: 8px 0; border-bottom: 1px solid #21262d; }\n"
+        + ".stat-label { color: #8b949e; }\n"
+        + ".stat-value { color: #58a6ff; font-family: monospace; }\n"
+        + ".good { color: #3fb950; }\n"
+        + ".warn { color: #d29922; }\n"
+        + ".error { color: #f85149; }\n"
+        + "table { width: 100%; border-collapse: collapse; margin: 10px 0; }\n"
+        + "th, td { padding: 10px; text-align: right; border-bottom: 1px solid #21262d; }\n"
+        + "th { color: #8b949e; font-weight: normal; }\n"
+        + "td { font-family: monospace; color: #58a6ff; }\n"
+        + "th:first-child, td:first-child { text-align: left; }\n"
+        + ".info-box { background: #1f6feb20; border: 1px solid #1f6feb; border-radius: 6px; padding: 15px; margin: 20px 0; }\n"
+        + "</style></head><body>\n";
+    
+    // Static part of the dashboard, written once per rendering as a single string
+    private static final String DASHBOARD_HEAD =
+        "<!DOCTYPE html>\n"
+        + "<html><head>\n"
+        + "<title>Network Latency Monitor</title>\n"
+        + "<meta http-equiv='refresh' content='5'>\n"
+        + PAGE_STYLE;
+    
+    // The live dashboard: a static page drawing the frames of /stream, so viewers cost no rendering
+    private static final String LIVE_PAGE =
+        "<!DOCTYPE html>\n"
+        + "<html><head>\n"
+        + "<title>Network Latency Monitor</title>\n"
+        + PAGE_STYLE
+        + "<h1>🌐 Network Latency Monitor</h1>\n"
+        + "<div class='stats'><div class='stat-row'><span class='stat-label'>Stream</span>"
+        + "<span id='state' class='stat-value warn'>connecting</span></div></div>\n"
+        + "<h2>⏱️ Last Interval by Target (microseconds)</h2>\n"
+        + "<table id='targets'><tr><th>Target</th><th>Rate</th><th>Probes</th><th>Errors</th>"
+        + "<th>Service p50</th><th>Service p99</th>"
+        + "<th>Response p50*</th><th>Response p99*</th><th>Response p99.9*</th><th>Response Max*</th></tr></table>\n"
+        + "<h2 id='title'>📈 Waiting for the first interval</h2>\n"
+        + "<canvas id='chart' width='1160' height='320'></canvas>\n"
+        + "<div id='legend' class='stat-label'></div>\n"
+        + "<div class='info-box'><strong>* Coordinated Omission Correction</strong><br>"
+        + "<small>Service Time = actual measurement duration | Response Time = time from intended start "
+        + "(includes scheduling delays). Click a target to chart it.</small></div>\n"
+        + "<p style='color:#484f58;text-align:center;margin-top:40px;'>Live from <a href='/stream' style='color:#58a6ff'>/stream</a>"
+        + " | since start: <a href='/status' style='color:#58a6ff'>/status</a>"
+        + " | <a href='/metrics' style='color:#58a6ff'>/metrics</a> | <a href='/json' style='color:#58a6ff'>/json</a></p>\n"
+        + "<script>\n"
+        + "var HISTORY = 300, history = {}, rows = {}, selected = null;\n"
+        + "var table = document.getElementById('targets'), state = document.getElementById('state');\n"
+        + "var chart = document.getElementById('chart'), title = document.getElementById('title');\n"
+        + "var series = [['response p50', '#3fb950', function (t) { return t.responseUs.p50; }],\n"
+        + "  ['response p99', '#d29922', function (t) { return t.responseUs.p99; }],\n"
+        + "  ['response p99.9', '#f85149', function (t) { return t.responseUs.p999; }],\n"
+        + "  ['service p99', '#58a6ff', function (t) { return t.serviceUs.p99; }]];\n"
+        + "document.getElementById('legend').innerHTML = series.map(function (s) {\n"
+        + "  return \"<span style='color:\" + s[1] + \"'>\u25a0 \" + s[0] + '</span>'; }).join(' &nbsp; ');\n"
+        + "function draw() {\n"
+        + "  var h = history[selected] || [], g = chart.getContext('2d'), w = chart.width, ht = chart.height, top = 1;\n"
+        + "  g.clearRect(0, 0, w, ht);\n"
+        + "  h.forEach(function (t) { series.forEach(function (s) { top = Math.max(top, s[2](t)); }); });\n"
+        + "  top *= 1.1;\n"
+        + "  g.font = '12px monospace';\n"
+        + "  for (var i = 0; i <= 4; i++) {\n"
+        + "    var y = ht - i * ht / 4;\n"
+        + "    g.strokeStyle = '#21262d'; g.beginPath(); g.moveTo(0, y); g.lineTo(w, y); g.stroke();\n"
+        + "    g.fillStyle = '#8b949e'; g.fillText((top * i / 4).toFixed(0) + ' us', 4, Math.max(12, y - 4));\n"
+        + "  }\n"
+        + "  series.forEach(function (s) {\n"
+        + "    g.strokeStyle = s[1]; g.beginPath();\n"
+        + "    h.forEach(function (t, i) {\n"
+        + "      var x = w - (h.length - 1 - i) * w / (HISTORY - 1), y = ht - s[2](t) / top * ht;\n"
+        + "      if (i) { g.lineTo(x, y); } else { g.moveTo(x, y); }\n"
+        + "    });\n"
+        + "    g.stroke();\n"
+        + "  });\n"
+        + "  title.textContent = '\ud83d\udcc8 ' + selected + ', last ' + HISTORY + ' intervals (microseconds)';\n"
+        + "}\n"
+        + "function show(t) {\n"
+        + "  var row = rows[t.target];\n"
+        + "  if (!row) {\n"
+        + "    row = rows[t.target] = table.insertRow();\n"
+        + "    for (var i = 0; i < 10; i++) { row.insertCell(); }\n"
+        + "    row.style.cursor = 'pointer';\n"
+        + "    row.onclick = function () { selected = t.target; draw(); };\n"
+        + "  }\n"
+        + "  var probes = t.count + t.failed, errors = probes ? t.failed * 100 / probes : 0;\n"
+        + "  var values = [t.target, t.rate.toFixed(0) + '/s', probes, errors.toFixed(2) + '%',\n"
+        + "    t.serviceUs.p50, t.serviceUs.p99, t.responseUs.p50, t.responseUs.p99, t.responseUs.p999, t.responseUs.max];\n"
+        + "  for (var c = 0; c < values.length; c++) {\n"
+        + "    row.cells[c].textContent = typeof values[c] === 'number' && c > 2 ? values[c].toFixed(1) : values[c];\n"
+        + "  }\n"
+        + "  row.cells[3].className = errors > 5 ? 'error' : errors > 1 ? 'warn' : 'good';\n"
+        + "}\n"
+        + "var source = new EventSource('/stream');\n"
+        + "source.onopen = function () { state.textContent = 'live'; state.className = 'stat-value good'; };\n"
+        + "source.onerror = function () { state.textContent = 'reconnecting'; state.className = 'stat-value error'; };\n"
+        + "source.addEventListener('interval', function (e) {\n"
+        + "  var frame = JSON.parse(e.data);\n"
+        + "  frame.targets.forEach(function (t) {\n"
+        + "    var h = history[t.target] || (history[t.target] = []);\n"
+        + "    h.push(t);\n"
+        + "    if (h.length > HISTORY) { h.shift(); }\n"
+        + "    show(t);\n"
+        + "  });\n"
+        + "  if (selected === null && frame.targets.length) { selected = frame.targets[0].target; }\n"
+        + "  if (selected !== null) { draw(); }\n"
+        + "});\n"
+        + "</script>\n"
+        + "</body></html>\n";
+    
+    // Draws /matrix client-side: a canvas costs the same for 5 peers and for 500
+    private static final String MESH_SCRIPT =
+        "<canvas id='mesh'></canvas>\n"
+        + "<div id='mesh-cell' class='stat-label'>&nbsp;</div>\n"
+        + "<script>\n"
+        + "fetch('/matrix').then(function (r) { return r.json(); }).then(function (m) {\n"
+        + "  var n = m.peers.length, s = Math.max(1, Math.min(24, Math.floor(1160 / n)));\n"
+        + "  var c = document.getElementById('mesh'), g = c.getContext('2d'), lo = Infinity, hi = 0;\n"
+        + "  c.width = c.height = n * s;\n"
+        + "  m.p99Us.forEach(function (row) { row.forEach(function (v) {\n"
+        + "    if (v !== null && v > 0) { lo = Math.min(lo, v); hi = Math.max(hi, v); } }); });\n"
+        + "  var span = Math.log(hi / lo) || 1;\n"
+        + "  for (var i = 0; i < n; i++) {\n"
+        + "    g.globalAlpha = m.up[i] ? 1 : 0.4;\n"
+        + "    for (var j = 0; j < n; j++) {\n"
+        + "      var v = m.p99Us[i][j], l = m.loss[i][j];\n"
+        + "      g.fillStyle = l >= 0.01 ? '#db61a2' : v === null ? '#21262d'\n"
+        + "        : 'hsl(' + Math.round(120 * (1 - Math.log(Math.max(v, lo) / lo) / span)) + ',70%,45%)';\n"
+        + "      g.fillRect(j * s, i * s, s, s);\n"
+        + "    }\n"
+        + "  }\n"
+        + "  c.onmousemove = function (e) {\n"
+        + "    var b = c.getBoundingClientRect(), i = Math.floor((e.clientY - b.top) / s), j = Math.floor((e.clientX - b.left) / s);\n"
+        + "    if (i < 0 || j < 0 || i >= n || j >= n) return;\n"
+        + "    document.getElementById('mesh-cell').textContent = m.peers[i] + ' \u2192 ' + m.peers[j]\n"
+        + "      + ': p50 ' + m.p50Us[i][j] + ' us, p99 ' + m.p99Us[i][j] + ' us, loss '\n"
+        + "      + (m.loss[i][j] === null ? '-' : (m.loss[i][j] * 100).toFixed(2) + '%');\n"
+        + "  };\n"
+        + "});\n"
+        + "</script>\n";
+    
     private final int port;
-    private final LatencyMonitor monitor;
+    private final StatisticsSource monitor;
+    private final LatencyFormat format;
     private Server server;
+    private LatencyStore store;
+    private Mesh mesh;
+    private IntervalStream stream;
+    private byte[] adminToken;
+    private final MetricsHandler handler;
+    
+    // Label strings encoded once, not per scrape: per target while the targets stay the same, le per bucket
+    private volatile TargetLabels targetLabels = new TargetLabels(List.of());
+    private final String[] bucketLabels;
     
-    public MetricsServer(int port, LatencyMonitor monitor) {
+    public MetricsServer(int port, StatisticsSource monitor) {
+        this(port, monitor, LatencyFormat.SUMMARY);
+    }
+    
+    public MetricsServer(int port, StatisticsSource monitor, LatencyFormat format) {
         this.port = port;
         this.monitor = monitor;
+        this.format = format;
+        
+        LatencyBuckets buckets = monitor.getLatencyBuckets();
+        this.bucketLabels = new String[buckets.size() + 1];
+        for (int i = 0; i < buckets.size(); i++) {
+            // Plain decimal, so every monitor renders the same le strings
+            String bound = BigDecimal.valueOf(buckets.upperBoundUs(i)).stripTrailingZeros().toPlainString();
+            bucketLabels[i] = ",le=\"" + bound + "\"";
+        }
+        bucketLabels[buckets.size()] = ",le=\"+Inf\"";
+        this.handler = new MetricsHandler();
+    }
+    
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+    
+    /**
+     * Labels of the targets of a snapshot. A monitor's targets never change, an
+     * aggregator's only when its sources do, so they are rarely rebuilt.
+     */
+    private TargetLabels targetLabels(List<Statistics> allStats) {
+        TargetLabels labels = targetLabels;
+        if (!labels.matches(allStats)) {
+            labels = new TargetLabels(allStats);
+            targetLabels = labels;
+        }
+        return labels;
+    }
+    
+    private static final class TargetLabels {
+        final List<Statistics> targets;
+        final String[] labels;
+        final String[] probes;
+        final String[] waits;
+        // Configured rates; the info series must not change with runtime rate changes
+        final double[] rates;
+        
+        TargetLabels(List<Statistics> allStats) {
+            this.targets = allStats;
+            this.labels = new String[allStats.size()];
+            this.probes = new String[allStats.size()];
+            this.waits = new String[allStats.size()];
+            this.rates = new double[allStats.size()];
+            for (int i = 0; i < allStats.size(); i++) {
+                Statistics stats = allStats.get(i);
+                labels[i] = "host=\"" + escapeLabelValue(stats.targetHost) + "\",port=\"" + stats.targetPort + "\"";
+                probes[i] = stats.probe;
+                waits[i] = stats.waitStrategy;
+                rates[i] = stats.configuredRate;
+            }
+        }
+        
+        boolean matches(List<Statistics> allStats) {
+            if (allStats == targets) {
+                return true;
+            }
+            if (allStats.size() != targets.size()) {
+                return false;
+            }
+            for (int i = 0; i < allStats.size(); i++) {
+                Statistics stats = allStats.get(i);
+                Statistics known = targets.get(i);
+                if (stats.targetPort != known.targetPort || !stats.targetHost.equals(known.targetHost)
+                        || !stats.probe.equals(known.probe) || !stats.waitStrategy.equals(known.waitStrategy)
+                        || stats.configuredRate != known.configuredRate) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Serve /query from a latency store. Must be called before start().
+     */
+    public void setLatencyStore(LatencyStore store) {
+        this.store = store;
+    }
+    
+    /**
+     * Serve /matrix and /matrix/row of a mesh. Must be called before start().
+     */
+    public void setMesh(Mesh mesh) {
+        this.mesh = mesh;
+    }
+    
+    /**
+     * Serve /stream from an interval stream, and the live dashboard on /. Must be called before start().
+     */
+    public void setIntervalStream(IntervalStream stream) {
+        this.stream = stream;
+    }
+    
+    /**
+     * Enable /admin endpoints for requests bearing this token. Must be called before start().
+     */
+    public void setAdminToken(String token) {
+        this.adminToken = token == null || token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * The renderer behind a cached representation: "dashboard", "prometheus",
+     * "openmetrics" or "json". Lets the benchmarks time rendering without HTTP.
+     */
+    CachedResponse.Renderer<List<Statistics>> renderer(String representation) {
+        switch (representation) {
+            case "dashboard":
+                return handler::renderDashboard;
+            case "prometheus":
+                return (out, allStats) -> handler.renderMetrics(out, allStats, false);
+            case "openmetrics":
+                return (out, allStats) -> handler.renderMetrics(out, allStats, true);
+            case "json":
+                return handler::renderJson;
+            default:
+                throw new IllegalArgumentException("Unknown representation: " + representation);
+        }
     }
     
     /**
@@ -34,11 +358,18 @@ public class MetricsServer {
      */
     public void start() throws Exception {
         server = new Server(port);
-        server.setHandler(new MetricsHandler());
+        server.setHandler(handler);
         server.start();
         logger.info("Metrics server started on port {}", port);
     }
     
+    /**
+     * The port listened on once started; the one picked by the system if the port was 0.
+     */
+    public int getLocalPort() {
+        return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+    
     /**
      * Stop the HTTP server.
      */
@@ -63,6 +394,29 @@ public class MetricsServer {
      */
     private class MetricsHandler extends AbstractHandler {
         
+        // Rendered once per published statistics snapshot, shared by every reader
+        private final CachedResponse<List<Statistics>> dashboard = new CachedResponse<>(
+            "text/html; charset=utf-8", monitor::getStatistics, this::renderDashboard);
+        // Both served at /metrics, picked by Accept
+        private final CachedResponse<List<Statistics>> prometheus = new CachedResponse<>(
+            "text/plain; version=0.0.4; charset=utf-8", "Accept, Accept-Encoding", monitor::getStatistics,
+            (out, allStats) -> renderMetrics(out, allStats, false));
+        private final CachedResponse<List<Statistics>> openMetrics = new CachedResponse<>(
+            "application/openmetrics-text; version=1.0.0; charset=utf-8", "Accept, Accept-Encoding",
+            monitor::getStatistics, (out, allStats) -> renderMetrics(out, allStats, true));
+        private final CachedResponse<List<Statistics>> json = new CachedResponse<>(
+            "application/json; charset=utf-8", monitor::getStatistics, this::renderJson);
+        // Keyed on the export itself, which comes with the statistics snapshot it was taken from
+        private final CachedResponse<String> histograms = new CachedResponse<>(
+            "application/json; charset=utf-8", monitor::getHistogramExport, PrintWriter::print);
+        private final CachedResponse<Mesh.Matrix> matrix = new CachedResponse<>(
+            "application/json; charset=utf-8", () -> mesh.getMatrix(), (out, snapshot) -> mesh.writeMatrix(out, snapshot));
+        private final CachedResponse<Mesh.Row> matrixRow = new CachedResponse<>(
+            "application/json; charset=utf-8", () -> mesh.getLocalRow(), (out, row) -> mesh.writeRow(out, row));
+        // A constant, so encoded once
+        private final CachedResponse<String> live = new CachedResponse<>(
+            "text/html; charset=utf-8", () -> LIVE_PAGE, PrintWriter::print);
+        
         @Override
         public void handle(String target, Request baseRequest, 
                           HttpServletRequest request, HttpServletResponse response) 
@@ -72,16 +426,47 @@ public class MetricsServer {
             
             switch (target) {
                 case "/":
-                    handleDashboard(response);
+                    (stream != null ? live : dashboard).serve(request, response);
+                    break;
+                case "/status":
+                    dashboard.serve(request, response);
+                    break;
+                case "/stream":
+                    if (stream == null) {
+                        response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                        response.getWriter().println("No interval stream");
+                        break;
+                    }
+                    stream.subscribe(request, response);
                     break;
                 case "/metrics":
-                    handleMetrics(response);
+                    String accept = request.getHeader("Accept");
+                    boolean wantsOpenMetrics = accept != null && accept.contains("application/openmetrics-text");
+                    (wantsOpenMetrics ? openMetrics : prometheus).serve(request, response);
                     break;
                 case "/health":
                     handleHealth(response);
                     break;
                 case "/json":
-                    handleJson(response);
+                    json.serve(request, response);
+                    break;
+                case "/query":
+                    handleQuery(request, response);
+                    break;
+                case "/admin/rate":
+                    handleAdminRate(request, response);
+                    break;
+                case "/histogram":
+                    histograms.serve(request, response);
+                    break;
+                case "/matrix":
+                case "/matrix/row":
+                    if (mesh == null) {
+                        response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                        response.getWriter().println("Not in mesh mode");
+                        break;
+                    }
+                    (target.equals("/matrix") ? matrix : matrixRow).serve(request, response);
                     break;
                 default:
                     response.setStatus(HttpServletResponse.SC_NOT_FOUND);
@@ -90,79 +475,169 @@ public class MetricsServer {
         }
         
         /**
-         * HTML dashboard endpoint.
+         * HTML dashboard.
          */
-        private void handleDashboard(HttpServletResponse response) throws IOException {
-            Statistics stats = monitor.getStatistics();
-            
-            response.setContentType("text/html; charset=utf-8");
-            response.setStatus(HttpServletResponse.SC_OK);
-            
-            PrintWriter out = response.getWriter();
-            out.println("<!DOCTYPE html>");
-            out.println("<html><head>");
-            out.println("<title>Network Latency Monitor</title>");
-            out.println("<meta http-equiv='refresh' content='5'>");
-            out.println("<style>");
-            out.println("body { font-family: -apple-system, BlinkMacSystemFont, 'Segoe UI', Roboto, sans-serif; ");
-            out.println("       max-width: 900px; margin: 40px auto; padding: 20px; background: #0d1117; color: #c9d1d9; }");
-            out.println("h1 { color: #58a6ff; border-bottom: 1px solid #30363d; padding-bottom: 10px; }");
-            out.println("h2 { color: #8b949e; margin-top: 30px; }");
-            out.println(".stats { background: #161b22; border-radius: 6px; padding: 20px; margin: 20px 0; }");
-            out.println(".stat-row { display: flex; justify-content: space-between; padding: 8px 0; border-bottom: 1px solid #21262d; }");
-            out.println(".stat-label { color: #8b949e; }");
-            out.println(".stat-value { color: #58a6ff; font-family: monospace; }");
-            out.println(".good { color: #3fb950; }");
-            out.println(".warn { color: #d29922; }");
-            out.println(".error { color: #f85149; }");
-            out.println("table { width: 100%; border-collapse: collapse; margin: 10px 0; }");
-            out.println("th, td { padding: 10px; text-align: right; border-bottom: 1px solid #21262d; }");
-            out.println("th { color: #8b949e; font-weight: normal; }");
-            out.println("td { font-family: monospace; color: #58a6ff; }");
-            out.println("th:first-child, td:first-child { text-align: left; }");
-            out.println(".info-box { background: #1f6feb20; border: 1px solid #1f6feb; border-radius: 6px; padding: 15px; margin: 20px 0; }");
-            out.println("</style></head><body>");
+        private void renderDashboard(PrintWriter out, List<Statistics> allStats) {
+            out.print(DASHBOARD_HEAD);
             
             out.println("<h1>🌐 Network Latency Monitor</h1>");
             
-            // Target info
+            // Monitor info
+            long total = 0;
+            long failed = 0;
+            for (Statistics stats : allStats) {
+                total += stats.totalMeasurements;
+                failed += stats.failedMeasurements;
+            }
+            double errorRate = total == 0 ? 0 : (failed * 100.0) / total;
             out.println("<div class='stats'>");
-            out.printf("<div class='stat-row'><span class='stat-label'>Target</span><span class='stat-value'>%s:%d</span></div>%n",
-                stats.targetHost, stats.targetPort);
-            out.printf("<div class='stat-row'><span class='stat-label'>Measurement Rate</span><span class='stat-value'>%.0f probes/second</span></div>%n",
-                stats.ratePerSecond);
+            out.printf("<div class='stat-row'><span class='stat-label'>Targets</span><span class='stat-value'>%d</span></div>%n",
+                allStats.size());
             out.printf("<div class='stat-row'><span class='stat-label'>Status</span><span class='stat-value %s'>%s</span></div>%n",
-                stats.running ? "good" : "error", stats.running ? "Running" : "Stopped");
+                monitor.isRunning() ? "good" : "error", monitor.isRunning() ? "Running" : "Stopped");
             out.printf("<div class='stat-row'><span class='stat-label'>Uptime</span><span class='stat-value'>%s</span></div>%n",
-                formatDuration(stats.uptimeMs));
-            out.println("</div>");
-            
-            // Measurement counts
-            out.println("<h2>📊 Measurements</h2>");
-            out.println("<div class='stats'>");
-            out.printf("<div class='stat-row'><span class='stat-label'>Total</span><span class='stat-value'>%,d</span></div>%n",
-                stats.totalMeasurements);
-            out.printf("<div class='stat-row'><span class='stat-label'>Successful</span><span class='stat-value good'>%,d</span></div>%n",
-                stats.successfulMeasurements);
-            out.printf("<div class='stat-row'><span class='stat-label'>Failed</span><span class='stat-value %s'>%,d</span></div>%n",
-                stats.failedMeasurements > 0 ? "error" : "", stats.failedMeasurements);
+                formatDuration(monitor.getUptimeMs()));
+            out.printf("<div class='stat-row'><span class='stat-label'>Total Measurements</span><span class='stat-value'>%,d</span></div>%n",
+                total);
             out.printf("<div class='stat-row'><span class='stat-label'>Error Rate</span><span class='stat-value %s'>%.2f%%</span></div>%n",
-                stats.errorRate() > 1 ? "error" : stats.errorRate() > 0 ? "warn" : "good", stats.errorRate());
+                errorClass(errorRate), errorRate);
             out.println("</div>");
             
-            // Latency table
-            out.println("<h2>⏱️ Latency (microseconds)</h2>");
+            // Per-target latency table
+            out.println("<h2>⏱️ Latency by Target (microseconds)</h2>");
             out.println("<table>");
-            out.println("<tr><th>Metric</th><th>Service Time</th><th>Response Time*</th></tr>");
-            out.printf("<tr><td>Mean</td><td>%.1f</td><td>%.1f</td></tr>%n", stats.serviceMeanUs, stats.responseMeanUs);
-            out.printf("<tr><td>Median (p50)</td><td>%.1f</td><td>%.1f</td></tr>%n", stats.serviceP50Us, stats.responseP50Us);
-            out.printf("<tr><td>p95</td><td>%.1f</td><td>%.1f</td></tr>%n", stats.serviceP95Us, stats.responseP95Us);
-            out.printf("<tr><td>p99</td><td>%.1f</td><td>%.1f</td></tr>%n", stats.serviceP99Us, stats.responseP99Us);
-            out.printf("<tr><td>p99.9</td><td>%.1f</td><td>%.1f</td></tr>%n", stats.serviceP999Us, stats.responseP999Us);
-            out.printf("<tr><td>Max</td><td>%.1f</td><td>%.1f</td></tr>%n", stats.serviceMaxUs, stats.responseMaxUs);
-            out.printf("<tr><td>Min</td><td>%.1f</td><td>%.1f</td></tr>%n", stats.serviceMinUs, stats.responseMinUs);
+            out.println("<tr><th>Target</th><th>Rate</th><th>Total</th><th>Errors</th>"
+                + "<th>Service p50</th><th>Service p99</th>"
+                + "<th>Response p50*</th><th>Response p99*</th><th>Response p99.9*</th><th>Response Max*</th></tr>");
+            for (Statistics stats : allStats) {
+                out.printf("<tr><td>%s:%d</td><td>%.0f/s</td><td>%,d</td><td class='%s'>%.2f%%</td>"
+                        + "<td>%.1f</td><td>%.1f</td><td>%.1f</td><td>%.1f</td><td>%.1f</td><td>%.1f</td></tr>%n",
+                    html(stats.targetHost), stats.targetPort, stats.ratePerSecond, stats.totalMeasurements,
+                    errorClass(stats.errorRate()), stats.errorRate(),
+                    stats.serviceP50Us, stats.serviceP99Us,
+                    stats.responseP50Us, stats.responseP99Us, stats.responseP999Us, stats.responseMaxUs);
+            }
             out.println("</table>");
             
+            // Latency matrix of the mesh
+            if (mesh != null) {
+                out.printf("<h2>🕸️ Mesh: Response p99 by Source (rows) and Destination (columns), %s</h2>%n",
+                    html(mesh.getWindow()));
+                out.print(MESH_SCRIPT);
+            }
+            
+            // Rolling windows
+            if (!allStats.isEmpty() && !allStats.get(0).windows.isEmpty()) {
+                List<WindowStatistics> names = allStats.get(0).windows;
+                out.println("<h2>📈 Rolling Windows (microseconds)</h2>");
+                out.println("<table>");
+                out.print("<tr><th>Target</th>");
+                for (WindowStatistics window : names) {
+                    out.printf("<th>%s Errors</th><th>%s Response p99*</th>", html(window.name), html(window.name));
+                }
+                out.println("</tr>");
+                for (Statistics stats : allStats) {
+                    out.printf("<tr><td>%s:%d</td>", html(stats.targetHost), stats.targetPort);
+                    for (WindowStatistics window : stats.windows) {
+                        out.printf("<td class='%s'>%.2f%%</td><td>%.1f</td>",
+                            errorClass(window.errorRate()), window.errorRate(), window.responseTimes.p99Us());
+                    }
+                    out.println("</tr>");
+                }
+                out.println("</table>");
+            }
+            
+            // Fixed flows; with dozens per target only the divergent ones are listed
+            if (allStats.stream().anyMatch(stats -> !stats.flows.isEmpty())) {
+                out.println("<h2>🔀 Flows (microseconds, last flow window)</h2>");
+                out.println("<table>");
+                out.println("<tr><th>Target</th><th>Flows</th><th>Divergent</th><th>Flow</th>"
+                    + "<th>Errors</th><th>Service p50</th><th>Service p99</th></tr>");
+                for (Statistics stats : allStats) {
+                    if (stats.flows.isEmpty()) {
+                        continue;
+                    }
+                    long divergent = stats.flows.stream().filter(flow -> flow.divergent).count();
+                    out.printf("<tr><td>%s:%d</td><td>%d</td><td class='%s'>%d</td><td></td><td></td><td></td><td></td></tr>%n",
+                        html(stats.targetHost), stats.targetPort, stats.flows.size(), divergent > 0 ? "error" : "good", divergent);
+                    for (FlowStatistics flow : stats.flows) {
+                        if (flow.divergent) {
+                            out.printf("<tr><td></td><td></td><td></td><td>port %d</td><td class='%s'>%.2f%%</td>"
+                                    + "<td>%.1f</td><td>%.1f</td></tr>%n",
+                                flow.sourcePort, errorClass(flow.errorRate()), flow.errorRate(), flow.p50Us, flow.p99Us);
+                        }
+                    }
+                }
+                out.println("</table>");
+            }
+            
+            // Monitors merged by an aggregator
+            List<SourceStatistics> sources = monitor.getSourceStatistics();
+            if (!sources.isEmpty()) {
+                out.println("<h2>🛰️ Sources</h2>");
+                out.println("<table>");
+                out.println("<tr><th>Source</th><th>Status</th><th>Targets</th><th>Polls</th><th>Failures</th><th>Last Success</th></tr>");
+                long now = System.currentTimeMillis();
+                for (SourceStatistics source : sources) {
+                    // Down sources keep their all-time histograms until they expire
+                    boolean expired = source.contribution == Aggregator.Contribution.NONE;
+                    out.printf("<tr><td>%s</td><td class='%s'>%s</td><td>%d</td><td>%,d</td><td>%,d</td><td>%s</td></tr>%n",
+                        html(source.url), source.up ? "good" : expired ? "error" : "warn",
+                        source.up ? "Up" : expired ? "Expired" : "Down", source.targets,
+                        source.polls, source.failures,
+                        source.lastSuccessMs == 0 ? "never" : formatDuration(now - source.lastSuccessMs) + " ago");
+                }
+                out.println("</table>");
+            }
+            
+            // Reactor shards
+            List<ShardStatistics> shards = monitor.getShardStatistics();
+            if (!shards.isEmpty()) {
+                out.println("<h2>⚙️ Reactor Shards</h2>");
+                out.println("<table>");
+                out.println("<tr><th>Shard</th><th>Targets</th><th>Utilization</th>"
+                    + "<th>Loop Lag p50 (us)</th><th>Loop Lag p99 (us)</th><th>Loop Lag Max (us)</th></tr>");
+                for (ShardStatistics shard : shards) {
+                    out.printf("<tr><td>%d</td><td>%d</td><td class='%s'>%.1f%%</td><td>%.1f</td><td>%.1f</td><td>%.1f</td></tr>%n",
+                        shard.shard, shard.targets, shard.utilization > 0.8 ? "error" : shard.utilization > 0.5 ? "warn" : "good",
+                        shard.utilization * 100, shard.loopLagP50Us, shard.loopLagP99Us, shard.loopLagMaxUs);
+                }
+                out.println("</table>");
+            }
+            
+            // The monitor's own JVM
+            PauseStatistics pauses = monitor.getPauseStatistics();
+            if (pauses != null) {
+                out.println("<h2>🧹 JVM Pauses</h2>");
+                out.println("<table>");
+                out.println("<tr><th>Source</th><th>Count</th><th>p99 (us)</th><th>Max (us)</th></tr>");
+                out.printf("<tr><td>Hiccups (%d pauses)</td><td>%d</td><td>%.1f</td><td>%.1f</td></tr>%n",
+                    pauses.pauses, pauses.hiccups.count, pauses.hiccups.p99Us(), pauses.hiccups.maxUs);
+                for (CollectorStatistics collector : pauses.collectors) {
+                    out.printf("<tr><td>%s%s</td><td>%d</td><td>%.1f</td><td>%.1f</td></tr>%n", html(collector.name),
+                        collector.concurrent ? " (concurrent)" : "", collector.collections,
+                        collector.times.p99Us(), collector.times.maxUs);
+                }
+                out.println("</table>");
+            }
+            
+            // Local sockets and ports of the monitor host
+            SocketStatistics sockets = monitor.getSocketStatistics();
+            if (sockets != null && !sockets.tcpStates.isEmpty()) {
+                out.println("<h2>🔌 Local Ports</h2>");
+                out.println("<table>");
+                out.println("<tr><th>Range</th><th>Ports</th><th>In Use</th><th>Utilization</th></tr>");
+                for (PortRangeStatistics range : sockets.portRanges) {
+                    out.printf("<tr><td>%s</td><td>%d-%d</td><td>%d</td><td class='%s'>%.1f%%</td></tr>%n",
+                        html(range.name), range.first, range.last, range.inUse,
+                        range.utilization() > 0.8 ? "error" : range.utilization() > 0.5 ? "warn" : "good",
+                        range.utilization() * 100);
+                }
+                out.println("</table>");
+                out.printf("<p style='color:#8b949e'>TCP sockets: %d established, %d time_wait</p>%n",
+                    sockets.tcpStates.get("established"), sockets.tcpStates.get("time_wait"));
+            }
+            
             // Info box
             out.println("<div class='info-box'>");
             out.println("<strong>* Coordinated Omission Correction</strong><br>");
@@ -175,6 +650,14 @@ public class MetricsServer {
             out.println("<div class='stat-row'><span class='stat-label'><a href='/metrics' style='color:#58a6ff'>/metrics</a></span><span class='stat-value'>Prometheus format</span></div>");
             out.println("<div class='stat-row'><span class='stat-label'><a href='/health' style='color:#58a6ff'>/health</a></span><span class='stat-value'>Health check</span></div>");
             out.println("<div class='stat-row'><span class='stat-label'><a href='/json' style='color:#58a6ff'>/json</a></span><span class='stat-value'>JSON format</span></div>");
+            out.println("<div class='stat-row'><span class='stat-label'><a href='/histogram' style='color:#58a6ff'>/histogram</a></span><span class='stat-value'>Compressed histograms</span></div>");
+            if (mesh != null) {
+                out.println("<div class='stat-row'><span class='stat-label'><a href='/matrix' style='color:#58a6ff'>/matrix</a></span><span class='stat-value'>Mesh latency matrix</span></div>");
+            }
+            if (stream != null) {
+                out.println("<div class='stat-row'><span class='stat-label'><a href='/' style='color:#58a6ff'>/</a></span><span class='stat-value'>Live dashboard</span></div>");
+                out.println("<div class='stat-row'><span class='stat-label'><a href='/stream' style='color:#58a6ff'>/stream</a></span><span class='stat-value'>Live intervals (Server-Sent Events)</span></div>");
+            }
             out.println("</div>");
             
             out.println("<p style='color:#484f58;text-align:center;margin-top:40px;'>Auto-refreshing every 5 seconds</p>");
@@ -182,61 +665,583 @@ public class MetricsServer {
         }
         
         /**
-         * Prometheus metrics endpoint.
+         * Prometheus metrics. Every series carries host/port labels.
+         * Rendered as OpenMetrics text for scrapers that ask for it.
          */
-        private void handleMetrics(HttpServletResponse response) throws IOException {
-            Statistics stats = monitor.getStatistics();
+        private void renderMetrics(PrintWriter out, List<Statistics> allStats, boolean openMetrics) {
+            TargetLabels targets = targetLabels(allStats);
+            // Metadata
+            String total = counter(out, openMetrics, "network_latency_total", "Total number of latency measurements");
+            for (int t = 0; t < allStats.size(); t++) {
+                out.printf("%s{%s} %d%n", total, targets.labels[t], allStats.get(t).totalMeasurements);
+            }
             
-            response.setContentType("text/plain; version=0.0.4; charset=utf-8");
-            response.setStatus(HttpServletResponse.SC_OK);
+            String successful = counter(out, openMetrics, "network_latency_successful", "Successful latency measurements");
+            for (int t = 0; t < allStats.size(); t++) {
+                out.printf("%s{%s} %d%n", successful, targets.labels[t], allStats.get(t).successfulMeasurements);
+            }
             
-            PrintWriter out = response.getWriter();
+            String failed = counter(out, openMetrics, "network_latency_failed", "Failed latency measurements");
+            for (int t = 0; t < allStats.size(); t++) {
+                out.printf("%s{%s} %d%n", failed, targets.labels[t], allStats.get(t).failedMeasurements);
+            }
             
-            // Metadata
-            out.println("# HELP network_latency_total Total number of latency measurements");
-            out.println("# TYPE network_latency_total counter");
-            out.printf("network_latency_total %d%n", stats.totalMeasurements);
+            if (allStats.stream().anyMatch(stats -> !stats.failures.isEmpty())) {
+                String byReason = counter(out, openMetrics, "network_latency_failures",
+                    "Failed latency measurements by reason, e.g. timeout, refused, unreachable, reset");
+                for (int t = 0; t < allStats.size(); t++) {
+                    for (FailureStatistics failure : allStats.get(t).failures) {
+                        out.printf("%s{%s,reason=\"%s\"} %d%n", byReason, targets.labels[t], failure.reason, failure.count);
+                    }
+                }
+            }
             
-            out.println("# HELP network_latency_successful Successful latency measurements");
-            out.println("# TYPE network_latency_successful counter");
-            out.printf("network_latency_successful %d%n", stats.successfulMeasurements);
+            String pauseAffected = counter(out, openMetrics, "network_latency_pause_affected",
+                "Latency measurements that overlapped a pause of the monitor's own JVM");
+            for (int t = 0; t < allStats.size(); t++) {
+                out.printf("%s{%s} %d%n", pauseAffected, targets.labels[t], allStats.get(t).pauseAffectedMeasurements);
+            }
+            
+            if (allStats.stream().anyMatch(stats -> !stats.probeCounters.isEmpty())) {
+                String events = counter(out, openMetrics, "network_latency_probe_events",
+                    "Probe-specific events, e.g. reordered, duplicate or late UDP echoes");
+                for (int t = 0; t < allStats.size(); t++) {
+                    for (Map.Entry<String, Long> event : allStats.get(t).probeCounters.entrySet()) {
+                        out.printf("%s{%s,event=\"%s\"} %d%n", events, targets.labels[t], event.getKey(), event.getValue());
+                    }
+                }
+            }
             
-            out.println("# HELP network_latency_failed Failed latency measurements");
-            out.println("# TYPE network_latency_failed counter");
-            out.printf("network_latency_failed %d%n", stats.failedMeasurements);
+            if (allStats.stream().anyMatch(stats -> stats.histogramBytes > 0)) {
+                out.println("# HELP network_latency_histogram_memory_bytes Estimated heap taken by the histograms of a target");
+                out.println("# TYPE network_latency_histogram_memory_bytes gauge");
+                for (int t = 0; t < allStats.size(); t++) {
+                    out.printf("network_latency_histogram_memory_bytes{%s} %d%n", targets.labels[t],
+                        allStats.get(t).histogramBytes);
+                }
+            }
             
             out.println("# HELP network_latency_uptime_seconds Uptime in seconds");
             out.println("# TYPE network_latency_uptime_seconds gauge");
-            out.printf("network_latency_uptime_seconds %.1f%n", stats.uptimeMs / 1000.0);
+            out.printf("network_latency_uptime_seconds %.1f%n", monitor.getUptimeMs() / 1000.0);
+            
+            if (format == LatencyFormat.HISTOGRAM) {
+                writeHistogram(out, allStats, "network_latency_service_time_microseconds",
+                    "Service time (actual measurement duration)", true);
+                writeHistogram(out, allStats, "network_latency_response_time_microseconds",
+                    "Response time from intended start (corrects coordinated omission)", false);
+            } else {
+                writeSummaries(out, allStats);
+            }
+            if (allStats.stream().anyMatch(stats -> !stats.phases.isEmpty())) {
+                writePhases(out, allStats);
+            }
+            
+            if (allStats.stream().anyMatch(stats -> !stats.probeTimes.isEmpty())) {
+                out.println("# HELP network_latency_probe_time_microseconds Probe-specific latencies, e.g. connect time of persistent connections");
+                out.println("# TYPE network_latency_probe_time_microseconds summary");
+                for (int t = 0; t < allStats.size(); t++) {
+                    for (Map.Entry<String, LatencySummary> probeTime : allStats.get(t).probeTimes.entrySet()) {
+                        writeSummary(out, "network_latency_probe_time_microseconds",
+                            targets.labels[t] + ",kind=\"" + probeTime.getKey() + "\"", probeTime.getValue());
+                    }
+                }
+            }
+            
+            if (allStats.stream().anyMatch(stats -> !stats.failures.isEmpty())) {
+                out.println("# HELP network_latency_failure_time_microseconds Time from the start of failed measurements until they failed, by reason");
+                out.println("# TYPE network_latency_failure_time_microseconds summary");
+                for (int t = 0; t < allStats.size(); t++) {
+                    for (FailureStatistics failure : allStats.get(t).failures) {
+                        if (failure.times.count == 0) {
+                            // Failed before getting on the wire, e.g. while disconnected
+                            continue;
+                        }
+                        writeSummary(out, "network_latency_failure_time_microseconds",
+                            targets.labels[t] + ",reason=\"" + failure.reason + "\"", failure.times);
+                    }
+                }
+            }
+            
+            out.println("# HELP network_latency_scheduling_jitter_microseconds How late probes started relative to their intended start, when on schedule");
+            out.println("# TYPE network_latency_scheduling_jitter_microseconds summary");
+            for (int t = 0; t < allStats.size(); t++) {
+                writeSummary(out, "network_latency_scheduling_jitter_microseconds",
+                    targets.labels[t], allStats.get(t).schedulingJitter);
+            }
+            
+            // Rolling windows
+            writeWindowSummary(out, allStats, "network_latency_service_time_window_microseconds",
+                "Service time over rolling windows", true);
+            writeWindowSummary(out, allStats, "network_latency_response_time_window_microseconds",
+                "Response time over rolling windows (corrects coordinated omission)", false);
+            out.println("# HELP network_latency_window_failed Failed latency measurements within rolling windows");
+            out.println("# TYPE network_latency_window_failed gauge");
+            for (int t = 0; t < allStats.size(); t++) {
+                for (WindowStatistics window : allStats.get(t).windows) {
+                    out.printf("network_latency_window_failed{%s,window=\"%s\"} %d%n",
+                        targets.labels[t], window.name, window.failures);
+                }
+            }
+            
+            // Fixed flows (flows option), over their last completed window
+            if (allStats.stream().anyMatch(stats -> !stats.flows.isEmpty())) {
+                out.println("# HELP network_latency_flow_service_time_microseconds Service time of each fixed flow over its last window, by source port");
+                out.println("# TYPE network_latency_flow_service_time_microseconds gauge");
+                for (int t = 0; t < allStats.size(); t++) {
+                    for (FlowStatistics flow : allStats.get(t).flows) {
+                        out.printf("network_latency_flow_service_time_microseconds{%s,flow=\"%d\",quantile=\"0.5\"} %.1f%n",
+                            targets.labels[t], flow.sourcePort, flow.p50Us);
+                        out.printf("network_latency_flow_service_time_microseconds{%s,flow=\"%d\",quantile=\"0.99\"} %.1f%n",
+                            targets.labels[t], flow.sourcePort, flow.p99Us);
+                    }
+                }
+                out.println("# HELP network_latency_flow_probes Latency measurements of each fixed flow over its last window, failed ones included");
+                out.println("# TYPE network_latency_flow_probes gauge");
+                for (int t = 0; t < allStats.size(); t++) {
+                    for (FlowStatistics flow : allStats.get(t).flows) {
+                        out.printf("network_latency_flow_probes{%s,flow=\"%d\"} %d%n",
+                            targets.labels[t], flow.sourcePort, flow.probes);
+                    }
+                }
+                out.println("# HELP network_latency_flow_failed Failed latency measurements of each fixed flow over its last window");
+                out.println("# TYPE network_latency_flow_failed gauge");
+                for (int t = 0; t < allStats.size(); t++) {
+                    for (FlowStatistics flow : allStats.get(t).flows) {
+                        out.printf("network_latency_flow_failed{%s,flow=\"%d\"} %d%n",
+                            targets.labels[t], flow.sourcePort, flow.failures);
+                    }
+                }
+                out.println("# HELP network_latency_flow_divergent Whether a fixed flow's latency or failure rate is well off the median of its siblings (1) or not (0)");
+                out.println("# TYPE network_latency_flow_divergent gauge");
+                for (int t = 0; t < allStats.size(); t++) {
+                    for (FlowStatistics flow : allStats.get(t).flows) {
+                        out.printf("network_latency_flow_divergent{%s,flow=\"%d\"} %d%n",
+                            targets.labels[t], flow.sourcePort, flow.divergent ? 1 : 0);
+                    }
+                }
+            }
+            
+            // Host name resolution, outside the probes
+            List<ResolverStatistics> resolvers = monitor.getResolverStatistics();
+            if (!resolvers.isEmpty()) {
+                out.println("# HELP network_latency_dns_resolution_time_microseconds Time to resolve each target host name");
+                out.println("# TYPE network_latency_dns_resolution_time_microseconds summary");
+                for (ResolverStatistics resolver : resolvers) {
+                    writeSummary(out, "network_latency_dns_resolution_time_microseconds",
+                        "name=\"" + escapeLabelValue(resolver.host) + "\"", resolver.resolutionTimes);
+                }
+                String resolutions = counter(out, openMetrics, "network_latency_dns_resolutions", "Host name resolutions");
+                for (ResolverStatistics resolver : resolvers) {
+                    out.printf("%s{name=\"%s\"} %d%n", resolutions, escapeLabelValue(resolver.host), resolver.resolutions);
+                }
+                String failures = counter(out, openMetrics, "network_latency_dns_failures", "Failed host name resolutions");
+                for (ResolverStatistics resolver : resolvers) {
+                    out.printf("%s{name=\"%s\"} %d%n", failures, escapeLabelValue(resolver.host), resolver.failures);
+                }
+                String changes = counter(out, openMetrics, "network_latency_dns_address_changes",
+                    "Times a host name resolved to a different address");
+                for (ResolverStatistics resolver : resolvers) {
+                    out.printf("%s{name=\"%s\"} %d%n", changes, escapeLabelValue(resolver.host), resolver.addressChanges);
+                }
+                out.println("# HELP network_latency_dns_address_info Address each host name currently resolves to");
+                out.println("# TYPE network_latency_dns_address_info gauge");
+                for (ResolverStatistics resolver : resolvers) {
+                    if (resolver.address != null) {
+                        out.printf("network_latency_dns_address_info{name=\"%s\",address=\"%s\"} 1%n",
+                            escapeLabelValue(resolver.host), resolver.address);
+                    }
+                }
+            }
+            
+            // Reactor shards
+            List<ShardStatistics> shards = monitor.getShardStatistics();
+            if (!shards.isEmpty()) {
+                out.println("# HELP network_latency_shard_targets Targets assigned to each reactor shard");
+                out.println("# TYPE network_latency_shard_targets gauge");
+                for (ShardStatistics shard : shards) {
+                    out.printf("network_latency_shard_targets{shard=\"%d\"} %d%n", shard.shard, shard.targets);
+                }
+                out.println("# HELP network_latency_shard_utilization Fraction of time each reactor shard spent outside select");
+                out.println("# TYPE network_latency_shard_utilization gauge");
+                for (ShardStatistics shard : shards) {
+                    out.printf("network_latency_shard_utilization{shard=\"%d\"} %.4f%n", shard.shard, shard.utilization);
+                }
+                out.println("# HELP network_latency_shard_loop_lag_microseconds How late reactor deadlines fired over the last interval");
+                out.println("# TYPE network_latency_shard_loop_lag_microseconds summary");
+                for (ShardStatistics shard : shards) {
+                    out.printf("network_latency_shard_loop_lag_microseconds{shard=\"%d\",quantile=\"0.5\"} %.1f%n", shard.shard, shard.loopLagP50Us);
+                    out.printf("network_latency_shard_loop_lag_microseconds{shard=\"%d\",quantile=\"0.99\"} %.1f%n", shard.shard, shard.loopLagP99Us);
+                    out.printf("network_latency_shard_loop_lag_microseconds{shard=\"%d\",quantile=\"0.999\"} %.1f%n", shard.shard, shard.loopLagP999Us);
+                    out.printf("network_latency_shard_loop_lag_microseconds{shard=\"%d\",quantile=\"1\"} %.1f%n", shard.shard, shard.loopLagMaxUs);
+                    out.printf("network_latency_shard_loop_lag_microseconds_count{shard=\"%d\"} %d%n", shard.shard, shard.lagSamples);
+                }
+            }
+            
+            // Monitors merged by an aggregator
+            List<SourceStatistics> sources = monitor.getSourceStatistics();
+            if (!sources.isEmpty()) {
+                out.println("# HELP network_latency_aggregator_source_up Whether the last poll of a source succeeded");
+                out.println("# TYPE network_latency_aggregator_source_up gauge");
+                for (SourceStatistics source : sources) {
+                    out.printf("network_latency_aggregator_source_up{source=\"%s\"} %d%n", escapeLabelValue(source.url), source.up ? 1 : 0);
+                }
+                String polls = counter(out, openMetrics, "network_latency_aggregator_source_polls", "Polls of a source");
+                for (SourceStatistics source : sources) {
+                    out.printf("%s{source=\"%s\"} %d%n", polls, escapeLabelValue(source.url), source.polls);
+                }
+                String failures = counter(out, openMetrics, "network_latency_aggregator_source_failures", "Failed polls of a source");
+                for (SourceStatistics source : sources) {
+                    out.printf("%s{source=\"%s\"} %d%n", failures, escapeLabelValue(source.url), source.failures);
+                }
+                out.println("# HELP network_latency_aggregator_source_targets Targets in the last histograms of a source");
+                out.println("# TYPE network_latency_aggregator_source_targets gauge");
+                for (SourceStatistics source : sources) {
+                    out.printf("network_latency_aggregator_source_targets{source=\"%s\"} %d%n", escapeLabelValue(source.url), source.targets);
+                }
+            }
+            
+            // The monitor's own JVM, to tell self-inflicted latency from the network's
+            PauseStatistics pauses = monitor.getPauseStatistics();
+            if (pauses != null) {
+                out.println("# HELP network_latency_jvm_hiccup_microseconds How late a thread sleeping 1 ms at a time woke up");
+                out.println("# TYPE network_latency_jvm_hiccup_microseconds summary");
+                writeSummary(out, "network_latency_jvm_hiccup_microseconds", "", pauses.hiccups);
+                String jvmPauses = counter(out, openMetrics, "network_latency_jvm_pauses",
+                    "Hiccups over the pause threshold and stop-the-world collections");
+                out.printf("%s %d%n", jvmPauses, pauses.pauses);
+                if (!pauses.collectors.isEmpty()) {
+                    String collections = counter(out, openMetrics, "network_latency_gc_collections",
+                        "Garbage collections of the monitor's JVM");
+                    for (CollectorStatistics collector : pauses.collectors) {
+                        out.printf("%s{collector=\"%s\"} %d%n", collections, escapeLabelValue(collector.name),
+                            collector.collections);
+                    }
+                    out.println("# HELP network_latency_gc_time_microseconds Duration of each garbage collection (millisecond resolution)");
+                    out.println("# TYPE network_latency_gc_time_microseconds summary");
+                    for (CollectorStatistics collector : pauses.collectors) {
+                        writeSummary(out, "network_latency_gc_time_microseconds", "collector=\""
+                            + escapeLabelValue(collector.name) + "\",concurrent=\"" + collector.concurrent + "\"",
+                            collector.times);
+                    }
+                }
+
+            }
+
+            // Live stream subscribers and how many of them cannot keep up
+            if (stream != null) {
+                out.println("# HELP network_latency_stream_clients Open subscriptions to /stream");
+                out.println("# TYPE network_latency_stream_clients gauge");
+                out.printf("network_latency_stream_clients %d%n", stream.clients());
+                String coalesced = counter(out, openMetrics, "network_latency_stream_coalesced_frames",
+                    "Stream frames replaced by a newer one before a slow client took them");
+                out.printf("%s %d%n", coalesced, stream.coalescedFrames());
+                String dropped = counter(out, openMetrics, "network_latency_stream_dropped_clients",
+                    "Stream clients disconnected for not taking frames within the stall limit");
+                out.printf("%s %d%n", dropped, stream.droppedClients());
+            }
+
+            // Local sockets and ports, which high-rate connect probing uses up
+            SocketStatistics sockets = monitor.getSocketStatistics();
+            if (sockets != null) {
+                if (!sockets.tcpStates.isEmpty()) {
+                    out.println("# HELP network_latency_local_tcp_sockets TCP sockets of the monitor host by state");
+                    out.println("# TYPE network_latency_local_tcp_sockets gauge");
+                    for (Map.Entry<String, Long> state : sockets.tcpStates.entrySet()) {
+                        out.printf("network_latency_local_tcp_sockets{state=\"%s\"} %d%n", state.getKey(), state.getValue());
+                    }
+                    out.println("# HELP network_latency_local_ports_in_use Local ports of a range held by TCP sockets");
+                    out.println("# TYPE network_latency_local_ports_in_use gauge");
+                    for (PortRangeStatistics range : sockets.portRanges) {
+                        out.printf("network_latency_local_ports_in_use{range=\"%s\"} %d%n", range.name, range.inUse);
+                    }
+                    out.println("# HELP network_latency_local_port_range_size Ports in the ephemeral and source-port ranges");
+                    out.println("# TYPE network_latency_local_port_range_size gauge");
+                    for (PortRangeStatistics range : sockets.portRanges) {
+                        out.printf("network_latency_local_port_range_size{range=\"%s\"} %d%n", range.name, range.size());
+                    }
+                }
+                if (sockets.tcpTwReuse >= 0) {
+                    out.println("# HELP network_latency_tcp_tw_reuse The net.ipv4.tcp_tw_reuse setting of the monitor host");
+                    out.println("# TYPE network_latency_tcp_tw_reuse gauge");
+                    out.printf("network_latency_tcp_tw_reuse %d%n", sockets.tcpTwReuse);
+                }
+                if (sockets.openFileDescriptors >= 0) {
+                    out.println("# HELP network_latency_open_file_descriptors File descriptors the monitor has open");
+                    out.println("# TYPE network_latency_open_file_descriptors gauge");
+                    out.printf("network_latency_open_file_descriptors %d%n", sockets.openFileDescriptors);
+                    out.println("# HELP network_latency_max_file_descriptors File descriptor limit of the monitor");
+                    out.println("# TYPE network_latency_max_file_descriptors gauge");
+                    out.printf("network_latency_max_file_descriptors %d%n", sockets.maxFileDescriptors);
+                }
+            }
+            
+            // Target info
+            out.println("# HELP network_latency_target_info Target server information");
+            out.println("# TYPE network_latency_target_info gauge");
+            for (int t = 0; t < allStats.size(); t++) {
+                out.printf("network_latency_target_info{%s,probe=\"%s\",wait=\"%s\",rate=\"%s\"} 1%n",
+                    targets.labels[t], targets.probes[t], targets.waits[t], targets.rates[t]);
+            }
             
+            out.println("# HELP network_latency_probe_rate Current probe rate per second (changed via /admin/rate or adaptive mode)");
+            out.println("# TYPE network_latency_probe_rate gauge");
+            for (int t = 0; t < allStats.size(); t++) {
+                out.printf("network_latency_probe_rate{%s} %s%n", targets.labels[t], allStats.get(t).ratePerSecond);
+            }
+            out.println("# HELP network_latency_probe_rate_boosted Whether adaptive mode is probing above the base rate");
+            out.println("# TYPE network_latency_probe_rate_boosted gauge");
+            for (int t = 0; t < allStats.size(); t++) {
+                out.printf("network_latency_probe_rate_boosted{%s} %d%n", targets.labels[t], allStats.get(t).rateBoosted ? 1 : 0);
+            }
+            
+            if (openMetrics) {
+                out.println("# EOF");
+            }
+        }
+        
+        /**
+         * All-time service and response time quantiles.
+         */
+        private void writeSummaries(PrintWriter out, List<Statistics> allStats) {
+            TargetLabels targets = targetLabels(allStats);
             // Service times (actual measurement)
             out.println("# HELP network_latency_service_time_microseconds Service time (actual measurement duration)");
             out.println("# TYPE network_latency_service_time_microseconds summary");
-            out.printf("network_latency_service_time_microseconds{quantile=\"0\"} %.1f%n", stats.serviceMinUs);
-            out.printf("network_latency_service_time_microseconds{quantile=\"0.5\"} %.1f%n", stats.serviceP50Us);
-            out.printf("network_latency_service_time_microseconds{quantile=\"0.95\"} %.1f%n", stats.serviceP95Us);
-            out.printf("network_latency_service_time_microseconds{quantile=\"0.99\"} %.1f%n", stats.serviceP99Us);
-            out.printf("network_latency_service_time_microseconds{quantile=\"0.999\"} %.1f%n", stats.serviceP999Us);
-            out.printf("network_latency_service_time_microseconds{quantile=\"1\"} %.1f%n", stats.serviceMaxUs);
-            out.printf("network_latency_service_time_microseconds_sum %.1f%n", stats.serviceMeanUs * stats.totalMeasurements);
-            out.printf("network_latency_service_time_microseconds_count %d%n", stats.totalMeasurements);
+            for (int t = 0; t < allStats.size(); t++) {
+                Statistics stats = allStats.get(t);
+                String labels = targets.labels[t];
+                out.printf("network_latency_service_time_microseconds{%s,quantile=\"0\"} %.1f%n", labels, stats.serviceMinUs);
+                out.printf("network_latency_service_time_microseconds{%s,quantile=\"0.5\"} %.1f%n", labels, stats.serviceP50Us);
+                out.printf("network_latency_service_time_microseconds{%s,quantile=\"0.95\"} %.1f%n", labels, stats.serviceP95Us);
+                out.printf("network_latency_service_time_microseconds{%s,quantile=\"0.99\"} %.1f%n", labels, stats.serviceP99Us);
+                out.printf("network_latency_service_time_microseconds{%s,quantile=\"0.999\"} %.1f%n", labels, stats.serviceP999Us);
+                out.printf("network_latency_service_time_microseconds{%s,quantile=\"1\"} %.1f%n", labels, stats.serviceMaxUs);
+                out.printf("network_latency_service_time_microseconds_sum{%s} %.1f%n", labels, stats.serviceMeanUs * stats.serviceCount);
+                out.printf("network_latency_service_time_microseconds_count{%s} %d%n", labels, stats.serviceCount);
+            }
             
             // Response times (coordinated omission corrected)
             out.println("# HELP network_latency_response_time_microseconds Response time from intended start (corrects coordinated omission)");
             out.println("# TYPE network_latency_response_time_microseconds summary");
-            out.printf("network_latency_response_time_microseconds{quantile=\"0\"} %.1f%n", stats.responseMinUs);
-            out.printf("network_latency_response_time_microseconds{quantile=\"0.5\"} %.1f%n", stats.responseP50Us);
-            out.printf("network_latency_response_time_microseconds{quantile=\"0.95\"} %.1f%n", stats.responseP95Us);
-            out.printf("network_latency_response_time_microseconds{quantile=\"0.99\"} %.1f%n", stats.responseP99Us);
-            out.printf("network_latency_response_time_microseconds{quantile=\"0.999\"} %.1f%n", stats.responseP999Us);
-            out.printf("network_latency_response_time_microseconds{quantile=\"1\"} %.1f%n", stats.responseMaxUs);
-            out.printf("network_latency_response_time_microseconds_sum %.1f%n", stats.responseMeanUs * stats.totalMeasurements);
-            out.printf("network_latency_response_time_microseconds_count %d%n", stats.totalMeasurements);
+            for (int t = 0; t < allStats.size(); t++) {
+                Statistics stats = allStats.get(t);
+                String labels = targets.labels[t];
+                out.printf("network_latency_response_time_microseconds{%s,quantile=\"0\"} %.1f%n", labels, stats.responseMinUs);
+                out.printf("network_latency_response_time_microseconds{%s,quantile=\"0.5\"} %.1f%n", labels, stats.responseP50Us);
+                out.printf("network_latency_response_time_microseconds{%s,quantile=\"0.95\"} %.1f%n", labels, stats.responseP95Us);
+                out.printf("network_latency_response_time_microseconds{%s,quantile=\"0.99\"} %.1f%n", labels, stats.responseP99Us);
+                out.printf("network_latency_response_time_microseconds{%s,quantile=\"0.999\"} %.1f%n", labels, stats.responseP999Us);
+                out.printf("network_latency_response_time_microseconds{%s,quantile=\"1\"} %.1f%n", labels, stats.responseMaxUs);
+                out.printf("network_latency_response_time_microseconds_sum{%s} %.1f%n", labels, stats.responseMeanUs * stats.responseCount);
+                out.printf("network_latency_response_time_microseconds_count{%s} %d%n", labels, stats.responseCount);
+            }
+        }
+        
+        /**
+         * One histogram family with cumulative le buckets, mergeable across
+         * targets and monitors. Built from pre-encoded label strings only.
+         */
+        private void writeHistogram(PrintWriter out, List<Statistics> allStats, String name,
+                                    String help, boolean serviceTimes) {
+            TargetLabels targets = targetLabels(allStats);
+            out.printf("# HELP %s %s%n", name, help);
+            out.printf("# TYPE %s histogram%n", name);
+            int buckets = bucketLabels.length - 1;
+            for (int t = 0; t < allStats.size(); t++) {
+                Statistics stats = allStats.get(t);
+                String labels = targets.labels[t];
+                for (int b = 0; b <= buckets; b++) {
+                    out.append(name).append("_bucket{").append(labels).append(bucketLabels[b]).append("} ")
+                        .println(serviceTimes ? stats.serviceBucketCount(b) : stats.responseBucketCount(b));
+                }
+                long count = serviceTimes ? stats.serviceBucketCount(buckets) : stats.responseBucketCount(buckets);
+                double mean = serviceTimes ? stats.serviceMeanUs : stats.responseMeanUs;
+                out.printf("%s_sum{%s} %.1f%n", name, labels, mean * count);
+                out.append(name).append("_count{").append(labels).append("} ").println(count);
+            }
+        }
+        
+        /**
+         * Per-phase durations of multi-phase probes, e.g. {host,port,phase="tls"}, in the
+         * configured format. Phases that did not run for a probe (the handshake on a
+         * kept-alive connection) are not counted.
+         */
+        private void writePhases(PrintWriter out, List<Statistics> allStats) {
+            TargetLabels targets = targetLabels(allStats);
+            String name = "network_latency_phase_time_microseconds";
+            out.printf("# HELP %s Duration of each phase of a probe, e.g. resolve, connect, tls, ttfb%n", name);
+            if (format == LatencyFormat.HISTOGRAM) {
+                out.printf("# TYPE %s histogram%n", name);
+            } else {
+                out.printf("# TYPE %s summary%n", name);
+            }
+            int buckets = bucketLabels.length - 1;
+            for (int t = 0; t < allStats.size(); t++) {
+                for (PhaseStatistics phase : allStats.get(t).phases) {
+                    String labels = targets.labels[t] + ",phase=\"" + phase.name + "\"";
+                    if (format != LatencyFormat.HISTOGRAM) {
+                        writeSummary(out, name, labels, phase.times);
+                        continue;
+                    }
+                    for (int b = 0; b <= buckets; b++) {
+                        out.append(name).append("_bucket{").append(labels).append(bucketLabels[b]).append("} ")
+                            .println(phase.bucketCount(b));
+                    }
+                    out.printf("%s_sum{%s} %.1f%n", name, labels, phase.times.meanUs * phase.times.count);
+                    out.append(name).append("_count{").append(labels).append("} ").println(phase.times.count);
+                }
+            }
+        }
+        
+        /**
+         * Counter metadata. OpenMetrics names the family without, and the sample with, a _total suffix.
+         *
+         * @return the sample name
+         */
+        private String counter(PrintWriter out, boolean openMetrics, String name, String help) {
+            String family = name;
+            String sample = name;
+            if (openMetrics) {
+                if (name.endsWith("_total")) {
+                    family = name.substring(0, name.length() - "_total".length());
+                } else {
+                    sample = name + "_total";
+                }
+            }
+            out.printf("# HELP %s %s%n", family, help);
+            out.printf("# TYPE %s counter%n", family);
+            return sample;
+        }
+        
+        /**
+         * Historical percentiles: /query?target=host:port&from=&to=&p=99,99.9&series=response
+         * Times are ISO-8601 instants or epoch seconds; the range defaults to the last hour.
+         */
+        private void handleQuery(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            response.setContentType("application/json; charset=utf-8");
+            PrintWriter out = response.getWriter();
+            if (store == null) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                out.println("{\"error\": \"latency store not enabled (set TSDB_DIR)\"}");
+                return;
+            }
             
-            // Target info
-            out.println("# HELP network_latency_target_info Target server information");
-            out.println("# TYPE network_latency_target_info gauge");
-            out.printf("network_latency_target_info{host=\"%s\",port=\"%d\"} 1%n", stats.targetHost, stats.targetPort);
+            String target = request.getParameter("target");
+            String series = request.getParameter("series") == null ? LatencyStore.RESPONSE_SERIES : request.getParameter("series");
+            long toMs;
+            long fromMs;
+            double[] percentiles;
+            try {
+                if (target == null || target.isEmpty()) {
+                    throw new IllegalArgumentException("target is required");
+                }
+                if (!series.equals(LatencyStore.RESPONSE_SERIES) && !series.equals(LatencyStore.SERVICE_SERIES)) {
+                    throw new IllegalArgumentException("series must be response or service");
+                }
+                toMs = request.getParameter("to") == null ? System.currentTimeMillis() : parseTimeMs(request.getParameter("to"));
+                fromMs = request.getParameter("from") == null ? toMs - 3_600_000L : parseTimeMs(request.getParameter("from"));
+                if (fromMs >= toMs) {
+                    throw new IllegalArgumentException("from must be before to");
+                }
+                String p = request.getParameter("p") == null ? "50,90,99,99.9" : request.getParameter("p");
+                percentiles = Arrays.stream(p.split(",")).mapToDouble(Double::parseDouble).sorted().toArray();
+                for (double percentile : percentiles) {
+                    if (percentile < 0 || percentile > 100) {
+                        throw new IllegalArgumentException("percentiles must be within 0..100");
+                    }
+                }
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                out.printf("{\"error\": %s}%n", jsonString(e.getMessage()));
+                return;
+            }
+            
+            LatencyStore.QueryResult result = store.query(target, series, fromMs, toMs);
+            LatencySummary summary = LatencySummary.of(result.histogram, percentiles);
+            response.setStatus(HttpServletResponse.SC_OK);
+            out.println("{");
+            out.printf("  \"target\": %s,%n", jsonString(target));
+            out.printf("  \"series\": \"%s\",%n", series);
+            out.printf("  \"from\": \"%s\",%n", Instant.ofEpochMilli(fromMs));
+            out.printf("  \"to\": \"%s\",%n", Instant.ofEpochMilli(toMs));
+            out.printf("  \"tier\": \"%s\",%n", result.tier);
+            out.printf("  \"records\": %d,%n", result.records);
+            out.printf("  \"count\": %d,%n", summary.count);
+            out.printf("  \"latencyUs\": {\"mean\": %.1f, \"min\": %.1f, \"max\": %.1f", summary.meanUs, summary.minUs, summary.maxUs);
+            for (double percentile : percentiles) {
+                out.printf(", \"p%s\": %.1f", BigDecimal.valueOf(percentile).stripTrailingZeros().toPlainString(),
+                    summary.percentileUs(percentile));
+            }
+            out.println("}");
+            out.println("}");
+        }
+        
+        /**
+         * GET lists the probe rates of every target; POST with target=host:port
+         * and rate=N changes a target's base rate without a restart.
+         */
+        private void handleAdminRate(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            response.setContentType("application/json; charset=utf-8");
+            PrintWriter out = response.getWriter();
+            if (adminToken == null || !(monitor instanceof LatencyMonitor)) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                out.println("{\"error\": \"admin API not enabled (set ADMIN_TOKEN)\"}");
+                return;
+            }
+            String authorization = request.getHeader("Authorization");
+            if (authorization == null || !authorization.startsWith("Bearer ")
+                    || !MessageDigest.isEqual(adminToken,
+                        authorization.substring("Bearer ".length()).trim().getBytes(StandardCharsets.UTF_8))) {
+                response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+                out.println("{\"error\": \"missing or wrong bearer token\"}");
+                return;
+            }
+            
+            if ("POST".equals(request.getMethod())) {
+                String target = request.getParameter("target");
+                try {
+                    if (target == null || target.isEmpty()) {
+                        throw new IllegalArgumentException("target is required");
+                    }
+                    if (request.getParameter("rate") == null) {
+                        throw new IllegalArgumentException("rate is required");
+                    }
+                    TargetMonitor monitored = ((LatencyMonitor) monitor).getTarget(target);
+                    if (monitored == null) {
+                        throw new IllegalArgumentException("no such target: " + target);
+                    }
+                    monitored.setRate(Double.parseDouble(request.getParameter("rate")));
+                    logger.info("Base rate of {} set to {}/s via admin API", target, request.getParameter("rate"));
+                } catch (IllegalArgumentException e) {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    out.printf("{\"error\": %s}%n", jsonString(String.valueOf(e.getMessage())));
+                    return;
+                }
+            } else if (!"GET".equals(request.getMethod())) {
+                response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                out.println("{\"error\": \"use GET or POST\"}");
+                return;
+            }
+            
+            response.setStatus(HttpServletResponse.SC_OK);
+            List<TargetMonitor> targets = ((LatencyMonitor) monitor).getTargets();
+            out.println("{\"targets\": [");
+            for (int t = 0; t < targets.size(); t++) {
+                TargetMonitor target = targets.get(t);
+                out.printf("  {\"target\": %s, \"baseRate\": %s, \"rate\": %s, \"adaptive\": %b}%s%n",
+                    jsonString(target.getSpec().toString()), target.getBaseRate(), target.getRate(), target.isAdaptive(),
+                    t < targets.size() - 1 ? "," : "");
+            }
+            out.println("]}");
+        }
+        
+        private long parseTimeMs(String value) {
+            try {
+                return (long) (Double.parseDouble(value) * 1000);
+            } catch (NumberFormatException e) {
+                return Instant.parse(value).toEpochMilli();
+            }
         }
         
         /**
@@ -251,39 +1256,244 @@ public class MetricsServer {
         }
         
         /**
-         * JSON endpoint.
+         * JSON statistics.
          */
-        private void handleJson(HttpServletResponse response) throws IOException {
-            Statistics stats = monitor.getStatistics();
-            
-            response.setContentType("application/json; charset=utf-8");
-            response.setStatus(HttpServletResponse.SC_OK);
-            
-            PrintWriter out = response.getWriter();
+        private void renderJson(PrintWriter out, List<Statistics> allStats) {
+            TargetLabels targets = targetLabels(allStats);
             out.println("{");
-            out.printf("  \"target\": {\"host\": \"%s\", \"port\": %d},%n", stats.targetHost, stats.targetPort);
-            out.printf("  \"ratePerSecond\": %.0f,%n", stats.ratePerSecond);
-            out.printf("  \"running\": %b,%n", stats.running);
-            out.printf("  \"uptimeMs\": %d,%n", stats.uptimeMs);
-            out.println("  \"counts\": {");
-            out.printf("    \"total\": %d,%n", stats.totalMeasurements);
-            out.printf("    \"successful\": %d,%n", stats.successfulMeasurements);
-            out.printf("    \"failed\": %d,%n", stats.failedMeasurements);
-            out.printf("    \"errorRate\": %.4f%n", stats.errorRate() / 100);
-            out.println("  },");
-            out.println("  \"serviceTimeUs\": {");
-            out.printf("    \"mean\": %.1f, \"p50\": %.1f, \"p95\": %.1f, \"p99\": %.1f, \"p999\": %.1f, \"max\": %.1f, \"min\": %.1f%n",
-                stats.serviceMeanUs, stats.serviceP50Us, stats.serviceP95Us, stats.serviceP99Us, 
-                stats.serviceP999Us, stats.serviceMaxUs, stats.serviceMinUs);
-            out.println("  },");
-            out.println("  \"responseTimeUs\": {");
-            out.printf("    \"mean\": %.1f, \"p50\": %.1f, \"p95\": %.1f, \"p99\": %.1f, \"p999\": %.1f, \"max\": %.1f, \"min\": %.1f%n",
-                stats.responseMeanUs, stats.responseP50Us, stats.responseP95Us, stats.responseP99Us,
-                stats.responseP999Us, stats.responseMaxUs, stats.responseMinUs);
+            out.printf("  \"running\": %b,%n", monitor.isRunning());
+            out.printf("  \"uptimeMs\": %d,%n", monitor.getUptimeMs());
+            out.println("  \"targets\": [");
+            for (int i = 0; i < allStats.size(); i++) {
+                Statistics stats = allStats.get(i);
+                out.println("    {");
+                out.printf("      \"target\": {\"host\": %s, \"port\": %d, \"probe\": %s, \"wait\": %s},%n",
+                    jsonString(stats.targetHost), stats.targetPort, jsonString(targets.probes[i]),
+                    jsonString(targets.waits[i]));
+                out.printf("      \"ratePerSecond\": %s,%n", stats.ratePerSecond);
+                out.printf("      \"rateBoosted\": %b,%n", stats.rateBoosted);
+                out.printf("      \"running\": %b,%n", stats.running);
+                out.println("      \"counts\": {");
+                out.printf("        \"total\": %d,%n", stats.totalMeasurements);
+                out.printf("        \"successful\": %d,%n", stats.successfulMeasurements);
+                out.printf("        \"failed\": %d,%n", stats.failedMeasurements);
+                out.printf("        \"pauseAffected\": %d,%n", stats.pauseAffectedMeasurements);
+                out.printf("        \"errorRate\": %.4f%n", stats.errorRate() / 100);
+                out.println("      },");
+                if (!stats.failures.isEmpty()) {
+                    out.println("      \"failures\": {");
+                    for (int f = 0; f < stats.failures.size(); f++) {
+                        FailureStatistics failure = stats.failures.get(f);
+                        out.printf("        %s: {\"count\": %d, \"timeUs\": %s}%s%n", jsonString(failure.reason),
+                            failure.count, jsonSummary(failure.times), f < stats.failures.size() - 1 ? "," : "");
+                    }
+                    out.println("      },");
+                }
+                if (!stats.probeCounters.isEmpty()) {
+                    out.print("      \"probe\": {");
+                    String separator = "";
+                    for (Map.Entry<String, Long> event : stats.probeCounters.entrySet()) {
+                        out.printf("%s%s: %d", separator, jsonString(event.getKey()), event.getValue());
+                        separator = ", ";
+                    }
+                    out.println("},");
+                }
+                for (Map.Entry<String, LatencySummary> probeTime : stats.probeTimes.entrySet()) {
+                    out.printf("      \"%sTimeUs\": %s,%n", probeTime.getKey(), jsonSummary(probeTime.getValue()));
+                }
+                if (!stats.phases.isEmpty()) {
+                    out.println("      \"phaseTimeUs\": {");
+                    for (int p = 0; p < stats.phases.size(); p++) {
+                        PhaseStatistics phase = stats.phases.get(p);
+                        out.printf("        %s: %s%s%n", jsonString(phase.name), jsonSummary(phase.times),
+                            p < stats.phases.size() - 1 ? "," : "");
+                    }
+                    out.println("      },");
+                }
+                out.println("      \"serviceTimeUs\": {");
+                out.printf("        \"mean\": %.1f, \"p50\": %.1f, \"p95\": %.1f, \"p99\": %.1f, \"p999\": %.1f, \"max\": %.1f, \"min\": %.1f%n",
+                    stats.serviceMeanUs, stats.serviceP50Us, stats.serviceP95Us, stats.serviceP99Us, 
+                    stats.serviceP999Us, stats.serviceMaxUs, stats.serviceMinUs);
+                out.println("      },");
+                out.println("      \"responseTimeUs\": {");
+                out.printf("        \"mean\": %.1f, \"p50\": %.1f, \"p95\": %.1f, \"p99\": %.1f, \"p999\": %.1f, \"max\": %.1f, \"min\": %.1f%n",
+                    stats.responseMeanUs, stats.responseP50Us, stats.responseP95Us, stats.responseP99Us,
+                    stats.responseP999Us, stats.responseMaxUs, stats.responseMinUs);
+                out.println("      },");
+                out.printf("      \"schedulingJitterUs\": %s,%n", jsonSummary(stats.schedulingJitter));
+                out.printf("      \"histogramBytes\": %d,%n", stats.histogramBytes);
+                out.println("      \"windows\": {");
+                for (int w = 0; w < stats.windows.size(); w++) {
+                    WindowStatistics window = stats.windows.get(w);
+                    out.printf("        %s: {\"windowMs\": %d, \"total\": %d, \"failed\": %d, \"errorRate\": %.4f,%n",
+                        jsonString(window.name), window.windowMs, window.operations, window.failures, window.errorRate() / 100);
+                    out.printf("          \"serviceTimeUs\": %s,%n", jsonSummary(window.serviceTimes));
+                    out.printf("          \"responseTimeUs\": %s}%s%n", jsonSummary(window.responseTimes),
+                        w < stats.windows.size() - 1 ? "," : "");
+                }
+                out.println(stats.flows.isEmpty() ? "      }" : "      },");
+                if (!stats.flows.isEmpty()) {
+                    out.println("      \"flows\": [");
+                    for (int f = 0; f < stats.flows.size(); f++) {
+                        FlowStatistics flow = stats.flows.get(f);
+                        out.printf("        {\"sourcePort\": %d, \"windowMs\": %d, \"total\": %d, \"failed\": %d, "
+                                + "\"p50Us\": %.1f, \"p99Us\": %.1f, \"divergent\": %b}%s%n",
+                            flow.sourcePort, flow.windowMs, flow.probes, flow.failures, flow.p50Us, flow.p99Us,
+                            flow.divergent, f < stats.flows.size() - 1 ? "," : "");
+                    }
+                    out.println("      ]");
+                }
+                out.println(i < allStats.size() - 1 ? "    }," : "    }");
+            }
+            out.println("  ],");
+            List<ResolverStatistics> resolvers = monitor.getResolverStatistics();
+            out.println("  \"dns\": [");
+            for (int i = 0; i < resolvers.size(); i++) {
+                ResolverStatistics resolver = resolvers.get(i);
+                out.printf("    {\"name\": %s, \"address\": %s, \"previousAddress\": %s, \"resolutions\": %d, "
+                        + "\"failures\": %d, \"addressChanges\": %d, \"lastChangeMs\": %d,%n",
+                    jsonString(resolver.host), jsonString(resolver.address), jsonString(resolver.previousAddress),
+                    resolver.resolutions, resolver.failures, resolver.addressChanges, resolver.lastChangeMs);
+                out.printf("     \"resolutionTimeUs\": %s}%s%n", jsonSummary(resolver.resolutionTimes),
+                    i < resolvers.size() - 1 ? "," : "");
+            }
+            out.println("  ],");
+            List<ShardStatistics> shards = monitor.getShardStatistics();
+            out.println("  \"shards\": [");
+            for (int i = 0; i < shards.size(); i++) {
+                ShardStatistics shard = shards.get(i);
+                out.printf("    {\"shard\": %d, \"targets\": %d, \"utilization\": %.4f, "
+                        + "\"loopLagUs\": {\"p50\": %.1f, \"p99\": %.1f, \"p999\": %.1f, \"max\": %.1f}}%s%n",
+                    shard.shard, shard.targets, shard.utilization,
+                    shard.loopLagP50Us, shard.loopLagP99Us, shard.loopLagP999Us, shard.loopLagMaxUs,
+                    i < shards.size() - 1 ? "," : "");
+            }
+            out.println("  ],");
+            List<SourceStatistics> sources = monitor.getSourceStatistics();
+            out.println("  \"sources\": [");
+            for (int i = 0; i < sources.size(); i++) {
+                SourceStatistics source = sources.get(i);
+                out.printf("    {\"url\": %s, \"up\": %b, \"targets\": %d, \"polls\": %d, \"failures\": %d, "
+                        + "\"failedPolls\": %d, \"lastSuccessMs\": %d, \"contribution\": \"%s\"}%s%n",
+                    jsonString(source.url), source.up, source.targets, source.polls, source.failures, source.failedPolls,
+                    source.lastSuccessMs, source.contribution.name().toLowerCase().replace('_', '-'),
+                    i < sources.size() - 1 ? "," : "");
+            }
+            out.println("  ],");
+            SocketStatistics sockets = monitor.getSocketStatistics();
+            if (sockets == null) {
+                out.println("  \"sockets\": null,");
+            } else {
+                out.print("  \"sockets\": {\"tcp\": {");
+                String separator = "";
+                for (Map.Entry<String, Long> state : sockets.tcpStates.entrySet()) {
+                    out.printf("%s\"%s\": %d", separator, state.getKey(), state.getValue());
+                    separator = ", ";
+                }
+                out.println("},");
+                out.print("    \"portRanges\": [");
+                separator = "";
+                for (PortRangeStatistics range : sockets.portRanges) {
+                    out.printf("%s{\"name\": \"%s\", \"first\": %d, \"last\": %d, \"inUse\": %d}",
+                        separator, range.name, range.first, range.last, range.inUse);
+                    separator = ", ";
+                }
+                out.println("],");
+                out.printf("    \"tcpTwReuse\": %d, \"openFileDescriptors\": %d, \"maxFileDescriptors\": %d},%n",
+                    sockets.tcpTwReuse, sockets.openFileDescriptors, sockets.maxFileDescriptors);
+            }
+            PauseStatistics pauses = monitor.getPauseStatistics();
+            if (pauses == null) {
+                out.println("  \"jvm\": null");
+                out.println("}");
+                return;
+            }
+            out.printf("  \"jvm\": {\"pauses\": %d, \"hiccupUs\": %s,%n", pauses.pauses, jsonSummary(pauses.hiccups));
+            out.println("    \"gc\": [");
+            for (int i = 0; i < pauses.collectors.size(); i++) {
+                CollectorStatistics collector = pauses.collectors.get(i);
+                out.printf("      {\"collector\": %s, \"concurrent\": %b, \"collections\": %d, \"timeUs\": %s}%s%n",
+                    jsonString(collector.name), collector.concurrent, collector.collections, jsonSummary(collector.times),
+                    i < pauses.collectors.size() - 1 ? "," : "");
+            }
+            out.println("    ]");
             out.println("  }");
             out.println("}");
         }
         
+        /**
+         * One summary family with a window label, e.g. {host,port,window="1m",quantile="0.99"}.
+         */
+        private void writeWindowSummary(PrintWriter out, List<Statistics> allStats, String name,
+                                        String help, boolean serviceTimes) {
+            TargetLabels targets = targetLabels(allStats);
+            out.printf("# HELP %s %s%n", name, help);
+            out.printf("# TYPE %s summary%n", name);
+            for (int t = 0; t < allStats.size(); t++) {
+                for (WindowStatistics window : allStats.get(t).windows) {
+                    LatencySummary summary = serviceTimes ? window.serviceTimes : window.responseTimes;
+                    writeSummary(out, name, targets.labels[t] + ",window=\"" + window.name + "\"", summary);
+                }
+            }
+        }
+        
+        private void writeSummary(PrintWriter out, String name, String labels, LatencySummary summary) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            out.printf("%s{%squantile=\"0\"} %.1f%n", name, prefix, summary.minUs);
+            out.printf("%s{%squantile=\"0.5\"} %.1f%n", name, prefix, summary.p50Us());
+            out.printf("%s{%squantile=\"0.95\"} %.1f%n", name, prefix, summary.p95Us());
+            out.printf("%s{%squantile=\"0.99\"} %.1f%n", name, prefix, summary.p99Us());
+            out.printf("%s{%squantile=\"0.999\"} %.1f%n", name, prefix, summary.p999Us());
+            out.printf("%s{%squantile=\"1\"} %.1f%n", name, prefix, summary.maxUs);
+            out.printf("%s_sum{%s} %.1f%n", name, labels, summary.meanUs * summary.count);
+            out.printf("%s_count{%s} %d%n", name, labels, summary.count);
+        }
+        
+        private String jsonSummary(LatencySummary summary) {
+            return String.format("{\"mean\": %.1f, \"p50\": %.1f, \"p95\": %.1f, \"p99\": %.1f, \"p999\": %.1f, \"max\": %.1f, \"min\": %.1f}",
+                summary.meanUs, summary.p50Us(), summary.p95Us(), summary.p99Us(), summary.p999Us(),
+                summary.maxUs, summary.minUs);
+        }
+        
+        /**
+         * A quoted JSON string, escaped by Gson like the rest of the JSON this monitor reads and writes.
+         */
+        private String jsonString(String value) {
+            return value == null ? "null" : new JsonPrimitive(value).toString();
+        }
+        
+        /**
+         * Text for HTML element content and quoted attributes. Host names, source URLs and the like
+         * come from configuration or, in an aggregator, from other monitors' responses.
+         */
+        private String html(String value) {
+            StringBuilder escaped = null;
+            for (int i = 0; i < value.length(); i++) {
+                String replacement;
+                switch (value.charAt(i)) {
+                    case '&': replacement = "&amp;"; break;
+                    case '<': replacement = "&lt;"; break;
+                    case '>': replacement = "&gt;"; break;
+                    case '"': replacement = "&quot;"; break;
+                    case '\'': replacement = "&#39;"; break;
+                    default: replacement = null;
+                }
+                if (replacement != null) {
+                    if (escaped == null) {
+                        escaped = new StringBuilder(value.length() + 16).append(value, 0, i);
+                    }
+                    escaped.append(replacement);
+                } else if (escaped != null) {
+                    escaped.append(value.charAt(i));
+                }
+            }
+            return escaped == null ? value : escaped.toString();
+        }
+        
+        private String errorClass(double errorRatePercent) {
+            return errorRatePercent > 1 ? "error" : errorRatePercent > 0 ? "warn" : "good";
+        }
+        
         private String formatDuration(long ms) {
             long seconds = ms / 1000;
             long minutes = seconds / 60;
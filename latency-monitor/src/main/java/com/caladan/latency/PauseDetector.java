@@ -0,0 +1,294 @@
+/*
+ * PauseDetector - Tells local JVM pauses apart from network latency.
+ * A sampler thread sleeps 1 ms at a time and records how late it wakes up,
+ * in the style of jHiccup: anything that stops the monitor's own threads
+ * (GC, safepoints, a starved CPU) shows up as a hiccup. Garbage collector
+ * notifications are counted and timed per collector. Hiccups over the
+ * threshold and stop-the-world collections are kept as recent pauses, and
+ * targets ask whether a probe overlapped one before recording it.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.util.LatencySummary;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+public final class PauseDetector implements NotificationListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(PauseDetector.class);
+
+    public static final long DEFAULT_THRESHOLD_NANOS = 5_000_000L;
+
+    private static final long SAMPLE_INTERVAL_NANOS = 1_000_000L;
+
+    // Recent pauses, a ring written under the lock and scanned lock-free by probe threads
+    private static final int CAPACITY = 64;
+    private final long[] pauseStarts = new long[CAPACITY];
+    private final long[] pauseEnds = new long[CAPACITY];
+    private volatile long pauseCount;
+    private volatile long latestPauseEnd = Long.MIN_VALUE;
+
+    private final long thresholdNanos;
+    private final boolean excludeAffectedProbes;
+
+    // nanoTime of JVM start, to place GC notifications (milliseconds since start) on the probe clock
+    private final long jvmStartNanos;
+
+    // Sampler state; the heartbeat is when the sampler last woke up
+    private volatile boolean running;
+    private volatile long heartbeat;
+    private Thread sampler;
+    private final Recorder hiccups = new Recorder(3);
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final Map<String, Collector> collectors = new ConcurrentHashMap<>();
+
+    // Reporting state, owned by reportInterval()
+    private Histogram hiccupsInterval;
+    private final Histogram cumulativeHiccups = new Histogram(3);
+    private volatile PauseStatistics statistics = new PauseStatistics(LatencySummary.EMPTY, 0, List.of());
+
+    /**
+     * @param thresholdNanos          hiccups longer than this count as pauses
+     * @param excludeAffectedProbes   whether targets leave probes that overlapped a pause out of
+     *                                their histograms; they are counted either way
+     */
+    public PauseDetector(long thresholdNanos, boolean excludeAffectedProbes) {
+        if (thresholdNanos <= 0) {
+            throw new IllegalArgumentException("Pause threshold must be positive: " + thresholdNanos);
+        }
+        this.thresholdNanos = thresholdNanos;
+        this.excludeAffectedProbes = excludeAffectedProbes;
+        this.jvmStartNanos = System.nanoTime() - ManagementFactory.getRuntimeMXBean().getUptime() * 1_000_000L;
+    }
+
+    /**
+     * Subscribe to collector notifications and start the sampler thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (bean instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) bean;
+                emitter.addNotificationListener(this, null, null);
+                emitters.add(emitter);
+            }
+        }
+        heartbeat = System.nanoTime();
+        running = true;
+        sampler = new Thread(this::sample, "PauseDetector");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        sampler.interrupt();
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                // Already gone
+            }
+        }
+        emitters.clear();
+    }
+
+    /**
+     * Sleep 1 ms at a time; every wakeup past its deadline is a hiccup. A pause
+     * is kept from the previous wakeup on, since it may have started any time
+     * after it.
+     */
+    private void sample() {
+        long previous = System.nanoTime();
+        while (running) {
+            long deadline = previous + SAMPLE_INTERVAL_NANOS;
+            LockSupport.parkNanos(SAMPLE_INTERVAL_NANOS);
+            long now = System.nanoTime();
+            long hiccup = Math.max(0, now - deadline);
+            hiccups.recordValue(hiccup);
+            if (hiccup > thresholdNanos) {
+                addPause(previous, now);
+            }
+            // After the pause, so a probe that sees the fresh heartbeat also sees the pause
+            heartbeat = now;
+            previous = now;
+        }
+    }
+
+    /**
+     * Collector notification, on a JMX thread after the collection ended.
+     */
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info =
+            GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        Collector collector = collectors.computeIfAbsent(info.getGcName(), Collector::new);
+        long durationMs = info.getGcInfo().getDuration();
+        collector.times.recordValue(durationMs * 1_000_000L);
+        collector.collections++;
+        if (!collector.concurrent) {
+            // Millisecond timestamps, widened by one on each side
+            addPause(jvmStartNanos + (info.getGcInfo().getStartTime() - 1) * 1_000_000L,
+                jvmStartNanos + (info.getGcInfo().getEndTime() + 1) * 1_000_000L);
+        }
+        if (durationMs * 1_000_000L > thresholdNanos) {
+            logger.debug("{} ({}) took {} ms", info.getGcName(), info.getGcCause(), durationMs);
+        }
+    }
+
+    private synchronized void addPause(long startNanos, long endNanos) {
+        int slot = (int) (pauseCount % CAPACITY);
+        pauseStarts[slot] = startNanos;
+        pauseEnds[slot] = endNanos;
+        if (endNanos - latestPauseEnd > 0) {
+            latestPauseEnd = endNanos;
+        }
+        pauseCount++;
+    }
+
+    /**
+     * Whether the local JVM was paused at some point from startNanos to endNanos
+     * (System.nanoTime). Called by probe threads for every probe; allocation-free
+     * and, unless the probe started before the latest pause ended, O(1).
+     * A pause still in progress counts too: a sampler that has not woken up for
+     * longer than the threshold has not recorded it yet.
+     */
+    public boolean overlaps(long startNanos, long endNanos) {
+        if (!running) {
+            return false;
+        }
+        if (endNanos - heartbeat > SAMPLE_INTERVAL_NANOS + thresholdNanos) {
+            return true;
+        }
+        if (latestPauseEnd - startNanos <= 0) {
+            return false;
+        }
+        long count = pauseCount;
+        for (long i = count - 1; i >= Math.max(0, count - CAPACITY); i--) {
+            int slot = (int) (i % CAPACITY);
+            if (pauseStarts[slot] - endNanos < 0 && pauseEnds[slot] - startNanos > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean excludesAffectedProbes() {
+        return excludeAffectedProbes;
+    }
+
+    public long getThresholdNanos() {
+        return thresholdNanos;
+    }
+
+    /**
+     * Swap out hiccups and collection times recorded since the previous call
+     * and publish new statistics. Called by the IntervalReporter.
+     */
+    public synchronized void reportInterval() {
+        hiccupsInterval = hiccups.getIntervalHistogram(hiccupsInterval);
+        cumulativeHiccups.add(hiccupsInterval);
+        List<CollectorStatistics> published = new ArrayList<>(collectors.size());
+        for (Collector collector : collectors.values()) {
+            published.add(collector.report());
+        }
+        published.sort((a, b) -> a.name.compareTo(b.name));
+        statistics = new PauseStatistics(LatencySummary.of(cumulativeHiccups), pauseCount,
+            Collections.unmodifiableList(published));
+    }
+
+    /**
+     * Statistics as of the last reporting interval.
+     */
+    public PauseStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Collection counts and times of one garbage collector.
+     */
+    private static final class Collector {
+        final String name;
+        final boolean concurrent;
+        final Recorder times = new Recorder(3);
+        // Written by the JMX notification thread only
+        volatile long collections;
+
+        // Reporting state, owned by reportInterval()
+        private Histogram timesInterval;
+        private final Histogram cumulativeTimes = new Histogram(3);
+
+        Collector(String name) {
+            this.name = name;
+            // ZGC and Shenandoah "Cycles", G1 "Concurrent GC": mostly concurrent, their pauses are reported separately
+            this.concurrent = name.contains("Cycles") || name.contains("Concurrent");
+        }
+
+        CollectorStatistics report() {
+            timesInterval = times.getIntervalHistogram(timesInterval);
+            cumulativeTimes.add(timesInterval);
+            return new CollectorStatistics(name, concurrent, collections, LatencySummary.of(cumulativeTimes));
+        }
+    }
+
+    /**
+     * Immutable hiccup and pause statistics of the monitor's JVM.
+     */
+    public static final class PauseStatistics {
+        // All-time hiccups of the sampler: how late it woke up after each 1 ms sleep
+        public final LatencySummary hiccups;
+        // Hiccups over the threshold plus stop-the-world collections
+        public final long pauses;
+        public final List<CollectorStatistics> collectors;
+
+        public PauseStatistics(LatencySummary hiccups, long pauses, List<CollectorStatistics> collectors) {
+            this.hiccups = hiccups;
+            this.pauses = pauses;
+            this.collectors = collectors;
+        }
+    }
+
+    /**
+     * Immutable statistics of one garbage collector.
+     */
+    public static final class CollectorStatistics {
+        public final String name;
+        // Whether collections of this collector run concurrently and do not stop the monitor
+        public final boolean concurrent;
+        public final long collections;
+        // Millisecond resolution, as reported by the JVM
+        public final LatencySummary times;
+
+        public CollectorStatistics(String name, boolean concurrent, long collections, LatencySummary times) {
+            this.name = name;
+            this.concurrent = concurrent;
+            this.collections = collections;
+            this.times = times;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * ProbeReactor - One shard of the open-loop probing engine.
+ * Each reactor thread owns its selector, its targets and a timer wheel of
+ * upcoming Pacer deadlines and probe timeouts, so shards share no locks on
+ * the hot path. Probes are issued at their Pacer start time regardless of
+ * how many earlier probes are still outstanding.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.measure.Selectable;
+import com.caladan.latency.util.TimerWheel;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class ProbeReactor implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProbeReactor.class);
+
+    // Timer wheel: 100us ticks, ~105ms per revolution
+    private static final long TICK_NANOS = 100_000L;
+    private static final int TICKS_PER_WHEEL = 1024;
+
+    // Upper bound on a single select, so stop() is noticed promptly
+    private static final long MAX_SELECT_NANOS = 100_000_000L;
+
+    private final int shardIndex;
+    private final List<TargetMonitor> targets = new ArrayList<>();
+    private final Selector selector;
+    private TimerWheel wheel;
+
+    // Work handed to the reactor thread by other threads, e.g. rate changes
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Loop lag: how late timers fire relative to their deadline
+    private final Recorder loopLagRecorder = new Recorder(3);
+    private volatile long busyNanos;
+
+    // Reporting state, owned by the IntervalReporter
+    private Histogram loopLagInterval;
+    private long lastStatsNanos;
+    private long lastBusyNanos;
+    private volatile ShardStatistics statistics;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    public ProbeReactor(int shardIndex) throws IOException {
+        this.shardIndex = shardIndex;
+        this.selector = Selector.open();
+        this.statistics = new ShardStatistics(shardIndex, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Assign a target to this shard. Must be called before start().
+     */
+    void addTarget(TargetMonitor target) {
+        targets.add(target);
+    }
+
+    /**
+     * Start the reactor thread.
+     */
+    public void start(long startTimeNanos) {
+        wheel = new TimerWheel(TICK_NANOS, TICKS_PER_WHEEL, startTimeNanos);
+        for (TargetMonitor target : targets) {
+            target.startOpenLoop(startTimeNanos, selector, wheel, this::execute);
+        }
+        lastStatsNanos = startTimeNanos;
+        running = true;
+        thread = new Thread(this, "ProbeReactor-" + shardIndex);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the reactor thread and close outstanding probes.
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Run a task on the reactor thread, which owns the targets' open-loop state.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long busySince = System.nanoTime();
+        while (running) {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                // Fire due Pacer deadlines (issuing probes) and probe timeouts
+                long now = System.nanoTime();
+                long earliestFired = wheel.expire(now);
+                if (earliestFired != Long.MAX_VALUE) {
+                    loopLagRecorder.recordValue(now - earliestFired);
+                }
+
+                long waitNanos = Math.min(MAX_SELECT_NANOS, wheel.nanosToNextTick(System.nanoTime()));
+                busyNanos += System.nanoTime() - busySince;
+
+                // Select has millisecond resolution; poll when the next deadline is closer than that
+                int ready = waitNanos >= 1_000_000L
+                    ? selector.select(waitNanos / 1_000_000L)
+                    : selector.selectNow();
+                busySince = System.nanoTime();
+
+                if (ready > 0) {
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((Selectable) key.attachment()).selected();
+                    }
+                } else if (waitNanos < 1_000_000L) {
+                    Thread.onSpinWait();
+                }
+            } catch (Exception e) {
+                if (running) {
+                    logger.error("Error in probe reactor {}", shardIndex, e);
+                }
+            }
+        }
+
+        // Release sockets of probes still in flight
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+                // Shutting down
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("Error closing selector", e);
+        }
+    }
+
+    /**
+     * Swap out the loop-lag interval and publish new shard statistics.
+     * Called by the IntervalReporter.
+     */
+    synchronized void reportInterval() {
+        long now = System.nanoTime();
+        loopLagInterval = loopLagRecorder.getIntervalHistogram(loopLagInterval);
+        long busy = busyNanos;
+        double utilization = now > lastStatsNanos
+            ? Math.min(1.0, (busy - lastBusyNanos) / (double) (now - lastStatsNanos))
+            : 0;
+        lastBusyNanos = busy;
+        lastStatsNanos = now;
+
+        statistics = new ShardStatistics(
+            shardIndex,
+            targets.size(),
+            utilization,
+            loopLagInterval.getTotalCount(),
+            loopLagInterval.getValueAtPercentile(50) / 1000.0,
+            loopLagInterval.getValueAtPercentile(99) / 1000.0,
+            loopLagInterval.getValueAtPercentile(99.9) / 1000.0,
+            loopLagInterval.getMaxValue() / 1000.0
+        );
+    }
+
+    /**
+     * Get loop statistics for this shard over the last reporting interval.
+     */
+    public ShardStatistics getStatistics() {
+        return statistics;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * Loop statistics of one shard over the last reporting interval.
+     */
+    public static class ShardStatistics {
+        public final int shard;
+        public final int targets;
+        public final double utilization;
+        public final long lagSamples;
+
+        // Loop lag (microseconds): how late deadlines fired
+        public final double loopLagP50Us;
+        public final double loopLagP99Us;
+        public final double loopLagP999Us;
+        public final double loopLagMaxUs;
+
+        public ShardStatistics(int shard, int targets, double utilization, long lagSamples,
+                               double loopLagP50Us, double loopLagP99Us,
+                               double loopLagP999Us, double loopLagMaxUs) {
+            this.shard = shard;
+            this.targets = targets;
+            this.utilization = utilization;
+            this.lagSamples = lagSamples;
+            this.loopLagP50Us = loopLagP50Us;
+            this.loopLagP99Us = loopLagP99Us;
+            this.loopLagP999Us = loopLagP999Us;
+            this.loopLagMaxUs = loopLagMaxUs;
+        }
+    }
+}
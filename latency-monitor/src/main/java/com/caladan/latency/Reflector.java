@@ -0,0 +1,144 @@
+/*
+ * Reflector - Echo server for UDP echo and TCP ping-pong probes.
+ * Returns every datagram to its sender and every byte read from a TCP
+ * connection to that connection unchanged, so the probing side can measure
+ * round trips against its own clock. Datagrams are handled by one thread
+ * with one reused direct buffer; each TCP connection gets a thread and a
+ * direct buffer of its own. Nothing is allocated per message.
+ */
+package com.caladan.latency;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Reflector {
+
+    private static final Logger logger = LoggerFactory.getLogger(Reflector.class);
+
+    private final DatagramChannel datagrams;
+    private final ServerSocketChannel acceptor;
+    private final AtomicInteger connectionIds = new AtomicInteger();
+    private final AtomicLong echoedBytes = new AtomicLong();
+    private volatile long echoedDatagrams;
+    private Thread udpThread;
+
+    /**
+     * Bind UDP and TCP on the same port.
+     */
+    public Reflector(int port) throws IOException {
+        this.datagrams = DatagramChannel.open();
+        this.acceptor = ServerSocketChannel.open();
+        try {
+            // Absorb bursts from high-rate probes while the thread is descheduled
+            datagrams.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            datagrams.bind(new InetSocketAddress(port));
+            acceptor.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            acceptor.bind(new InetSocketAddress(getPort()));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Start echoing on background threads.
+     */
+    public void start() {
+        udpThread = new Thread(this::reflectDatagrams, "Reflector-udp");
+        udpThread.start();
+        Thread tcpThread = new Thread(this::acceptConnections, "Reflector-tcp");
+        tcpThread.setDaemon(true);
+        tcpThread.start();
+    }
+
+    /**
+     * Wait until the reflector is closed.
+     */
+    public void join() throws InterruptedException {
+        udpThread.join();
+    }
+
+    private void reflectDatagrams() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(65_536);
+        while (datagrams.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress sender = datagrams.receive(buffer);
+                buffer.flip();
+                datagrams.send(buffer, sender);
+                echoedDatagrams++;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // A sender that went away must not stop the others
+                logger.debug("Error echoing datagram", e);
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (acceptor.isOpen()) {
+            try {
+                SocketChannel connection = acceptor.accept();
+                connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Thread thread = new Thread(() -> reflectStream(connection),
+                    "Reflector-tcp-" + connectionIds.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.debug("Error accepting connection", e);
+            }
+        }
+    }
+
+    private void reflectStream(SocketChannel connection) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(65_536);
+        try (connection) {
+            int read;
+            while ((read = connection.read(buffer)) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    connection.write(buffer);
+                }
+                buffer.clear();
+                echoedBytes.addAndGet(read);
+            }
+        } catch (IOException e) {
+            logger.debug("Reflector connection closed", e);
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            acceptor.close();
+        } finally {
+            datagrams.close();
+        }
+    }
+
+    public int getPort() {
+        return ((InetSocketAddress) datagrams.socket().getLocalSocketAddress()).getPort();
+    }
+
+    public long getEchoedDatagrams() {
+        return echoedDatagrams;
+    }
+
+    public long getEchoedBytes() {
+        return echoedBytes.get();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * SocketUsage - Local TCP sockets and ports of the host the monitor runs on.
+ * Connect probes at high rates leave sockets in TIME_WAIT and can exhaust the
+ * ephemeral port range, at which point connects fail or stall locally and
+ * look like network trouble. This samples sockets by TCP state, how much of
+ * the ephemeral range and of each configured source-port range is taken,
+ * and the monitor's own file descriptors, so that shows up before it bites.
+ * Socket and port counts come from /proc on Linux and cover the whole
+ * network namespace, not just this process; elsewhere they are absent.
+ */
+package com.caladan.latency;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class SocketUsage {
+
+    private static final Logger logger = LoggerFactory.getLogger(SocketUsage.class);
+
+    public static final long DEFAULT_SAMPLE_MS = 5000;
+
+    private static final Path[] TCP_TABLES = {Paths.get("/proc/net/tcp"), Paths.get("/proc/net/tcp6")};
+    private static final Path PORT_RANGE = Paths.get("/proc/sys/net/ipv4/ip_local_port_range");
+    private static final Path TW_REUSE = Paths.get("/proc/sys/net/ipv4/tcp_tw_reuse");
+
+    // By the hexadecimal state code of /proc/net/tcp (include/net/tcp_states.h)
+    private static final String[] STATES = {null, "established", "syn_sent", "syn_recv", "fin_wait1",
+        "fin_wait2", "time_wait", "close", "close_wait", "last_ack", "listen", "closing", "new_syn_recv"};
+
+    private final long sampleMs;
+    // Configured source-port ranges by name ("first-last"), as {first, last}
+    private final Map<String, int[]> sourceRanges = new LinkedHashMap<>();
+    private long lastSampleMs;
+    private boolean warned;
+    private volatile SocketStatistics statistics;
+
+    /**
+     * @param sampleMs minimum time between samples; the socket tables can be
+     *                 large, so they are not read on every reporting interval
+     */
+    public SocketUsage(long sampleMs) {
+        if (sampleMs <= 0) {
+            throw new IllegalArgumentException("Socket sample interval must be positive: " + sampleMs);
+        }
+        this.sampleMs = sampleMs;
+    }
+
+    /**
+     * Also report how much of a source-port range is taken.
+     */
+    public synchronized void watchRange(int first, int last) {
+        sourceRanges.put(first + "-" + last, new int[] {first, last});
+    }
+
+    /**
+     * Sample if the last sample is older than the sample interval. Called by the IntervalReporter.
+     */
+    public synchronized void reportInterval() {
+        long now = System.currentTimeMillis();
+        if (statistics != null && now - lastSampleMs < sampleMs) {
+            return;
+        }
+        lastSampleMs = now;
+        statistics = sample();
+    }
+
+    /**
+     * Statistics as of the last sample, or null before the first one.
+     */
+    public SocketStatistics getStatistics() {
+        return statistics;
+    }
+
+    private SocketStatistics sample() {
+        long[] states = new long[STATES.length];
+        BitSet ports = new BitSet(65536);
+        boolean tablesRead = false;
+        for (Path table : TCP_TABLES) {
+            try {
+                readTable(table, states, ports);
+                tablesRead = true;
+            } catch (NoSuchFileException e) {
+                // No IPv6, or not Linux
+            } catch (IOException | RuntimeException e) {
+                if (!warned) {
+                    warned = true;
+                    logger.warn("Cannot read {}: {}", table, e.toString());
+                }
+            }
+        }
+
+        Map<String, Long> tcpStates = new LinkedHashMap<>();
+        List<PortRangeStatistics> ranges = new ArrayList<>();
+        if (tablesRead) {
+            for (int state = 1; state < STATES.length; state++) {
+                tcpStates.put(STATES[state], states[state]);
+            }
+            int[] ephemeral = readInts(PORT_RANGE);
+            if (ephemeral != null && ephemeral.length == 2) {
+                ranges.add(range("ephemeral", ephemeral[0], ephemeral[1], ports));
+            }
+            for (Map.Entry<String, int[]> range : sourceRanges.entrySet()) {
+                ranges.add(range(range.getKey(), range.getValue()[0], range.getValue()[1], ports));
+            }
+        }
+        int[] twReuse = readInts(TW_REUSE);
+
+        long openDescriptors = -1;
+        long maxDescriptors = -1;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            openDescriptors = ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+            maxDescriptors = ((com.sun.management.UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+        }
+        return new SocketStatistics(Collections.unmodifiableMap(tcpStates), Collections.unmodifiableList(ranges),
+            twReuse != null && twReuse.length == 1 ? twReuse[0] : -1, openDescriptors, maxDescriptors);
+    }
+
+    /**
+     * Count the sockets of one /proc/net/tcp table by state and mark their local ports,
+     * e.g. "   0: 0100007F:1F90 00000000:0000 0A 00000000:00000000 ...".
+     */
+    private static void readTable(Path table, long[] states, BitSet ports) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(table, StandardCharsets.US_ASCII)) {
+            reader.readLine(); // Header
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int local = skipField(line, 0);
+                int remote = skipField(line, local);
+                int state = skipField(line, remote);
+                int portStart = line.indexOf(':', local) + 1;
+                int portEnd = line.indexOf(' ', portStart);
+                if (portStart <= 0 || portEnd < 0 || state >= line.length()) {
+                    continue;
+                }
+                ports.set(Integer.parseInt(line, portStart, portEnd, 16));
+                int code = Integer.parseInt(line, state, state + 2, 16);
+                if (code > 0 && code < states.length) {
+                    states[code]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Index of the field after the one at or after start.
+     */
+    private static int skipField(String line, int start) {
+        int i = start;
+        while (i < line.length() && line.charAt(i) == ' ') i++;
+        while (i < line.length() && line.charAt(i) != ' ') i++;
+        while (i < line.length() && line.charAt(i) == ' ') i++;
+        return i;
+    }
+
+    private static PortRangeStatistics range(String name, int first, int last, BitSet ports) {
+        int inUse = ports.get(first, last + 1).cardinality();
+        return new PortRangeStatistics(name, first, last, inUse);
+    }
+
+    /**
+     * Whitespace separated integers of a /proc/sys file, or null if it cannot be read.
+     */
+    private static int[] readInts(Path file) {
+        try {
+            // Read by line: procfs files report a size that readAllBytes() would trust
+            String[] fields = Files.readAllLines(file, StandardCharsets.US_ASCII).get(0).trim().split("\\s+");
+            int[] values = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = Integer.parseInt(fields[i]);
+            }
+            return values;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Immutable socket and port usage of the host, as of one sample.
+     */
+    public static final class SocketStatistics {
+        // TCP sockets by state, e.g. "time_wait"; empty if the socket tables cannot be read
+        public final Map<String, Long> tcpStates;
+        // The ephemeral port range and every configured source-port range
+        public final List<PortRangeStatistics> portRanges;
+        // net.ipv4.tcp_tw_reuse, -1 if unknown
+        public final int tcpTwReuse;
+        // File descriptors of the monitor's own process, -1 if unknown
+        public final long openFileDescriptors;
+        public final long maxFileDescriptors;
+
+        public SocketStatistics(Map<String, Long> tcpStates, List<PortRangeStatistics> portRanges, int tcpTwReuse,
+                                long openFileDescriptors, long maxFileDescriptors) {
+            this.tcpStates = tcpStates;
+            this.portRanges = portRanges;
+            this.tcpTwReuse = tcpTwReuse;
+            this.openFileDescriptors = openFileDescriptors;
+            this.maxFileDescriptors = maxFileDescriptors;
+        }
+    }
+
+    /**
+     * How many ports of a range local TCP sockets hold, in any state.
+     */
+    public static final class PortRangeStatistics {
+        // "ephemeral", or the source-port range as "first-last"
+        public final String name;
+        public final int first;
+        public final int last;
+        public final int inUse;
+
+        public PortRangeStatistics(String name, int first, int last, int inUse) {
+            this.name = name;
+            this.first = first;
+            this.last = last;
+            this.inUse = inUse;
+        }
+
+        public int size() {
+            return last - first + 1;
+        }
+
+        public double utilization() {
+            return (double) inUse / size();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * StatisticsSource - What the MetricsServer serves: a LatencyMonitor probing
+ * its own targets, or an Aggregator merging the histograms of many monitors.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.Aggregator.SourceStatistics;
+import com.caladan.latency.LatencyMonitor.Statistics;
+import com.caladan.latency.PauseDetector.PauseStatistics;
+import com.caladan.latency.ProbeReactor.ShardStatistics;
+import com.caladan.latency.SocketUsage.SocketStatistics;
+import com.caladan.latency.measure.ResolverCache.ResolverStatistics;
+import com.caladan.latency.util.LatencyBuckets;
+
+import java.util.List;
+
+public interface StatisticsSource {
+
+    /**
+     * The latest published statistics, one entry per target; a new list
+     * instance whenever they change, never mutated.
+     */
+    List<Statistics> getStatistics();
+
+    boolean isRunning();
+
+    long getUptimeMs();
+
+    /**
+     * Bucket boundaries of the bucket counts in Statistics.
+     */
+    LatencyBuckets getLatencyBuckets();
+
+    /**
+     * The histograms behind getStatistics() in the /histogram format: the same
+     * instance for as long as the statistics are, and taken from the same snapshot.
+     */
+    String getHistogramExport();
+
+    default List<ResolverStatistics> getResolverStatistics() {
+        return List.of();
+    }
+
+    default List<ShardStatistics> getShardStatistics() {
+        return List.of();
+    }
+
+    /**
+     * Poll statistics of the monitors an aggregator merges; empty for a monitor.
+     */
+    default List<SourceStatistics> getSourceStatistics() {
+        return List.of();
+    }
+
+    /**
+     * Hiccups and garbage collections of the source's JVM, or null if it does not watch them.
+     */
+    default PauseStatistics getPauseStatistics() {
+        return null;
+    }
+
+    /**
+     * Local socket and port usage of the source's host, or null if it does not sample them.
+     */
+    default SocketStatistics getSocketStatistics() {
+        return null;
+    }
+}
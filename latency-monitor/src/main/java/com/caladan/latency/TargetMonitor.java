@@ -0,0 +1,1114 @@
+/*
+ * TargetMonitor - Per-target measurement state.
+ * Owns the Pacer, Timer, measurer and statistics for one target. Closed-loop
+ * targets run as self-rescheduling tasks on a shared worker pool; open-loop
+ * targets are driven by the timer wheel of their ProbeReactor shard with
+ * many probes in flight.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.LatencyMonitor.FailureStatistics;
+import com.caladan.latency.LatencyMonitor.PhaseStatistics;
+import com.caladan.latency.LatencyMonitor.Statistics;
+import com.caladan.latency.LatencyMonitor.WindowStatistics;
+import com.caladan.latency.measure.AsyncTCPLatencyMeasurer;
+import com.caladan.latency.measure.AsyncTCPLatencyMeasurer.PendingConnect;
+import com.caladan.latency.measure.ConnectOptions;
+import com.caladan.latency.measure.FailureReason;
+import com.caladan.latency.measure.HTTPLatencyMeasurer;
+import com.caladan.latency.measure.ResolverCache;
+import com.caladan.latency.measure.TCPLatencyMeasurer;
+import com.caladan.latency.measure.TCPPingPongMeasurer;
+import com.caladan.latency.measure.UDPEchoMeasurer;
+import com.caladan.latency.util.HistogramSettings;
+import com.caladan.latency.util.LatencyBuckets;
+import com.caladan.latency.util.LatencySummary;
+import com.caladan.latency.util.Pacer;
+import com.caladan.latency.util.SlidingWindows;
+import com.caladan.latency.util.Timer;
+import com.caladan.latency.util.TimerWheel;
+import com.caladan.latency.util.TimingInterval;
+import com.caladan.latency.util.WaitStrategy;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class TargetMonitor implements AsyncTCPLatencyMeasurer.ConnectListener,
+        UDPEchoMeasurer.EchoListener, TCPPingPongMeasurer.ExchangeListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(TargetMonitor.class);
+
+    /**
+     * How probes are scheduled.
+     */
+    public enum ProbeMode {
+        /** Blocking probes, each waits for the previous one (worker pool) */
+        CLOSED,
+        /** Non-blocking probes issued on schedule regardless of outstanding ones (reactor) */
+        OPEN;
+
+        public static ProbeMode parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * What a probe measures.
+     */
+    public enum ProbeType {
+        /** TCP connect time */
+        TCP,
+        /** Round trip of a datagram through a UDP reflector; always open loop */
+        UDP,
+        /** Request/response round trip on persistent connections to a reflector; always open loop */
+        PINGPONG,
+        /** HTTP GET timed phase by phase; always closed loop */
+        HTTP,
+        /** HTTPS GET timed phase by phase, including the TLS handshake; always closed loop */
+        HTTPS;
+
+        public static ProbeType parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int UDP_TIMEOUT_MS = 1000;
+    private static final int UDP_PAYLOAD_BYTES = 64;
+    private static final int PINGPONG_PAYLOAD_BYTES = 64;
+    // How much faster than the rate the Pacer sends while behind
+    private static final double CATCH_UP_MULTIPLE = 3.0;
+    // Closed-loop run states other than the ticket of the scheduled run that may probe next
+    private static final long IDLE = 0;
+    private static final long RUNNING = -1;
+    private static final long RATE_CHANGED = -2;
+
+    private final TargetSpec spec;
+    private final ProbeType type;
+    private final ProbeMode mode;
+    // Names as published in Statistics
+    private final String probeName;
+    private final String waitName;
+    private final TCPLatencyMeasurer measurer;
+    private final AsyncTCPLatencyMeasurer asyncMeasurer;
+    private final UDPEchoMeasurer udpMeasurer;
+    private final TCPPingPongMeasurer pingPongMeasurer;
+    private final HTTPLatencyMeasurer httpMeasurer;
+    // Close mode and source ports of connect probes (TCP); null for other probe types
+    private final ConnectOptions connectOptions;
+    // Per-flow latencies of connect probes over fixed flows (flows option); null without
+    private final FlowTracker flows;
+    private final int timeoutMs;
+    private final boolean maxInFlightConfigured;
+    private final Pacer pacer;
+    private final long leadNanos;
+    // Fraction of the probe interval, on the wall clock, at which probes are sent; negative if not set
+    private final double phase;
+    private final Timer timer;
+    private final PauseDetector pauses;
+    private final HistogramSettings histograms;
+
+    // Rate control: the base rate can be changed at runtime, adaptive mode boosts it while unhealthy
+    private volatile double baseRate;
+    private volatile boolean boosted;
+    private volatile double appliedRate;
+    private final double adaptRate;
+    private final double adaptP99Us;
+    private final double adaptErrorPercent;
+
+    // Cumulative histograms for all-time statistics, owned by the IntervalReporter
+    private final Histogram cumulativeServiceTimes;
+    private final Histogram cumulativeResponseTimes;
+    
+    // Rolling windows, also owned by the IntervalReporter; summaries only change when a slot completes
+    private final SlidingWindows windows;
+    private List<WindowStatistics> windowStatistics;
+    private long lastFailedMeasurements;
+    private TimingInterval lastInterval;
+    private long lastIntervalFailures;
+
+    // Connect durations of persistent connections, also owned by the IntervalReporter
+    private Histogram connectTimesInterval;
+    private final Histogram cumulativeConnectTimes;
+
+    // How late probes started relative to their Pacer slot, also owned by the IntervalReporter
+    private Histogram schedulingJitterInterval;
+    private final Histogram cumulativeSchedulingJitter;
+
+    // Cumulative per-phase histograms (HTTP probes), also owned by the IntervalReporter
+    private final Histogram[] cumulativePhaseTimes;
+    private final long[][] phaseBucketCounts;
+
+    // Per-bucket counts for histogram exposition, accumulated interval by interval
+    private final LatencyBuckets buckets;
+    private final long[] serviceBucketCounts;
+    private final long[] responseBucketCounts;
+
+    // Snapshot republished once per reporting interval
+    private volatile Statistics statistics;
+
+    // Counters
+    private final AtomicLong totalMeasurements = new AtomicLong(0);
+    private final AtomicLong successfulMeasurements = new AtomicLong(0);
+    private final AtomicLong failedMeasurements = new AtomicLong(0);
+    private final AtomicLong pauseAffectedMeasurements = new AtomicLong(0);
+
+    // Failures by reason, kept apart from the latencies of successful probes. A reason's
+    // recorder is created on its first timed failure, so a failing probe allocates nothing
+    private final LongAdder[] failureCounts = new LongAdder[FailureReason.count()];
+    private final AtomicReferenceArray<Recorder> failureRecorders = new AtomicReferenceArray<>(FailureReason.count());
+
+    // Interval and cumulative failure times by reason, owned by the IntervalReporter; null until a reason occurs
+    private final Histogram[] failureTimesInterval = new Histogram[FailureReason.count()];
+    private final Histogram[] cumulativeFailureTimes = new Histogram[FailureReason.count()];
+
+    // Worker pool this target is scheduled on (closed loop). The run state is the ticket of the one
+    // scheduled run allowed to probe next, or RUNNING / RATE_CHANGED while that run probes; a run
+    // whose ticket was taken away does nothing, so nextRun is cancelled only to tidy the queue
+    private ScheduledExecutorService executor;
+    private final AtomicLong runState = new AtomicLong(IDLE);
+    private final AtomicLong tickets = new AtomicLong();
+    private volatile ScheduledFuture<?> nextRun;
+    private volatile boolean running;
+
+    // Open-loop state, owned by the reactor thread
+    private Selector selector;
+    private TimerWheel wheel;
+    private Executor reactorTasks;
+    private int maxInFlight;
+    private int inFlight;
+    private boolean blockedOnInFlight;
+    private final TimerWheel.Timeout nextProbe = new TimerWheel.Timeout() {
+        @Override
+        protected void onTimeout(long nowNanos) {
+            issueDueProbes(nowNanos);
+        }
+    };
+
+    /**
+     * @param resolver resolves the target host outside the timed region (HTTP probes resolve
+     *                 per connection, as their own phase)
+     * @param pauses   tells whether a probe overlapped a local JVM pause
+     * @param histograms range, precision and layout of every histogram of the target, windows included
+     */
+    public TargetMonitor(TargetSpec spec, ProbeMode defaultMode, HistogramSettings histograms, SlidingWindows windows,
+                         LatencyBuckets buckets, ResolverCache resolver, PauseDetector pauses) {
+        this.spec = spec;
+        this.pauses = pauses;
+        this.histograms = histograms;
+        this.type = ProbeType.parse(spec.option("probe", ProbeType.TCP.name()));
+        this.baseRate = spec.ratePerSecond;
+        this.appliedRate = spec.ratePerSecond;
+        this.adaptP99Us = Double.parseDouble(spec.option("adaptP99Ms", "0")) * 1000;
+        this.adaptErrorPercent = Double.parseDouble(spec.option("adaptErrorRate", "0"));
+        this.adaptRate = Double.parseDouble(spec.option("adaptRate", String.valueOf(spec.ratePerSecond * 10)));
+        // Buffers and windows are sized for the highest rate the target is expected to run at
+        double peakRate = isAdaptive() ? Math.max(spec.ratePerSecond, adaptRate) : spec.ratePerSecond;
+        int flowCount = Integer.parseInt(spec.option("flows", "0"));
+        if (flowCount != 0 && type != ProbeType.TCP) {
+            throw new IllegalArgumentException("Flows of " + spec + " need TCP probes");
+        }
+        int timeoutMs;
+        if (type == ProbeType.HTTP || type == ProbeType.HTTPS) {
+            this.mode = ProbeMode.CLOSED;
+            timeoutMs = Integer.parseInt(spec.option("timeoutMs", String.valueOf(CONNECT_TIMEOUT_MS)));
+            this.measurer = null;
+            this.asyncMeasurer = null;
+            this.udpMeasurer = null;
+            this.pingPongMeasurer = null;
+            this.connectOptions = null;
+            this.httpMeasurer = new HTTPLatencyMeasurer(spec.host, spec.port, timeoutMs,
+                spec.option("path", "/"),
+                type == ProbeType.HTTPS,
+                Boolean.parseBoolean(spec.option("keepAlive", "true")),
+                Boolean.parseBoolean(spec.option("resume", "true")),
+                Boolean.parseBoolean(spec.option("insecure", "false")));
+        } else if (type == ProbeType.PINGPONG) {
+            this.mode = ProbeMode.OPEN;
+            timeoutMs = Integer.parseInt(spec.option("timeoutMs", String.valueOf(UDP_TIMEOUT_MS)));
+            this.measurer = null;
+            this.asyncMeasurer = null;
+            this.udpMeasurer = null;
+            this.httpMeasurer = null;
+            this.connectOptions = null;
+            this.pingPongMeasurer = new TCPPingPongMeasurer(resolver.endpoint(spec.host, spec.port),
+                Integer.parseInt(spec.option("connections", "1")),
+                Integer.parseInt(spec.option("payload", String.valueOf(PINGPONG_PAYLOAD_BYTES))),
+                timeoutMs, histograms);
+        } else if (type == ProbeType.UDP) {
+            this.mode = ProbeMode.OPEN;
+            timeoutMs = Integer.parseInt(spec.option("timeoutMs", String.valueOf(UDP_TIMEOUT_MS)));
+            this.measurer = null;
+            this.asyncMeasurer = null;
+            this.pingPongMeasurer = null;
+            this.httpMeasurer = null;
+            this.connectOptions = null;
+            this.udpMeasurer = new UDPEchoMeasurer(resolver.endpoint(spec.host, spec.port), timeoutMs,
+                Integer.parseInt(spec.option("payload", String.valueOf(UDP_PAYLOAD_BYTES))),
+                udpWindow(peakRate, timeoutMs));
+        } else {
+            this.mode = ProbeMode.parse(spec.option("mode", defaultMode.name()));
+            timeoutMs = Integer.parseInt(spec.option("timeoutMs", String.valueOf(CONNECT_TIMEOUT_MS)));
+            this.udpMeasurer = null;
+            this.pingPongMeasurer = null;
+            this.httpMeasurer = null;
+            // Fixed flows reuse their ports right away, which TIME_WAIT would not allow
+            this.connectOptions = ConnectOptions.parse(spec.option("close", flowCount > 0 ? "reset" : "graceful"),
+                spec.option("sourcePorts", null), spec.option("reuseAddress", "false"), flowCount);
+            if (mode == ProbeMode.OPEN) {
+                this.measurer = null;
+                this.asyncMeasurer = new AsyncTCPLatencyMeasurer(resolver.endpoint(spec.host, spec.port),
+                    timeoutMs, connectOptions);
+            } else {
+                this.measurer = new TCPLatencyMeasurer(resolver.endpoint(spec.host, spec.port), timeoutMs,
+                    connectOptions);
+                this.asyncMeasurer = null;
+            }
+        }
+        this.timeoutMs = timeoutMs;
+        this.flows = flowCount > 0 ? new FlowTracker(spec, connectOptions.sourcePortMin, flowCount,
+            Long.parseLong(spec.option("flowWindowMs", String.valueOf(FlowTracker.DEFAULT_WINDOW_MS))),
+            Double.parseDouble(spec.option("flowDivergence", String.valueOf(FlowTracker.DEFAULT_DIVERGENCE))))
+            : null;
+        this.maxInFlightConfigured = spec.option("maxInFlight", null) != null;
+        this.maxInFlight = maxInFlightConfigured ? Integer.parseInt(spec.option("maxInFlight", null))
+            : defaultMaxInFlight(peakRate);
+        WaitStrategy waitStrategy = WaitStrategy.parse(spec.option("wait", WaitStrategy.PARK.name()));
+        if (mode == ProbeMode.OPEN && waitStrategy != WaitStrategy.PARK) {
+            // The wheel parks the reactor until the next deadline; anything else would busy-wait the whole shard
+            throw new IllegalArgumentException("Wait strategy " + waitStrategy.name().toLowerCase().replace('_', '-')
+                + " of " + spec + " is for closed-loop TCP targets; open-loop probes share a reactor thread");
+        }
+        this.pacer = new Pacer(spec.ratePerSecond, CATCH_UP_MULTIPLE, waitStrategy,
+            (long) (Double.parseDouble(spec.option("spinUs", String.valueOf(WaitStrategy.DEFAULT_SPIN_NANOS / 1000)))
+                * 1000), histograms);
+        this.leadNanos = pacer.leadNanos();
+        this.phase = Double.parseDouble(spec.option("phase", "-1"));
+        if (spec.option("phase", null) != null && !(phase >= 0 && phase < 1)) {
+            throw new IllegalArgumentException("Phase of " + spec + " must be in [0, 1): " + phase);
+        }
+        this.probeName = type.name().toLowerCase();
+        this.waitName = pacer.getWaitStrategy().name().toLowerCase().replace('_', '-');
+        this.timer = new Timer(httpMeasurer != null ? HTTPLatencyMeasurer.PHASES : new String[0], histograms);
+
+        this.cumulativeServiceTimes = histograms.newHistogram();
+        this.cumulativeResponseTimes = histograms.newHistogram();
+        this.cumulativeConnectTimes = pingPongMeasurer != null ? histograms.newHistogram() : null;
+        this.cumulativeSchedulingJitter = histograms.newHistogram();
+        this.windows = windows;
+        this.windowStatistics = summarizeWindows();
+        this.buckets = buckets;
+        this.serviceBucketCounts = buckets.newCounts();
+        this.responseBucketCounts = buckets.newCounts();
+        int phases = httpMeasurer != null ? HTTPLatencyMeasurer.PHASES.length : 0;
+        this.cumulativePhaseTimes = new Histogram[phases];
+        this.phaseBucketCounts = new long[phases][];
+        for (int i = 0; i < phases; i++) {
+            cumulativePhaseTimes[i] = histograms.newHistogram();
+            phaseBucketCounts[i] = buckets.newCounts();
+        }
+
+        for (int i = 0; i < failureCounts.length; i++) {
+            failureCounts[i] = new LongAdder();
+        }
+
+        this.statistics = new Statistics(spec.host, spec.port, spec.ratePerSecond, 0, 0, 0, 0, false,
+            LatencySummary.EMPTY, LatencySummary.EMPTY, windowStatistics,
+            buckets.newCounts(), buckets.newCounts(), probeCounters(), probeTimes(), summarizePhases(),
+            LatencySummary.EMPTY, false, 0, probeName, waitName, spec.ratePerSecond, List.of(),
+            flows != null ? flows.getStatistics() : List.of(), 0);
+    }
+
+    /**
+     * Histogram settings of a target from its options; microsecond resolution
+     * in packed histograms unless configured otherwise.
+     */
+    static HistogramSettings histogramSettings(TargetSpec spec) {
+        HistogramSettings defaults = HistogramSettings.DEFAULT;
+        return new HistogramSettings(
+            Long.parseLong(spec.option("histogramLowestNs", String.valueOf(defaults.lowestNanos))),
+            (long) (Double.parseDouble(spec.option("histogramHighestMs",
+                String.valueOf(defaults.highestNanos / 1_000_000))) * 1_000_000),
+            Integer.parseInt(spec.option("histogramDigits", String.valueOf(defaults.significantDigits))),
+            Boolean.parseBoolean(spec.option("histogramPacked", String.valueOf(defaults.packed))));
+    }
+
+    /**
+     * Default in-flight limit: the rate can be sustained with every probe timing out,
+     * but with no more probes than flows.
+     */
+    private int defaultMaxInFlight(double rate) {
+        int limit = (int) Math.ceil(rate * timeoutMs / 1000.0) + 1;
+        // With fixed flows a probe whose port is still taken by an outstanding one fails to bind
+        return flows != null ? Math.min(limit, connectOptions.flows()) : limit;
+    }
+
+    /**
+     * Datagrams a UDP target can have sent within its timeout while catching up at this rate.
+     */
+    private static int udpWindow(double rate, int timeoutMs) {
+        return (int) Math.min(1 << 20, Math.ceil(rate * CATCH_UP_MULTIPLE * timeoutMs / 1000.0) + 1);
+    }
+
+    /**
+     * Start probing on the given worker pool.
+     */
+    void start(ScheduledExecutorService executor, long startTimeNanos) {
+        this.executor = executor;
+        this.running = true;
+        startTimeNanos = phasedStart(startTimeNanos);
+        pacer.setInitialStartTime(startTimeNanos);
+        long ticket = tickets.incrementAndGet();
+        runState.set(ticket);
+        executor.execute(new ScheduledRun(ticket));
+    }
+
+    /**
+     * Delay the first probe to the configured phase. Phases are placed on the
+     * wall clock, so monitors on different hosts with synchronized clocks send
+     * at the phases they were given rather than whenever they happened to start.
+     */
+    private long phasedStart(long startTimeNanos) {
+        if (phase < 0) {
+            return startTimeNanos;
+        }
+        long intervalNanos = (long) (1_000_000_000L / spec.ratePerSecond);
+        long wallNanos = System.currentTimeMillis() * 1_000_000L - (System.nanoTime() - startTimeNanos);
+        return startTimeNanos + Math.floorMod((long) (phase * intervalNanos) - wallNanos, intervalNanos);
+    }
+
+    /**
+     * Start probing from a ProbeReactor shard.
+     *
+     * @param reactorTasks runs tasks on the reactor thread
+     */
+    void startOpenLoop(long startTimeNanos, Selector selector, TimerWheel wheel, Executor reactorTasks) {
+        this.selector = selector;
+        this.wheel = wheel;
+        this.reactorTasks = reactorTasks;
+        this.running = true;
+        startTimeNanos = phasedStart(startTimeNanos);
+        pacer.setInitialStartTime(startTimeNanos);
+        if (pingPongMeasurer != null) {
+            pingPongMeasurer.start(selector, wheel, this);
+        }
+        wheel.schedule(nextProbe, startTimeNanos);
+    }
+
+    /**
+     * Change the base probe rate while running. The Pacer is rebased rather
+     * than re-timed, so the histograms carry on without a gap or a phantom
+     * backlog; the probing thread picks the change up immediately.
+     */
+    public void setRate(double ratePerSecond) {
+        if (!(ratePerSecond > 0) || Double.isInfinite(ratePerSecond)) {
+            throw new IllegalArgumentException("Rate must be positive: " + ratePerSecond);
+        }
+        baseRate = ratePerSecond;
+        rateChanged();
+    }
+
+    /**
+     * Hand a rate change to the thread that owns the Pacer, waking it if it
+     * is waiting for a probe that is further away than under the new rate.
+     */
+    private void rateChanged() {
+        if (!running) {
+            return;
+        }
+        if (mode == ProbeMode.OPEN) {
+            reactorTasks.execute(() -> {
+                applyRate();
+                if (running && !blockedOnInFlight) {
+                    issueDueProbes(System.nanoTime());
+                }
+            });
+        } else {
+            for (;;) {
+                long state = runState.get();
+                if (state == IDLE || state == RATE_CHANGED) {
+                    return;
+                }
+                if (state == RUNNING) {
+                    // The probing run applies the change before it reschedules
+                    if (runState.compareAndSet(RUNNING, RATE_CHANGED)) {
+                        return;
+                    }
+                    continue;
+                }
+                // Take the waiting run's ticket and run at once in its place
+                long ticket = tickets.incrementAndGet();
+                if (runState.compareAndSet(state, ticket)) {
+                    ScheduledFuture<?> scheduled = nextRun;
+                    if (scheduled != null) {
+                        scheduled.cancel(false);
+                    }
+                    try {
+                        executor.execute(new ScheduledRun(ticket));
+                    } catch (RejectedExecutionException e) {
+                        running = false;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Bring the Pacer to the current target rate; on the probing thread only.
+     */
+    private void applyRate() {
+        double rate = boosted ? Math.max(baseRate, adaptRate) : baseRate;
+        if (rate == appliedRate) {
+            return;
+        }
+        pacer.changeThroughput(rate);
+        appliedRate = rate;
+        if (!maxInFlightConfigured) {
+            maxInFlight = Math.max(maxInFlight, defaultMaxInFlight(rate));
+        }
+        if (udpMeasurer != null) {
+            udpMeasurer.ensureWindow(udpWindow(rate, timeoutMs));
+        }
+        logger.info("Probe rate of {} is now {}/s{}", spec, rate, boosted ? " (adaptive)" : "");
+    }
+
+    /**
+     * Base rate, as configured or last set; adaptive mode may probe faster.
+     */
+    public double getBaseRate() {
+        return baseRate;
+    }
+
+    /**
+     * Rate the Pacer currently runs at.
+     */
+    public double getRate() {
+        return appliedRate;
+    }
+
+    public boolean isAdaptive() {
+        return adaptP99Us > 0 || adaptErrorPercent > 0;
+    }
+
+    /**
+     * Boost the rate while the shortest window's p99 or error rate is over its
+     * threshold; drop back once both are below 80% of it.
+     */
+    private void adapt() {
+        if (!isAdaptive() || windowStatistics.isEmpty()) {
+            return;
+        }
+        WindowStatistics window = windowStatistics.get(0);
+        if (window.operations == 0) {
+            return;
+        }
+        double p99Us = window.responseTimes.p99Us();
+        double errorPercent = window.errorRate();
+        boolean unhealthy = (adaptP99Us > 0 && p99Us > adaptP99Us)
+            || (adaptErrorPercent > 0 && errorPercent > adaptErrorPercent);
+        boolean healthy = (adaptP99Us <= 0 || p99Us < 0.8 * adaptP99Us)
+            && (adaptErrorPercent <= 0 || errorPercent < 0.8 * adaptErrorPercent);
+        if (!boosted && unhealthy) {
+            logger.warn("{} unhealthy over {} (p99 {} us, {}% errors), probing at {}/s",
+                spec, window.name, p99Us, String.format("%.2f", errorPercent), Math.max(baseRate, adaptRate));
+            boosted = true;
+            rateChanged();
+        } else if (boosted && healthy) {
+            logger.info("{} healthy again over {}, probing at {}/s", spec, window.name, baseRate);
+            boosted = false;
+            rateChanged();
+        }
+    }
+
+    /**
+     * Stop scheduling further probes.
+     */
+    void stop() {
+        running = false;
+        if (httpMeasurer != null) {
+            httpMeasurer.close();
+        }
+    }
+
+    /**
+     * A closed-loop run of this target on the worker pool, valid while its ticket is the run state.
+     */
+    private final class ScheduledRun implements Runnable {
+        private final long ticket;
+
+        ScheduledRun(long ticket) {
+            this.ticket = ticket;
+        }
+
+        @Override
+        public void run() {
+            TargetMonitor.this.run(ticket);
+        }
+    }
+
+    /**
+     * Run the next probe if it is due, then reschedule for the following one.
+     * Only the run holding the current ticket probes, so probes of a target never overlap.
+     */
+    private void run(long ticket) {
+        if (!running || !runState.compareAndSet(ticket, RUNNING)) {
+            // Stopped, or replaced by an earlier run after a rate change
+            return;
+        }
+
+        try {
+            applyRate();
+            if (pacer.nsecToNextSend() <= leadNanos) {
+                // Within the wait strategy's spin window; the Pacer waits out the rest
+                probe();
+            }
+        } catch (Exception e) {
+            logger.error("Error probing {}", spec, e);
+        }
+
+        while (running) {
+            applyRate();
+            long nsecToNextSend = pacer.nsecToNextSend();
+            long next = tickets.incrementAndGet();
+            if (!runState.compareAndSet(RUNNING, next)) {
+                // The rate changed since it was applied
+                runState.set(RUNNING);
+                continue;
+            }
+            try {
+                nextRun = executor.schedule(new ScheduledRun(next), Math.max(0, nsecToNextSend - leadNanos),
+                    TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // Worker pool is shutting down
+                running = false;
+            }
+            return;
+        }
+    }
+
+    /**
+     * Perform one measurement.
+     */
+    private void probe() {
+        // Get intended start time (for coordinated omission correction)
+        long expectedStart = pacer.expectedStartTimeNsec();
+
+        // Due or within the spin window: waits with the target's wait strategy
+        pacer.acquire(1);
+
+        long startNanos = System.nanoTime();
+        TCPLatencyMeasurer.MeasurementResult result = httpMeasurer != null ? httpMeasurer.measure() : measurer.measure();
+        long endNanos = System.nanoTime();
+        int flow = measurer != null ? measurer.lastFlow() : -1;
+        if (!result.success) {
+            failProbe(result.reason, expectedStart, startNanos, endNanos);
+            if (flow >= 0) {
+                flows.fail(flow);
+            }
+            return;
+        }
+        if (!recordable(expectedStart, endNanos)) {
+            countSuccess();
+            return;
+        }
+        timer.record(expectedStart, startNanos, endNanos);
+        if (flow >= 0) {
+            flows.record(flow, endNanos - startNanos);
+        }
+        if (httpMeasurer != null) {
+            // Phases that did not run, e.g. the handshake on a kept-alive connection, are not recorded
+            for (int phase = 0; phase < HTTPLatencyMeasurer.PHASES.length; phase++) {
+                long nanos = httpMeasurer.phaseNanos(phase);
+                if (nanos >= 0) {
+                    timer.recordPhase(phase, nanos);
+                }
+            }
+        }
+        countSuccess();
+    }
+
+    private void countSuccess() {
+        totalMeasurements.incrementAndGet();
+        successfulMeasurements.incrementAndGet();
+    }
+
+    /**
+     * Whether to record a probe that ran from its intended start to endNanos.
+     * A probe that overlapped a local JVM pause is counted as pause-affected,
+     * and left out of the latencies if the monitor excludes such probes: its
+     * latency says more about this process than about the network.
+     */
+    private boolean recordable(long intendedStartNanos, long endNanos) {
+        if (!pauses.overlaps(intendedStartNanos, endNanos)) {
+            return true;
+        }
+        pauseAffectedMeasurements.incrementAndGet();
+        return !pauses.excludesAffectedProbes();
+    }
+
+    /**
+     * Issue every open-loop probe that is due and schedule the next one.
+     * Runs on the reactor thread. A probe held back by the in-flight limit keeps
+     * its intended start time, so the delay still shows up in the response time.
+     * Open-loop targets always park, so the reactor waits in its selector and
+     * never on one target's behalf.
+     */
+    private void issueDueProbes(long nowNanos) {
+        applyRate();
+        while (running && pacer.nsecToNextSend() <= leadNanos) {
+            if (inFlight >= maxInFlight) {
+                // Resumed once an outstanding probe completes
+                blockedOnInFlight = true;
+                return;
+            }
+            pacer.awaitNextSend();
+            long expectedStart = pacer.expectedStartTimeNsec();
+            if (pingPongMeasurer != null) {
+                if (!pingPongMeasurer.send(expectedStart)) {
+                    if (pingPongMeasurer.isConnected()) {
+                        // Every connection is busy; resumed once one becomes available
+                        blockedOnInFlight = true;
+                        return;
+                    }
+                    // Nothing to send on until a reconnect succeeds
+                    pacer.acquire(1);
+                    failProbe(FailureReason.DISCONNECTED);
+                    continue;
+                }
+                pacer.acquire(1);
+                inFlight++;
+                continue;
+            }
+            pacer.acquire(1);
+            if (udpMeasurer != null) {
+                sendDatagram(expectedStart);
+                continue;
+            }
+            inFlight++;
+            PendingConnect probe = asyncMeasurer.connect(selector, expectedStart, this);
+            if (!probe.isDone()) {
+                wheel.schedule(probe, probe.deadlineNanos);
+            }
+        }
+        if (running) {
+            long now = System.nanoTime();
+            wheel.schedule(nextProbe, now + Math.max(0, pacer.nsecToNextSend() - leadNanos));
+        }
+    }
+
+    /**
+     * Record a completed open-loop probe against its own intended start.
+     */
+    @Override
+    public void connectCompleted(PendingConnect probe) {
+        inFlight--;
+        if (blockedOnInFlight) {
+            blockedOnInFlight = false;
+            wheel.schedule(nextProbe, probe.endNanos);
+        }
+        if (!probe.success) {
+            failProbe(probe.reason, probe.intendedStartNanos, probe.startNanos, probe.endNanos);
+            if (probe.flow >= 0) {
+                flows.fail(probe.flow);
+            }
+            return;
+        }
+        if (recordable(probe.intendedStartNanos, probe.endNanos)) {
+            timer.record(probe.intendedStartNanos, probe.startNanos, probe.endNanos);
+            if (probe.flow >= 0) {
+                flows.record(probe.flow, probe.endNanos - probe.startNanos);
+            }
+        }
+        countSuccess();
+    }
+
+    /**
+     * Send one echo request; datagrams that cannot be sent count as failed probes.
+     */
+    private void sendDatagram(long expectedStart) {
+        FailureReason reason;
+        if (!udpMeasurer.isOpen()) {
+            try {
+                udpMeasurer.open(selector, wheel, this);
+            } catch (IOException e) {
+                logger.debug("Cannot open UDP channel to {}: {}", spec, e.getMessage());
+                failProbe(FailureReason.classify(e));
+                return;
+            }
+        }
+        if ((reason = udpMeasurer.send(expectedStart)) != null) {
+            failProbe(reason);
+        } else {
+            inFlight++;
+        }
+    }
+
+    /**
+     * Count a probe that failed before it got on the wire; it has no time to record.
+     */
+    private void failProbe(FailureReason reason) {
+        totalMeasurements.incrementAndGet();
+        failedMeasurements.incrementAndGet();
+        failureCounts[reason.ordinal()].increment();
+        logger.debug("Measurement to {} failed: {}", spec, reason);
+    }
+
+    /**
+     * Count a failed probe and record how long it took to fail, from its actual
+     * start, apart from the latencies of successful probes.
+     */
+    private void failProbe(FailureReason reason, long intendedStartNanos, long startNanos, long endNanos) {
+        failProbe(reason);
+        if (recordable(intendedStartNanos, endNanos)) {
+            Recorder recorder = failureRecorders.get(reason.ordinal());
+            if (recorder == null) {
+                failureRecorders.compareAndSet(reason.ordinal(), null, histograms.newRecorder());
+                recorder = failureRecorders.get(reason.ordinal());
+            }
+            recorder.recordValue(histograms.clamp(endNanos - startNanos));
+        }
+    }
+
+    /**
+     * Record an echoed datagram against its intended send time.
+     */
+    @Override
+    public void echoReceived(long intendedStartNanos, long sentNanos, long receivedNanos) {
+        resumeAfter(receivedNanos);
+        if (recordable(intendedStartNanos, receivedNanos)) {
+            timer.record(intendedStartNanos, sentNanos, receivedNanos);
+        }
+        countSuccess();
+    }
+
+    /**
+     * A datagram without echo within the timeout counts as a timed out probe.
+     */
+    @Override
+    public void echoLost(long intendedStartNanos, long sentNanos, long nowNanos) {
+        resumeAfter(nowNanos);
+        failProbe(FailureReason.TIMEOUT, intendedStartNanos, sentNanos, nowNanos);
+    }
+
+    /**
+     * Record a ping-pong exchange against its intended start.
+     */
+    @Override
+    public void exchangeCompleted(long intendedStartNanos, long startNanos, long endNanos) {
+        resumeAfter(endNanos);
+        if (recordable(intendedStartNanos, endNanos)) {
+            timer.record(intendedStartNanos, startNanos, endNanos);
+        }
+        countSuccess();
+    }
+
+    @Override
+    public void exchangeFailed(long intendedStartNanos, long startNanos, long endNanos, FailureReason reason) {
+        // Resumed even though the connection is gone, so probes fail fast while none is up
+        resumeAfter(endNanos);
+        failProbe(reason, intendedStartNanos, startNanos, endNanos);
+    }
+
+    @Override
+    public void connectionAvailable(long nowNanos) {
+        if (blockedOnInFlight) {
+            blockedOnInFlight = false;
+            wheel.schedule(nextProbe, nowNanos);
+        }
+    }
+
+    private void resumeAfter(long nowNanos) {
+        inFlight--;
+        if (blockedOnInFlight) {
+            blockedOnInFlight = false;
+            wheel.schedule(nextProbe, nowNanos);
+        }
+    }
+
+    /**
+     * Probe-specific event counters, for probes that have any.
+     */
+    private Map<String, Long> probeCounters() {
+        if (pingPongMeasurer != null) {
+            Map<String, Long> counters = new LinkedHashMap<>();
+            counters.put("reconnect", pingPongMeasurer.reconnects());
+            counters.put("connect_failed", pingPongMeasurer.connectFailures());
+            return Collections.unmodifiableMap(counters);
+        }
+        if (httpMeasurer != null) {
+            Map<String, Long> counters = new LinkedHashMap<>();
+            counters.put("connection", httpMeasurer.connections());
+            if (type == ProbeType.HTTPS) {
+                counters.put("tls_handshake", httpMeasurer.tlsHandshakes());
+                counters.put("tls_resumed", httpMeasurer.tlsResumed());
+            }
+            return Collections.unmodifiableMap(counters);
+        }
+        if (connectOptions != null && connectOptions.bindsSourcePorts()) {
+            return Map.of("bind_retry", connectOptions.bindRetries());
+        }
+        if (udpMeasurer == null) {
+            return Map.of();
+        }
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("reordered", udpMeasurer.reordered());
+        counters.put("duplicate", udpMeasurer.duplicates());
+        counters.put("late", udpMeasurer.late());
+        return Collections.unmodifiableMap(counters);
+    }
+
+    /**
+     * Probe-specific latencies, e.g. connect times of persistent connections.
+     */
+    private Map<String, LatencySummary> probeTimes() {
+        if (cumulativeConnectTimes == null) {
+            return Map.of();
+        }
+        return Map.of("connect", LatencySummary.of(cumulativeConnectTimes));
+    }
+
+    private List<PhaseStatistics> summarizePhases() {
+        List<PhaseStatistics> phases = new ArrayList<>(cumulativePhaseTimes.length);
+        for (int i = 0; i < cumulativePhaseTimes.length; i++) {
+            if (i == HTTPLatencyMeasurer.TLS && type != ProbeType.HTTPS) {
+                continue;
+            }
+            phases.add(new PhaseStatistics(HTTPLatencyMeasurer.PHASES[i],
+                LatencySummary.of(cumulativePhaseTimes[i]), LatencyBuckets.cumulative(phaseBucketCounts[i])));
+        }
+        return Collections.unmodifiableList(phases);
+    }
+
+    /**
+     * Merge the interval recorded since the last report into the cumulative
+     * histograms and publish a fresh statistics snapshot. Called by the
+     * IntervalReporter only, which owns the cumulative histograms.
+     */
+    Statistics reportInterval(long uptimeMs, boolean monitorRunning) {
+        TimingInterval interval = timer.takeInterval();
+        lastInterval = interval;
+        cumulativeServiceTimes.add(interval.getServiceTimesHistogram());
+        cumulativeResponseTimes.add(interval.getResponseTimesHistogram());
+        buckets.accumulate(interval.getServiceTimesHistogram(), serviceBucketCounts);
+        buckets.accumulate(interval.getResponseTimesHistogram(), responseBucketCounts);
+        for (int i = 0; i < interval.phaseCount(); i++) {
+            cumulativePhaseTimes[i].add(interval.getPhaseHistogram(i));
+            buckets.accumulate(interval.getPhaseHistogram(i), phaseBucketCounts[i]);
+        }
+        if (pingPongMeasurer != null) {
+            connectTimesInterval = pingPongMeasurer.takeConnectTimes(connectTimesInterval);
+            cumulativeConnectTimes.add(connectTimesInterval);
+        }
+        schedulingJitterInterval = pacer.takeSchedulingJitter(schedulingJitterInterval);
+        cumulativeSchedulingJitter.add(schedulingJitterInterval);
+        takeFailureTimes();
+
+        long failed = failedMeasurements.get();
+        lastIntervalFailures = failed - lastFailedMeasurements;
+        if (windows.add(interval, lastIntervalFailures, System.currentTimeMillis())) {
+            windowStatistics = summarizeWindows();
+            adapt();
+        }
+        lastFailedMeasurements = failed;
+        if (flows != null) {
+            flows.reportInterval(System.currentTimeMillis());
+        }
+
+        statistics = new Statistics(
+            spec.host,
+            spec.port,
+            appliedRate,
+            totalMeasurements.get(),
+            successfulMeasurements.get(),
+            failed,
+            uptimeMs,
+            monitorRunning && running,
+            LatencySummary.of(cumulativeServiceTimes),
+            LatencySummary.of(cumulativeResponseTimes),
+            windowStatistics,
+            LatencyBuckets.cumulative(serviceBucketCounts),
+            LatencyBuckets.cumulative(responseBucketCounts),
+            probeCounters(),
+            probeTimes(),
+            summarizePhases(),
+            LatencySummary.of(cumulativeSchedulingJitter),
+            boosted,
+            pauseAffectedMeasurements.get(),
+            probeName,
+            waitName,
+            spec.ratePerSecond,
+            summarizeFailures(),
+            flows != null ? flows.getStatistics() : List.of(),
+            histogramFootprint()
+        );
+        return statistics;
+    }
+
+    /**
+     * Estimated heap taken by the target's histograms. A recorder holds an active
+     * histogram about the size of the interval last taken from it, so intervals count twice.
+     */
+    private long histogramFootprint() {
+        long bytes = windows.footprintBytes();
+        for (Histogram histogram : new Histogram[] {cumulativeServiceTimes, cumulativeResponseTimes,
+                cumulativeConnectTimes, cumulativeSchedulingJitter}) {
+            bytes += HistogramSettings.footprintBytes(histogram);
+        }
+        for (Histogram interval : new Histogram[] {lastInterval.getServiceTimesHistogram(),
+                lastInterval.getResponseTimesHistogram(), connectTimesInterval, schedulingJitterInterval}) {
+            bytes += 2 * HistogramSettings.footprintBytes(interval);
+        }
+        for (int i = 0; i < cumulativePhaseTimes.length; i++) {
+            bytes += HistogramSettings.footprintBytes(cumulativePhaseTimes[i])
+                + 2 * HistogramSettings.footprintBytes(lastInterval.getPhaseHistogram(i));
+        }
+        for (int i = 0; i < cumulativeFailureTimes.length; i++) {
+            bytes += HistogramSettings.footprintBytes(cumulativeFailureTimes[i])
+                + 2 * HistogramSettings.footprintBytes(failureTimesInterval[i]);
+        }
+        return flows != null ? bytes + flows.footprintBytes() : bytes;
+    }
+
+    private void takeFailureTimes() {
+        for (int i = 0; i < cumulativeFailureTimes.length; i++) {
+            Recorder recorder = failureRecorders.get(i);
+            if (recorder != null) {
+                failureTimesInterval[i] = recorder.getIntervalHistogram(failureTimesInterval[i]);
+            }
+            if (cumulativeFailureTimes[i] == null && (recorder != null || failureCounts[i].sum() > 0)) {
+                cumulativeFailureTimes[i] = histograms.newHistogram();
+            }
+            if (recorder != null) {
+                cumulativeFailureTimes[i].add(failureTimesInterval[i]);
+            }
+        }
+    }
+
+    private List<FailureStatistics> summarizeFailures() {
+        List<FailureStatistics> failures = new ArrayList<>();
+        for (int i = 0; i < cumulativeFailureTimes.length; i++) {
+            if (cumulativeFailureTimes[i] != null) {
+                failures.add(new FailureStatistics(FailureReason.of(i).label, failureCounts[i].sum(),
+                    LatencySummary.of(cumulativeFailureTimes[i])));
+            }
+        }
+        return Collections.unmodifiableList(failures);
+    }
+
+    private List<WindowStatistics> summarizeWindows() {
+        List<WindowStatistics> summaries = new ArrayList<>(windows.size());
+        for (int i = 0; i < windows.size(); i++) {
+            SlidingWindows.Window window = windows.window(i);
+            summaries.add(new WindowStatistics(
+                window.name,
+                window.windowMs,
+                window.getOperations(),
+                window.getFailures(),
+                LatencySummary.of(window.getServiceTimesHistogram()),
+                LatencySummary.of(window.getResponseTimesHistogram())
+            ));
+        }
+        return Collections.unmodifiableList(summaries);
+    }
+
+    /**
+     * The histograms behind the published statistics, for /histogram. They are
+     * the live ones, so this is only for the IntervalReporter, which owns them.
+     */
+    HistogramExport.TargetHistograms histograms() {
+        Statistics published = statistics;
+        Map<String, Histogram> phases = new LinkedHashMap<>();
+        for (int i = 0; i < cumulativePhaseTimes.length; i++) {
+            if (i != HTTPLatencyMeasurer.TLS || type == ProbeType.HTTPS) {
+                phases.put(HTTPLatencyMeasurer.PHASES[i], cumulativePhaseTimes[i]);
+            }
+        }
+        // Windows only change when a slot completes, which also republishes their statistics
+        List<HistogramExport.WindowHistograms> windowHistograms = new ArrayList<>(windows.size());
+        for (int i = 0; i < windows.size(); i++) {
+            SlidingWindows.Window window = windows.window(i);
+            windowHistograms.add(new HistogramExport.WindowHistograms(window.name, window.windowMs,
+                window.getOperations(), window.getFailures(),
+                window.getServiceTimesHistogram(), window.getResponseTimesHistogram()));
+        }
+        // Reasons as of the published statistics, so the counts match them
+        Map<String, Long> failureCounts = new LinkedHashMap<>();
+        Map<String, Histogram> failureTimes = new LinkedHashMap<>();
+        for (FailureStatistics failure : published.failures) {
+            failureCounts.put(failure.reason, failure.count);
+            int reason = FailureReason.valueOf(failure.reason.toUpperCase()).ordinal();
+            failureTimes.put(failure.reason, cumulativeFailureTimes[reason]);
+        }
+        return new HistogramExport.TargetHistograms(published, published.probeCounters,
+            cumulativeServiceTimes, cumulativeResponseTimes, cumulativeSchedulingJitter, phases, windowHistograms,
+            failureCounts, failureTimes,
+            lastInterval != null ? lastInterval.getServiceTimesHistogram() : null,
+            lastInterval != null ? lastInterval.getResponseTimesHistogram() : null);
+    }
+
+    /**
+     * The interval taken by the last reportInterval(), valid until the next one.
+     */
+    TimingInterval lastInterval() {
+        return lastInterval;
+    }
+
+    /**
+     * Probes that failed in the interval taken by the last reportInterval().
+     */
+    long lastIntervalFailures() {
+        return lastIntervalFailures;
+    }
+
+    /**
+     * Latest published statistics; never blocks the measurement side.
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    public TargetSpec getSpec() {
+        return spec;
+    }
+
+    /**
+     * Close mode and source ports of connect probes, or null if the probe type makes no per-probe connections.
+     */
+    public ConnectOptions getConnectOptions() {
+        return connectOptions;
+    }
+
+    public ProbeType getType() {
+        return type;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return pacer.getWaitStrategy();
+    }
+
+    public ProbeMode getMode() {
+        return mode;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+}
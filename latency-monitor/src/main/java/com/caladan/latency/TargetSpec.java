@@ -0,0 +1,145 @@
+/*
+ * TargetSpec - Configuration of a single monitored target.
+ * Parsed from entries of the form host[:port][;key=value]... so that one
+ * process can probe a whole list of targets.
+ */
+package com.caladan.latency;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public final class TargetSpec {
+
+    // Every option a target understands besides rate; see the README for what each does
+    static final Set<String> OPTIONS = Set.of(
+        "probe", "mode", "timeoutMs", "maxInFlight", "phase", "wait", "spinUs",
+        "path", "keepAlive", "resume", "insecure", "connections", "payload",
+        "close", "sourcePorts", "reuseAddress", "flows", "flowWindowMs", "flowDivergence",
+        "adaptP99Ms", "adaptErrorRate", "adaptRate",
+        "histogramLowestNs", "histogramHighestMs", "histogramDigits", "histogramPacked");
+
+    public final String host;
+    public final int port;
+    public final double ratePerSecond;
+
+    // Additional per-target options (key=value pairs after the address)
+    private final Map<String, String> options;
+
+    public TargetSpec(String host, int port, double ratePerSecond) {
+        this(host, port, ratePerSecond, Collections.emptyMap());
+    }
+
+    public TargetSpec(String host, int port, double ratePerSecond, Map<String, String> options) {
+        if (host == null || host.isEmpty()) {
+            throw new IllegalArgumentException("Target host is required");
+        }
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("Invalid target port: " + port);
+        }
+        if (!(ratePerSecond > 0)) {
+            throw new IllegalArgumentException("Invalid rate for " + host + ": " + ratePerSecond);
+        }
+        this.host = host;
+        this.port = port;
+        this.ratePerSecond = ratePerSecond;
+        this.options = Collections.unmodifiableMap(new LinkedHashMap<>(options));
+    }
+
+    /**
+     * Get a per-target option, or the default when not set.
+     */
+    public String option(String key, String defaultValue) {
+        return options.getOrDefault(key, defaultValue);
+    }
+
+    public Map<String, String> options() {
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return address(host, port);
+    }
+
+    /**
+     * host:port as a target is named, with IPv6 literals in brackets.
+     */
+    static String address(String host, int port) {
+        return host.indexOf(':') >= 0 ? "[" + host + "]:" + port : host + ":" + port;
+    }
+
+    /**
+     * Parse a comma or whitespace separated list of targets.
+     * Each entry is host[:port][;rate=N][;key=value]..., IPv6 literals in brackets.
+     */
+    public static List<TargetSpec> parseList(String spec, int defaultPort, double defaultRate) {
+        List<TargetSpec> targets = new ArrayList<>();
+        if (spec == null) {
+            return targets;
+        }
+        for (String entry : spec.split("[,\\s]+")) {
+            if (!entry.isEmpty()) {
+                targets.add(parse(entry, defaultPort, defaultRate));
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Parse a single target entry.
+     *
+     * @throws IllegalArgumentException on a malformed entry or an unknown option
+     */
+    public static TargetSpec parse(String entry, int defaultPort, double defaultRate) {
+        String[] parts = entry.split(";");
+        String address = parts[0].trim();
+
+        String host;
+        int port = defaultPort;
+        if (address.startsWith("[")) {
+            // IPv6 literal: [::1]:22
+            int close = address.indexOf(']');
+            if (close < 0) {
+                throw new IllegalArgumentException("Invalid target address: " + address);
+            }
+            host = address.substring(1, close);
+            if (address.length() > close + 1 && address.charAt(close + 1) == ':') {
+                port = Integer.parseInt(address.substring(close + 2));
+            }
+        } else {
+            int colon = address.lastIndexOf(':');
+            if (colon > 0 && address.indexOf(':') == colon) {
+                host = address.substring(0, colon);
+                port = Integer.parseInt(address.substring(colon + 1));
+            } else {
+                host = address;
+            }
+        }
+
+        double rate = defaultRate;
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 1; i < parts.length; i++) {
+            String option = parts[i].trim();
+            if (option.isEmpty()) continue;
+            int eq = option.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Invalid target option '" + option + "' in " + entry);
+            }
+            String key = option.substring(0, eq).trim();
+            String value = option.substring(eq + 1).trim();
+            if (key.equals("rate")) {
+                rate = Double.parseDouble(value);
+            } else if (OPTIONS.contains(key)) {
+                options.put(key, value);
+            } else {
+                throw new IllegalArgumentException("Unknown target option '" + key + "' in " + entry);
+            }
+        }
+
+        return new TargetSpec(host, port, rate, options);
+    }
+}
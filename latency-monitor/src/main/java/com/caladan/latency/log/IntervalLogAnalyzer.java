@@ -0,0 +1,265 @@
+/*
+ * IntervalLogAnalyzer - Offline percentiles from a directory of interval logs.
+ * Selects the files overlapping the requested time range, decodes them in
+ * parallel on a fork-join pool and merges the tagged histograms per target
+ * and series, so weeks of logs for hundreds of targets reduce in seconds.
+ */
+package com.caladan.latency.log;
+
+import org.HdrHistogram.EncodableHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogReader;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+public final class IntervalLogAnalyzer {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9", "p99.99"};
+
+    private IntervalLogAnalyzer() {
+    }
+
+    /**
+     * Merge every tagged interval starting within [fromSec, toSec] (epoch seconds).
+     *
+     * @param tags accepts the "<target>/<series>" tags to include
+     * @return merged histogram per tag
+     */
+    public static Map<String, Histogram> analyze(Path directory, double fromSec, double toSec,
+                                                 Predicate<String> tags, ForkJoinPool pool) throws IOException {
+        List<Path> files = selectFiles(directory, fromSec, toSec);
+        if (files.isEmpty()) {
+            return new TreeMap<>();
+        }
+        return new TreeMap<>(pool.invoke(new ReadFiles(files, 0, files.size(), fromSec, toSec, tags)));
+    }
+
+    /**
+     * Log files that may hold intervals within the range. Each file covers
+     * from its own start time up to the start time of the next one.
+     */
+    static List<Path> selectFiles(Path directory, double fromSec, double toSec) throws IOException {
+        List<Path> all = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(IntervalLogWriter.FILE_PREFIX) && name.endsWith(IntervalLogWriter.FILE_SUFFIX);
+            }).sorted().forEach(all::add);
+        }
+
+        List<Path> selected = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) {
+            double startSec = fileStartSec(all.get(i));
+            double nextStartSec = i + 1 < all.size() ? fileStartSec(all.get(i + 1)) : Double.MAX_VALUE;
+            if (startSec <= toSec && nextStartSec >= fromSec) {
+                selected.add(all.get(i));
+            }
+        }
+        return selected;
+    }
+
+    private static double fileStartSec(Path file) {
+        String name = file.getFileName().toString();
+        String time = name.substring(IntervalLogWriter.FILE_PREFIX.length(),
+            name.length() - IntervalLogWriter.FILE_SUFFIX.length());
+        try {
+            return IntervalLogWriter.FILE_TIME.parse(time, Instant::from).toEpochMilli() / 1000.0;
+        } catch (DateTimeParseException e) {
+            // Renamed file: never skip it
+            return 0;
+        }
+    }
+
+    private static Map<String, Histogram> readFile(Path file, double fromSec, double toSec, Predicate<String> tags) {
+        Map<String, Histogram> merged = new HashMap<>();
+        HistogramLogReader reader;
+        try {
+            reader = new HistogramLogReader(file.toFile());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read histogram log " + file, e);
+        }
+        try {
+            EncodableHistogram interval;
+            while ((interval = reader.nextAbsoluteIntervalHistogram(fromSec, toSec)) != null) {
+                String tag = interval.getTag();
+                if (tag != null && interval instanceof Histogram && tags.test(tag)) {
+                    merged.computeIfAbsent(tag, t -> new Histogram(3)).add((Histogram) interval);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return merged;
+    }
+
+    /**
+     * Splits the file list in halves down to single files and merges the results.
+     */
+    private static final class ReadFiles extends RecursiveTask<Map<String, Histogram>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> files;
+        private final int from;
+        private final int to;
+        private final double fromSec;
+        private final double toSec;
+        private final Predicate<String> tags;
+
+        ReadFiles(List<Path> files, int from, int to, double fromSec, double toSec, Predicate<String> tags) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.fromSec = fromSec;
+            this.toSec = toSec;
+            this.tags = tags;
+        }
+
+        @Override
+        protected Map<String, Histogram> compute() {
+            if (to - from == 1) {
+                return readFile(files.get(from), fromSec, toSec, tags);
+            }
+            int middle = (from + to) >>> 1;
+            ReadFiles left = new ReadFiles(files, from, middle, fromSec, toSec, tags);
+            left.fork();
+            Map<String, Histogram> merged = new ReadFiles(files, middle, to, fromSec, toSec, tags).compute();
+            for (Map.Entry<String, Histogram> entry : left.join().entrySet()) {
+                Histogram existing = merged.get(entry.getKey());
+                if (existing == null) {
+                    merged.put(entry.getKey(), entry.getValue());
+                } else {
+                    existing.add(entry.getValue());
+                }
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Command line entry point:
+     * analyze DIR [--from=TIME] [--to=TIME] [--target=HOST:PORT,...] [--series=response|service] [--threads=N]
+     *
+     * @return process exit code
+     */
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        if (args.length == 0 || args[0].startsWith("--")) {
+            printUsage(err);
+            return 2;
+        }
+        Path directory = Paths.get(args[0]);
+        double fromSec = 0;
+        double toSec = Double.MAX_VALUE;
+        Set<String> targets = null;
+        String series = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                int eq = arg.indexOf('=');
+                String key = eq > 0 ? arg.substring(0, eq) : arg;
+                String value = eq > 0 ? arg.substring(eq + 1) : "";
+                switch (key) {
+                    case "--from":
+                        fromSec = parseTimeSec(value);
+                        break;
+                    case "--to":
+                        toSec = parseTimeSec(value);
+                        break;
+                    case "--target":
+                        targets = Set.of(value.split(","));
+                        break;
+                    case "--series":
+                        series = value;
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            err.println("Error: " + e.getMessage());
+            printUsage(err);
+            return 2;
+        }
+
+        Set<String> targetFilter = targets;
+        String seriesFilter = series;
+        Predicate<String> tags = tag -> {
+            int slash = tag.lastIndexOf('/');
+            return slash > 0
+                && (targetFilter == null || targetFilter.contains(tag.substring(0, slash)))
+                && (seriesFilter == null || seriesFilter.equals(tag.substring(slash + 1)));
+        };
+
+        long started = System.nanoTime();
+        Map<String, Histogram> histograms;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            histograms = analyze(directory, fromSec, toSec, tags, pool);
+        } catch (IOException | UncheckedIOException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        } finally {
+            pool.shutdown();
+        }
+
+        out.printf("%-40s %9s %12s", "target/series", "count", "min");
+        for (String name : PERCENTILE_NAMES) {
+            out.printf(" %12s", name);
+        }
+        out.printf(" %12s%n", "max (us)");
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            out.printf("%-40s %9d %12.1f", entry.getKey(), histogram.getTotalCount(),
+                histogram.getMinNonZeroValue() / 1000.0);
+            for (double percentile : PERCENTILES) {
+                out.printf(" %12.1f", histogram.getValueAtPercentile(percentile) / 1000.0);
+            }
+            out.printf(" %12.1f%n", histogram.getMaxValue() / 1000.0);
+        }
+        err.printf("Analyzed %d series in %.2fs%n", histograms.size(), (System.nanoTime() - started) / 1e9);
+        return 0;
+    }
+
+    /**
+     * ISO-8601 instant (2026-10-16T03:14:00Z) or epoch seconds.
+     */
+    private static double parseTimeSec(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Instant.parse(value).toEpochMilli() / 1000.0;
+        }
+    }
+
+    private static void printUsage(PrintStream err) {
+        err.println("Usage: java -jar latency-monitor.jar analyze <log-dir> [options]");
+        err.println();
+        err.println("Options:");
+        err.println("  --from=TIME       Start of the range, ISO-8601 instant or epoch seconds");
+        err.println("  --to=TIME         End of the range, ISO-8601 instant or epoch seconds");
+        err.println("  --target=LIST     Comma separated host:port targets (default: all)");
+        err.println("  --series=NAME     response or service (default: both)");
+        err.println("  --threads=N       Parallelism of the fork-join pool (default: cores)");
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * IntervalLogWriter - Persists interval histograms in the HdrHistogram log format.
+ * Every reporting interval of every target is appended as two compressed,
+ * tagged histograms ("<target>/service" and "<target>/response"), so the
+ * full distribution of any past time range can be reconstructed offline.
+ * Files roll over by age and by size. Owned by the IntervalReporter thread.
+ */
+package com.caladan.latency.log;
+
+import com.caladan.latency.util.IntervalSink;
+import com.caladan.latency.util.TimingInterval;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+public final class IntervalLogWriter implements IntervalSink {
+
+    static final String FILE_PREFIX = "latency-";
+    static final String FILE_SUFFIX = ".hlog";
+
+    // UTC start time in the file name, so names sort in time order
+    static final DateTimeFormatter FILE_TIME =
+        DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    public static final String SERVICE_SERIES = "service";
+    public static final String RESPONSE_SERIES = "response";
+
+    private final Path directory;
+    private final long rotateMs;
+    private final long maxBytes;
+
+    private HistogramLogWriter writer;
+    private CountingOutputStream bytes;
+    private long fileStartMs;
+
+    /**
+     * @param rotateMs start a new file after this long
+     * @param maxBytes start a new file once the current one reaches this size
+     */
+    public IntervalLogWriter(Path directory, long rotateMs, long maxBytes) throws IOException {
+        if (rotateMs <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Log rotation age and size must be positive");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.rotateMs = rotateMs;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Append one interval of a target. Histograms must carry their start and end
+     * time stamps, as those produced by a Recorder do.
+     */
+    @Override
+    public void write(String target, TimingInterval interval) {
+        long nowMs = System.currentTimeMillis();
+        if (writer == null || nowMs - fileStartMs >= rotateMs || bytes.count >= maxBytes) {
+            rotate(nowMs);
+        }
+        write(target + "/" + SERVICE_SERIES, interval.getServiceTimesHistogram());
+        write(target + "/" + RESPONSE_SERIES, interval.getResponseTimesHistogram());
+    }
+
+    private void write(String tag, Histogram histogram) {
+        if (histogram.getTotalCount() == 0) {
+            return;
+        }
+        histogram.setTag(tag);
+        writer.outputIntervalHistogram(histogram);
+    }
+
+    /**
+     * Push buffered intervals to disk; called once per reporting interval.
+     */
+    @Override
+    public void flush() {
+        if (bytes != null) {
+            try {
+                bytes.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "histogram log " + directory;
+    }
+
+    private void rotate(long nowMs) {
+        close();
+        Path file = directory.resolve(FILE_PREFIX + FILE_TIME.format(Instant.ofEpochMilli(nowMs)) + FILE_SUFFIX);
+        try {
+            bytes = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create histogram log " + file, e);
+        }
+        writer = new HistogramLogWriter(new PrintStream(bytes, false, StandardCharsets.UTF_8));
+        fileStartMs = nowMs;
+
+        writer.outputLogFormatVersion();
+        writer.outputStartTime(nowMs);
+        writer.setBaseTime(nowMs);
+        writer.outputBaseTime(nowMs);
+        writer.outputLegend();
+    }
+
+    /**
+     * Tracks the size of the current file without asking the file system.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Async TCP Latency Measurer - non-blocking variant of TCPLatencyMeasurer.
+ * Issues TCP connects on a SocketChannel registered with a Selector so any
+ * number of probes can be outstanding at once (open-loop probing).
+ */
+package com.caladan.latency.measure;
+
+import com.caladan.latency.util.TimerWheel;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+public class AsyncTCPLatencyMeasurer {
+
+    private final ResolverCache.Endpoint endpoint;
+    private final String targetHost;
+    private final int targetPort;
+    private final int timeoutMs;
+    private final ConnectOptions options;
+
+    /**
+     * @param endpoint resolved outside the timed region, see ResolverCache
+     * @param options  close mode and source ports of the probe connections
+     */
+    public AsyncTCPLatencyMeasurer(ResolverCache.Endpoint endpoint, int timeoutMs, ConnectOptions options) {
+        this.endpoint = endpoint;
+        this.targetHost = endpoint.getHost();
+        this.targetPort = endpoint.getPort();
+        this.timeoutMs = timeoutMs;
+        this.options = options;
+    }
+
+    public AsyncTCPLatencyMeasurer(ResolverCache.Endpoint endpoint, int timeoutMs) {
+        this(endpoint, timeoutMs, ConnectOptions.DEFAULT);
+    }
+
+    public AsyncTCPLatencyMeasurer(String targetHost, int targetPort, int timeoutMs) {
+        this(ResolverCache.uncached(targetHost, targetPort), timeoutMs);
+    }
+
+    public AsyncTCPLatencyMeasurer(String targetHost, int targetPort) {
+        this(targetHost, targetPort, 5000); // 5 second default timeout
+    }
+
+    /**
+     * Begin a non-blocking TCP connect.
+     * If the connect completes or fails immediately the returned probe is already done,
+     * otherwise it is registered with the selector for OP_CONNECT with itself as attachment.
+     *
+     * @param intendedStartNanos the scheduled start time (for coordinated omission correction)
+     */
+    public PendingConnect connect(Selector selector, long intendedStartNanos, ConnectListener listener) {
+        long startNanos = System.nanoTime();
+        PendingConnect probe = new PendingConnect(this, listener, intendedStartNanos, startNanos,
+            startNanos + timeoutMs * 1_000_000L);
+        try {
+            SocketChannel channel = SocketChannel.open();
+            probe.channel = channel;
+            channel.configureBlocking(false);
+            int port = options.nextPort();
+            probe.flow = options.fixedFlows ? port : -1;
+            options.configure(channel, port);
+            if (channel.connect(endpoint.socketAddress())) {
+                probe.complete(true, null);
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, probe);
+            }
+        } catch (IOException | RuntimeException e) {
+            // UnresolvedAddressException and friends are unchecked
+            probe.complete(false, FailureReason.classify(e));
+        }
+        return probe;
+    }
+
+    /**
+     * Finish a connect after the selector reported it connectable.
+     */
+    public void finishConnect(PendingConnect probe) {
+        if (probe.done) return;
+        try {
+            probe.channel.finishConnect();
+            probe.complete(true, null);
+        } catch (IOException e) {
+            probe.complete(false, FailureReason.classify(e));
+        }
+    }
+
+    /**
+     * Fail a probe whose deadline passed without the connect completing.
+     */
+    public void expire(PendingConnect probe) {
+        if (!probe.done) {
+            probe.complete(false, FailureReason.TIMEOUT);
+        }
+    }
+
+    public String getTargetHost() {
+        return targetHost;
+    }
+
+    public int getTargetPort() {
+        return targetPort;
+    }
+
+    public int getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * Receives completed probes, on the selector thread.
+     */
+    public interface ConnectListener {
+        void connectCompleted(PendingConnect probe);
+    }
+
+    /**
+     * An outstanding (or completed) connect probe.
+     * Schedule it on a TimerWheel at deadlineNanos to enforce the connect timeout.
+     */
+    public static final class PendingConnect extends TimerWheel.Timeout implements Selectable {
+        private final AsyncTCPLatencyMeasurer measurer;
+        private final ConnectListener listener;
+        public final long intendedStartNanos;
+        public final long startNanos;
+        public final long deadlineNanos;
+
+        private SocketChannel channel;
+        private boolean done;
+        public long endNanos;
+        public boolean success;
+        /** Why the connect failed; null on success */
+        public FailureReason reason;
+        /** Flow of the probe with fixed flows, see ConnectOptions; -1 without */
+        public int flow = -1;
+
+        PendingConnect(AsyncTCPLatencyMeasurer measurer, ConnectListener listener,
+                       long intendedStartNanos, long startNanos, long deadlineNanos) {
+            this.measurer = measurer;
+            this.listener = listener;
+            this.intendedStartNanos = intendedStartNanos;
+            this.startNanos = startNanos;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        protected void onTimeout(long nowNanos) {
+            measurer.expire(this);
+        }
+
+        @Override
+        public void selected() {
+            measurer.finishConnect(this);
+        }
+
+        private void complete(boolean success, FailureReason reason) {
+            cancel();
+            this.endNanos = System.nanoTime();
+            this.success = success;
+            this.reason = reason;
+            this.done = true;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Nothing useful to do with a failed close
+                }
+            }
+            listener.connectCompleted(this);
+        }
+
+        public AsyncTCPLatencyMeasurer measurer() {
+            return measurer;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+    }
+}
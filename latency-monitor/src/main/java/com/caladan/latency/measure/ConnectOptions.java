@@ -0,0 +1,198 @@
+/*
+ * ConnectOptions - How connect probes use local ports. Every connect probe
+ * takes a local port, and a graceful close leaves it in TIME_WAIT on this
+ * host for a minute; at thousands of probes per second that exhausts the
+ * ephemeral range, and connects start failing or stalling locally. Probes
+ * can instead close with a reset (SO_LINGER 0), which leaves no TIME_WAIT,
+ * and bind to an explicit source-port range, used round-robin so that each
+ * port rests as long as possible before it is reused.
+ *
+ * With fixed flows every port of the range is one flow: probes go to the
+ * ports round-robin and a busy port fails its probe rather than being
+ * skipped, so each flow keeps its own 5-tuple and thereby its ECMP path.
+ */
+package com.caladan.latency.measure;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class ConnectOptions {
+
+    public static final ConnectOptions DEFAULT = new ConnectOptions(false, 0, 0, false, false);
+
+    /** Ports tried per probe before a busy source-port range fails it */
+    private static final int BIND_ATTEMPTS = 8;
+
+    /** Close with RST (SO_LINGER 0) instead of FIN, leaving no TIME_WAIT behind */
+    public final boolean reset;
+
+    /** Inclusive source-port range; 0 lets the kernel pick an ephemeral port */
+    public final int sourcePortMin;
+    public final int sourcePortMax;
+
+    /** SO_REUSEADDR: bind source ports whose previous connection is still in TIME_WAIT */
+    public final boolean reuseAddress;
+
+    /** Every source port is a flow of its own, see above */
+    public final boolean fixedFlows;
+
+    // Wildcard addresses of the range, created once so binding allocates nothing
+    private final InetSocketAddress[] localAddresses;
+    private final AtomicLong nextPort = new AtomicLong();
+    private final AtomicLong bindRetries = new AtomicLong();
+
+    public ConnectOptions(boolean reset, int sourcePortMin, int sourcePortMax, boolean reuseAddress,
+                          boolean fixedFlows) {
+        if (sourcePortMin != 0 || sourcePortMax != 0) {
+            if (sourcePortMin < 1 || sourcePortMax > 65535 || sourcePortMin > sourcePortMax) {
+                throw new IllegalArgumentException("Invalid source port range: " + sourcePortMin + "-" + sourcePortMax);
+            }
+        } else if (fixedFlows) {
+            throw new IllegalArgumentException("Fixed flows need a source port range");
+        }
+        this.reset = reset;
+        this.sourcePortMin = sourcePortMin;
+        this.sourcePortMax = sourcePortMax;
+        this.reuseAddress = reuseAddress;
+        this.fixedFlows = fixedFlows;
+        this.localAddresses = new InetSocketAddress[sourcePortMin == 0 ? 0 : sourcePortMax - sourcePortMin + 1];
+        for (int i = 0; i < localAddresses.length; i++) {
+            localAddresses[i] = new InetSocketAddress(sourcePortMin + i);
+        }
+    }
+
+    /**
+     * @param close        "graceful" (FIN) or "reset" (RST)
+     * @param sourcePorts  "first-last", a single port, or null for ephemeral ports
+     * @param reuseAddress "true" to set SO_REUSEADDR
+     * @param flows        number of fixed flows, or 0; with flows, sourcePorts may give just the
+     *                     first port, and a full range must hold exactly that many ports
+     */
+    public static ConnectOptions parse(String close, String sourcePorts, String reuseAddress, int flows) {
+        boolean reset;
+        switch (close.toLowerCase()) {
+            case "graceful":
+                reset = false;
+                break;
+            case "reset":
+                reset = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown close mode (expected graceful or reset): " + close);
+        }
+        int min = 0;
+        int max = 0;
+        if (sourcePorts != null) {
+            int dash = sourcePorts.indexOf('-');
+            min = Integer.parseInt(sourcePorts.substring(0, dash < 0 ? sourcePorts.length() : dash).trim());
+            max = dash < 0 ? min : Integer.parseInt(sourcePorts.substring(dash + 1).trim());
+        }
+        if (flows > 0) {
+            if (sourcePorts == null) {
+                throw new IllegalArgumentException("Flows need sourcePorts, the source port of the first flow");
+            }
+            if (sourcePorts.indexOf('-') < 0) {
+                max = min + flows - 1;
+            } else if (max - min + 1 != flows) {
+                throw new IllegalArgumentException("Source port range " + sourcePorts + " does not hold " + flows + " flows");
+            }
+        }
+        return new ConnectOptions(reset, min, max, Boolean.parseBoolean(reuseAddress), flows > 0);
+    }
+
+    public boolean bindsSourcePorts() {
+        return localAddresses.length > 0;
+    }
+
+    /**
+     * Number of fixed flows, 0 without.
+     */
+    public int flows() {
+        return fixedFlows ? localAddresses.length : 0;
+    }
+
+    /**
+     * Index within the source-port range of the next probe's port, round-robin,
+     * or -1 without a range. With fixed flows this is the probe's flow.
+     */
+    int nextPort() {
+        return localAddresses.length == 0 ? -1 : (int) (nextPort.getAndIncrement() % localAddresses.length);
+    }
+
+    /**
+     * Set up a socket before its connect: reuse, linger and source port.
+     *
+     * @param port from nextPort()
+     * @throws BindException if no port of the range could be bound
+     */
+    void configure(Socket socket, int port) throws IOException {
+        if (reuseAddress) {
+            socket.setReuseAddress(true);
+        }
+        if (reset) {
+            socket.setSoLinger(true, 0);
+        }
+        for (int attempt = 1; port >= 0; attempt++) {
+            try {
+                socket.bind(localAddresses[port]);
+                return;
+            } catch (BindException e) {
+                port = retryPort(attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Set up a channel before its connect: reuse, linger and source port.
+     *
+     * @param port from nextPort()
+     * @throws BindException if no port of the range could be bound
+     */
+    void configure(SocketChannel channel, int port) throws IOException {
+        if (reuseAddress) {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        }
+        if (reset) {
+            // Non-blocking, so closing does not wait; it just sends the RST
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+        }
+        for (int attempt = 1; port >= 0; attempt++) {
+            try {
+                channel.bind(localAddresses[port]);
+                return;
+            } catch (BindException e) {
+                port = retryPort(attempt, e);
+            }
+        }
+    }
+
+    /**
+     * The port to try after a busy one; fixed flows and exhausted attempts rethrow.
+     */
+    private int retryPort(int attempt, BindException e) throws BindException {
+        if (fixedFlows || attempt >= Math.min(BIND_ATTEMPTS, localAddresses.length)) {
+            throw e;
+        }
+        bindRetries.incrementAndGet();
+        return nextPort();
+    }
+
+    /**
+     * Binds that found their source port busy and moved on to the next one.
+     */
+    public long bindRetries() {
+        return bindRetries.get();
+    }
+
+    /**
+     * The source-port range as "first-last", or null for ephemeral ports.
+     */
+    public String sourcePorts() {
+        return localAddresses.length == 0 ? null : sourcePortMin + "-" + sourcePortMax;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * FailureReason - Why a probe failed, as a small fixed set of classes.
+ * Failures are counted and timed per reason instead of being carried as
+ * message strings, so a target that is hard down costs no allocation per
+ * probe beyond what the JDK spends on the exception itself.
+ */
+package com.caladan.latency.measure;
+
+import java.io.EOFException;
+import java.net.BindException;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.channels.UnsupportedAddressTypeException;
+import javax.net.ssl.SSLException;
+
+public enum FailureReason {
+    /** No answer within the timeout: connect timeout, lost echo, unanswered request */
+    TIMEOUT,
+    /** Connection refused (RST in reply to SYN) */
+    REFUSED,
+    /** No route to host, network or port unreachable (ICMP) */
+    UNREACHABLE,
+    /** Connection reset or closed by the peer mid-exchange */
+    RESET,
+    /** The target's name did not resolve */
+    RESOLVE,
+    /** TLS handshake or record failure */
+    TLS,
+    /** The target answered with an HTTP 4xx/5xx status */
+    HTTP_STATUS,
+    /** The peer answered with something that is not the expected protocol */
+    PROTOCOL,
+    /**
+     * The probe could not be sent locally: full socket buffer or send window, channel not open,
+     * no local port to connect from
+     */
+    LOCAL,
+    /** No connection to send on (ping-pong probes while reconnecting) */
+    DISCONNECTED,
+    /** Anything not classified above */
+    OTHER;
+
+    private static final FailureReason[] VALUES = values();
+
+    /** Lower-case name, used as the reason label of metrics */
+    public final String label = name().toLowerCase();
+
+    public static FailureReason of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    public static int count() {
+        return VALUES.length;
+    }
+
+    /**
+     * Classify an exception thrown by a probe, by type where the JDK has one
+     * and by its (already allocated) message otherwise.
+     */
+    public static FailureReason classify(Throwable e) {
+        if (e instanceof SocketTimeoutException) {
+            return TIMEOUT;
+        }
+        if (e instanceof BindException) {
+            return LOCAL;
+        }
+        if (e instanceof UnknownHostException || e instanceof UnresolvedAddressException) {
+            return RESOLVE;
+        }
+        String message = e.getMessage();
+        if (message != null && message.contains("Cannot assign requested address")) {
+            // EADDRNOTAVAIL on connect, reported as NoRouteToHostException: out of local ports
+            return LOCAL;
+        }
+        if (e instanceof NoRouteToHostException || e instanceof PortUnreachableException) {
+            return UNREACHABLE;
+        }
+        if (e instanceof SSLException) {
+            return TLS;
+        }
+        if (e instanceof ProtocolException) {
+            return PROTOCOL;
+        }
+        if (e instanceof EOFException) {
+            return RESET;
+        }
+        if (e instanceof ClosedChannelException || e instanceof UnsupportedAddressTypeException) {
+            return LOCAL;
+        }
+        if (message == null) {
+            return OTHER;
+        }
+        if (message.contains("refused")) {
+            return REFUSED;
+        }
+        if (message.contains("unreachable") || message.contains("No route")) {
+            return UNREACHABLE;
+        }
+        if (message.contains("timed out")) {
+            return TIMEOUT;
+        }
+        if (message.contains("reset") || message.contains("Broken pipe") || message.contains("closed")) {
+            return RESET;
+        }
+        return OTHER;
+    }
+}
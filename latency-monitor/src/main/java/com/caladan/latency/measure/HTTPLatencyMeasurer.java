@@ -0,0 +1,371 @@
+/*
+ * HTTP Latency Measurer - HTTP(S) requests timed phase by phase.
+ * Each request is broken down into DNS resolution, TCP connect, TLS handshake,
+ * request write, time to first byte and body download, so slowness can be
+ * attributed to the network, the handshake or the server. Connections are
+ * kept alive and TLS sessions resumed unless disabled, which isolates the
+ * per-request phases from the per-connection ones.
+ */
+package com.caladan.latency.measure;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+public class HTTPLatencyMeasurer {
+
+    /** Phases by index, as recorded by Timer.recordPhase() */
+    public static final String[] PHASES = {"resolve", "connect", "tls", "write", "ttfb", "body"};
+    public static final int RESOLVE = 0;
+    public static final int CONNECT = 1;
+    public static final int TLS = 2;
+    public static final int WRITE = 3;
+    public static final int TTFB = 4;
+    public static final int BODY = 5;
+
+    private final String targetHost;
+    private final int targetPort;
+    private final int timeoutMs;
+    private final boolean keepAlive;
+    private final boolean resumeSessions;
+    private final boolean insecure;
+    private final SSLContext sslContext;
+    private final byte[] request;
+
+    // Durations of the phases of the last measure(), -1 for phases that did not run
+    private final long[] phaseNanos = new long[PHASES.length];
+    private final byte[] discard = new byte[8192];
+
+    // Connection kept alive between measurements; one measurement at a time
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private int lastStatus;
+
+    // Single writer (probing thread), read by the reporter
+    private volatile long connections;
+    private volatile long tlsHandshakes;
+    private volatile long tlsResumed;
+
+    /**
+     * @param tls whether to speak HTTPS
+     * @param insecure skip certificate and host name verification (self-signed test targets)
+     */
+    public HTTPLatencyMeasurer(String targetHost, int targetPort, int timeoutMs, String path, boolean tls,
+                               boolean keepAlive, boolean resumeSessions, boolean insecure) {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.timeoutMs = timeoutMs;
+        this.keepAlive = keepAlive;
+        this.resumeSessions = resumeSessions;
+        this.insecure = insecure;
+        this.sslContext = tls ? sslContext(insecure) : null;
+
+        boolean defaultPort = targetPort == (tls ? 443 : 80);
+        String hostHeader = (targetHost.indexOf(':') >= 0 ? "[" + targetHost + "]" : targetHost)
+            + (defaultPort ? "" : ":" + targetPort);
+        this.request = ("GET " + path + " HTTP/1.1\r\n"
+            + "Host: " + hostHeader + "\r\n"
+            + "User-Agent: latency-monitor\r\n"
+            + "Accept: */*\r\n"
+            + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Perform one request, reusing the kept-alive connection if there is one.
+     * Phase durations are available from phaseNanos() afterwards.
+     *
+     * @return MeasurementResult; non-2xx/3xx statuses are failures
+     */
+    public TCPLatencyMeasurer.MeasurementResult measure() {
+        Arrays.fill(phaseNanos, -1);
+        boolean reused = socket != null;
+        try {
+            int status;
+            try {
+                status = exchange();
+            } catch (IOException e) {
+                if (!reused || phaseNanos[TTFB] >= 0) {
+                    throw e;
+                }
+                // The server closed the idle connection; that is not the target failing
+                close();
+                Arrays.fill(phaseNanos, -1);
+                status = exchange();
+            }
+            if (status >= 400) {
+                return TCPLatencyMeasurer.MeasurementResult.failure(FailureReason.HTTP_STATUS);
+            }
+            return TCPLatencyMeasurer.MeasurementResult.SUCCESS;
+        } catch (IOException | RuntimeException e) {
+            close();
+            return TCPLatencyMeasurer.MeasurementResult.failure(FailureReason.classify(e));
+        }
+    }
+
+    private int exchange() throws IOException {
+        if (socket == null) {
+            open();
+        }
+
+        long start = System.nanoTime();
+        out.write(request);
+        out.flush();
+        long written = System.nanoTime();
+        phaseNanos[WRITE] = written - start;
+
+        int first = in.read();
+        if (first < 0) {
+            throw new EOFException("connection closed before response");
+        }
+        long firstByte = System.nanoTime();
+        phaseNanos[TTFB] = firstByte - written;
+
+        boolean reusable = readResponse(first);
+        phaseNanos[BODY] = System.nanoTime() - firstByte;
+        if (!reusable || !keepAlive) {
+            close();
+        }
+        return lastStatus;
+    }
+
+    private void open() throws IOException {
+        // Without resumption every connection gets a context with no sessions to offer. Invalidating
+        // the handshake's session is not enough: TLS 1.3 tickets arrive after it, with the response.
+        SSLContext context = sslContext == null || resumeSessions ? sslContext : sslContext(insecure);
+
+        long start = System.nanoTime();
+        InetAddress address = InetAddress.getByName(targetHost);
+        long resolved = System.nanoTime();
+        phaseNanos[RESOLVE] = resolved - start;
+
+        Socket plain = new Socket();
+        try {
+            plain.setTcpNoDelay(true);
+            plain.setSoTimeout(timeoutMs);
+            plain.connect(new InetSocketAddress(address, targetPort), timeoutMs);
+            long connected = System.nanoTime();
+            phaseNanos[CONNECT] = connected - resolved;
+            connections++;
+
+            Socket opened = plain;
+            if (context != null) {
+                SSLSocket tls = (SSLSocket) context.getSocketFactory()
+                    .createSocket(plain, targetHost, targetPort, true);
+                if (!insecure) {
+                    SSLParameters parameters = tls.getSSLParameters();
+                    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    tls.setSSLParameters(parameters);
+                }
+                long handshakeStartMs = System.currentTimeMillis();
+                tls.startHandshake();
+                phaseNanos[TLS] = System.nanoTime() - connected;
+                tlsHandshakes++;
+                // A resumed session keeps the creation time of the handshake that established it
+                SSLSession session = tls.getSession();
+                if (session.getCreationTime() < handshakeStartMs) {
+                    tlsResumed++;
+                }
+                opened = tls;
+            }
+            socket = opened;
+            in = new BufferedInputStream(opened.getInputStream(), 8192);
+            out = opened.getOutputStream();
+        } catch (IOException | RuntimeException e) {
+            plain.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read status line, headers and body of a response whose first byte was
+     * already consumed, skipping interim 1xx responses (100 Continue, 103 Early
+     * Hints) that precede it; the first byte timed is still the first sent.
+     *
+     * @return whether the connection can carry another request
+     */
+    private boolean readResponse(int first) throws IOException {
+        String statusLine = (char) first + readLine();
+        boolean reusable;
+        long contentLength;
+        boolean chunked;
+        while (true) {
+            int space = statusLine.indexOf(' ');
+            if (!statusLine.startsWith("HTTP/") || space < 0 || statusLine.length() < space + 4) {
+                throw new ProtocolException("malformed status line: " + statusLine);
+            }
+            lastStatus = Integer.parseInt(statusLine.substring(space + 1, space + 4));
+            reusable = !statusLine.startsWith("HTTP/1.0");
+
+            contentLength = -1;
+            chunked = false;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    reusable = value.equalsIgnoreCase("keep-alive")
+                        || (reusable && !value.equalsIgnoreCase("close"));
+                }
+            }
+            if (lastStatus < 100 || lastStatus >= 200 || lastStatus == 101) {
+                break;
+            }
+            // Interim: the final response follows
+            statusLine = readLine();
+        }
+
+        if (lastStatus == 101) {
+            // Switched to another protocol; nothing more of HTTP on this connection
+            return false;
+        }
+        if (lastStatus == 204 || lastStatus == 304) {
+            return reusable;
+        }
+        if (chunked) {
+            long chunk;
+            while ((chunk = Long.parseLong(readLine().split(";", 2)[0].trim(), 16)) > 0) {
+                skip(chunk);
+                readLine();
+            }
+            // Trailers
+            while (!readLine().isEmpty()) {
+                // Ignored
+            }
+            return reusable;
+        }
+        if (contentLength >= 0) {
+            skip(contentLength);
+            return reusable;
+        }
+        // Delimited by the connection closing
+        while (in.read(discard) >= 0) {
+            // Drained
+        }
+        return false;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("connection closed mid-response");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private void skip(long bytes) throws IOException {
+        while (bytes > 0) {
+            int read = in.read(discard, 0, (int) Math.min(discard.length, bytes));
+            if (read < 0) {
+                throw new EOFException("connection closed mid-body");
+            }
+            bytes -= read;
+        }
+    }
+
+    /**
+     * Close the kept-alive connection, if any.
+     */
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already broken
+            }
+            socket = null;
+            in = null;
+            out = null;
+        }
+    }
+
+    /**
+     * Duration of a phase of the last measurement, or -1 if it did not run
+     * (e.g. resolve, connect and TLS on a kept-alive connection).
+     */
+    public long phaseNanos(int phase) {
+        return phaseNanos[phase];
+    }
+
+    /** Connections opened so far */
+    public long connections() {
+        return connections;
+    }
+
+    /** Full and abbreviated TLS handshakes so far */
+    public long tlsHandshakes() {
+        return tlsHandshakes;
+    }
+
+    /** TLS handshakes that resumed an earlier session */
+    public long tlsResumed() {
+        return tlsResumed;
+    }
+
+    public String getTargetHost() {
+        return targetHost;
+    }
+
+    public int getTargetPort() {
+        return targetPort;
+    }
+
+    private static SSLContext sslContext(boolean insecure) {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, insecure ? new TrustManager[] {new TrustAll()} : null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("TLS is not available", e);
+        }
+    }
+
+    /**
+     * Accepts any certificate, for targets with self-signed certificates.
+     */
+    private static final class TrustAll implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * ResolverCache - Host name resolution kept out of the probe hot path.
+ * Target host names are resolved once up front and then refreshed in the
+ * background every TTL, so a probe only reads the cached address: resolver
+ * hiccups no longer show up as network latency and probes allocate no new
+ * socket address. Resolution times, failures and address changes are kept
+ * per host name. A failed refresh keeps serving the last good address.
+ */
+package com.caladan.latency.measure;
+
+import com.caladan.latency.util.LatencySummary;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public final class ResolverCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResolverCache.class);
+
+    public static final long DEFAULT_TTL_MS = 30_000;
+
+    private final long ttlMs;
+    private final Resolver resolver;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private ScheduledExecutorService refresher;
+
+    // Published by reportInterval(), one per resolved (non-literal) host name
+    private volatile List<ResolverStatistics> statistics = List.of();
+
+    public ResolverCache(long ttlMs) {
+        this(ttlMs, InetAddress::getByName);
+    }
+
+    ResolverCache(long ttlMs, Resolver resolver) {
+        if (ttlMs <= 0) {
+            throw new IllegalArgumentException("Resolver TTL must be positive: " + ttlMs);
+        }
+        this.ttlMs = ttlMs;
+        this.resolver = resolver;
+    }
+
+    /**
+     * The cached address of host:port, resolving the host now if it is new.
+     */
+    public Endpoint endpoint(String host, int port) {
+        return new Endpoint(entries.computeIfAbsent(host, name -> {
+            Entry entry = new Entry(name, true, resolver);
+            entry.refresh();
+            return entry;
+        }), port);
+    }
+
+    /**
+     * An endpoint that resolves on every use, for measurers built without a cache.
+     */
+    public static Endpoint uncached(String host, int port) {
+        return new Endpoint(new Entry(host, false, InetAddress::getByName), port);
+    }
+
+    /**
+     * Start refreshing every entry once per TTL.
+     */
+    public synchronized void start() {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ResolverCache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refreshAll, ttlMs, ttlMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    void refreshAll() {
+        for (Entry entry : entries.values()) {
+            if (!entry.literal) {
+                entry.refresh();
+            }
+        }
+    }
+
+    /**
+     * Swap out resolution times recorded since the previous call and publish
+     * new statistics. Called by the IntervalReporter.
+     */
+    public synchronized void reportInterval() {
+        List<ResolverStatistics> published = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (!entry.literal) {
+                published.add(entry.report());
+            }
+        }
+        published.sort((a, b) -> a.host.compareTo(b.host));
+        statistics = Collections.unmodifiableList(published);
+    }
+
+    /**
+     * Statistics of every host name as of the last reporting interval.
+     */
+    public List<ResolverStatistics> getStatistics() {
+        return statistics;
+    }
+
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    /**
+     * Looks a host name up; InetAddress.getByName, or a script in tests.
+     */
+    interface Resolver {
+        InetAddress resolve(String host) throws UnknownHostException;
+    }
+
+    /**
+     * Cached resolution of one host name.
+     */
+    static final class Entry {
+        final String host;
+        final boolean cached;
+        final boolean literal;
+        private final Resolver resolver;
+        private volatile InetAddress address;
+
+        private final Recorder resolutionTimes = new Recorder(3);
+        private volatile long resolutions;
+        private volatile long failures;
+        private volatile long changes;
+        private volatile InetAddress previousAddress;
+        private volatile long lastChangeMs;
+        private boolean failing;
+
+        // Reporting state, owned by reportInterval()
+        private Histogram resolutionTimesInterval;
+        private final Histogram cumulativeResolutionTimes = new Histogram(3);
+
+        Entry(String host, boolean cached, Resolver resolver) {
+            this.host = host;
+            this.cached = cached;
+            this.resolver = resolver;
+            this.literal = isLiteral(host);
+        }
+
+        /**
+         * Resolve now; only the refresh thread (or the first registration) calls this.
+         */
+        void refresh() {
+            long start = System.nanoTime();
+            try {
+                InetAddress resolved = resolver.resolve(host);
+                resolutionTimes.recordValue(System.nanoTime() - start);
+                resolutions++;
+                failing = false;
+                InetAddress current = address;
+                if (current == null) {
+                    address = resolved;
+                } else if (!current.equals(resolved)) {
+                    // Equal addresses keep the old instance, so endpoints only rebuild on a real change
+                    logger.info("Address of {} changed from {} to {}", host,
+                        current.getHostAddress(), resolved.getHostAddress());
+                    previousAddress = current;
+                    lastChangeMs = System.currentTimeMillis();
+                    changes++;
+                    address = resolved;
+                }
+            } catch (UnknownHostException | SecurityException e) {
+                resolutionTimes.recordValue(System.nanoTime() - start);
+                resolutions++;
+                failures++;
+                if (!failing) {
+                    // Once per outage, not once per TTL
+                    logger.warn("Cannot resolve {}{}: {}", host,
+                        address != null ? ", keeping " + address.getHostAddress() : "", e.getMessage());
+                    failing = true;
+                }
+            }
+        }
+
+        /**
+         * The last resolved address, or null if the host never resolved.
+         */
+        InetAddress address() {
+            if (!cached) {
+                try {
+                    return resolver.resolve(host);
+                } catch (UnknownHostException e) {
+                    return null;
+                }
+            }
+            return address;
+        }
+
+        private ResolverStatistics report() {
+            resolutionTimesInterval = resolutionTimes.getIntervalHistogram(resolutionTimesInterval);
+            cumulativeResolutionTimes.add(resolutionTimesInterval);
+            InetAddress current = address;
+            InetAddress previous = previousAddress;
+            return new ResolverStatistics(host,
+                current != null ? current.getHostAddress() : null,
+                previous != null ? previous.getHostAddress() : null,
+                resolutions, failures, changes, lastChangeMs,
+                LatencySummary.of(cumulativeResolutionTimes));
+        }
+
+        static boolean isLiteral(String host) {
+            return host.indexOf(':') >= 0 || host.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+        }
+    }
+
+    /**
+     * A host:port whose socket address is rebuilt only when the cached address changes.
+     * Used by one measurer at a time.
+     */
+    public static final class Endpoint {
+        private final Entry entry;
+        private final int port;
+        private InetSocketAddress socketAddress;
+
+        private Endpoint(Entry entry, int port) {
+            this.entry = entry;
+            this.port = port;
+        }
+
+        /**
+         * The current socket address; unresolved if the host never resolved,
+         * so connecting fails like it would for an unknown host.
+         */
+        public InetSocketAddress socketAddress() {
+            InetAddress address = entry.address();
+            if (address == null) {
+                return InetSocketAddress.createUnresolved(entry.host, port);
+            }
+            InetSocketAddress current = socketAddress;
+            if (current == null || current.getAddress() != address) {
+                current = new InetSocketAddress(address, port);
+                socketAddress = current;
+            }
+            return current;
+        }
+
+        public String getHost() {
+            return entry.host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+    }
+
+    /**
+     * Immutable resolution statistics of one host name.
+     */
+    public static final class ResolverStatistics {
+        public final String host;
+        public final String address;
+        public final String previousAddress;
+        public final long resolutions;
+        public final long failures;
+        public final long addressChanges;
+        public final long lastChangeMs;
+        public final LatencySummary resolutionTimes;
+
+        public ResolverStatistics(String host, String address, String previousAddress,
+                                  long resolutions, long failures, long addressChanges, long lastChangeMs,
+                                  LatencySummary resolutionTimes) {
+            this.host = host;
+            this.address = address;
+            this.previousAddress = previousAddress;
+            this.resolutions = resolutions;
+            this.failures = failures;
+            this.addressChanges = addressChanges;
+            this.lastChangeMs = lastChangeMs;
+            this.resolutionTimes = resolutionTimes;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+/*
+ * Selectable - Attachment of a channel registered with a ProbeReactor selector.
+ */
+package com.caladan.latency.measure;
+
+public interface Selectable {
+
+    /**
+     * Called on the reactor thread when the channel's interest set is ready.
+     */
+    void selected();
+}
@@ -5,19 +5,35 @@
 package com.caladan.latency.measure;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 
 public class TCPLatencyMeasurer {
     
+    private final ResolverCache.Endpoint endpoint;
     private final String targetHost;
     private final int targetPort;
     private final int timeoutMs;
+    private final ConnectOptions options;
+    private int lastFlow = -1;
     
-    public TCPLatencyMeasurer(String targetHost, int targetPort, int timeoutMs) {
-        this.targetHost = targetHost;
-        this.targetPort = targetPort;
+    /**
+     * @param endpoint resolved outside the timed region, see ResolverCache
+     * @param options  close mode and source ports of the probe connections
+     */
+    public TCPLatencyMeasurer(ResolverCache.Endpoint endpoint, int timeoutMs, ConnectOptions options) {
+        this.endpoint = endpoint;
+        this.targetHost = endpoint.getHost();
+        this.targetPort = endpoint.getPort();
         this.timeoutMs = timeoutMs;
+        this.options = options;
+    }
+    
+    public TCPLatencyMeasurer(ResolverCache.Endpoint endpoint, int timeoutMs) {
+        this(endpoint, timeoutMs, ConnectOptions.DEFAULT);
+    }
+    
+    public TCPLatencyMeasurer(String targetHost, int targetPort, int timeoutMs) {
+        this(ResolverCache.uncached(targetHost, targetPort), timeoutMs);
     }
     
     public TCPLatencyMeasurer(String targetHost, int targetPort) {
@@ -27,17 +43,27 @@ public class TCPLatencyMeasurer {
     /**
      * Measure TCP connection latency.
      * 
-     * @return MeasurementResult with success status and optional error message
+     * @return MeasurementResult with success status and, on failure, its reason
      */
     public MeasurementResult measure() {
+        int port = options.nextPort();
+        lastFlow = options.fixedFlows ? port : -1;
         try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress(targetHost, targetPort), timeoutMs);
-            return new MeasurementResult(true, null);
+            options.configure(socket, port);
+            socket.connect(endpoint.socketAddress(), timeoutMs);
+            return MeasurementResult.SUCCESS;
         } catch (IOException e) {
-            return new MeasurementResult(false, e.getMessage());
+            return MeasurementResult.failure(FailureReason.classify(e));
         }
     }
     
+    /**
+     * Flow of the last measure() with fixed flows, see ConnectOptions; -1 without.
+     */
+    public int lastFlow() {
+        return lastFlow;
+    }
+    
     public String getTargetHost() {
         return targetHost;
     }
@@ -47,15 +73,30 @@ public class TCPLatencyMeasurer {
     }
     
     /**
-     * Result of a measurement attempt.
+     * Result of a measurement attempt. Immutable and shared: one instance for
+     * success and one per failure reason, so measuring allocates no result.
      */
-    public static class MeasurementResult {
+    public static final class MeasurementResult {
+        public static final MeasurementResult SUCCESS = new MeasurementResult(true, null);
+
+        private static final MeasurementResult[] FAILURES = new MeasurementResult[FailureReason.count()];
+        static {
+            for (int i = 0; i < FAILURES.length; i++) {
+                FAILURES[i] = new MeasurementResult(false, FailureReason.of(i));
+            }
+        }
+
         public final boolean success;
-        public final String error;
+        /** Why the measurement failed; null on success */
+        public final FailureReason reason;
         
-        public MeasurementResult(boolean success, String error) {
+        private MeasurementResult(boolean success, FailureReason reason) {
             this.success = success;
-            this.error = error;
+            this.reason = reason;
+        }
+
+        public static MeasurementResult failure(FailureReason reason) {
+            return FAILURES[reason.ordinal()];
         }
     }
 }
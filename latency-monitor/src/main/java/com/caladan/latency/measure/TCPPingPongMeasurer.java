@@ -0,0 +1,346 @@
+/*
+ * TCP Ping-Pong Measurer - request/response round trips on persistent connections.
+ * Keeps a fixed set of TCP_NODELAY connections to a reflector open and sends
+ * one payload at a time on each, timing until the full echo has been read.
+ * This is what long-lived application connections see (Nagle, delayed ACK,
+ * receive queues) rather than handshake cost, and it needs no new ephemeral
+ * port per probe. Broken connections are re-established with exponential
+ * backoff; the time each connect takes goes into its own histogram.
+ * Driven by a ProbeReactor thread.
+ */
+package com.caladan.latency.measure;
+
+import com.caladan.latency.util.HistogramSettings;
+import com.caladan.latency.util.TimerWheel;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+public class TCPPingPongMeasurer {
+
+    /** Sequence number at the start of every payload, checked on the echo */
+    public static final int MIN_PAYLOAD_BYTES = 8;
+
+    private static final long MIN_BACKOFF_NANOS = 100_000_000L;
+    private static final long MAX_BACKOFF_NANOS = 10_000_000_000L;
+
+    private final ResolverCache.Endpoint endpoint;
+    private final String targetHost;
+    private final int targetPort;
+    private final int payloadBytes;
+    private final int timeoutMs;
+    private final long timeoutNanos;
+    private final Connection[] connections;
+
+    private Selector selector;
+    private TimerWheel wheel;
+    private ExchangeListener listener;
+
+    // Connect durations of every (re)connect, recorded on the reactor thread
+    private final HistogramSettings histograms;
+    private final Recorder connectTimes;
+    private volatile long reconnects;
+    private volatile long connectFailures;
+
+    /**
+     * @param histograms layout of the connect time histograms
+     */
+    public TCPPingPongMeasurer(ResolverCache.Endpoint endpoint, int connections, int payloadBytes, int timeoutMs,
+                               HistogramSettings histograms) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("At least one connection is required: " + connections);
+        }
+        if (payloadBytes < MIN_PAYLOAD_BYTES) {
+            throw new IllegalArgumentException("Payload must be at least " + MIN_PAYLOAD_BYTES + " bytes: " + payloadBytes);
+        }
+        this.endpoint = endpoint;
+        this.targetHost = endpoint.getHost();
+        this.targetPort = endpoint.getPort();
+        this.payloadBytes = payloadBytes;
+        this.timeoutMs = timeoutMs;
+        this.timeoutNanos = timeoutMs * 1_000_000L;
+        this.histograms = histograms;
+        this.connectTimes = histograms.newRecorder();
+        this.connections = new Connection[connections];
+        for (int i = 0; i < connections; i++) {
+            this.connections[i] = new Connection();
+        }
+    }
+
+    /**
+     * Open every connection; exchanges can be sent once they are established.
+     */
+    public void start(Selector selector, TimerWheel wheel, ExchangeListener listener) {
+        this.selector = selector;
+        this.wheel = wheel;
+        this.listener = listener;
+        long now = System.nanoTime();
+        for (Connection connection : connections) {
+            connection.connect(now);
+        }
+    }
+
+    /**
+     * Send one request on an idle connection.
+     *
+     * @return false if no connection is idle
+     */
+    public boolean send(long intendedStartNanos) {
+        for (Connection connection : connections) {
+            if (connection.state == State.IDLE) {
+                connection.send(intendedStartNanos);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether any connection is established, idle or busy. When none is, an
+     * exchange cannot complete until a reconnect succeeds.
+     */
+    public boolean isConnected() {
+        for (Connection connection : connections) {
+            if (connection.state == State.IDLE || connection.state == State.AWAITING) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Connect durations recorded since the previous call; see Recorder.getIntervalHistogram().
+     */
+    public Histogram takeConnectTimes(Histogram recycle) {
+        return connectTimes.getIntervalHistogram(recycle);
+    }
+
+    /**
+     * Connections re-established after the first connect.
+     */
+    public long reconnects() {
+        return reconnects;
+    }
+
+    /**
+     * Connect attempts that were refused, failed or timed out, each followed by a longer backoff.
+     */
+    public long connectFailures() {
+        return connectFailures;
+    }
+
+    public String getTargetHost() {
+        return targetHost;
+    }
+
+    public int getTargetPort() {
+        return targetPort;
+    }
+
+    public int getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public int getConnections() {
+        return connections.length;
+    }
+
+    private enum State {
+        CONNECTING, IDLE, AWAITING, BACKOFF
+    }
+
+    /**
+     * One persistent connection, its buffers and its current deadline
+     * (connect, response or backoff, depending on the state).
+     */
+    private final class Connection extends TimerWheel.Timeout implements Selectable {
+        private final ByteBuffer request = ByteBuffer.allocateDirect(payloadBytes);
+        private final ByteBuffer response = ByteBuffer.allocateDirect(payloadBytes);
+        private State state = State.BACKOFF;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private boolean connectedBefore;
+        private long backoffNanos = MIN_BACKOFF_NANOS;
+        private long connectStartNanos;
+
+        // Exchange in progress
+        private long sequence;
+        private long intendedStartNanos;
+        private long startNanos;
+
+        private void connect(long nowNanos) {
+            state = State.CONNECTING;
+            connectStartNanos = nowNanos;
+            wheel.schedule(this, nowNanos + timeoutNanos);
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (channel.connect(endpoint.socketAddress())) {
+                    key = channel.register(selector, SelectionKey.OP_READ, this);
+                    connected(System.nanoTime());
+                } else {
+                    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException | RuntimeException e) {
+                // UnresolvedAddressException and friends are unchecked
+                broken(System.nanoTime());
+            }
+        }
+
+        private void connected(long nowNanos) {
+            connectTimes.recordValue(histograms.clamp(nowNanos - connectStartNanos));
+            if (connectedBefore) {
+                reconnects++;
+            }
+            connectedBefore = true;
+            backoffNanos = MIN_BACKOFF_NANOS;
+            cancel();
+            state = State.IDLE;
+            listener.connectionAvailable(nowNanos);
+        }
+
+        private void send(long intendedStartNanos) {
+            this.intendedStartNanos = intendedStartNanos;
+            this.startNanos = System.nanoTime();
+            sequence++;
+            state = State.AWAITING;
+            wheel.schedule(this, startNanos + timeoutNanos);
+
+            request.clear();
+            request.putLong(0, sequence);
+            response.clear();
+            try {
+                channel.write(request);
+                if (request.hasRemaining()) {
+                    // Socket buffer full; finish once it drains
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                fail(System.nanoTime(), FailureReason.classify(e));
+            }
+        }
+
+        @Override
+        public void selected() {
+            try {
+                if (state == State.CONNECTING) {
+                    if (channel.finishConnect()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        connected(System.nanoTime());
+                    }
+                    return;
+                }
+                if (key.isWritable() && request.hasRemaining()) {
+                    channel.write(request);
+                    if (!request.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                FailureReason reason;
+                if (key.isReadable() && (reason = read()) != null) {
+                    failOrBreak(reason);
+                }
+            } catch (IOException e) {
+                failOrBreak(FailureReason.classify(e));
+            }
+        }
+
+        /**
+         * @return null unless the connection is unusable, then why
+         */
+        private FailureReason read() throws IOException {
+            int read = channel.read(response);
+            if (read < 0) {
+                // Closed by peer
+                return FailureReason.RESET;
+            }
+            if (state != State.AWAITING) {
+                // Anything read when nothing was asked puts the stream out of step
+                return read > 0 ? FailureReason.PROTOCOL : null;
+            }
+            if (response.hasRemaining()) {
+                return null;
+            }
+            long endNanos = System.nanoTime();
+            if (response.getLong(0) != sequence) {
+                // Echo out of sequence
+                return FailureReason.PROTOCOL;
+            }
+            cancel();
+            state = State.IDLE;
+            listener.exchangeCompleted(intendedStartNanos, startNanos, endNanos);
+            return null;
+        }
+
+        private void failOrBreak(FailureReason reason) {
+            if (state == State.AWAITING) {
+                fail(System.nanoTime(), reason);
+            } else {
+                broken(System.nanoTime());
+            }
+        }
+
+        /**
+         * Fail the exchange in progress and drop the connection, whose stream
+         * may still deliver the late echo.
+         */
+        private void fail(long nowNanos, FailureReason reason) {
+            broken(nowNanos);
+            listener.exchangeFailed(intendedStartNanos, startNanos, nowNanos, reason);
+        }
+
+        private void broken(long nowNanos) {
+            if (state == State.CONNECTING) {
+                connectFailures++;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Already broken
+                }
+                channel = null;
+                key = null;
+            }
+            state = State.BACKOFF;
+            wheel.schedule(this, nowNanos + backoffNanos);
+            backoffNanos = Math.min(MAX_BACKOFF_NANOS, backoffNanos * 2);
+        }
+
+        @Override
+        protected void onTimeout(long nowNanos) {
+            switch (state) {
+                case CONNECTING:
+                    broken(nowNanos);
+                    break;
+                case AWAITING:
+                    fail(nowNanos, FailureReason.TIMEOUT);
+                    break;
+                case BACKOFF:
+                    connect(nowNanos);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Receives exchange outcomes, on the reactor thread.
+     */
+    public interface ExchangeListener {
+        void exchangeCompleted(long intendedStartNanos, long startNanos, long endNanos);
+
+        void exchangeFailed(long intendedStartNanos, long startNanos, long endNanos, FailureReason reason);
+
+        /** A connection was (re)established and is idle */
+        void connectionAvailable(long nowNanos);
+    }
+}
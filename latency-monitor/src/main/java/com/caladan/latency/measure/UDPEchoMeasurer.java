@@ -0,0 +1,320 @@
+/*
+ * UDP Echo Measurer - round trips of sequence-numbered datagrams.
+ * Sends timestamped datagrams over one connected, non-blocking DatagramChannel
+ * to a reflector that echoes them back, with any number outstanding. Send
+ * times live in a ring indexed by sequence number and the datagram buffers
+ * are direct and reused, so the hot path allocates nothing. Lost, reordered,
+ * duplicate and late echoes are counted. Driven by a ProbeReactor thread.
+ */
+package com.caladan.latency.measure;
+
+import com.caladan.latency.util.TimerWheel;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+
+public class UDPEchoMeasurer implements Selectable {
+
+    /** Marks datagrams of this measurer; anything else is ignored */
+    static final int MAGIC = 0x4C4D4543; // "LMEC"
+
+    /** Magic, sequence number, send time */
+    public static final int HEADER_BYTES = 4 + 8 + 8;
+
+    private final ResolverCache.Endpoint endpoint;
+    private final String targetHost;
+    private final int targetPort;
+    private final int timeoutMs;
+    private final long timeoutNanos;
+
+    // Outstanding datagrams by sequence & mask; slotSequence -1 marks a free slot and
+    // givenUp(sequence) one whose datagram was counted lost, until the slot is reused
+    private int mask;
+    private long[] slotSequence;
+    private long[] slotIntendedStart;
+    private long[] slotSent;
+
+    private final ByteBuffer sendBuffer;
+    private final ByteBuffer receiveBuffer;
+
+    private DatagramChannel channel;
+    private TimerWheel wheel;
+    private EchoListener listener;
+
+    private long nextSequence;
+    private long oldestSequence;
+    private long highestReceived = -1;
+    private int outstanding;
+
+    // Single writer (reactor thread), read by the reporter
+    private volatile long reordered;
+    private volatile long duplicates;
+    private volatile long late;
+
+    private final TimerWheel.Timeout lossCheck = new TimerWheel.Timeout() {
+        @Override
+        protected void onTimeout(long nowNanos) {
+            expireLost(nowNanos);
+        }
+    };
+
+    /**
+     * @param payloadBytes datagram size, at least HEADER_BYTES
+     * @param window maximum outstanding datagrams, rounded up to a power of two
+     */
+    public UDPEchoMeasurer(ResolverCache.Endpoint endpoint, int timeoutMs, int payloadBytes, int window) {
+        if (payloadBytes < HEADER_BYTES || payloadBytes > 65_507) {
+            throw new IllegalArgumentException("UDP payload must be " + HEADER_BYTES + " to 65507 bytes: " + payloadBytes);
+        }
+        this.endpoint = endpoint;
+        this.targetHost = endpoint.getHost();
+        this.targetPort = endpoint.getPort();
+        this.timeoutMs = timeoutMs;
+        this.timeoutNanos = timeoutMs * 1_000_000L;
+
+        int slots = slots(window);
+        this.mask = slots - 1;
+        this.slotSequence = new long[slots];
+        this.slotIntendedStart = new long[slots];
+        this.slotSent = new long[slots];
+        Arrays.fill(slotSequence, -1);
+
+        // Payload beyond the header stays zero
+        this.sendBuffer = ByteBuffer.allocateDirect(payloadBytes);
+        this.receiveBuffer = ByteBuffer.allocateDirect(65_536);
+    }
+
+    /**
+     * Open the channel and register it with the reactor's selector.
+     */
+    public void open(Selector selector, TimerWheel wheel, EchoListener listener) throws IOException {
+        this.wheel = wheel;
+        this.listener = listener;
+        DatagramChannel opened = DatagramChannel.open();
+        try {
+            opened.configureBlocking(false);
+            // Echoes queue here whenever the reactor is busy sending
+            opened.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            opened.connect(endpoint.socketAddress());
+            opened.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException | RuntimeException e) {
+            opened.close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+        }
+        this.channel = opened;
+    }
+
+    /**
+     * Grow the ring to hold at least this many outstanding datagrams, for a
+     * raised rate; on the reactor thread. The ring never shrinks.
+     */
+    public void ensureWindow(int window) {
+        int slots = slots(window);
+        if (slots <= mask + 1) {
+            return;
+        }
+        long[] sequences = new long[slots];
+        long[] intendedStarts = new long[slots];
+        long[] sent = new long[slots];
+        Arrays.fill(sequences, -1);
+        // Everything in the ring is within its size of the next sequence, so nothing collides
+        for (int slot = 0; slot <= mask; slot++) {
+            long held = slotSequence[slot];
+            if (held != -1) {
+                int moved = (int) ((held >= 0 ? held : givenUp(held)) & (slots - 1));
+                sequences[moved] = held;
+                intendedStarts[moved] = slotIntendedStart[slot];
+                sent[moved] = slotSent[slot];
+            }
+        }
+        slotSequence = sequences;
+        slotIntendedStart = intendedStarts;
+        slotSent = sent;
+        mask = slots - 1;
+    }
+
+    public boolean isOpen() {
+        return channel != null && channel.isOpen();
+    }
+
+    /**
+     * Send one datagram.
+     *
+     * @return null if sent, otherwise why it could not be sent
+     */
+    public FailureReason send(long intendedStartNanos) {
+        long sequence = nextSequence;
+        int slot = (int) (sequence & mask);
+        if (slotSequence[slot] >= 0) {
+            // A whole ring of datagrams later, the one in this slot is not coming back
+            expire(slot, System.nanoTime());
+            advanceOldest();
+        }
+        long sentNanos = System.nanoTime();
+        sendBuffer.clear();
+        sendBuffer.putInt(MAGIC).putLong(sequence).putLong(sentNanos);
+        sendBuffer.position(0);
+        try {
+            if (channel.write(sendBuffer) == 0) {
+                // Socket send buffer full
+                return FailureReason.LOCAL;
+            }
+        } catch (IOException e) {
+            // PortUnreachableException reports an earlier ICMP error on a connected channel
+            return FailureReason.classify(e);
+        }
+
+        slotSequence[slot] = sequence;
+        slotIntendedStart[slot] = intendedStartNanos;
+        slotSent[slot] = sentNanos;
+        nextSequence = sequence + 1;
+        if (outstanding++ == 0) {
+            wheel.schedule(lossCheck, sentNanos + timeoutNanos);
+        }
+        return null;
+    }
+
+    /**
+     * Drain every echo waiting on the socket.
+     */
+    @Override
+    public void selected() {
+        while (true) {
+            receiveBuffer.clear();
+            int read;
+            try {
+                read = channel.read(receiveBuffer);
+            } catch (PortUnreachableException e) {
+                // ICMP error for an earlier datagram, which shows up as lost
+                continue;
+            } catch (IOException e) {
+                return;
+            }
+            if (read <= 0) {
+                return;
+            }
+            long receivedNanos = System.nanoTime();
+            if (read < HEADER_BYTES || receiveBuffer.getInt(0) != MAGIC) {
+                continue;
+            }
+            received(receiveBuffer.getLong(4), receivedNanos);
+        }
+    }
+
+    private void received(long sequence, long receivedNanos) {
+        int slot = (int) (sequence & mask);
+        long held = slotSequence[slot];
+        if (sequence < 0 || sequence >= nextSequence) {
+            duplicates++;
+            return;
+        }
+        if (held != sequence) {
+            if (held == givenUp(sequence)) {
+                // Counted as lost; any further copy is a duplicate
+                slotSequence[slot] = -1;
+                late++;
+            } else if (nextSequence - sequence > mask + 1) {
+                // Its slot has been reused since, which only happens long after it was given up on
+                late++;
+            } else {
+                duplicates++;
+            }
+            return;
+        }
+        slotSequence[slot] = -1;
+        outstanding--;
+        if (sequence < highestReceived) {
+            reordered++;
+        } else {
+            highestReceived = sequence;
+        }
+        listener.echoReceived(slotIntendedStart[slot], slotSent[slot], receivedNanos);
+        advanceOldest();
+    }
+
+    /**
+     * Give up on datagrams outstanding for longer than the timeout.
+     */
+    private void expireLost(long nowNanos) {
+        while (oldestSequence < nextSequence) {
+            int slot = (int) (oldestSequence & mask);
+            if (slotSequence[slot] == oldestSequence) {
+                if (slotSent[slot] + timeoutNanos > nowNanos) {
+                    wheel.schedule(lossCheck, slotSent[slot] + timeoutNanos);
+                    return;
+                }
+                expire(slot, nowNanos);
+            }
+            oldestSequence++;
+        }
+    }
+
+    private void expire(int slot, long nowNanos) {
+        slotSequence[slot] = givenUp(slotSequence[slot]);
+        outstanding--;
+        listener.echoLost(slotIntendedStart[slot], slotSent[slot], nowNanos);
+    }
+
+    /**
+     * Slot marker of a sequence given up on as lost, and back; distinct from -1.
+     */
+    private static long givenUp(long sequence) {
+        return -2 - sequence;
+    }
+
+    private static int slots(int window) {
+        return Integer.highestOneBit(Math.max(2, window) - 1) << 1;
+    }
+
+    private void advanceOldest() {
+        while (oldestSequence < nextSequence && slotSequence[(int) (oldestSequence & mask)] != oldestSequence) {
+            oldestSequence++;
+        }
+        if (outstanding == 0) {
+            lossCheck.cancel();
+        }
+    }
+
+    public int outstanding() {
+        return outstanding;
+    }
+
+    public long reordered() {
+        return reordered;
+    }
+
+    public long duplicates() {
+        return duplicates;
+    }
+
+    public long late() {
+        return late;
+    }
+
+    public String getTargetHost() {
+        return targetHost;
+    }
+
+    public int getTargetPort() {
+        return targetPort;
+    }
+
+    public int getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * Receives echo outcomes, on the reactor thread.
+     */
+    public interface EchoListener {
+        void echoReceived(long intendedStartNanos, long sentNanos, long receivedNanos);
+
+        void echoLost(long intendedStartNanos, long sentNanos, long nowNanos);
+    }
+}
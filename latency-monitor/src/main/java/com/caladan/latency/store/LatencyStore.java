@@ -0,0 +1,170 @@
+/*
+ * LatencyStore - Embedded time-series store of interval histograms.
+ * Keeps every target's service and response histograms in three tiers,
+ * 1 s for an hour, 1 min for a day and 1 h for 30 days, each compacted from
+ * the finer one by merging histograms and kept in memory-mapped segment
+ * files with an in-memory time index rebuilt on startup. A range query merges
+ * the records of a single tier, the coarsest one that resolves the range.
+ */
+package com.caladan.latency.store;
+
+import com.caladan.latency.util.IntervalSink;
+import com.caladan.latency.util.TimingInterval;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public final class LatencyStore implements IntervalSink {
+
+    public static final String SERVICE_SERIES = "service";
+    public static final String RESPONSE_SERIES = "response";
+
+    // A tier is used for a range only if the range spans at least this many of its records
+    private static final int MIN_RECORDS_PER_QUERY = 60;
+
+    private final Path directory;
+
+    // Finest first
+    private final Tier[] tiers;
+
+    // Appends from the reporter thread, queries from HTTP threads
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long lastExpireMs;
+
+    public LatencyStore(Path directory, int segmentBytes) throws IOException {
+        if (segmentBytes < 64 * 1024) {
+            throw new IllegalArgumentException("Segments must be at least 64 KiB: " + segmentBytes);
+        }
+        this.directory = Files.createDirectories(directory);
+        Tier hours = new Tier("1h", 3_600_000L, 30 * 86_400_000L, directory.resolve("1h"), segmentBytes, null);
+        Tier minutes = new Tier("1m", 60_000L, 86_400_000L, directory.resolve("1m"), segmentBytes, hours);
+        Tier seconds = new Tier("1s", 1_000L, 3_600_000L, directory.resolve("1s"), segmentBytes, minutes);
+        this.tiers = new Tier[] {seconds, minutes, hours};
+        for (Tier tier : tiers) {
+            tier.open();
+        }
+        expire(System.currentTimeMillis());
+    }
+
+    /**
+     * Store one interval of a target. Histograms must carry their start and
+     * end time stamps, as those produced by a Recorder do.
+     */
+    @Override
+    public void write(String target, TimingInterval interval) {
+        if (interval.operationCount == 0) {
+            return;
+        }
+        Histogram service = interval.getServiceTimesHistogram();
+        Histogram response = interval.getResponseTimesHistogram();
+        lock.writeLock().lock();
+        try {
+            tiers[0].add(target + "/" + SERVICE_SERIES, service, service.getStartTimeStamp(), service.getEndTimeStamp());
+            tiers[0].add(target + "/" + RESPONSE_SERIES, response, response.getStartTimeStamp(), response.getEndTimeStamp());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void flush() {
+        long nowMs = System.currentTimeMillis();
+        if (nowMs - lastExpireMs >= 60_000L) {
+            expire(nowMs);
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            // Finest first, so partial buckets cascade into the coarser tiers before they close
+            for (Tier tier : tiers) {
+                tier.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Merge one series of a target over [fromMs, toMs).
+     *
+     * @param series SERVICE_SERIES or RESPONSE_SERIES
+     */
+    public QueryResult query(String target, String series, long fromMs, long toMs) {
+        Tier tier = selectTier(fromMs, toMs, System.currentTimeMillis());
+        Histogram merged = new Histogram(3);
+        int records;
+        lock.readLock().lock();
+        try {
+            records = tier.merge(target + "/" + series, fromMs, toMs, merged);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new QueryResult(tier.name, tier.resolutionMs, records, merged);
+    }
+
+    /**
+     * The coarsest tier that still retains the start of the range and has at
+     * least MIN_RECORDS_PER_QUERY records across it; otherwise the finest tier
+     * that retains the start, or the coarsest tier for ranges older than every retention.
+     */
+    Tier selectTier(long fromMs, long toMs, long nowMs) {
+        Tier finestRetaining = null;
+        for (Tier tier : tiers) {
+            if (fromMs >= nowMs - tier.retentionMs) {
+                finestRetaining = tier;
+                break;
+            }
+        }
+        if (finestRetaining == null) {
+            return tiers[tiers.length - 1];
+        }
+        for (int i = tiers.length - 1; i >= 0 && tiers[i] != finestRetaining; i--) {
+            if ((toMs - fromMs) / tiers[i].resolutionMs >= MIN_RECORDS_PER_QUERY) {
+                return tiers[i];
+            }
+        }
+        return finestRetaining;
+    }
+
+    private void expire(long nowMs) {
+        lock.writeLock().lock();
+        try {
+            for (Tier tier : tiers) {
+                tier.force();
+                tier.expire(nowMs);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        lastExpireMs = nowMs;
+    }
+
+    @Override
+    public String toString() {
+        return "latency store " + directory;
+    }
+
+    /**
+     * Result of a range query.
+     */
+    public static final class QueryResult {
+        public final String tier;
+        public final long resolutionMs;
+        public final int records;
+        public final Histogram histogram;
+
+        QueryResult(String tier, long resolutionMs, int records, Histogram histogram) {
+            this.tier = tier;
+            this.resolutionMs = resolutionMs;
+            this.records = records;
+            this.histogram = histogram;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Segment - Memory-mapped, append-only file of compressed histogram records.
+ * Record layout: int length (of what follows), short tag length, tag bytes,
+ * long start ms, long end ms, int histogram length, compressed histogram.
+ * Unwritten space reads as a zero length, which marks the end on reopen.
+ * Not thread-safe: the LatencyStore lock guards every access.
+ */
+package com.caladan.latency.store;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+
+final class Segment implements Closeable {
+
+    private static final int MAGIC = 0x4C545331; // "LTS1"
+    private static final int HEADER_BYTES = 8;
+
+    /**
+     * Receives every record found when an existing segment is opened.
+     */
+    interface RecordVisitor {
+        void visit(Segment segment, String tag, long startMs, long endMs, int offset);
+    }
+
+    final long id;
+    final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int position;
+    private long createdMs;
+    private long maxEndMs = Long.MIN_VALUE;
+
+    private Segment(long id, Path file, FileChannel channel, MappedByteBuffer buffer) {
+        this.id = id;
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Create and map a new segment of a fixed capacity.
+     */
+    static Segment create(Path file, long id, int capacity, long nowMs) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        segment.buffer.putInt(0, MAGIC);
+        segment.position = HEADER_BYTES;
+        segment.createdMs = nowMs;
+        return segment;
+    }
+
+    /**
+     * Map an existing segment and report its records. Reopened segments are not appended to.
+     */
+    static Segment open(Path file, long id, RecordVisitor visitor) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        ByteBuffer buffer = segment.buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            segment.close();
+            throw new IOException("Not a latency store segment: " + file);
+        }
+
+        int offset = HEADER_BYTES;
+        while (offset + Integer.BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + Integer.BYTES + length > buffer.capacity()) {
+                break;
+            }
+            int tagLength = buffer.getShort(offset + 4);
+            byte[] tag = new byte[tagLength];
+            buffer.get(offset + 6, tag);
+            long startMs = buffer.getLong(offset + 6 + tagLength);
+            long endMs = buffer.getLong(offset + 14 + tagLength);
+            visitor.visit(segment, new String(tag, StandardCharsets.UTF_8), startMs, endMs, offset);
+            segment.maxEndMs = Math.max(segment.maxEndMs, endMs);
+            offset += Integer.BYTES + length;
+        }
+        segment.position = buffer.capacity();
+        segment.createdMs = Files.getLastModifiedTime(file).toMillis();
+        return segment;
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param histogram compressed histogram between position and limit
+     * @return offset of the record, or -1 if the segment is full
+     */
+    int append(byte[] tag, long startMs, long endMs, ByteBuffer histogram) {
+        int histogramLength = histogram.remaining();
+        int length = 2 + tag.length + 8 + 8 + 4 + histogramLength;
+        if (position + Integer.BYTES + length > buffer.capacity()) {
+            return -1;
+        }
+        int offset = position;
+        buffer.position(offset);
+        buffer.putInt(0); // length last, so a torn record reads as the end
+        buffer.putShort((short) tag.length);
+        buffer.put(tag);
+        buffer.putLong(startMs);
+        buffer.putLong(endMs);
+        buffer.putInt(histogramLength);
+        buffer.put(histogram);
+        buffer.putInt(offset, length);
+        position = offset + Integer.BYTES + length;
+        maxEndMs = Math.max(maxEndMs, endMs);
+        return offset;
+    }
+
+    /**
+     * Decode the histogram of the record at an offset.
+     */
+    Histogram read(int offset) {
+        int tagLength = buffer.getShort(offset + 4);
+        int histogramOffset = offset + 6 + tagLength + 16;
+        int histogramLength = buffer.getInt(histogramOffset);
+        ByteBuffer slice = buffer.slice(histogramOffset + 4, histogramLength);
+        try {
+            return Histogram.decodeFromCompressedByteBuffer(slice, 0);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt record at " + offset + " in " + file, e);
+        }
+    }
+
+    long createdMs() {
+        return createdMs;
+    }
+
+    /**
+     * Latest end time of any record, Long.MIN_VALUE if empty.
+     */
+    long maxEndMs() {
+        return maxEndMs;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * SeriesIndex - Time index of one series (target/series tag) within a tier.
+ * Records arrive in time order, so the index is a set of parallel arrays
+ * searched by binary search. Expired segments are always the oldest, so
+ * their entries are a prefix and are dropped by advancing the head.
+ */
+package com.caladan.latency.store;
+
+final class SeriesIndex {
+
+    private long[] startMs = new long[64];
+    private Segment[] segments = new Segment[64];
+    private int[] offsets = new int[64];
+    private int head;
+    private int size;
+
+    void add(long recordStartMs, Segment segment, int offset) {
+        if (size == startMs.length) {
+            grow();
+        }
+        startMs[size] = recordStartMs;
+        segments[size] = segment;
+        offsets[size] = offset;
+        size++;
+    }
+
+    /**
+     * Index of the first record starting at or after a time.
+     */
+    int firstAtOrAfter(long timeMs) {
+        int low = head;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (startMs[middle] < timeMs) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    int end() {
+        return size;
+    }
+
+    long startMs(int index) {
+        return startMs[index];
+    }
+
+    Segment segment(int index) {
+        return segments[index];
+    }
+
+    int offset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Drop the leading entries stored in a deleted segment.
+     */
+    void dropSegment(Segment segment) {
+        while (head < size && segments[head] == segment) {
+            segments[head++] = null;
+        }
+    }
+
+    boolean isEmpty() {
+        return head == size;
+    }
+
+    private void grow() {
+        // Reclaim the dropped prefix before growing
+        int live = size - head;
+        int capacity = live * 2 > startMs.length ? startMs.length * 2 : startMs.length;
+        long[] newStartMs = new long[capacity];
+        Segment[] newSegments = new Segment[capacity];
+        int[] newOffsets = new int[capacity];
+        System.arraycopy(startMs, head, newStartMs, 0, live);
+        System.arraycopy(segments, head, newSegments, 0, live);
+        System.arraycopy(offsets, head, newOffsets, 0, live);
+        startMs = newStartMs;
+        segments = newSegments;
+        offsets = newOffsets;
+        head = 0;
+        size = live;
+    }
+}
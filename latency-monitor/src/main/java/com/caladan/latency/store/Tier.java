@@ -0,0 +1,260 @@
+/*
+ * Tier - One resolution of the LatencyStore (e.g. 1 minute kept for a day).
+ * Incoming histograms are merged per series into the bucket of the tier's
+ * resolution; a completed bucket is appended to the current segment, indexed
+ * and handed on to the next, coarser tier. Segments older than the retention
+ * are deleted whole.
+ */
+package com.caladan.latency.store;
+
+import org.HdrHistogram.AbstractHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.PackedHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+final class Tier {
+
+    private static final Logger logger = LoggerFactory.getLogger(Tier.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    // Segments roll over at least this often, so expiry frees space gradually
+    private static final int SEGMENTS_PER_RETENTION = 8;
+
+    final String name;
+    final long resolutionMs;
+    final long retentionMs;
+    private final Path directory;
+    private final int segmentBytes;
+    private final Tier next;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private Segment active;
+    private long nextSegmentId;
+
+    private final Map<String, SeriesIndex> index = new HashMap<>();
+    private final Map<String, Bucket> buckets = new HashMap<>();
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(4096);
+
+    /**
+     * @param next coarser tier fed with every completed bucket, or null
+     */
+    Tier(String name, long resolutionMs, long retentionMs, Path directory, int segmentBytes, Tier next) {
+        this.name = name;
+        this.resolutionMs = resolutionMs;
+        this.retentionMs = retentionMs;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.next = next;
+    }
+
+    /**
+     * Map the segments left by a previous run and rebuild the index.
+     */
+    void open() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                .sorted()
+                .forEach(files::add);
+        }
+        for (Path file : files) {
+            String fileName = file.getFileName().toString();
+            long id;
+            try {
+                id = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            try {
+                segments.addLast(Segment.open(file, id, (segment, tag, startMs, endMs, offset) ->
+                    index.computeIfAbsent(tag, t -> new SeriesIndex()).add(startMs, segment, offset)));
+            } catch (IOException e) {
+                logger.warn("Skipping unreadable segment {}: {}", file, e.getMessage());
+            }
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+        }
+    }
+
+    /**
+     * Merge an interval into the bucket of its start time. The bucket is
+     * stored once an interval reaches its end.
+     */
+    void add(String tag, AbstractHistogram histogram, long startMs, long endMs) {
+        long bucketStart = Math.floorDiv(startMs, resolutionMs) * resolutionMs;
+        Bucket bucket = buckets.get(tag);
+        if (bucket == null) {
+            bucket = new Bucket(bucketStart);
+            buckets.put(tag, bucket);
+        } else if (bucket.bucketStartMs != bucketStart) {
+            complete(tag, bucket);
+            bucket.reset(bucketStart);
+        }
+        bucket.histogram.add(histogram);
+        bucket.startMs = Math.min(bucket.startMs, startMs);
+        bucket.endMs = Math.max(bucket.endMs, endMs);
+        if (endMs >= bucketStart + resolutionMs) {
+            complete(tag, bucket);
+            bucket.reset(bucketStart + resolutionMs);
+        }
+    }
+
+    /**
+     * Merge every record of a series starting within [fromMs, toMs), including
+     * the partially filled bucket.
+     *
+     * @return number of records merged
+     */
+    int merge(String tag, long fromMs, long toMs, Histogram into) {
+        int records = 0;
+        SeriesIndex series = index.get(tag);
+        if (series != null) {
+            for (int i = series.firstAtOrAfter(fromMs); i < series.end() && series.startMs(i) < toMs; i++) {
+                into.add(series.segment(i).read(series.offset(i)));
+                records++;
+            }
+        }
+        // The bucket still being filled, so recent data shows up before it completes
+        Bucket bucket = buckets.get(tag);
+        if (bucket != null && bucket.histogram.getTotalCount() > 0
+                && bucket.startMs >= fromMs && bucket.startMs < toMs) {
+            into.add(bucket.histogram);
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Delete segments whose every record is past the retention.
+     */
+    void expire(long nowMs) {
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.peekFirst();
+            if (oldest == active || oldest.maxEndMs() >= nowMs - retentionMs) {
+                break;
+            }
+            segments.removeFirst();
+            for (SeriesIndex series : index.values()) {
+                series.dropSegment(oldest);
+            }
+            index.values().removeIf(SeriesIndex::isEmpty);
+            try {
+                oldest.delete();
+            } catch (IOException e) {
+                logger.warn("Cannot delete expired segment {}: {}", oldest.file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Store every partially filled bucket, then sync and unmap the segments.
+     */
+    void close() {
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            complete(entry.getKey(), entry.getValue());
+        }
+        buckets.clear();
+        for (Segment segment : segments) {
+            try {
+                segment.force();
+                segment.close();
+            } catch (IOException e) {
+                logger.warn("Error closing segment {}: {}", segment.file, e.getMessage());
+            }
+        }
+        segments.clear();
+        active = null;
+    }
+
+    void force() {
+        if (active != null) {
+            active.force();
+        }
+    }
+
+    private void complete(String tag, Bucket bucket) {
+        if (bucket.histogram.getTotalCount() == 0) {
+            return;
+        }
+        append(tag, bucket.histogram, bucket.startMs, bucket.endMs);
+        if (next != null) {
+            next.add(tag, bucket.histogram, bucket.startMs, bucket.endMs);
+        }
+    }
+
+    private void append(String tag, AbstractHistogram histogram, long startMs, long endMs) {
+        int needed = histogram.getNeededByteBufferCapacity();
+        if (encodeBuffer.capacity() < needed) {
+            encodeBuffer = ByteBuffer.allocate(needed);
+        }
+        encodeBuffer.clear();
+        histogram.encodeIntoCompressedByteBuffer(encodeBuffer);
+        encodeBuffer.flip();
+
+        byte[] tagBytes = tag.getBytes(StandardCharsets.UTF_8);
+        long nowMs = System.currentTimeMillis();
+        if (active == null || nowMs - active.createdMs() >= retentionMs / SEGMENTS_PER_RETENTION) {
+            roll(nowMs);
+        }
+        int offset = active.append(tagBytes, startMs, endMs, encodeBuffer);
+        if (offset < 0) {
+            roll(nowMs);
+            encodeBuffer.rewind();
+            offset = active.append(tagBytes, startMs, endMs, encodeBuffer);
+            if (offset < 0) {
+                throw new IllegalStateException("Histogram of " + tag + " does not fit a " + segmentBytes + " byte segment");
+            }
+        }
+        index.computeIfAbsent(tag, t -> new SeriesIndex()).add(startMs, active, offset);
+    }
+
+    private void roll(long nowMs) {
+        if (active != null) {
+            active.force();
+        }
+        Path file = directory.resolve(String.format("%016d%s", nextSegmentId, SEGMENT_SUFFIX));
+        try {
+            active = Segment.create(file, nextSegmentId++, segmentBytes, nowMs);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create segment " + file, e);
+        }
+        segments.addLast(active);
+    }
+
+    /**
+     * Histogram being accumulated for the current bucket of one series.
+     */
+    private static final class Bucket {
+        // Packed: thousands of series keep a bucket open in every tier
+        final Histogram histogram = new PackedHistogram(3);
+        long bucketStartMs;
+        long startMs;
+        long endMs;
+
+        Bucket(long bucketStartMs) {
+            reset(bucketStartMs);
+        }
+
+        void reset(long bucketStartMs) {
+            histogram.reset();
+            this.bucketStartMs = bucketStartMs;
+            this.startMs = Long.MAX_VALUE;
+            this.endMs = Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * CompactHistogram - A small fixed-size latency histogram for when there are
+ * too many of them for HdrHistogram, e.g. one per ECMP flow of hundreds of
+ * targets. Log-linear buckets with 8 sub-buckets per power of two cover
+ * 1 us to about an hour at 12.5% resolution in 240 int counters (under 1 KB).
+ * Recording is lock-free and allocation-free from any thread; the reader
+ * drains the counts into a scratch array, which also resets them.
+ */
+package com.caladan.latency.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public final class CompactHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Values are microseconds, capped at 2^32 - 1 (about 71 minutes) */
+    public static final int BUCKETS = (32 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /** Estimated heap taken by one histogram: its counters plus object and array headers */
+    public static final long FOOTPRINT_BYTES = BUCKETS * 4L + 48;
+
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(BUCKETS);
+
+    public void recordNanos(long nanos) {
+        counts.incrementAndGet(index(nanos / 1000));
+    }
+
+    /**
+     * Move the counts recorded so far into the given array and reset them.
+     * Values recorded meanwhile land either in this drain or in the next.
+     *
+     * @param into BUCKETS long, overwritten
+     * @return the number of values drained
+     */
+    public long drainTo(int[] into) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            into[i] = counts.getAndSet(i, 0);
+            total += into[i];
+        }
+        return total;
+    }
+
+    /**
+     * Bucket of a value: exact below 8 us, then 8 linear sub-buckets per power of two.
+     */
+    static int index(long valueUs) {
+        long value = Math.min(Math.max(valueUs, 0), 0xFFFF_FFFFL);
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Lowest value of a bucket, in microseconds.
+     */
+    static long lowestUs(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Value at a percentile of drained counts, as the middle of its bucket, in microseconds.
+     *
+     * @param counts as filled by drainTo()
+     * @param total  as returned by drainTo()
+     */
+    public static double percentileUs(int[] counts, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long low = lowestUs(i);
+                long high = i + 1 < BUCKETS ? lowestUs(i + 1) : 2 * low;
+                return (low + high) / 2.0;
+            }
+        }
+        return lowestUs(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * HistogramSettings - Range, precision and layout of a target's latency
+ * histograms. A histogram covering 1 ns to 1 hour at 3 significant digits
+ * is a flat array of about 33,000 counters (over 250 KB), and a target keeps
+ * a dozen of them between its recorders, cumulative histograms and rolling
+ * windows. Latencies are reported in microseconds, so the default is 1 us
+ * resolution in packed histograms, which only take memory for the buckets
+ * actually recorded: a few KB for a typical latency distribution.
+ */
+package com.caladan.latency.util;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.PackedHistogram;
+import org.HdrHistogram.Recorder;
+
+public final class HistogramSettings {
+
+    public static final HistogramSettings DEFAULT = new HistogramSettings(1000, 3_600_000_000_000L, 3, true);
+
+    // Per instance, besides the counts: the histogram object and the iterators it keeps for reuse
+    private static final long INSTANCE_BYTES = 640;
+
+    /** Values closer together than this may share a bucket; 1000 is microsecond resolution */
+    public final long lowestNanos;
+
+    /** Values above this are recorded as this, so no outlier can grow a histogram */
+    public final long highestNanos;
+
+    /** Precision: relative error of 10^-digits */
+    public final int significantDigits;
+
+    /** Packed histograms: memory for recorded buckets only, at somewhat slower recording */
+    public final boolean packed;
+
+    public HistogramSettings(long lowestNanos, long highestNanos, int significantDigits, boolean packed) {
+        if (lowestNanos < 1 || highestNanos < 2 * lowestNanos) {
+            throw new IllegalArgumentException("Invalid histogram range: " + lowestNanos + "-" + highestNanos + " ns");
+        }
+        if (significantDigits < 0 || significantDigits > 5) {
+            throw new IllegalArgumentException("Histogram precision must be 0 to 5 digits: " + significantDigits);
+        }
+        this.lowestNanos = lowestNanos;
+        this.highestNanos = highestNanos;
+        this.significantDigits = significantDigits;
+        this.packed = packed;
+    }
+
+    public Histogram newHistogram() {
+        return packed ? new PackedHistogram(lowestNanos, highestNanos, significantDigits)
+            : new Histogram(lowestNanos, highestNanos, significantDigits);
+    }
+
+    /**
+     * A recorder whose interval histograms add into newHistogram() ones. HdrHistogram
+     * has no packed recorder with a range, so packed recorders ignore lowestNanos and
+     * resolve nanoseconds, which only costs their few buckets; clamp() still caps values.
+     */
+    public Recorder newRecorder() {
+        return packed ? new Recorder(significantDigits, true)
+            : new Recorder(lowestNanos, highestNanos, significantDigits);
+    }
+
+    /**
+     * A value to record, capped at the highest trackable value.
+     */
+    public long clamp(long nanos) {
+        return Math.min(nanos, highestNanos);
+    }
+
+    /**
+     * Estimated heap taken by a histogram, or 0 for null. HdrHistogram's own
+     * estimate covers the counts; for the small packed histograms this is
+     * often less than the objects around them.
+     */
+    public static long footprintBytes(Histogram histogram) {
+        return histogram == null ? 0 : histogram.getEstimatedFootprintInBytes() + INSTANCE_BYTES;
+    }
+
+    @Override
+    public String toString() {
+        return lowestNanos + "-" + highestNanos + " ns, " + significantDigits + " digits" + (packed ? ", packed" : "");
+    }
+}
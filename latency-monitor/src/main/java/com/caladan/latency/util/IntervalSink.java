@@ -0,0 +1,35 @@
+/*
+ * IntervalSink - Consumer of every target's reporting intervals.
+ * Called on the IntervalReporter thread after statistics are published;
+ * the interval's histograms are recycled once write() returns.
+ */
+package com.caladan.latency.util;
+
+import java.io.Closeable;
+
+public interface IntervalSink extends Closeable {
+
+    /**
+     * Consume one interval of a target (host:port).
+     */
+    void write(String target, TimingInterval interval);
+
+    /**
+     * Consume one interval of a target along with the probes that failed in it,
+     * which the interval's histograms do not count.
+     */
+    default void write(String target, TimingInterval interval, long failures) {
+        write(target, interval);
+    }
+
+    /**
+     * Called once per reporting interval, after every target was written.
+     */
+    void flush();
+
+    /**
+     * Called once when the monitor stops, after the final interval.
+     */
+    @Override
+    void close();
+}
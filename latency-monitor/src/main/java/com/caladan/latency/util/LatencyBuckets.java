@@ -0,0 +1,122 @@
+/*
+ * LatencyBuckets - Fixed bucket boundaries for histogram exposition.
+ * Prometheus histograms can be summed across targets, monitors and time,
+ * unlike precomputed quantiles, as long as everyone uses the same upper
+ * bounds. Counts are accumulated per interval from the HdrHistogram data.
+ */
+package com.caladan.latency.util;
+
+import org.HdrHistogram.AbstractHistogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import java.util.Arrays;
+
+public final class LatencyBuckets {
+
+    /** Log-linear defaults: 1, 2 and 5 of every decade from 10us to 10s */
+    public static final LatencyBuckets DEFAULT = logLinear(10, 10_000_000, new double[] {1, 2, 5});
+
+    // Inclusive upper bounds, ascending; +Inf is implicit
+    private final double[] upperBoundsUs;
+    private final long[] upperBoundsNs;
+
+    public LatencyBuckets(double[] upperBoundsUs) {
+        if (upperBoundsUs.length == 0) {
+            throw new IllegalArgumentException("At least one bucket boundary is required");
+        }
+        for (int i = 0; i < upperBoundsUs.length; i++) {
+            if (!(upperBoundsUs[i] > 0) || Double.isInfinite(upperBoundsUs[i])
+                    || (i > 0 && upperBoundsUs[i] <= upperBoundsUs[i - 1])) {
+                throw new IllegalArgumentException("Bucket boundaries must be positive, finite and ascending: "
+                    + Arrays.toString(upperBoundsUs));
+            }
+        }
+        this.upperBoundsUs = upperBoundsUs.clone();
+        this.upperBoundsNs = new long[upperBoundsUs.length];
+        for (int i = 0; i < upperBoundsUs.length; i++) {
+            upperBoundsNs[i] = Math.round(upperBoundsUs[i] * 1000.0);
+        }
+    }
+
+    /**
+     * Boundaries at each multiplier of every power of ten within [minUs, maxUs].
+     */
+    public static LatencyBuckets logLinear(double minUs, double maxUs, double[] multipliers) {
+        double[] bounds = new double[64];
+        int count = 0;
+        for (double decade = Math.pow(10, Math.floor(Math.log10(minUs))); decade <= maxUs; decade *= 10) {
+            for (double multiplier : multipliers) {
+                double bound = decade * multiplier;
+                if (bound >= minUs && bound <= maxUs) {
+                    if (count == bounds.length) {
+                        bounds = Arrays.copyOf(bounds, count * 2);
+                    }
+                    bounds[count++] = bound;
+                }
+            }
+        }
+        return new LatencyBuckets(Arrays.copyOf(bounds, count));
+    }
+
+    /**
+     * Parse a comma separated list of upper bounds in microseconds.
+     */
+    public static LatencyBuckets parse(String spec) {
+        String[] parts = spec.trim().split("\\s*,\\s*");
+        double[] bounds = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            bounds[i] = Double.parseDouble(parts[i]);
+        }
+        return new LatencyBuckets(bounds);
+    }
+
+    /**
+     * Number of finite buckets; count arrays have one more slot for +Inf.
+     */
+    public int size() {
+        return upperBoundsUs.length;
+    }
+
+    public double upperBoundUs(int index) {
+        return upperBoundsUs[index];
+    }
+
+    /**
+     * A zeroed count array, one slot per bucket plus +Inf.
+     */
+    public long[] newCounts() {
+        return new long[upperBoundsUs.length + 1];
+    }
+
+    /**
+     * Add every value of a nanosecond histogram to its bucket. Counts are per
+     * bucket, not cumulative; see cumulative().
+     */
+    public void accumulate(AbstractHistogram histogram, long[] counts) {
+        if (histogram.getTotalCount() == 0) {
+            return;
+        }
+        int bucket = 0;
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            // Values iterate in ascending order, so the bucket only moves forward
+            long valueNs = value.getValueIteratedTo();
+            while (bucket < upperBoundsNs.length && valueNs > upperBoundsNs[bucket]) {
+                bucket++;
+            }
+            counts[bucket] += value.getCountAtValueIteratedTo();
+        }
+    }
+
+    /**
+     * Cumulative (le) counts as exposed by Prometheus, last entry is +Inf.
+     */
+    public static long[] cumulative(long[] counts) {
+        long[] cumulative = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+}
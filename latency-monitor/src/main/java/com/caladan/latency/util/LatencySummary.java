@@ -0,0 +1,114 @@
+/*
+ * LatencySummary - Immutable summary of a latency histogram.
+ * Computes the mean and any number of percentiles in a single pass over the
+ * recorded values, instead of one full scan per getValueAtPercentile call.
+ */
+package com.caladan.latency.util;
+
+import org.HdrHistogram.AbstractHistogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+public final class LatencySummary {
+
+    /** Percentiles reported everywhere (dashboard, /json, /metrics) */
+    public static final double[] STANDARD_PERCENTILES = {50, 95, 99, 99.9};
+
+    public static final LatencySummary EMPTY =
+        new LatencySummary(0, 0, 0, 0, STANDARD_PERCENTILES, new double[STANDARD_PERCENTILES.length]);
+
+    public final long count;
+
+    // Microseconds
+    public final double meanUs;
+    public final double minUs;
+    public final double maxUs;
+
+    private final double[] percentiles;
+    private final double[] percentileValuesUs;
+
+    private LatencySummary(long count, double meanUs, double minUs, double maxUs,
+                           double[] percentiles, double[] percentileValuesUs) {
+        this.count = count;
+        this.meanUs = meanUs;
+        this.minUs = minUs;
+        this.maxUs = maxUs;
+        this.percentiles = percentiles;
+        this.percentileValuesUs = percentileValuesUs;
+    }
+
+    /**
+     * Summarize a histogram of nanosecond values with the standard percentiles.
+     */
+    public static LatencySummary of(AbstractHistogram histogram) {
+        return of(histogram, STANDARD_PERCENTILES);
+    }
+
+    /**
+     * Summarize a histogram of nanosecond values.
+     * Percentiles must be sorted ascending; results match getValueAtPercentile.
+     */
+    public static LatencySummary of(AbstractHistogram histogram, double[] percentiles) {
+        long totalCount = histogram.getTotalCount();
+        if (totalCount == 0) {
+            return new LatencySummary(0, 0, 0, 0, percentiles, new double[percentiles.length]);
+        }
+
+        // Count each percentile is reached at, as in AbstractHistogram.getValueAtPercentile
+        long[] countAtPercentile = new long[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            double requested = Math.min(Math.max(Math.nextAfter(percentiles[i], Double.NEGATIVE_INFINITY), 0.0), 100.0);
+            countAtPercentile[i] = Math.max(1, (long) Math.ceil((requested / 100.0) * totalCount));
+        }
+
+        double[] values = new double[percentiles.length];
+        int next = 0;
+        double totalValue = 0;
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            long valueIteratedTo = value.getValueIteratedTo();
+            totalValue += histogram.medianEquivalentValue(valueIteratedTo) * (double) value.getCountAtValueIteratedTo();
+            while (next < percentiles.length && value.getTotalCountToThisValue() >= countAtPercentile[next]) {
+                long atPercentile = percentiles[next] == 0.0
+                    ? histogram.lowestEquivalentValue(valueIteratedTo)
+                    : valueIteratedTo;
+                values[next++] = atPercentile / 1000.0;
+            }
+        }
+
+        return new LatencySummary(
+            totalCount,
+            totalValue / totalCount / 1000.0,
+            histogram.getMinNonZeroValue() / 1000.0,
+            histogram.getMaxValue() / 1000.0,
+            percentiles,
+            values
+        );
+    }
+
+    /**
+     * Value at one of the summarized percentiles, in microseconds.
+     */
+    public double percentileUs(double percentile) {
+        for (int i = 0; i < percentiles.length; i++) {
+            if (percentiles[i] == percentile) {
+                return percentileValuesUs[i];
+            }
+        }
+        throw new IllegalArgumentException("Percentile not summarized: " + percentile);
+    }
+
+    public double p50Us() {
+        return percentileUs(50);
+    }
+
+    public double p95Us() {
+        return percentileUs(95);
+    }
+
+    public double p99Us() {
+        return percentileUs(99);
+    }
+
+    public double p999Us() {
+        return percentileUs(99.9);
+    }
+}
@@ -2,15 +2,24 @@
  * Pacer for rate limiting with coordinated omission correction.
  * Based on Apache Cassandra's stress tool Pacer implementation.
  * Pre-calculates intended start times to enable accurate latency measurement.
+ * Waits with a configurable WaitStrategy and records how late each probe that
+ * waited for its slot actually started: the scheduling jitter, which is part
+ * of every response time but is the monitor's own doing.
  */
 package com.caladan.latency.util;
 
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
 public class Pacer {
     
     private long initialStartTime;
     private double throughputInUnitsPerNsec;
     private long unitsCompleted;
     
+    // Units completed when the schedule was last rebased by changeThroughput()
+    private long unitsAtInitialStart;
+    
     // Catch-up state
     private boolean caughtUp = true;
     private long catchUpStartTime;
@@ -18,13 +27,43 @@ public class Pacer {
     private double catchUpThroughputInUnitsPerNsec;
     private double catchUpRateMultiple;
     
+    // Waiting
+    private final WaitStrategy waitStrategy;
+    private final long spinNanos;
+    
+    // Start time last handed out by nsecToNextSend(), if it asked the caller to wait
+    private boolean scheduled;
+    private long scheduledStartTime;
+    private final HistogramSettings histograms;
+    private final Recorder schedulingJitter;
+    
     public Pacer(double unitsPerSec) {
         this(unitsPerSec, 3.0); // Default: catch up at 3x normal rate
     }
     
     public Pacer(double unitsPerSec, double catchUpRateMultiple) {
+        this(unitsPerSec, catchUpRateMultiple, WaitStrategy.PARK, WaitStrategy.DEFAULT_SPIN_NANOS);
+    }
+    
+    /**
+     * @param spinNanos spin window of the wait strategy, see WaitStrategy.leadNanos()
+     */
+    public Pacer(double unitsPerSec, double catchUpRateMultiple, WaitStrategy waitStrategy, long spinNanos) {
+        this(unitsPerSec, catchUpRateMultiple, waitStrategy, spinNanos, HistogramSettings.DEFAULT);
+    }
+    
+    /**
+     * @param spinNanos  spin window of the wait strategy, see WaitStrategy.leadNanos()
+     * @param histograms layout of the scheduling jitter histograms
+     */
+    public Pacer(double unitsPerSec, double catchUpRateMultiple, WaitStrategy waitStrategy, long spinNanos,
+                 HistogramSettings histograms) {
+        this.histograms = histograms;
+        this.schedulingJitter = histograms.newRecorder();
         setThroughput(unitsPerSec);
         setCatchupRateMultiple(catchUpRateMultiple);
+        this.waitStrategy = waitStrategy;
+        this.spinNanos = spinNanos;
         this.initialStartTime = System.nanoTime();
     }
     
@@ -32,11 +71,45 @@ public class Pacer {
         this.initialStartTime = initialStartTime;
     }
     
+    /**
+     * Re-time the whole schedule at a new rate; use changeThroughput() once probing.
+     */
     public void setThroughput(double unitsPerSec) {
         this.throughputInUnitsPerNsec = unitsPerSec / 1_000_000_000.0;
         this.catchUpThroughputInUnitsPerNsec = catchUpRateMultiple * throughputInUnitsPerNsec;
     }
     
+    /**
+     * Change the rate from the next send on, keeping the schedule so far.
+     * Setting the throughput would re-time every send since the start at the
+     * new rate, leaving a gap or a phantom backlog. Instead the schedule is
+     * rebased: if on pace, the next send moves to one new interval after the
+     * previous one (never into the past); if behind, the pending sends keep
+     * their intended start times and are caught up on at the new rate.
+     */
+    public void changeThroughput(double unitsPerSec) {
+        long now = System.nanoTime();
+        long next = expectedStartTimeNsec();
+        if (next > now) {
+            double previous = next - 1 / throughputInUnitsPerNsec;
+            next = Math.max(now, (long) (previous + 1_000_000_000.0 / unitsPerSec));
+        } else if (!caughtUp) {
+            // Catch up on the remaining backlog from here, at the new catch-up rate
+            catchUpStartTime = now;
+            unitsCompletedAtCatchUpStart = unitsCompleted;
+        }
+        initialStartTime = next;
+        unitsAtInitialStart = unitsCompleted;
+        setThroughput(unitsPerSec);
+    }
+    
+    /**
+     * Current rate in units per second.
+     */
+    public double getThroughput() {
+        return throughputInUnitsPerNsec * 1_000_000_000.0;
+    }
+    
     public void setCatchupRateMultiple(double multiple) {
         this.catchUpRateMultiple = multiple;
         this.catchUpThroughputInUnitsPerNsec = catchUpRateMultiple * throughputInUnitsPerNsec;
@@ -47,7 +120,7 @@ public class Pacer {
      * This is the key for coordinated omission correction.
      */
     public long expectedStartTimeNsec() {
-        return initialStartTime + (long)(unitsCompleted / throughputInUnitsPerNsec);
+        return initialStartTime + (long)((unitsCompleted - unitsAtInitialStart) / throughputInUnitsPerNsec);
     }
     
     /**
@@ -83,18 +156,56 @@ public class Pacer {
             }
         }
         
-        return sendNow ? 0 : (nextStartTime - now);
+        if (sendNow) {
+            return 0;
+        }
+        scheduled = true;
+        scheduledStartTime = nextStartTime;
+        return nextStartTime - now;
     }
     
     /**
      * Wait until next scheduled time and increment units.
      */
     public void acquire(long unitCount) {
+        awaitNextSend();
+        unitsCompleted += unitCount;
+    }
+    
+    /**
+     * Wait until next scheduled time with the wait strategy, without
+     * consuming it. If the caller had been told to wait for this slot,
+     * records how late it is being taken.
+     */
+    public void awaitNextSend() {
         long nsecToNextSend = nsecToNextSend();
         if (nsecToNextSend > 0) {
-            Timer.sleepNs(nsecToNextSend);
+            waitStrategy.await(scheduledStartTime, spinNanos);
         }
-        unitsCompleted += unitCount;
+        if (scheduled) {
+            // Sends that were already behind schedule are lateness of the target, not of the scheduler
+            schedulingJitter.recordValue(histograms.clamp(Math.max(0, System.nanoTime() - scheduledStartTime)));
+            scheduled = false;
+        }
+    }
+    
+    /**
+     * How long before the next send the caller's scheduler should wake up
+     * and call acquire(), which waits out the rest precisely.
+     */
+    public long leadNanos() {
+        return waitStrategy.leadNanos(spinNanos);
+    }
+    
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+    
+    /**
+     * Scheduling jitter recorded since the previous call; see Recorder.getIntervalHistogram().
+     */
+    public Histogram takeSchedulingJitter(Histogram recycle) {
+        return schedulingJitter.getIntervalHistogram(recycle);
     }
     
     /**
@@ -0,0 +1,242 @@
+/*
+ * SlidingWindows - Rolling time windows (e.g. 1m / 5m / 15m) over TimingIntervals.
+ * Intervals accumulate into fixed-length slots kept in a ring. When a slot
+ * completes it is added to every window and the slot falling out of each
+ * window is subtracted, so a window is always ready to query and costs
+ * O(1) in the number of stored slots. Not thread-safe: owned by the
+ * reporting thread.
+ */
+package com.caladan.latency.util;
+
+import org.HdrHistogram.Histogram;
+
+public final class SlidingWindows {
+
+    private final long slotMs;
+    private final Window[] windows;
+    private final int[] windowSlots;
+
+    // Completed slots of the largest window plus the one being filled
+    private final Slot[] ring;
+    private long currentSlot = -1;
+
+    /**
+     * @param slotMs slot length; every window length must be a multiple of it
+     * @param names window names, e.g. "1m"
+     * @param windowMs window lengths in milliseconds
+     */
+    public SlidingWindows(long slotMs, String[] names, long[] windowMs) {
+        this(slotMs, names, windowMs, HistogramSettings.DEFAULT);
+    }
+
+    /**
+     * @param histograms layout of the slot and window histograms
+     */
+    public SlidingWindows(long slotMs, String[] names, long[] windowMs, HistogramSettings histograms) {
+        if (slotMs <= 0 || names.length != windowMs.length || names.length == 0) {
+            throw new IllegalArgumentException("Invalid sliding window configuration");
+        }
+        this.slotMs = slotMs;
+        this.windows = new Window[names.length];
+        this.windowSlots = new int[names.length];
+        int maxSlots = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (windowMs[i] < slotMs || windowMs[i] % slotMs != 0) {
+                throw new IllegalArgumentException("Window " + names[i] + " is not a multiple of the "
+                    + slotMs + "ms slot length");
+            }
+            windows[i] = new Window(names[i], windowMs[i], histograms);
+            windowSlots[i] = (int) (windowMs[i] / slotMs);
+            maxSlots = Math.max(maxSlots, windowSlots[i]);
+        }
+
+        // Most slots of a long window sit idle; packed ones only use memory for buckets that were recorded
+        HistogramSettings slots = histograms.packed ? histograms : new HistogramSettings(
+            histograms.lowestNanos, histograms.highestNanos, histograms.significantDigits, true);
+        this.ring = new Slot[maxSlots + 1];
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Slot(slots);
+        }
+    }
+
+    /**
+     * Standard 1m / 5m / 15m windows.
+     */
+    public static SlidingWindows standard(long slotMs) {
+        return standard(slotMs, HistogramSettings.DEFAULT);
+    }
+
+    public static SlidingWindows standard(long slotMs, HistogramSettings histograms) {
+        return new SlidingWindows(slotMs,
+            new String[] {"1m", "5m", "15m"},
+            new long[] {60_000L, 300_000L, 900_000L},
+            histograms);
+    }
+
+    /**
+     * Add one reporting interval.
+     *
+     * @param failures failed operations within the interval; their times are not in its histograms
+     * @return true if a slot completed, i.e. the windows changed
+     */
+    public boolean add(TimingInterval interval, long failures, long nowMs) {
+        long slot = nowMs / slotMs;
+        boolean rotated = false;
+        if (currentSlot < 0) {
+            currentSlot = slot;
+        } else if (slot - currentSlot > ring.length) {
+            // Idle longer than the largest window: everything has expired
+            clear();
+            currentSlot = slot;
+            rotated = true;
+        }
+        while (currentSlot < slot) {
+            completeSlot(currentSlot);
+            currentSlot++;
+            rotated = true;
+        }
+
+        Slot current = ring[index(currentSlot)];
+        if (interval.operationCount > 0) {
+            current.serviceTimes.add(interval.getServiceTimesHistogram());
+            current.responseTimes.add(interval.getResponseTimesHistogram());
+        }
+        current.operations += interval.operationCount + failures;
+        current.failures += failures;
+        return rotated;
+    }
+
+    public int size() {
+        return windows.length;
+    }
+
+    public Window window(int index) {
+        return windows[index];
+    }
+
+    public long getSlotMs() {
+        return slotMs;
+    }
+
+    /**
+     * Estimated heap taken by the histograms of all slots and windows.
+     */
+    public long footprintBytes() {
+        long bytes = 0;
+        for (Slot slot : ring) {
+            bytes += HistogramSettings.footprintBytes(slot.serviceTimes)
+                + HistogramSettings.footprintBytes(slot.responseTimes);
+        }
+        for (Window window : windows) {
+            bytes += HistogramSettings.footprintBytes(window.serviceTimes)
+                + HistogramSettings.footprintBytes(window.responseTimes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Add a completed slot to every window and retire the slots that fell out.
+     */
+    private void completeSlot(long slotNumber) {
+        Slot completed = ring[index(slotNumber)];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i].add(completed);
+            long expired = slotNumber - windowSlots[i];
+            if (expired >= 0) {
+                windows[i].subtract(ring[index(expired)]);
+            }
+        }
+        // The ring entry for the next slot is the one that just left the largest window
+        ring[index(slotNumber + 1)].reset();
+    }
+
+    private void clear() {
+        for (Slot slot : ring) {
+            slot.reset();
+        }
+        for (Window window : windows) {
+            window.reset();
+        }
+    }
+
+    private int index(long slotNumber) {
+        return (int) Math.floorMod(slotNumber, (long) ring.length);
+    }
+
+    private static final class Slot {
+        final Histogram serviceTimes;
+        final Histogram responseTimes;
+        long operations;
+        long failures;
+
+        Slot(HistogramSettings histograms) {
+            this.serviceTimes = histograms.newHistogram();
+            this.responseTimes = histograms.newHistogram();
+        }
+
+        void reset() {
+            serviceTimes.reset();
+            responseTimes.reset();
+            operations = 0;
+            failures = 0;
+        }
+    }
+
+    /**
+     * Running totals over one window.
+     */
+    public static final class Window {
+        public final String name;
+        public final long windowMs;
+        private final Histogram serviceTimes;
+        private final Histogram responseTimes;
+        private long operations;
+        private long failures;
+
+        Window(String name, long windowMs, HistogramSettings histograms) {
+            this.name = name;
+            this.windowMs = windowMs;
+            this.serviceTimes = histograms.newHistogram();
+            this.responseTimes = histograms.newHistogram();
+        }
+
+        private void add(Slot slot) {
+            if (slot.operations == 0 && slot.failures == 0) return;
+            serviceTimes.add(slot.serviceTimes);
+            responseTimes.add(slot.responseTimes);
+            operations += slot.operations;
+            failures += slot.failures;
+        }
+
+        private void subtract(Slot slot) {
+            if (slot.operations == 0 && slot.failures == 0) return;
+            serviceTimes.subtract(slot.serviceTimes);
+            responseTimes.subtract(slot.responseTimes);
+            operations -= slot.operations;
+            failures -= slot.failures;
+        }
+
+        private void reset() {
+            serviceTimes.reset();
+            responseTimes.reset();
+            operations = 0;
+            failures = 0;
+        }
+
+        public Histogram getServiceTimesHistogram() {
+            return serviceTimes;
+        }
+
+        public Histogram getResponseTimesHistogram() {
+            return responseTimes;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+    }
+}
@@ -1,14 +1,14 @@
 /*
  * Timer class for latency measurement with HdrHistogram.
  * Based on Apache Cassandra's stress tool Timer implementation.
- * Tracks both service time (actual) and response time (coordinated omission corrected).
+ * Tracks both service time (actual) and response time (coordinated omission corrected),
+ * and optionally the durations of named phases within each measurement.
  */
 package com.caladan.latency.util;
 
 import org.HdrHistogram.Histogram;
 import org.HdrHistogram.Recorder;
 
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.LockSupport;
 
 public final class Timer {
@@ -18,23 +18,45 @@ public final class Timer {
     private long expectedStartNanos;
     
     // Thread-safe histogram recorders
+    private final HistogramSettings histograms;
     private final Recorder serviceTimesRecorder;
     private final Recorder responseTimesRecorder;
     
-    // Aggregate counters
-    private int opCount;
-    private long upToDateAsOf;
-    private long lastSnap;
+    // Per-phase recorders, e.g. connect / TLS handshake / time to first byte
+    private final String[] phaseNames;
+    private final Recorder[] phaseRecorders;
     
-    // Communication with reporting thread
-    private volatile CountDownLatch reportRequest;
-    volatile TimingInterval report;
-    private volatile TimingInterval finalReport;
+    // Interval histograms recycled by the reporting thread
+    private Histogram serviceTimesInterval;
+    private Histogram responseTimesInterval;
+    private final Histogram[] phaseIntervals;
+    private long lastSnap;
     
     public Timer() {
-        // 3 significant digits of precision
-        this.serviceTimesRecorder = new Recorder(3);
-        this.responseTimesRecorder = new Recorder(3);
+        this(new String[0]);
+    }
+    
+    /**
+     * @param phaseNames phases recorded with recordPhase(), by index
+     */
+    public Timer(String[] phaseNames) {
+        this(phaseNames, HistogramSettings.DEFAULT);
+    }
+    
+    /**
+     * @param phaseNames phases recorded with recordPhase(), by index
+     * @param histograms range, precision and layout of the recorded histograms
+     */
+    public Timer(String[] phaseNames, HistogramSettings histograms) {
+        this.histograms = histograms;
+        this.serviceTimesRecorder = histograms.newRecorder();
+        this.responseTimesRecorder = histograms.newRecorder();
+        this.phaseNames = phaseNames.clone();
+        this.phaseRecorders = new Recorder[phaseNames.length];
+        for (int i = 0; i < phaseNames.length; i++) {
+            phaseRecorders[i] = histograms.newRecorder();
+        }
+        this.phaseIntervals = new Histogram[phaseNames.length];
         this.lastSnap = System.nanoTime();
     }
     
@@ -57,102 +79,56 @@ public final class Timer {
      * Stop timing and record the measurement.
      */
     public void stop() {
-        maybeReport();
         long now = System.nanoTime();
         
         // Service time: actual measurement duration
-        serviceTimesRecorder.recordValue(now - sampleStartNanos);
+        serviceTimesRecorder.recordValue(histograms.clamp(now - sampleStartNanos));
         
         // Response time: time from intended start (corrects coordinated omission)
-        responseTimesRecorder.recordValue(now - expectedStartNanos);
-        
-        opCount++;
-        upToDateAsOf = now;
-    }
-    
-    /**
-     * Check if timer is still running.
-     */
-    public boolean running() {
-        return finalReport == null;
+        responseTimesRecorder.recordValue(histograms.clamp(now - expectedStartNanos));
     }
     
     /**
-     * Build a timing report from current histogram data.
+     * Record a measurement with explicit timestamps.
+     * Used by open-loop probing, where several measurements are in flight at once.
      */
-    private TimingInterval buildReport() {
-        Histogram responseTimesHistogram = responseTimesRecorder.getIntervalHistogram();
-        Histogram serviceTimesHistogram = serviceTimesRecorder.getIntervalHistogram();
-        
-        TimingInterval report = new TimingInterval(
-            lastSnap,
-            upToDateAsOf,
-            opCount,
-            responseTimesHistogram,
-            serviceTimesHistogram
-        );
-        
-        // Reset counters
-        opCount = 0;
-        lastSnap = upToDateAsOf;
-        
-        return report;
-    }
-    
-    /**
-     * Check if a report has been requested and fulfill it.
-     */
-    private void maybeReport() {
-        if (reportRequest != null) {
-            synchronized (this) {
-                report = buildReport();
-                reportRequest.countDown();
-                reportRequest = null;
-            }
-        }
+    public void record(long expectedStartNanos, long startNanos, long endNanos) {
+        serviceTimesRecorder.recordValue(histograms.clamp(endNanos - startNanos));
+        responseTimesRecorder.recordValue(histograms.clamp(endNanos - expectedStartNanos));
     }
     
     /**
-     * Request a timing report.
+     * Record the duration of one phase of a measurement.
      */
-    public synchronized void requestReport(CountDownLatch signal) {
-        if (finalReport != null) {
-            report = finalReport;
-            finalReport = new TimingInterval(0);
-            signal.countDown();
-        } else {
-            reportRequest = signal;
-        }
+    public void recordPhase(int phase, long durationNanos) {
+        phaseRecorders[phase].recordValue(histograms.clamp(durationNanos));
     }
     
     /**
-     * Close the timer and generate final report.
+     * Swap out the histograms recorded since the previous call.
+     * Called from the reporting thread only; recording never blocks on it.
+     * The returned interval's histograms are recycled by the next call, so
+     * consumers must be done with it before then.
      */
-    public synchronized void close() {
-        if (reportRequest == null) {
-            finalReport = buildReport();
-        } else {
-            finalReport = new TimingInterval(0);
-            report = buildReport();
-            reportRequest.countDown();
-            reportRequest = null;
+    public synchronized TimingInterval takeInterval() {
+        long now = System.nanoTime();
+        responseTimesInterval = responseTimesRecorder.getIntervalHistogram(responseTimesInterval);
+        serviceTimesInterval = serviceTimesRecorder.getIntervalHistogram(serviceTimesInterval);
+        for (int i = 0; i < phaseRecorders.length; i++) {
+            phaseIntervals[i] = phaseRecorders[i].getIntervalHistogram(phaseIntervals[i]);
         }
-    }
-    
-    /**
-     * Get current snapshot of histograms without resetting.
-     */
-    public synchronized TimingInterval getSnapshot() {
-        Histogram responseTimesHistogram = responseTimesRecorder.getIntervalHistogram();
-        Histogram serviceTimesHistogram = serviceTimesRecorder.getIntervalHistogram();
         
-        return new TimingInterval(
+        TimingInterval interval = new TimingInterval(
             lastSnap,
-            System.nanoTime(),
-            opCount,
-            responseTimesHistogram,
-            serviceTimesHistogram
+            now,
+            responseTimesInterval.getTotalCount(),
+            responseTimesInterval,
+            serviceTimesInterval,
+            phaseNames,
+            phaseIntervals.clone()
         );
+        lastSnap = now;
+        return interval;
     }
     
     /**
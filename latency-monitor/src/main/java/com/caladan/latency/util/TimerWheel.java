@@ -0,0 +1,216 @@
+/*
+ * TimerWheel - Hierarchical timing wheel for single-threaded event loops.
+ * Schedules and cancels in O(1) with intrusive entries, so a reactor can
+ * track thousands of Pacer deadlines and probe timeouts without allocating
+ * or taking locks. Not thread-safe: owned by exactly one thread.
+ *
+ * The near wheel holds one slot per tick of the current revolution; the far
+ * wheel holds one slot per revolution and is cascaded into the near wheel as
+ * each revolution begins. Every entry in the near wheel is therefore due
+ * within the current revolution, which keeps nanosToNextTick() exact.
+ */
+package com.caladan.latency.util;
+
+public final class TimerWheel {
+
+    private static final int NEAR = 0;
+    private static final int FAR = 1;
+
+    private final long tickNanos;
+    private final int shift;
+    private final int mask;
+    private final Timeout[] near;
+    private final Timeout[] far;
+
+    // Tick currently being processed (absolute: nanoTime / tickNanos)
+    private long currentTick;
+    private int size;
+
+    // Detached list of the near slot being expired, see expire()
+    private Timeout expiring;
+
+    /**
+     * @param tickNanos resolution of the wheel
+     * @param ticksPerWheel slots per revolution, rounded up to a power of two
+     */
+    public TimerWheel(long tickNanos, int ticksPerWheel, long nowNanos) {
+        if (tickNanos <= 0 || ticksPerWheel <= 1) {
+            throw new IllegalArgumentException("tickNanos must be positive and ticksPerWheel above 1");
+        }
+        int length = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        this.tickNanos = tickNanos;
+        this.shift = Integer.numberOfTrailingZeros(length);
+        this.mask = length - 1;
+        this.near = new Timeout[length];
+        this.far = new Timeout[length];
+        this.currentTick = nowNanos / tickNanos;
+    }
+
+    /**
+     * Schedule (or reschedule) a timeout. Deadlines in the past fire on the next expire().
+     */
+    public void schedule(Timeout timeout, long deadlineNanos) {
+        if (timeout.wheel != null) {
+            timeout.cancel();
+        }
+        long tick = Math.max(deadlineNanos / tickNanos, currentTick);
+        timeout.deadlineNanos = deadlineNanos;
+        if ((tick >>> shift) == (currentTick >>> shift)) {
+            link(timeout, NEAR, (int) (tick & mask));
+        } else {
+            // Later revolution; deadlines beyond the far wheel's span cascade back into it
+            link(timeout, FAR, (int) ((tick >>> shift) & mask));
+        }
+    }
+
+    /**
+     * Fire every timeout whose deadline is at or before now.
+     * Callbacks may schedule and cancel timeouts freely.
+     *
+     * @return the earliest deadline that fired, or Long.MAX_VALUE if none did
+     */
+    public long expire(long nowNanos) {
+        long nowTick = nowNanos / tickNanos;
+        long earliestFired = Long.MAX_VALUE;
+
+        while (true) {
+            int slot = (int) (currentTick & mask);
+
+            // Detach the slot so callbacks rescheduling into it are not revisited
+            expiring = near[slot];
+            near[slot] = null;
+
+            Timeout timeout;
+            while ((timeout = expiring) != null) {
+                expiring = timeout.next;
+                if (expiring != null) {
+                    expiring.prev = null;
+                }
+                timeout.next = null;
+                timeout.wheel = null;
+                size--;
+
+                if (timeout.deadlineNanos <= nowNanos) {
+                    earliestFired = Math.min(earliestFired, timeout.deadlineNanos);
+                    timeout.onTimeout(nowNanos);
+                } else {
+                    // Later in the current tick
+                    schedule(timeout, timeout.deadlineNanos);
+                }
+            }
+
+            if (currentTick >= nowTick) {
+                break;
+            }
+            currentTick++;
+            if ((currentTick & mask) == 0) {
+                cascade();
+            }
+        }
+        return earliestFired;
+    }
+
+    /**
+     * Nanoseconds until the first occupied tick, or until the next revolution
+     * when only later revolutions hold timeouts. Never late.
+     */
+    public long nanosToNextTick(long nowNanos) {
+        long revolution = currentTick >>> shift;
+        for (long tick = currentTick; (tick >>> shift) == revolution; tick++) {
+            if (near[(int) (tick & mask)] != null) {
+                return Math.max(0, tick * tickNanos - nowNanos);
+            }
+        }
+        long nextRevolutionTick = (revolution + 1) << shift;
+        return Math.max(0, nextRevolutionTick * tickNanos - nowNanos);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Move the far slot of the revolution that just began into the near wheel.
+     */
+    private void cascade() {
+        int slot = (int) ((currentTick >>> shift) & mask);
+        Timeout timeout = far[slot];
+        far[slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            timeout.prev = null;
+            timeout.wheel = null;
+            size--;
+            schedule(timeout, timeout.deadlineNanos);
+            timeout = next;
+        }
+    }
+
+    private void link(Timeout timeout, int level, int slot) {
+        Timeout[] slots = level == NEAR ? near : far;
+        timeout.wheel = this;
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (slots[slot] != null) {
+            slots[slot].prev = timeout;
+        }
+        slots[slot] = timeout;
+        size++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else if (expiring == timeout) {
+            expiring = timeout.next;
+        } else if (timeout.level == NEAR) {
+            near[timeout.slot] = timeout.next;
+        } else {
+            far[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.next = null;
+        timeout.prev = null;
+        timeout.wheel = null;
+        size--;
+    }
+
+    /**
+     * An intrusive wheel entry. Subclass and implement onTimeout().
+     */
+    public abstract static class Timeout {
+        private long deadlineNanos;
+        private Timeout next;
+        private Timeout prev;
+        private int level;
+        private int slot;
+        private TimerWheel wheel;
+
+        /**
+         * Called on the wheel's thread once the deadline has passed.
+         */
+        protected abstract void onTimeout(long nowNanos);
+
+        public boolean isScheduled() {
+            return wheel != null;
+        }
+
+        public long deadlineNanos() {
+            return deadlineNanos;
+        }
+
+        /**
+         * Remove from the wheel if scheduled.
+         */
+        public void cancel() {
+            if (wheel != null) {
+                wheel.unlink(this);
+            }
+        }
+    }
+}
@@ -19,6 +19,10 @@ public final class TimingInterval {
     public final Histogram responseTimesHistogram;
     public final Histogram serviceTimesHistogram;
     
+    // Phases within each operation, e.g. connect / TLS handshake; empty for single-phase probes
+    private final String[] phaseNames;
+    private final Histogram[] phaseHistograms;
+    
     /**
      * Create an empty timing interval.
      */
@@ -26,8 +30,10 @@ public final class TimingInterval {
         this.start = time;
         this.end = time;
         this.operationCount = 0;
-        this.responseTimesHistogram = new Histogram(3);
-        this.serviceTimesHistogram = new Histogram(3);
+        this.responseTimesHistogram = HistogramSettings.DEFAULT.newHistogram();
+        this.serviceTimesHistogram = HistogramSettings.DEFAULT.newHistogram();
+        this.phaseNames = new String[0];
+        this.phaseHistograms = new Histogram[0];
     }
     
     /**
@@ -35,11 +41,23 @@ public final class TimingInterval {
      */
     public TimingInterval(long start, long end, long operationCount,
                           Histogram responseTimesHistogram, Histogram serviceTimesHistogram) {
+        this(start, end, operationCount, responseTimesHistogram, serviceTimesHistogram,
+            new String[0], new Histogram[0]);
+    }
+    
+    /**
+     * Create a timing interval with data and per-phase histograms.
+     */
+    public TimingInterval(long start, long end, long operationCount,
+                          Histogram responseTimesHistogram, Histogram serviceTimesHistogram,
+                          String[] phaseNames, Histogram[] phaseHistograms) {
         this.start = start;
         this.end = Math.max(end, start);
         this.operationCount = operationCount;
         this.responseTimesHistogram = responseTimesHistogram;
         this.serviceTimesHistogram = serviceTimesHistogram;
+        this.phaseNames = phaseNames;
+        this.phaseHistograms = phaseHistograms;
     }
     
     // === Rate calculations ===
@@ -121,4 +139,16 @@ public final class TimingInterval {
     public Histogram getServiceTimesHistogram() {
         return serviceTimesHistogram;
     }
+    
+    public int phaseCount() {
+        return phaseNames.length;
+    }
+    
+    public String phaseName(int phase) {
+        return phaseNames[phase];
+    }
+    
+    public Histogram getPhaseHistogram(int phase) {
+        return phaseHistograms[phase];
+    }
 }
@@ -0,0 +1,76 @@
+/*
+ * WaitStrategy - How a Pacer waits out the last stretch before a probe is due.
+ * Parking is subject to timer slack and wakeup latency (tens of microseconds
+ * on common kernels), which delays probes and inflates their response times.
+ * The other strategies trade CPU for precision: the scheduler hands over a
+ * spin window before the deadline and the strategy waits the rest precisely.
+ */
+package com.caladan.latency.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+public enum WaitStrategy {
+    /** Park until the deadline; no CPU cost, least precise */
+    PARK {
+        @Override
+        public void await(long deadlineNanos, long spinNanos) {
+            long now = System.nanoTime();
+            if (deadlineNanos > now) {
+                Timer.sleepNs(deadlineNanos - now);
+            }
+        }
+    },
+    /** Park until the spin window, then busy-spin to the deadline */
+    PARK_SPIN {
+        @Override
+        public void await(long deadlineNanos, long spinNanos) {
+            long parkUntil = deadlineNanos - spinNanos;
+            long now;
+            while ((now = System.nanoTime()) < parkUntil) {
+                LockSupport.parkNanos(parkUntil - now);
+            }
+            while (System.nanoTime() < deadlineNanos) {
+                Thread.onSpinWait();
+            }
+        }
+    },
+    /** Yield the CPU in a loop; precise unless other threads want the core */
+    YIELD {
+        @Override
+        public void await(long deadlineNanos, long spinNanos) {
+            while (System.nanoTime() < deadlineNanos) {
+                Thread.yield();
+            }
+        }
+    },
+    /** Busy-spin; most precise, burns a core for the whole wait */
+    SPIN {
+        @Override
+        public void await(long deadlineNanos, long spinNanos) {
+            while (System.nanoTime() < deadlineNanos) {
+                Thread.onSpinWait();
+            }
+        }
+    };
+
+    /** Default spin window: the worker pool's scheduling delay plus typical timer slack */
+    public static final long DEFAULT_SPIN_NANOS = 200_000L;
+
+    /**
+     * Return at or after the deadline.
+     *
+     * @param spinNanos the spin window; only PARK_SPIN parks for what lies before it
+     */
+    public abstract void await(long deadlineNanos, long spinNanos);
+
+    /**
+     * How long before a deadline a scheduler should hand over to this strategy.
+     */
+    public long leadNanos(long spinNanos) {
+        return this == PARK ? 0 : spinNanos;
+    }
+
+    public static WaitStrategy parse(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
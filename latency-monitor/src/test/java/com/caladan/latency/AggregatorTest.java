@@ -0,0 +1,234 @@
+/*
+ * AggregatorTest - An aggregator polling two monitors' /histogram from
+ * MetricsServers on loopback reports exactly what the combined histograms
+ * hold, and a monitor that stops answering first loses its windows and then
+ * its whole contribution.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.Aggregator.Contribution;
+import com.caladan.latency.Aggregator.SourceStatistics;
+import com.caladan.latency.HistogramExport.Export;
+import com.caladan.latency.HistogramExport.TargetHistograms;
+import com.caladan.latency.HistogramExport.WindowHistograms;
+import com.caladan.latency.LatencyMonitor.Statistics;
+import com.caladan.latency.util.LatencyBuckets;
+import com.caladan.latency.util.LatencySummary;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AggregatorTest {
+
+    private static final int EXPIRY_POLLS = 3;
+
+    private final Random random = new Random(19);
+    private final List<MetricsServer> servers = new ArrayList<>();
+    private Aggregator aggregator;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (aggregator != null) {
+            aggregator.stop();
+        }
+        for (MetricsServer server : servers) {
+            server.stop();
+        }
+    }
+
+    @Test
+    void mergesExactlyAndAgesOutAStoppedSource() throws Exception {
+        // The shared target is fast as seen from one monitor and slow from the other
+        TargetHistograms sharedA = target("10.0.0.1", 200_000, 5_000);
+        TargetHistograms sharedB = target("10.0.0.1", 2_000_000, 3_000);
+        TargetHistograms onlyB = target("10.0.0.2", 500_000, 1_000);
+        MetricsServer monitorA = serve(new ExportSource(sharedA));
+        MetricsServer monitorB = serve(new ExportSource(sharedB, onlyB));
+
+        aggregator = new Aggregator(List.of(url(monitorA), url(monitorB)), 50, 1_000, EXPIRY_POLLS, 1,
+            LatencyBuckets.DEFAULT);
+        aggregator.start();
+        await(() -> aggregator.getStatistics().size() == 3);
+
+        Statistics shared = statistics("10.0.0.1");
+        assertMerged(shared, sharedA, sharedB);
+        assertEquals(sharedA.total + sharedB.total, shared.totalMeasurements);
+        assertEquals(sharedA.windows.get(0).operations + sharedB.windows.get(0).operations,
+            shared.windows.get(0).operations);
+        assertSummary(combined(sharedA.windows.get(0).responseTimes, sharedB.windows.get(0).responseTimes),
+            shared.windows.get(0).responseTimes);
+        assertMerged(statistics("10.0.0.2"), onlyB);
+        assertMerged(statistics(Aggregator.FLEET_HOST), sharedA, sharedB, onlyB);
+
+        // Down: its all-time histograms stay, its windows go
+        monitorB.stop();
+        await(() -> statistics("10.0.0.1").windows.get(0).operations == sharedA.windows.get(0).operations);
+        shared = statistics("10.0.0.1");
+        assertMerged(shared, sharedA, sharedB);
+        assertSummary(LatencySummary.of(sharedA.windows.get(0).responseTimes), shared.windows.get(0).responseTimes);
+        Statistics stale = statistics("10.0.0.2");
+        assertMerged(stale, onlyB);
+        assertTrue(stale.windows.isEmpty());
+
+        // Expired: nothing of it is left
+        await(() -> aggregator.getStatistics().size() == 1);
+        assertMerged(statistics("10.0.0.1"), sharedA);
+        assertNull(statistics("10.0.0.2"));
+        SourceStatistics sourceA = aggregator.getSourceStatistics().get(0);
+        SourceStatistics sourceB = aggregator.getSourceStatistics().get(1);
+        assertTrue(sourceA.up);
+        assertEquals(Contribution.ALL, sourceA.contribution);
+        assertEquals(0, sourceA.failedPolls);
+        assertFalse(sourceB.up);
+        assertEquals(Contribution.NONE, sourceB.contribution);
+        assertTrue(sourceB.failedPolls >= EXPIRY_POLLS, sourceB.failedPolls + " failed polls");
+        assertTrue(aggregator.isRunning());
+
+        // And that is what /json says
+        MetricsServer served = serve(aggregator);
+        String json = HttpClient.newHttpClient().send(HttpRequest.newBuilder(url(served).resolve("/json")).build(),
+            HttpResponse.BodyHandlers.ofString()).body();
+        assertTrue(json.contains("\"up\": true, \"targets\": 1, "), json);
+        assertTrue(json.contains("\"failedPolls\": 0, "), json);
+        assertTrue(json.contains("\"contribution\": \"all\""), json);
+        assertTrue(json.contains("\"up\": false, \"targets\": 2, "), json);
+        assertTrue(json.contains("\"contribution\": \"none\""), json);
+    }
+
+    private static void assertMerged(Statistics statistics, TargetHistograms... parts) {
+        Histogram[] responseTimes = new Histogram[parts.length];
+        Histogram[] serviceTimes = new Histogram[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            responseTimes[i] = parts[i].responseTimes;
+            serviceTimes[i] = parts[i].serviceTimes;
+        }
+        LatencySummary response = combined(responseTimes);
+        LatencySummary service = combined(serviceTimes);
+        assertEquals(response.count, statistics.responseCount);
+        assertEquals(response.p50Us(), statistics.responseP50Us);
+        assertEquals(response.p99Us(), statistics.responseP99Us);
+        assertEquals(response.p999Us(), statistics.responseP999Us);
+        assertEquals(response.maxUs, statistics.responseMaxUs);
+        assertEquals(service.count, statistics.serviceCount);
+        assertEquals(service.p99Us(), statistics.serviceP99Us);
+    }
+
+    private static void assertSummary(LatencySummary expected, LatencySummary actual) {
+        assertEquals(expected.count, actual.count);
+        assertEquals(expected.p50Us(), actual.p50Us());
+        assertEquals(expected.p99Us(), actual.p99Us());
+        assertEquals(expected.maxUs, actual.maxUs);
+    }
+
+    private static LatencySummary combined(Histogram... histograms) {
+        Histogram combined = new Histogram(3);
+        for (Histogram histogram : histograms) {
+            combined.add(histogram);
+        }
+        return LatencySummary.of(combined);
+    }
+
+    private Statistics statistics(String host) {
+        for (Statistics statistics : aggregator.getStatistics()) {
+            if (statistics.targetHost.equals(host)) {
+                return statistics;
+            }
+        }
+        return null;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Condition not reached in 10 s");
+            Thread.sleep(10);
+        }
+    }
+
+    private MetricsServer serve(StatisticsSource source) throws Exception {
+        MetricsServer server = new MetricsServer(0, source);
+        server.start();
+        servers.add(server);
+        return server;
+    }
+
+    private static URI url(MetricsServer server) {
+        return URI.create("http://127.0.0.1:" + server.getLocalPort());
+    }
+
+    /**
+     * One target as a monitor exports it: log-normal latencies around a median, the last tenth in its window.
+     */
+    private TargetHistograms target(String host, long medianNanos, int values) {
+        Histogram serviceTimes = new Histogram(3);
+        Histogram responseTimes = new Histogram(3);
+        Histogram windowService = new Histogram(3);
+        Histogram windowResponse = new Histogram(3);
+        for (int i = 0; i < values; i++) {
+            long service = (long) (medianNanos * Math.exp(random.nextGaussian() * 0.5));
+            long response = service + random.nextInt(50_000);
+            serviceTimes.recordValue(service);
+            responseTimes.recordValue(response);
+            if (i >= values - values / 10) {
+                windowService.recordValue(service);
+                windowResponse.recordValue(response);
+            }
+        }
+        List<WindowHistograms> windows = List.of(
+            new WindowHistograms("1m", 60_000, values / 10, 0, windowService, windowResponse));
+        return new TargetHistograms(host, 7007, "udp", "park", 100, 100, false, true, values, values, 0, 0,
+            Map.of(), serviceTimes, responseTimes, new Histogram(3), Map.of(), windows, Map.of(), Map.of(),
+            null, null);
+    }
+
+    /**
+     * A monitor that only serves /histogram, always the same export.
+     */
+    private static final class ExportSource implements StatisticsSource {
+        private final String export;
+
+        ExportSource(TargetHistograms... targets) {
+            this.export = HistogramExport.encode(new Export(60_000, true, List.of(targets)));
+        }
+
+        @Override
+        public List<Statistics> getStatistics() {
+            return List.of();
+        }
+
+        @Override
+        public boolean isRunning() {
+            return true;
+        }
+
+        @Override
+        public long getUptimeMs() {
+            return 60_000;
+        }
+
+        @Override
+        public LatencyBuckets getLatencyBuckets() {
+            return LatencyBuckets.DEFAULT;
+        }
+
+        @Override
+        public String getHistogramExport() {
+            return export;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * CachedResponseTest - A representation served by Jetty on loopback: the
+ * identity and gzip variants carry their own ETags, lengths and Vary, any
+ * matching If-None-Match is answered 304, and concurrent readers of one
+ * snapshot share a single rendering.
+ */
+package com.caladan.latency;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CachedResponseTest {
+
+    private final AtomicReference<String> snapshot = new AtomicReference<>("first");
+    private final AtomicInteger renders = new AtomicInteger();
+    private final HttpClient client = HttpClient.newHttpClient();
+    private Server server;
+    private URI uri;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    void identityAndGzipVariantsCarryTheirOwnTagsAndLengths() throws Exception {
+        serve(new CachedResponse<>("text/plain; charset=utf-8", snapshot::get, this::render));
+
+        HttpResponse<byte[]> identity = get(null, null);
+        assertEquals(200, identity.statusCode());
+        assertEquals(expected("first"), new String(identity.body(), StandardCharsets.UTF_8));
+        assertEquals(String.valueOf(identity.body().length), header(identity, "Content-Length"));
+        assertEquals("Accept-Encoding", header(identity, "Vary"));
+        assertNull(header(identity, "Content-Encoding"));
+
+        HttpResponse<byte[]> gzipped = get("gzip, deflate", null);
+        assertEquals(200, gzipped.statusCode());
+        assertEquals("gzip", header(gzipped, "Content-Encoding"));
+        assertEquals(String.valueOf(gzipped.body().length), header(gzipped, "Content-Length"));
+        assertEquals("Accept-Encoding", header(gzipped, "Vary"));
+        assertArrayEquals(identity.body(), gunzip(gzipped.body()));
+        // A cache must never answer one variant's validator with the other's body
+        assertNotEquals(header(identity, "ETag"), header(gzipped, "ETag"));
+        assertEquals(1, renders.get());
+    }
+
+    @Test
+    void representationsPickedByMoreHeadersSayWhich() throws Exception {
+        serve(new CachedResponse<>("application/json", "Accept, Accept-Encoding", snapshot::get, this::render));
+        assertEquals("Accept, Accept-Encoding", header(get(null, null), "Vary"));
+        assertEquals("Accept, Accept-Encoding", header(get("gzip", null), "Vary"));
+    }
+
+    @Test
+    void matchingValidatorsAreNotModified() throws Exception {
+        serve(new CachedResponse<>("text/plain; charset=utf-8", snapshot::get, this::render));
+        String etag = header(get(null, null), "ETag");
+        String gzipEtag = header(get("gzip", null), "ETag");
+
+        assertNotModified(get(null, etag));
+        assertNotModified(get("gzip", gzipEtag));
+        assertNotModified(get(null, "W/" + etag));
+        assertNotModified(get(null, "*"));
+        assertNotModified(get(null, "\"other\", " + etag));
+        assertEquals(200, get(null, "\"other\"").statusCode());
+
+        // A new snapshot renders anew, and the old validators no longer match
+        snapshot.set("second");
+        HttpResponse<byte[]> changed = get(null, etag);
+        assertEquals(200, changed.statusCode());
+        assertEquals(expected("second"), new String(changed.body(), StandardCharsets.UTF_8));
+        assertNotEquals(etag, header(changed, "ETag"));
+        assertEquals(200, get("gzip", gzipEtag).statusCode());
+        assertEquals(2, renders.get());
+    }
+
+    @Test
+    void concurrentReadersOfOneSnapshotShareOneRendering() throws Exception {
+        // A slow renderer, so readers pile up behind the first one
+        serve(new CachedResponse<>("text/plain; charset=utf-8", snapshot::get, (out, source) -> {
+            sleep(50);
+            render(out, source);
+        }));
+        ExecutorService readers = Executors.newFixedThreadPool(16);
+        try {
+            for (String name : new String[] {"first", "second"}) {
+                snapshot.set(name);
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<HttpResponse<byte[]>>> responses = new ArrayList<>();
+                for (int i = 0; i < 64; i++) {
+                    String encoding = i % 2 == 0 ? "gzip" : null;
+                    responses.add(readers.submit(() -> {
+                        start.await();
+                        return get(encoding, null);
+                    }));
+                }
+                start.countDown();
+                for (Future<HttpResponse<byte[]>> response : responses) {
+                    HttpResponse<byte[]> served = response.get();
+                    byte[] body = "gzip".equals(header(served, "Content-Encoding"))
+                        ? gunzip(served.body()) : served.body();
+                    assertEquals(expected(name), new String(body, StandardCharsets.UTF_8));
+                }
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+        assertEquals(2, renders.get());
+    }
+
+    private void assertNotModified(HttpResponse<byte[]> response) {
+        assertEquals(304, response.statusCode());
+        assertEquals(0, response.body().length);
+        assertNotNull(header(response, "ETag"), "304 without its ETag");
+    }
+
+    private void render(PrintWriter out, String source) {
+        renders.incrementAndGet();
+        out.print(expected(source));
+    }
+
+    /**
+     * A body long enough to be worth compressing.
+     */
+    private static String expected(String source) {
+        return ("latency " + source + "\n").repeat(200);
+    }
+
+    private void serve(CachedResponse<String> cached) throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                cached.serve(request, response);
+            }
+        });
+        server.start();
+        uri = URI.create("http://127.0.0.1:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/");
+    }
+
+    private HttpResponse<byte[]> get(String acceptEncoding, String ifNoneMatch) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri);
+        if (acceptEncoding != null) {
+            request.header("Accept-Encoding", acceptEncoding);
+        }
+        if (ifNoneMatch != null) {
+            request.header("If-None-Match", ifNoneMatch);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static String header(HttpResponse<?> response, String name) {
+        return response.headers().firstValue(name).orElse(null);
+    }
+
+    private static byte[] gunzip(byte[] gzipped) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
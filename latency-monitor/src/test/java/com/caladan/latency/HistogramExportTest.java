@@ -0,0 +1,130 @@
+/*
+ * HistogramExportTest - What a monitor writes to /histogram, an aggregator
+ * reads back unchanged: every counter, name and histogram.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.HistogramExport.Export;
+import com.caladan.latency.HistogramExport.TargetHistograms;
+import com.caladan.latency.HistogramExport.WindowHistograms;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistogramExportTest {
+
+    private final Random random = new Random(11);
+
+    @Test
+    void roundTrip() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("reordered", 3L);
+        counters.put("late", 1L);
+        Map<String, Histogram> phases = new LinkedHashMap<>();
+        phases.put("connect", histogram(500));
+        phases.put("tls", histogram(200));
+        Map<String, Long> failureCounts = Map.of("timeout", 7L);
+        Map<String, Histogram> failureTimes = Map.of("timeout", histogram(7));
+        Histogram intervalService = histogram(100);
+        Histogram intervalResponse = histogram(100);
+        intervalResponse.setStartTimeStamp(1_700_000_000_000L);
+        intervalResponse.setEndTimeStamp(1_700_000_001_000L);
+        List<WindowHistograms> windows = List.of(
+            new WindowHistograms("1m", 60_000, 6_007, 7, histogram(300), histogram(300)),
+            new WindowHistograms("5m", 300_000, 30_007, 7, histogram(900), histogram(900)));
+        // Names with characters that must be escaped in JSON
+        TargetHistograms written = new TargetHistograms("odd\"host\\name", 7007, "udp", "park", 100, 250, true,
+            true, 10_007, 10_000, 7, 2, counters, histogram(1_000), histogram(1_000), histogram(50), phases,
+            windows, failureCounts, failureTimes, intervalService, intervalResponse);
+        TargetHistograms aggregated = new TargetHistograms("::1", 22, "tcp", "park-spin", 10, 10, false, false,
+            0, 0, 0, 0, Map.of(), new Histogram(3), new Histogram(3), new Histogram(3), Map.of(), List.of(),
+            Map.of(), Map.of(), null, null);
+
+        Export read = HistogramExport.read(new StringReader(HistogramExport.encode(
+            new Export(123_456, true, List.of(written, aggregated)))));
+
+        assertEquals(123_456, read.uptimeMs);
+        assertTrue(read.running);
+        assertEquals(2, read.targets.size());
+        TargetHistograms target = read.targets.get(0);
+        assertEquals(written.host, target.host);
+        assertEquals(written.key(), target.key());
+        assertEquals(7007, target.port);
+        assertEquals("udp", target.probe);
+        assertEquals("park", target.waitStrategy);
+        assertEquals(100, target.configuredRate);
+        assertEquals(250, target.rate);
+        assertTrue(target.rateBoosted);
+        assertTrue(target.running);
+        assertEquals(10_007, target.total);
+        assertEquals(10_000, target.successful);
+        assertEquals(7, target.failed);
+        assertEquals(2, target.pauseAffected);
+        assertEquals(counters, target.counters);
+        assertEquals(written.serviceTimes, target.serviceTimes);
+        assertEquals(written.responseTimes, target.responseTimes);
+        assertEquals(written.schedulingJitter, target.schedulingJitter);
+        assertEquals(phases, target.phaseTimes);
+        assertEquals(List.copyOf(phases.keySet()), List.copyOf(target.phaseTimes.keySet()));
+        assertEquals(failureCounts, target.failureCounts);
+        assertEquals(failureTimes, target.failureTimes);
+        assertEquals(intervalService, target.intervalServiceTimes);
+        assertEquals(intervalResponse, target.intervalResponseTimes);
+        assertEquals(1_700_000_000_000L, target.intervalResponseTimes.getStartTimeStamp());
+        assertEquals(1_700_000_001_000L, target.intervalServiceTimes.getEndTimeStamp());
+        assertEquals(2, target.windows.size());
+        for (int w = 0; w < windows.size(); w++) {
+            WindowHistograms expected = windows.get(w);
+            WindowHistograms window = target.windows.get(w);
+            assertEquals(expected.name, window.name);
+            assertEquals(expected.windowMs, window.windowMs);
+            assertEquals(expected.operations, window.operations);
+            assertEquals(expected.failures, window.failures);
+            assertEquals(expected.serviceTimes, window.serviceTimes);
+            assertEquals(expected.responseTimes, window.responseTimes);
+        }
+
+        // Aggregators export no last interval
+        TargetHistograms empty = read.targets.get(1);
+        assertEquals("[::1]:22", empty.key());
+        assertEquals("park-spin", empty.waitStrategy);
+        assertEquals(0, empty.responseTimes.getTotalCount());
+        assertNull(empty.intervalServiceTimes);
+        assertNull(empty.intervalResponseTimes);
+    }
+
+    @Test
+    void rejectsOtherVersionsAndMalformedResponses() {
+        String other = "{\"version\": " + (HistogramExport.VERSION + 1) + ", \"uptimeMs\": 0, \"running\": true, "
+            + "\"targets\": []}";
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+            () -> HistogramExport.read(new StringReader(other)));
+        assertTrue(e.getMessage().contains("version"), e.getMessage());
+
+        assertThrows(IllegalArgumentException.class, () -> HistogramExport.read(new StringReader("<html>")));
+        assertThrows(IllegalArgumentException.class, () -> HistogramExport.read(new StringReader(
+            "{\"version\": " + HistogramExport.VERSION + ", \"uptimeMs\": 0, \"running\": true, \"targets\": "
+                + "[{\"host\": \"a\", \"service\": \"not base64!\"}]}")));
+    }
+
+    /**
+     * Log-normal latencies around 200us, in nanoseconds.
+     */
+    private Histogram histogram(int values) {
+        Histogram histogram = new Histogram(3);
+        for (int i = 0; i < values; i++) {
+            histogram.recordValue((long) (200_000 * Math.exp(random.nextGaussian())));
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * IntervalStreamTest - Subscriptions to /stream against a local Jetty server:
+ * the client limit holds when clients arrive together, and a client that
+ * subscribes in the middle of an interval never gets part of its frame.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.util.TimingInterval;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.HdrHistogram.Histogram;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IntervalStreamTest {
+
+    private Server server;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    void clientLimitHoldsForSimultaneousSubscriptions() throws Exception {
+        IntervalStream stream = serve(new IntervalStream(2, 10_000));
+        int attempts = 16;
+        CountDownLatch ready = new CountDownLatch(attempts);
+        ExecutorService clients = Executors.newFixedThreadPool(attempts);
+        try {
+            List<Future<String>> statuses = new ArrayList<>();
+            for (int i = 0; i < attempts; i++) {
+                statuses.add(clients.submit(() -> {
+                    ready.countDown();
+                    ready.await();
+                    return subscribe().readLine();
+                }));
+            }
+            int accepted = 0;
+            for (Future<String> status : statuses) {
+                String line = status.get(10, TimeUnit.SECONDS);
+                if (line.contains(" 200 ")) {
+                    accepted++;
+                } else {
+                    assertTrue(line.contains(" 503 "), line);
+                }
+            }
+            assertEquals(2, accepted);
+            assertEquals(2, stream.clients());
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    void clientSubscribingMidIntervalGetsOnlyWholeFrames() throws Exception {
+        IntervalStream stream = serve(new IntervalStream(4, 10_000));
+
+        // The first target of an interval is written before anyone listens
+        stream.write("first", interval(), 0);
+        BufferedReader client = subscribe();
+        assertTrue(client.readLine().contains(" 200 "));
+        awaitLine(client, "retry: ");
+        stream.write("second", interval(), 0);
+        stream.flush();
+
+        stream.write("first", interval(), 0);
+        stream.write("second", interval(), 0);
+        stream.flush();
+
+        String data = awaitLine(client, "data: ");
+        assertTrue(data.contains("\"target\":\"first\"") && data.contains("\"target\":\"second\""), data);
+    }
+
+    private IntervalStream serve(IntervalStream stream) throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                stream.subscribe(request, response);
+            }
+        });
+        server.start();
+        return stream;
+    }
+
+    private BufferedReader subscribe() throws IOException {
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+        socket.setSoTimeout(10_000);
+        socket.getOutputStream().write("GET /stream HTTP/1.1\r\nHost: localhost\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII));
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static String awaitLine(BufferedReader client, String prefix) throws IOException {
+        for (String line = client.readLine(); line != null; line = client.readLine()) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        throw new IOException("Stream ended before a line starting with " + prefix);
+    }
+
+    private static TimingInterval interval() {
+        Histogram responseTimes = new Histogram(3);
+        Histogram serviceTimes = new Histogram(3);
+        responseTimes.recordValue(250_000);
+        serviceTimes.recordValue(200_000);
+        return new TimingInterval(0, 1000, 1, responseTimes, serviceTimes);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * MeshTest - Phases of the targets of every node, this node's row matched to
+ * its targets by address, number formatting of rows, and rows read from
+ * peers configured in another order.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.LatencyMonitor.Statistics;
+import com.caladan.latency.LatencyMonitor.WindowStatistics;
+import com.caladan.latency.util.LatencySummary;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MeshTest {
+
+    private static final List<TargetSpec> PEERS = List.of(
+        TargetSpec.parse("10.0.0.1:8080", 8080, 1),
+        TargetSpec.parse("10.0.0.2:8080", 8080, 1),
+        TargetSpec.parse("[fd00::3]:8080", 8080, 1),
+        TargetSpec.parse("10.0.0.4:9090", 8080, 1));
+
+    @Test
+    void targetsArePhasedSoNoPeerGetsABurst() {
+        int n = PEERS.size();
+        List<Set<Double>> phasesByProbedPeer = new ArrayList<>();
+        for (int j = 0; j < n; j++) {
+            phasesByProbedPeer.add(new HashSet<>());
+        }
+        for (int self = 0; self < n; self++) {
+            List<TargetSpec> targets = mesh(self).targets(0, 20, "probe=udp");
+            assertEquals(n - 1, targets.size());
+            Set<Double> phases = new HashSet<>();
+            int t = 0;
+            for (int j = 0; j < n; j++) {
+                if (j == self) {
+                    continue;
+                }
+                TargetSpec target = targets.get(t++);
+                assertEquals(PEERS.get(j).toString(), target.toString());
+                assertEquals(20, target.ratePerSecond);
+                assertEquals("udp", target.option("probe", null));
+                double phase = Double.parseDouble(target.option("phase", null));
+                assertEquals((double) ((self + j) % n) / n, phase);
+                phases.add(phase);
+                phasesByProbedPeer.get(j).add(phase);
+            }
+            // Spread over the interval: by the node's own targets, and by the nodes probing a peer
+            assertEquals(n - 1, phases.size());
+        }
+        for (Set<Double> phases : phasesByProbedPeer) {
+            assertEquals(n - 1, phases.size());
+        }
+
+        // Another probe port replaces every peer's own
+        for (TargetSpec target : mesh(0).targets(7, 20, null)) {
+            assertEquals(7, target.port);
+        }
+    }
+
+    @Test
+    void localRowMatchesTargetsByAddressNotPosition() {
+        Mesh mesh = mesh(1);
+        mesh.targets(0, 20, null);
+        // Out of target order, with a target of the monitor's own and a peer host on another port
+        List<Statistics> statistics = List.of(
+            statistics("10.0.0.4", 9090, 400_000, 10, 1),
+            statistics("192.168.1.1", 22, 900_000, 10, 5),
+            statistics("fd00::3", 8080, 300_000, 10, 0),
+            statistics("10.0.0.1", 22, 800_000, 10, 5),
+            statistics("10.0.0.1", 8080, 100_000, 10, 2));
+
+        Mesh.Row row = mesh.computeLocalRow(statistics);
+        assertEquals(p50Us(100_000), row.p50Us[0]);
+        assertEquals(Double.NaN, row.p50Us[1]);
+        assertEquals(p50Us(300_000), row.p50Us[2]);
+        assertEquals(p50Us(400_000), row.p50Us[3]);
+        assertArrayEquals(new double[] {0.2, Double.NaN, 0.0, 0.1}, row.loss);
+    }
+
+    @Test
+    void writesFixedPointNumbers() {
+        assertEquals("null", number(Double.NaN, 1));
+        assertEquals("12", number(12.4, 0));
+        assertEquals("1234.0", number(1234, 1));
+        assertEquals("1.3", number(1.25, 1));
+        assertEquals("-0.5", number(-0.5, 1));
+        assertEquals("0.0500", number(0.05, 4));
+        assertEquals("0.0123", number(0.0123, 4));
+        assertEquals("0.0000", number(0.00004, 4));
+        assertEquals("1.0000", number(0.99999, 4));
+    }
+
+    @Test
+    void rowsOfPeersConfiguredInAnotherOrderAreReordered() {
+        // The same group, listed in another order and with a peer this node does not know
+        Mesh other = new Mesh(List.of(
+            TargetSpec.parse("10.0.0.4:9090", 8080, 1),
+            TargetSpec.parse("10.0.0.9:8080", 8080, 1),
+            TargetSpec.parse("10.0.0.1:8080", 8080, 1),
+            TargetSpec.parse("[fd00::3]:8080", 8080, 1),
+            TargetSpec.parse("10.0.0.2:8080", 8080, 1)), 0, "1m", 1_000, 1_000);
+        Mesh.Row written = new Mesh.Row(1_700_000_000_000L,
+            new double[] {Double.NaN, 900, 100, 300, 200},
+            new double[] {Double.NaN, 9_000, 1_000, 3_000, 2_000},
+            new double[] {Double.NaN, 0.5, 0.0125, 0, 1});
+        StringWriter json = new StringWriter();
+        try (PrintWriter out = new PrintWriter(json)) {
+            other.writeRow(out, written);
+        }
+
+        Mesh.Row read = mesh(0).readRow(new StringReader(json.toString()));
+        assertEquals(1_700_000_000_000L, read.timeMs);
+        assertArrayEquals(new double[] {100, 200, 300, Double.NaN}, read.p50Us);
+        assertArrayEquals(new double[] {1_000, 2_000, 3_000, Double.NaN}, read.p99Us);
+        assertArrayEquals(new double[] {0.0125, 1, 0, Double.NaN}, read.loss);
+    }
+
+    private static Mesh mesh(int self) {
+        return new Mesh(PEERS, self, "1m", 1_000, 1_000);
+    }
+
+    private static String number(double value, int decimals) {
+        StringWriter written = new StringWriter();
+        try (PrintWriter out = new PrintWriter(written)) {
+            Mesh.writeNumber(out, value, decimals);
+        }
+        return written.toString();
+    }
+
+    private static double p50Us(long latencyNanos) {
+        return LatencySummary.of(histogram(latencyNanos)).p50Us();
+    }
+
+    /**
+     * A target whose 1m window saw the latency and failures given; its 5m window,
+     * which the mesh does not read, saw something else.
+     */
+    private static Statistics statistics(String host, int port, long latencyNanos, long operations, long failures) {
+        LatencySummary times = LatencySummary.of(histogram(latencyNanos));
+        LatencySummary other = LatencySummary.of(histogram(latencyNanos * 7));
+        List<WindowStatistics> windows = List.of(
+            new WindowStatistics("1m", 60_000, operations, failures, times, times),
+            new WindowStatistics("5m", 300_000, operations * 5, 0, other, other));
+        return new Statistics(host, port, 20, operations, operations - failures, failures, 60_000, true,
+            times, times, windows, new long[0], new long[0], Map.of(), Map.of(), List.of(),
+            times, false, 0, "tcp", "park", 20, List.of(), List.of(), 0);
+    }
+
+    private static Histogram histogram(long latencyNanos) {
+        Histogram histogram = new Histogram(3);
+        histogram.recordValue(latencyNanos);
+        return histogram;
+    }
+}
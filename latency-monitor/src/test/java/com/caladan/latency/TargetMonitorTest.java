@@ -0,0 +1,267 @@
+/*
+ * TargetMonitorTest - Rate changes of a closed-loop target, and open-loop
+ * TCP probing while connects are held.
+ * The closed-loop target probes a local HTTP server that holds requests as
+ * long as the test says, so rates can be changed while a probe is in
+ * progress. Open-loop targets connect to a listener whose accept queue is
+ * full until the test starts accepting, which holds their connects.
+ */
+package com.caladan.latency;
+
+import com.caladan.latency.measure.ResolverCache;
+import com.caladan.latency.util.HistogramSettings;
+import com.caladan.latency.util.LatencyBuckets;
+import com.caladan.latency.util.SlidingWindows;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TargetMonitorTest {
+
+    private static final byte[] RESPONSE =
+        "HTTP/1.1 204 No Content\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private ServerSocket server;
+    private ScheduledExecutorService executor;
+    private TargetMonitor target;
+
+    // The request to hold until released, counted from 1, and how often probes overlapped: on
+    // connections of their own, or by writing to the connection of a probe still in progress
+    private volatile int heldRequest;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch held = new CountDownLatch(1);
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inProgress = new AtomicInteger();
+    private final AtomicInteger maxInProgress = new AtomicInteger();
+    private final AtomicInteger extraRequests = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "test-http");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        executor = Executors.newScheduledThreadPool(4);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (target != null) {
+            target.stop();
+        }
+        executor.shutdownNow();
+        release.countDown();
+        server.close();
+    }
+
+    @Test
+    void rateChangesDuringAProbeNeverStartASecondChain() throws Exception {
+        // Held past the first, which is run right away rather than scheduled
+        heldRequest = 3;
+        target = start(20);
+        assertTrue(held.await(5, TimeUnit.SECONDS));
+
+        // Every change lands while that probe is held
+        for (int i = 0; i < 10; i++) {
+            target.setRate(i % 2 == 0 ? 40 : 20);
+        }
+        // Room for a second chain to show while the probe is held; a correct target never
+        // depends on this, so a slow machine can only make the test less sensitive
+        Thread.sleep(100);
+        release.countDown();
+        // A second chain would also overlap with, or write into the connection of, some of these
+        awaitRequests(heldRequest + 20);
+        target.stop();
+
+        assertEquals(1, maxInProgress.get(), "Probes of one target overlapped");
+        assertEquals(0, extraRequests.get(), "Probes of one target shared a connection");
+        assertEquals(20, target.getRate());
+    }
+
+    @Test
+    void raisedRateTakesEffectBeforeThePendingProbe() throws Exception {
+        heldRequest = 1;
+        release.countDown();
+        target = start(0.2);
+        assertTrue(held.await(5, TimeUnit.SECONDS));
+
+        // The next probe is 5 s away at the old rate; at the new one ten take 200 ms
+        target.setRate(50);
+        awaitRequests(11, 4_000);
+        target.stop();
+
+        assertEquals(1, maxInProgress.get(), "Probes of one target overlapped");
+        assertEquals(0, extraRequests.get(), "Probes of one target shared a connection");
+        assertEquals(50, target.getRate());
+    }
+
+    @Test
+    void openLoopProbesKeepTheirPaceWhileConnectsAreHeld() throws Exception {
+        // Probes of the first 300 ms wait for the SYN retransmit, about a second
+        LatencyMonitor.Statistics statistics = runOpenLoop("", 300, 2_000);
+
+        assertEquals(0, statistics.failedMeasurements);
+        assertTrue(statistics.totalMeasurements >= 180 && statistics.totalMeasurements <= 205,
+            statistics.totalMeasurements + " probes in 2 s at 100/s");
+        // The thirty probes of the hold went out on time and waited in their connects,
+        // and never delayed the ones after them
+        assertTrue(statistics.serviceP95Us >= 900_000, "Service p95 " + statistics.serviceP95Us + " us");
+        assertTrue(statistics.responseP50Us < 100_000, "Response p50 " + statistics.responseP50Us + " us");
+        assertEquals(statistics.serviceCount, statistics.responseCount);
+    }
+
+    @Test
+    void probesHeldBackByTheInFlightLimitKeepTheirIntendedStart() throws Exception {
+        // Four held connects stop issuing for about a second; the probes due meanwhile
+        // go out late, at the catch-up rate, and their response times show the wait
+        LatencyMonitor.Statistics statistics = runOpenLoop(";maxInFlight=4", 300, 2_500);
+
+        assertEquals(0, statistics.failedMeasurements);
+        assertTrue(statistics.totalMeasurements >= 225 && statistics.totalMeasurements <= 255,
+            statistics.totalMeasurements + " probes in 2.5 s at 100/s");
+        // About a hundred waited, but only the four held connects took long themselves
+        assertTrue(statistics.serviceP95Us < 100_000, "Service p95 " + statistics.serviceP95Us + " us");
+        assertTrue(statistics.responseP95Us > 500_000, "Response p95 " + statistics.responseP95Us + " us");
+        assertTrue(statistics.responseMaxUs >= 900_000, "Response max " + statistics.responseMaxUs + " us");
+    }
+
+    /**
+     * Run an open-loop TCP target at 100 probes/s on a reactor of its own.
+     * Its listener has room for two connections and never accepts; after holdMs
+     * an accepting one on the same port takes its place, and the held connects
+     * retransmit to that.
+     */
+    private LatencyMonitor.Statistics runOpenLoop(String options, long holdMs, long runMs) throws Exception {
+        ServerSocketChannel full = ServerSocketChannel.open();
+        full.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        full.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+        InetSocketAddress address = (InetSocketAddress) full.getLocalAddress();
+        int port = address.getPort();
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    Thread.sleep(holdMs);
+                    // Bound before the full one closes, so no connect in between is refused
+                    listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    listener.bind(address, 50);
+                    full.close();
+                    while (true) {
+                        try (SocketChannel ignored = listener.accept()) {
+                            // Closed right away
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Closed by the test
+                }
+            }, "test-tcp");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            TargetSpec spec = TargetSpec.parse("127.0.0.1:" + port + ";mode=open;timeoutMs=3000" + options, 80, 100);
+            HistogramSettings histograms = HistogramSettings.DEFAULT;
+            TargetMonitor monitor = new TargetMonitor(spec, TargetMonitor.ProbeMode.CLOSED, histograms,
+                SlidingWindows.standard(5000, histograms), LatencyBuckets.DEFAULT, new ResolverCache(30_000),
+                new PauseDetector(1_000_000_000L, false));
+            ProbeReactor reactor = new ProbeReactor(0);
+            reactor.addTarget(monitor);
+            reactor.start(System.nanoTime());
+            Thread.sleep(runMs);
+            monitor.stop();
+            reactor.stop();
+            return monitor.reportInterval(runMs, false);
+        } finally {
+            full.close();
+        }
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        awaitRequests(count, 10_000);
+    }
+
+    /**
+     * Wait until the server has seen this many requests, failing after the deadline.
+     */
+    private void awaitRequests(int count, long deadlineMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + deadlineMs;
+        while (requests.get() < count) {
+            assertTrue(System.currentTimeMillis() < deadline,
+                "Requests after " + deadlineMs + " ms: " + requests.get() + " of " + count);
+            Thread.sleep(10);
+        }
+    }
+
+    private TargetMonitor start(double rate) {
+        TargetSpec spec = TargetSpec.parse("127.0.0.1:" + server.getLocalPort() + ";probe=http;keepAlive=false",
+            80, rate);
+        HistogramSettings histograms = HistogramSettings.DEFAULT;
+        TargetMonitor monitor = new TargetMonitor(spec, TargetMonitor.ProbeMode.CLOSED, histograms,
+            SlidingWindows.standard(5000, histograms), LatencyBuckets.DEFAULT, new ResolverCache(30_000),
+            new PauseDetector(1_000_000_000L, false));
+        monitor.start(executor, System.nanoTime());
+        return monitor;
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread handler = new Thread(() -> handle(socket), "test-http-request");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket) {
+            InputStream in = socket.getInputStream();
+            // Read up to the blank line that ends the request headers
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b < 0) {
+                    return;
+                }
+                matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : b == '\r' ? 1 : 0;
+            }
+            int now = inProgress.incrementAndGet();
+            maxInProgress.accumulateAndGet(now, Math::max);
+            if (requests.incrementAndGet() == heldRequest) {
+                held.countDown();
+                release.await(5, TimeUnit.SECONDS);
+            }
+            inProgress.decrementAndGet();
+            OutputStream out = socket.getOutputStream();
+            out.write(RESPONSE);
+            out.flush();
+            // Without keep-alive the probe closes once it has the response; anything else is another probe's
+            if (in.read() >= 0) {
+                extraRequests.incrementAndGet();
+            }
+        } catch (IOException | InterruptedException e) {
+            // Closed by the test
+        }
+    }
+}
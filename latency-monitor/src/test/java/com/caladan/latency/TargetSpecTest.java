@@ -0,0 +1,87 @@
+/*
+ * TargetSpecTest - Parsing of TARGET_HOST entries.
+ */
+package com.caladan.latency;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TargetSpecTest {
+
+    @Test
+    void hostTakesDefaultPortAndRate() {
+        TargetSpec spec = TargetSpec.parse("10.0.2.120", 22, 50);
+
+        assertEquals("10.0.2.120", spec.host);
+        assertEquals(22, spec.port);
+        assertEquals(50, spec.ratePerSecond);
+        assertTrue(spec.options().isEmpty());
+        assertEquals("10.0.2.120:22", spec.toString());
+    }
+
+    @Test
+    void portRateAndOptions() {
+        TargetSpec spec = TargetSpec.parse("db.example.com:5432; rate=200 ;probe=udp;timeoutMs=250", 22, 50);
+
+        assertEquals("db.example.com", spec.host);
+        assertEquals(5432, spec.port);
+        assertEquals(200, spec.ratePerSecond);
+        assertEquals("udp", spec.option("probe", null));
+        assertEquals("250", spec.option("timeoutMs", null));
+        assertEquals("park", spec.option("wait", "park"));
+        // Rate is a field, not an option
+        assertEquals(null, spec.option("rate", null));
+    }
+
+    @Test
+    void ipv6Literals() {
+        TargetSpec bracketed = TargetSpec.parse("[2001:db8::1]:8080", 22, 50);
+        assertEquals("2001:db8::1", bracketed.host);
+        assertEquals(8080, bracketed.port);
+        assertEquals("[2001:db8::1]:8080", bracketed.toString());
+
+        TargetSpec withoutPort = TargetSpec.parse("[::1]", 22, 50);
+        assertEquals("::1", withoutPort.host);
+        assertEquals(22, withoutPort.port);
+
+        // A bare IPv6 literal has more than one colon, none of which is a port
+        TargetSpec bare = TargetSpec.parse("fe80::1", 22, 50);
+        assertEquals("fe80::1", bare.host);
+        assertEquals(22, bare.port);
+    }
+
+    @Test
+    void listSplitsOnCommasAndWhitespace() {
+        List<TargetSpec> targets = TargetSpec.parseList("a:1, b:2;rate=5\n c", 22, 50);
+
+        assertEquals(3, targets.size());
+        assertEquals("a:1", targets.get(0).toString());
+        assertEquals(5, targets.get(1).ratePerSecond);
+        assertEquals("c:22", targets.get(2).toString());
+        assertTrue(TargetSpec.parseList(null, 22, 50).isEmpty());
+    }
+
+    @Test
+    void unknownOptionIsNamed() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+            () -> TargetSpec.parse("a:1;probe=tcp;timeout=5", 22, 50));
+        assertTrue(e.getMessage().contains("'timeout'"), e.getMessage());
+
+        // Option names are case-sensitive
+        assertThrows(IllegalArgumentException.class, () -> TargetSpec.parse("a:1;Probe=tcp", 22, 50));
+    }
+
+    @Test
+    void malformedEntries() {
+        assertThrows(IllegalArgumentException.class, () -> TargetSpec.parse("a:1;probe", 22, 50));
+        assertThrows(IllegalArgumentException.class, () -> TargetSpec.parse("[::1:22", 22, 50));
+        assertThrows(IllegalArgumentException.class, () -> TargetSpec.parse("a:70000", 22, 50));
+        assertThrows(IllegalArgumentException.class, () -> TargetSpec.parse("a:1;rate=0", 22, 50));
+        assertThrows(NumberFormatException.class, () -> TargetSpec.parse("a:x", 22, 50));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * AsyncTCPLatencyMeasurerTest - Non-blocking connects on loopback: completed,
+ * refused, and held by a listener whose accept queue is full, in which case
+ * later connects are still issued on time and the held ones time out, each
+ * keeping its own intended start.
+ */
+package com.caladan.latency.measure;
+
+import com.caladan.latency.util.TimerWheel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncTCPLatencyMeasurerTest {
+
+    private static final long MS = 1_000_000L;
+
+    private Selector selector;
+    private TimerWheel wheel;
+    private ServerSocketChannel server;
+    private final List<AsyncTCPLatencyMeasurer.PendingConnect> completed = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        selector = Selector.open();
+        wheel = new TimerWheel(MS, 1024, System.nanoTime());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        selector.close();
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void completesAndRefusesConnects() throws IOException {
+        // The kernel completes the handshake without an accept
+        int port = listen(50);
+        AsyncTCPLatencyMeasurer.PendingConnect connected = issue(measurer(port, 1_000), System.nanoTime());
+        pump(() -> completed.size() == 1);
+        assertTrue(connected.success);
+        assertNull(connected.reason);
+        assertTrue(connected.endNanos >= connected.startNanos);
+
+        server.close();
+        AsyncTCPLatencyMeasurer.PendingConnect refused = issue(measurer(port, 1_000), System.nanoTime());
+        pump(() -> completed.size() == 2);
+        assertEquals(false, refused.success);
+        assertEquals(FailureReason.REFUSED, refused.reason);
+    }
+
+    @Test
+    void heldConnectsNeitherDelayLaterOnesNorLoseTheirIntendedStart() throws IOException {
+        // Room for two connections in the accept queue, and none is ever accepted: the rest are held
+        AsyncTCPLatencyMeasurer measurer = measurer(listen(1), 300);
+        long firstIntendedNanos = System.nanoTime() + 10 * MS;
+        List<AsyncTCPLatencyMeasurer.PendingConnect> probes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            long intendedNanos = firstIntendedNanos + i * 10 * MS;
+            pump(() -> System.nanoTime() >= intendedNanos);
+            long before = System.nanoTime();
+            probes.add(issue(measurer, intendedNanos));
+            assertTrue(System.nanoTime() - before < 50 * MS, "Connect " + i + " blocked");
+        }
+        // Every probe went out on schedule, before the first held one timed out
+        long lastStartNanos = probes.get(19).startNanos;
+        assertTrue(lastStartNanos - firstIntendedNanos < 300 * MS,
+            "Last probe started " + (lastStartNanos - firstIntendedNanos) / MS + " ms after the first was due");
+
+        pump(() -> completed.size() == 20);
+        int timedOut = 0;
+        for (int i = 0; i < probes.size(); i++) {
+            AsyncTCPLatencyMeasurer.PendingConnect probe = probes.get(i);
+            assertEquals(firstIntendedNanos + i * 10 * MS, probe.intendedStartNanos);
+            assertTrue(probe.startNanos >= probe.intendedStartNanos);
+            if (!probe.success) {
+                assertEquals(FailureReason.TIMEOUT, probe.reason);
+                assertTrue(probe.endNanos - probe.startNanos >= 300 * MS,
+                    "Timed out after " + (probe.endNanos - probe.startNanos) / MS + " ms");
+                timedOut++;
+            }
+        }
+        assertTrue(timedOut >= 15, timedOut + " of 20 timed out");
+    }
+
+    private AsyncTCPLatencyMeasurer measurer(int port, int timeoutMs) {
+        return new AsyncTCPLatencyMeasurer(ResolverCache.uncached("127.0.0.1", port), timeoutMs);
+    }
+
+    /**
+     * Issue a connect as the TargetMonitor does, with its deadline on the wheel.
+     */
+    private AsyncTCPLatencyMeasurer.PendingConnect issue(AsyncTCPLatencyMeasurer measurer, long intendedNanos) {
+        AsyncTCPLatencyMeasurer.PendingConnect probe = measurer.connect(selector, intendedNanos, completed::add);
+        if (!probe.isDone()) {
+            wheel.schedule(probe, probe.deadlineNanos);
+        }
+        return probe;
+    }
+
+    private int listen(int backlog) throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), backlog);
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Run the reactor loop on this thread until the condition holds.
+     */
+    private void pump(BooleanSupplier condition) throws IOException {
+        long deadline = System.nanoTime() + 5_000 * MS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Condition not reached in 5 s");
+            selector.select(1);
+            for (SelectionKey key : selector.selectedKeys()) {
+                ((Selectable) key.attachment()).selected();
+            }
+            selector.selectedKeys().clear();
+            wheel.expire(System.nanoTime());
+        }
+    }
+}
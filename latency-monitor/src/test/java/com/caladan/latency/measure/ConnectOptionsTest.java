@@ -0,0 +1,74 @@
+/*
+ * ConnectOptionsTest - Parsing close modes, source-port ranges and fixed
+ * flows, and handing out the ports of a range round-robin.
+ */
+package com.caladan.latency.measure;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectOptionsTest {
+
+    @Test
+    void defaultsToEphemeralPortsAndGracefulClose() {
+        ConnectOptions options = ConnectOptions.parse("graceful", null, null, 0);
+
+        assertFalse(options.reset);
+        assertFalse(options.reuseAddress);
+        assertFalse(options.bindsSourcePorts());
+        assertNull(options.sourcePorts());
+        assertEquals(0, options.flows());
+        assertEquals(-1, options.nextPort());
+    }
+
+    @Test
+    void parsesRangesAndSinglePorts() {
+        ConnectOptions range = ConnectOptions.parse("RESET", " 40000 - 40009 ", "true", 0);
+        assertTrue(range.reset);
+        assertTrue(range.reuseAddress);
+        assertTrue(range.bindsSourcePorts());
+        assertEquals(40000, range.sourcePortMin);
+        assertEquals(40009, range.sourcePortMax);
+        assertEquals("40000-40009", range.sourcePorts());
+        assertEquals(0, range.flows(), "A range alone is not fixed flows");
+
+        ConnectOptions single = ConnectOptions.parse("graceful", "40000", "false", 0);
+        assertEquals("40000-40000", single.sourcePorts());
+    }
+
+    @Test
+    void flowsExtendAFirstPortOrMustFillTheRange() {
+        ConnectOptions firstPort = ConnectOptions.parse("reset", "40000", null, 4);
+        assertEquals("40000-40003", firstPort.sourcePorts());
+        assertEquals(4, firstPort.flows());
+
+        ConnectOptions exact = ConnectOptions.parse("reset", "40000-40003", null, 4);
+        assertEquals(4, exact.flows());
+
+        assertThrows(IllegalArgumentException.class, () -> ConnectOptions.parse("reset", "40000-40004", null, 4));
+        assertThrows(IllegalArgumentException.class, () -> ConnectOptions.parse("reset", null, null, 4));
+    }
+
+    @Test
+    void handsOutPortsRoundRobin() {
+        ConnectOptions options = ConnectOptions.parse("graceful", "40000-40002", null, 0);
+
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i % 3, options.nextPort(), "Port of probe " + i);
+        }
+    }
+
+    @Test
+    void rejectsInvalidOptions() {
+        assertThrows(IllegalArgumentException.class, () -> ConnectOptions.parse("abort", null, null, 0));
+        assertThrows(IllegalArgumentException.class, () -> ConnectOptions.parse("reset", "0-10", null, 0));
+        assertThrows(IllegalArgumentException.class, () -> ConnectOptions.parse("reset", "40010-40000", null, 0));
+        assertThrows(IllegalArgumentException.class, () -> ConnectOptions.parse("reset", "65000-65536", null, 0));
+        assertThrows(NumberFormatException.class, () -> ConnectOptions.parse("reset", "low-high", null, 0));
+    }
+}
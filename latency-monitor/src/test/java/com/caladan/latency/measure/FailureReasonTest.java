@@ -0,0 +1,67 @@
+/*
+ * FailureReasonTest - Exceptions the JDK throws for failed probes map to their reason.
+ */
+package com.caladan.latency.measure;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.UnresolvedAddressException;
+import javax.net.ssl.SSLHandshakeException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FailureReasonTest {
+
+    @Test
+    void byType() {
+        assertEquals(FailureReason.TIMEOUT, FailureReason.classify(new SocketTimeoutException("connect timed out")));
+        assertEquals(FailureReason.LOCAL, FailureReason.classify(new BindException("Address already in use")));
+        assertEquals(FailureReason.RESOLVE, FailureReason.classify(new UnknownHostException("nosuch.example")));
+        assertEquals(FailureReason.RESOLVE, FailureReason.classify(new UnresolvedAddressException()));
+        assertEquals(FailureReason.UNREACHABLE, FailureReason.classify(new NoRouteToHostException("No route to host")));
+        assertEquals(FailureReason.UNREACHABLE, FailureReason.classify(new PortUnreachableException()));
+        assertEquals(FailureReason.TLS, FailureReason.classify(new SSLHandshakeException("PKIX path building failed")));
+        assertEquals(FailureReason.PROTOCOL, FailureReason.classify(new ProtocolException("Bad status line")));
+        assertEquals(FailureReason.RESET, FailureReason.classify(new EOFException()));
+        assertEquals(FailureReason.LOCAL, FailureReason.classify(new ClosedChannelException()));
+    }
+
+    @Test
+    void byMessage() {
+        assertEquals(FailureReason.REFUSED, FailureReason.classify(new ConnectException("Connection refused")));
+        assertEquals(FailureReason.UNREACHABLE, FailureReason.classify(new SocketException("Network is unreachable")));
+        assertEquals(FailureReason.TIMEOUT, FailureReason.classify(new ConnectException("Connection timed out")));
+        assertEquals(FailureReason.RESET, FailureReason.classify(new SocketException("Connection reset by peer")));
+        assertEquals(FailureReason.RESET, FailureReason.classify(new IOException("Broken pipe")));
+        assertEquals(FailureReason.RESET, FailureReason.classify(new SocketException("Socket closed")));
+        assertEquals(FailureReason.OTHER, FailureReason.classify(new IOException("Something else")));
+        assertEquals(FailureReason.OTHER, FailureReason.classify(new IOException()));
+    }
+
+    @Test
+    void outOfLocalPortsIsLocal() {
+        // EADDRNOTAVAIL surfaces as a NoRouteToHostException, which would otherwise be unreachable
+        assertEquals(FailureReason.LOCAL,
+            FailureReason.classify(new NoRouteToHostException("Cannot assign requested address")));
+    }
+
+    @Test
+    void labelsAndOrdinals() {
+        assertEquals("http_status", FailureReason.HTTP_STATUS.label);
+        assertEquals(FailureReason.values().length, FailureReason.count());
+        for (FailureReason reason : FailureReason.values()) {
+            assertEquals(reason, FailureReason.of(reason.ordinal()));
+        }
+    }
+}
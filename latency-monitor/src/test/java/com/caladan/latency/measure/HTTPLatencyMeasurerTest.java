@@ -0,0 +1,259 @@
+/*
+ * HTTPLatencyMeasurerTest - The HTTPS probe against a local TLS server that
+ * answers each request with a scripted response: phases on new and reused
+ * connections, bodies of either framing, interim responses, the retry of a
+ * connection the server closed while idle, and TLS session resumption.
+ */
+package com.caladan.latency.measure;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.Base64;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HTTPLatencyMeasurerTest {
+
+    // PKCS#12 keystore with a self-signed EC certificate for localhost, password "changeit"
+    private static final String KEYSTORE =
+        "MIIEEAIBAzCCA7oGCSqGSIb3DQEHAaCCA6sEggOnMIIDozCCASoGCSqGSIb3DQEHAaCCARsEggEXMIIBEzCCAQ8GCyqGSIb3"
+        + "DQEMCgECoIG9MIG6MGYGCSqGSIb3DQEFDTBZMDgGCSqGSIb3DQEFDDArBBS7740E6ulZ4RnZLd05fobjtISn+QICJxACASAw"
+        + "DAYIKoZIhvcNAgkFADAdBglghkgBZQMEASoEEFjZYuNECM/EZxV3Ao4g+R4EUIYqXT8mlVHD8mKeD0jqTxK5JC+GaiX51/qe"
+        + "ZbY6EWJ7MNmHxQpUY/1i2klSmJl/DW2PyO/RXWV8CPILsvMexBa4QCNu00XTym9mInXssaLAMUAwGwYJKoZIhvcNAQkUMQ4e"
+        + "DABzAGUAcgB2AGUAcjAhBgkqhkiG9w0BCRUxFAQSVGltZSAxNzkyMjA2OTY0NDM1MIICcQYJKoZIhvcNAQcGoIICYjCCAl4C"
+        + "AQAwggJXBgkqhkiG9w0BBwEwZgYJKoZIhvcNAQUNMFkwOAYJKoZIhvcNAQUMMCsEFDtf6Hp27GgydyfcqhCoBCx3p+v1AgIn"
+        + "EAIBIDAMBggqhkiG9w0CCQUAMB0GCWCGSAFlAwQBKgQQXJTrA+dNdAO1ILJrGOKIBoCCAeAYydqpZm7LUqNAwpua6mdPQ7p2"
+        + "paYtBbmVn2bo19ymQog5Pzvv6LkJjved8Eb0kPMmiqtVbA7RvzgOIzZ+zGiAMqZ2AjGFRFHz7ZuW/8n9Gray3WCLXjDiumuA"
+        + "JoOwHA8S27KWeLfpSr6RdQAS5XfwtZwe5X5/0sPFbKOyg+L3fR7n6iI2RTxKvBY+8by9E5T9mfbaLgmc0LHejcGgjAIWyy9T"
+        + "Bdvgh3gWqR12JrmyRopdIlHqUlcKf1t2ONNS0du1t+rL79G5pavEWQnAK1K0hcWLFCkTCif+C0Z5E1YNUtAOjzxsFtreVVmA"
+        + "1GlSrgkVEKbNhvHzpIljOgd+WDcxYSbeyFuTRtktLugUIOi5z9riGSZjOQ4BvjG6Y0tS6kJmCTYFdKZwMJXf3+OO7Isy1bCj"
+        + "paW83upE9084J5TuYnellixJ4VsBd5Bw05sfl2TQxor1tTrPaeiPnv5k2HL7LbebjqHiXdJRG5UtVVySVqsBUzQPVCfidXF8"
+        + "D/a3Gqy+XGQ1TfULbduLtovqiCmchXEQtYHLX0jhZ2RiTJUzIqh1ppYBRcB5uc3ulE2FKPaIlSv6Nd47bNPmsGPNg4dk4O8r"
+        + "F6YwXmvcRseWeH/kiVTjg3df+NCVPpZ8PnAc8BQwTTAxMA0GCWCGSAFlAwQCAQUABCDMyAsw3Of8EebYsJ71jxo7ppLSxzGo"
+        + "Qv+CCdlMb1PXrgQUb/GJzmYgSCmq9KiiYBUiLlSwrQQCAicQ";
+
+    private static final String OK = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello";
+    private static final String NOT_FOUND = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n";
+
+    private SSLServerSocket server;
+    private final BlockingQueue<Reply> replies = new LinkedBlockingQueue<>();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private HTTPLatencyMeasurer measurer;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        keys.load(new ByteArrayInputStream(Base64.getDecoder().decode(KEYSTORE)), "changeit".toCharArray());
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keys, "changeit".toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        server = (SSLServerSocket) context.getServerSocketFactory()
+            .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "test-https");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (measurer != null) {
+            measurer.close();
+        }
+        server.close();
+    }
+
+    @Test
+    void everyPhaseOnANewConnectionAndOnlyRequestPhasesOnAReusedOne() {
+        measurer = measurer(true, true);
+        reply(OK);
+        reply(OK);
+
+        assertTrue(measurer.measure().success);
+        for (int phase = 0; phase < HTTPLatencyMeasurer.PHASES.length; phase++) {
+            assertTrue(measurer.phaseNanos(phase) >= 0, HTTPLatencyMeasurer.PHASES[phase]);
+        }
+        assertTrue(measurer.measure().success);
+        assertEquals(-1, measurer.phaseNanos(HTTPLatencyMeasurer.RESOLVE));
+        assertEquals(-1, measurer.phaseNanos(HTTPLatencyMeasurer.CONNECT));
+        assertEquals(-1, measurer.phaseNanos(HTTPLatencyMeasurer.TLS));
+        for (int phase : new int[] {HTTPLatencyMeasurer.WRITE, HTTPLatencyMeasurer.TTFB, HTTPLatencyMeasurer.BODY}) {
+            assertTrue(measurer.phaseNanos(phase) >= 0, HTTPLatencyMeasurer.PHASES[phase]);
+        }
+        assertEquals(1, measurer.connections());
+        assertEquals(1, measurer.tlsHandshakes());
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    void chunkedAndContentLengthBodiesAreReadToTheEnd() {
+        measurer = measurer(true, true);
+        reply(OK);
+        reply("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "5;name=value\r\nhello\r\n6\r\n world\r\n0\r\nTrailer: yes\r\n\r\n");
+        reply("HTTP/1.1 200 OK\r\nContent-Length: 20000\r\n\r\n" + "x".repeat(20_000));
+        reply(NOT_FOUND);
+
+        assertTrue(measurer.measure().success);
+        assertTrue(measurer.measure().success);
+        assertTrue(measurer.measure().success);
+        // Out of step, this would read one of the earlier responses
+        TCPLatencyMeasurer.MeasurementResult last = measurer.measure();
+        assertFalse(last.success);
+        assertEquals(FailureReason.HTTP_STATUS, last.reason);
+        assertEquals(1, measurer.connections());
+    }
+
+    @Test
+    void interimResponsesPrecedeTheFinalOne() {
+        measurer = measurer(true, true);
+        reply("HTTP/1.1 103 Early Hints\r\nLink: </style.css>; rel=preload\r\n\r\n"
+            + "HTTP/1.1 100 Continue\r\n\r\n" + NOT_FOUND);
+        reply(OK);
+
+        TCPLatencyMeasurer.MeasurementResult first = measurer.measure();
+        assertFalse(first.success);
+        assertEquals(FailureReason.HTTP_STATUS, first.reason);
+        assertTrue(measurer.measure().success);
+        assertEquals(1, measurer.connections());
+    }
+
+    @Test
+    void connectionClosedWhileIdleIsRetriedOnce() {
+        measurer = measurer(true, true);
+        replies.add(new Reply(OK, true));
+        reply(OK);
+
+        assertTrue(measurer.measure().success);
+        assertTrue(measurer.measure().success);
+        // The retry opened, and timed, a connection of its own
+        assertTrue(measurer.phaseNanos(HTTPLatencyMeasurer.CONNECT) >= 0);
+        assertEquals(2, measurer.connections());
+        assertEquals(2, accepted.get());
+    }
+
+    @Test
+    void connectionClosedMidResponseIsNotRetried() {
+        measurer = measurer(true, true);
+        reply(OK);
+        replies.add(new Reply("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhe", true));
+
+        assertTrue(measurer.measure().success);
+        assertFalse(measurer.measure().success);
+        assertEquals(1, measurer.connections());
+    }
+
+    @Test
+    void sessionsAreResumedUnlessDisabled() throws InterruptedException {
+        measurer = measurer(false, true);
+        for (int i = 0; i < 3; i++) {
+            reply(OK);
+            assertTrue(measurer.measure().success);
+            // The resumed session was created in an earlier millisecond than its handshake started
+            Thread.sleep(2);
+        }
+        assertEquals(3, measurer.connections());
+        assertEquals(3, measurer.tlsHandshakes());
+        assertEquals(2, measurer.tlsResumed());
+
+        measurer.close();
+        measurer = measurer(false, false);
+        for (int i = 0; i < 3; i++) {
+            reply(OK);
+            assertTrue(measurer.measure().success);
+            Thread.sleep(2);
+        }
+        assertEquals(3, measurer.tlsHandshakes());
+        assertEquals(0, measurer.tlsResumed());
+    }
+
+    private HTTPLatencyMeasurer measurer(boolean keepAlive, boolean resume) {
+        return new HTTPLatencyMeasurer("127.0.0.1", server.getLocalPort(), 5_000, "/", true, keepAlive, resume, true);
+    }
+
+    private void reply(String response) {
+        replies.add(new Reply(response, false));
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                accepted.incrementAndGet();
+                Thread handler = new Thread(() -> handle(socket), "test-https-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Answer each request on the connection with the next scripted reply.
+     */
+    private void handle(Socket socket) {
+        try (socket) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            while (readRequest(in)) {
+                Reply reply = replies.poll(5, TimeUnit.SECONDS);
+                if (reply == null) {
+                    return;
+                }
+                out.write(reply.response.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                if (reply.close) {
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Closed by the client or the test
+        }
+    }
+
+    /**
+     * Read up to the blank line that ends the request headers; false at the end of the connection.
+     */
+    private static boolean readRequest(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                return false;
+            }
+            matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : b == '\r' ? 1 : 0;
+        }
+        return true;
+    }
+
+    private static final class Reply {
+        final String response;
+        // Close the connection once this is sent, without saying so in a header
+        final boolean close;
+
+        Reply(String response, boolean close) {
+            this.response = response;
+            this.close = close;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * ResolverCacheTest - Which hosts count as literals, and how cached entries
+ * behave as a scripted resolver answers, changes its answer or fails:
+ * the last good address is kept, changes are tracked, and endpoints only
+ * build a new socket address when the address really changed.
+ */
+package com.caladan.latency.measure;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResolverCacheTest {
+
+    /**
+     * Answers with a fresh instance of the current address each time, or fails while it is null.
+     */
+    private static final class ScriptedResolver implements ResolverCache.Resolver {
+        volatile byte[] address;
+        int lookups;
+
+        @Override
+        public InetAddress resolve(String host) throws UnknownHostException {
+            lookups++;
+            if (address == null) {
+                throw new UnknownHostException(host);
+            }
+            return InetAddress.getByAddress(host, address);
+        }
+    }
+
+    @Test
+    void ipv4AndIpv6LiteralsAreNotResolved() {
+        for (String literal : new String[] {"127.0.0.1", "10.20.30.40", "::1", "2001:db8::1", "fe80::1%eth0"}) {
+            assertTrue(ResolverCache.Entry.isLiteral(literal), literal);
+        }
+        for (String name : new String[] {"localhost", "example.com", "10.0.0.1.nip.io", "1.2.3"}) {
+            assertFalse(ResolverCache.Entry.isLiteral(name), name);
+        }
+
+        ScriptedResolver resolver = new ScriptedResolver();
+        resolver.address = new byte[] {10, 0, 0, 1};
+        ResolverCache cache = new ResolverCache(1000, resolver);
+        cache.endpoint("10.0.0.1", 80);
+        cache.refreshAll();
+        cache.reportInterval();
+        // Looked up once when registered, but never refreshed or reported
+        assertEquals(1, resolver.lookups);
+        assertTrue(cache.getStatistics().isEmpty());
+    }
+
+    @Test
+    void failedRefreshKeepsTheLastGoodAddress() {
+        ScriptedResolver resolver = new ScriptedResolver();
+        resolver.address = new byte[] {10, 0, 0, 1};
+        ResolverCache cache = new ResolverCache(1000, resolver);
+        ResolverCache.Endpoint endpoint = cache.endpoint("service", 8080);
+        InetSocketAddress before = endpoint.socketAddress();
+
+        resolver.address = null;
+        cache.refreshAll();
+        cache.refreshAll();
+
+        assertSame(before, endpoint.socketAddress());
+        assertEquals("10.0.0.1", before.getAddress().getHostAddress());
+        cache.reportInterval();
+        ResolverCache.ResolverStatistics statistics = cache.getStatistics().get(0);
+        assertEquals("10.0.0.1", statistics.address);
+        assertEquals(3, statistics.resolutions);
+        assertEquals(2, statistics.failures);
+        assertEquals(0, statistics.addressChanges);
+        assertEquals(3, statistics.resolutionTimes.count);
+    }
+
+    @Test
+    void addressChangesAreTrackedAndEqualAnswersAreNot() {
+        ScriptedResolver resolver = new ScriptedResolver();
+        resolver.address = new byte[] {10, 0, 0, 1};
+        ResolverCache cache = new ResolverCache(1000, resolver);
+        cache.endpoint("service", 8080);
+
+        cache.refreshAll();
+        cache.reportInterval();
+        ResolverCache.ResolverStatistics unchanged = cache.getStatistics().get(0);
+        assertEquals(0, unchanged.addressChanges);
+        assertNull(unchanged.previousAddress);
+        assertEquals(0, unchanged.lastChangeMs);
+
+        resolver.address = new byte[] {10, 0, 0, 2};
+        long before = System.currentTimeMillis();
+        cache.refreshAll();
+        long after = System.currentTimeMillis();
+        cache.reportInterval();
+        ResolverCache.ResolverStatistics changed = cache.getStatistics().get(0);
+        assertEquals("10.0.0.2", changed.address);
+        assertEquals("10.0.0.1", changed.previousAddress);
+        assertEquals(1, changed.addressChanges);
+        assertTrue(changed.lastChangeMs >= before && changed.lastChangeMs <= after, changed.lastChangeMs + "");
+        assertEquals(0, changed.failures);
+    }
+
+    @Test
+    void endpointRebuildsItsSocketAddressOnlyOnAChange() {
+        ScriptedResolver resolver = new ScriptedResolver();
+        resolver.address = new byte[] {10, 0, 0, 1};
+        ResolverCache cache = new ResolverCache(1000, resolver);
+        ResolverCache.Endpoint endpoint = cache.endpoint("service", 8080);
+        InetSocketAddress first = endpoint.socketAddress();
+        assertSame(first, endpoint.socketAddress());
+
+        // An equal answer is a new InetAddress, but the cached one is kept
+        cache.refreshAll();
+        assertSame(first, endpoint.socketAddress());
+
+        resolver.address = new byte[] {10, 0, 0, 2};
+        cache.refreshAll();
+        InetSocketAddress second = endpoint.socketAddress();
+        assertNotSame(first, second);
+        assertEquals("10.0.0.2", second.getAddress().getHostAddress());
+        assertEquals(8080, second.getPort());
+        assertSame(second, endpoint.socketAddress());
+
+        // Endpoints of one host share its entry, without looking it up again
+        assertEquals(second.getAddress(), cache.endpoint("service", 9090).socketAddress().getAddress());
+        assertEquals(3, resolver.lookups);
+    }
+
+    @Test
+    void hostThatNeverResolvedGivesAnUnresolvedAddress() {
+        ScriptedResolver resolver = new ScriptedResolver();
+        ResolverCache cache = new ResolverCache(1000, resolver);
+        ResolverCache.Endpoint endpoint = cache.endpoint("nowhere", 8080);
+
+        InetSocketAddress unresolved = endpoint.socketAddress();
+        assertTrue(unresolved.isUnresolved());
+        assertEquals("nowhere", unresolved.getHostString());
+        assertEquals(8080, unresolved.getPort());
+        cache.reportInterval();
+        assertNull(cache.getStatistics().get(0).address);
+        assertEquals(1, cache.getStatistics().get(0).failures);
+
+        // Resolves on a later refresh
+        resolver.address = new byte[] {10, 0, 0, 3};
+        cache.refreshAll();
+        assertFalse(endpoint.socketAddress().isUnresolved());
+        cache.reportInterval();
+        assertEquals(0, cache.getStatistics().get(0).addressChanges);
+    }
+
+    @Test
+    void uncachedEndpointResolvesOnUse() {
+        ResolverCache.Endpoint endpoint = ResolverCache.uncached("127.0.0.1", 7);
+        InetSocketAddress address = endpoint.socketAddress();
+        assertEquals("127.0.0.1", address.getAddress().getHostAddress());
+        assertEquals(7, address.getPort());
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * TCPPingPongMeasurerTest - Round trips against the Reflector, and how a
+ * connection is checked, dropped and re-established against a loopback
+ * server the test controls. The test thread plays the reactor; backoff
+ * deadlines are checked by expiring the timer wheel just before and just
+ * after them rather than by sleeping through them.
+ */
+package com.caladan.latency.measure;
+
+import com.caladan.latency.Reflector;
+import com.caladan.latency.util.HistogramSettings;
+import com.caladan.latency.util.TimerWheel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TCPPingPongMeasurerTest {
+
+    private static final int PAYLOAD_BYTES = 64;
+    private static final int TIMEOUT_MS = 5_000;
+    private static final long MS = 1_000_000L;
+
+    private Selector selector;
+    private TimerWheel wheel;
+    private ServerSocketChannel server;
+    private int port;
+
+    private final List<long[]> completed = new ArrayList<>();
+    private final List<FailureReason> failed = new ArrayList<>();
+    private int available;
+
+    private final TCPPingPongMeasurer.ExchangeListener listener = new TCPPingPongMeasurer.ExchangeListener() {
+        @Override
+        public void exchangeCompleted(long intendedStartNanos, long startNanos, long endNanos) {
+            completed.add(new long[] {intendedStartNanos, startNanos, endNanos});
+        }
+
+        @Override
+        public void exchangeFailed(long intendedStartNanos, long startNanos, long endNanos, FailureReason reason) {
+            failed.add(reason);
+        }
+
+        @Override
+        public void connectionAvailable(long nowNanos) {
+            available++;
+        }
+    };
+
+    @BeforeEach
+    void setUp() throws IOException {
+        selector = Selector.open();
+        wheel = new TimerWheel(MS, 1024, System.nanoTime());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        selector.close();
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void exchangesRoundTripThroughTheReflector() throws IOException {
+        Reflector reflector = new Reflector(0);
+        reflector.start();
+        try {
+            port = reflector.getPort();
+            TCPPingPongMeasurer measurer = start();
+            pump(() -> available == 1);
+
+            for (int i = 0; i < 10; i++) {
+                long intended = System.nanoTime() - 1_000;
+                assertTrue(measurer.send(intended));
+                // One connection, and it is busy
+                assertFalse(measurer.send(intended));
+                int exchanges = i + 1;
+                pump(() -> completed.size() == exchanges);
+
+                long[] exchange = completed.get(i);
+                assertEquals(intended, exchange[0]);
+                assertTrue(exchange[1] >= intended && exchange[2] >= exchange[1]);
+            }
+            assertTrue(failed.isEmpty());
+            assertEquals(1, measurer.takeConnectTimes(null).getTotalCount());
+            assertEquals(0, measurer.reconnects());
+            assertEquals(0, measurer.connectFailures());
+        } finally {
+            reflector.close();
+        }
+    }
+
+    @Test
+    void echoOutOfStepFailsTheExchangeAndDropsTheConnection() throws IOException {
+        listen();
+        TCPPingPongMeasurer measurer = start();
+        SocketChannel connection = accept();
+        pump(() -> available == 1);
+
+        assertTrue(measurer.send(System.nanoTime()));
+        ByteBuffer request = read(connection);
+        request.putLong(0, request.getLong(0) + 1);
+        connection.write(request);
+        pump(() -> failed.size() == 1);
+
+        assertEquals(FailureReason.PROTOCOL, failed.get(0));
+        assertTrue(completed.isEmpty());
+        assertFalse(measurer.isConnected());
+        connection.close();
+    }
+
+    @Test
+    void unaskedForBytesDropTheConnection() throws IOException {
+        listen();
+        TCPPingPongMeasurer measurer = start();
+        SocketChannel connection = accept();
+        pump(() -> available == 1);
+
+        connection.write(ByteBuffer.wrap(new byte[PAYLOAD_BYTES]));
+        pump(() -> !measurer.isConnected());
+
+        // No exchange was in progress to fail
+        assertTrue(failed.isEmpty());
+        connection.close();
+    }
+
+    @Test
+    void reconnectsAfterTheServerDropsTheConnection() throws IOException {
+        listen();
+        TCPPingPongMeasurer measurer = start();
+        accept().close();
+        pump(() -> !measurer.isConnected());
+        assertTrue(failed.isEmpty());
+
+        // Dropped while a request is outstanding: that exchange fails
+        SocketChannel second = accept();
+        pump(() -> available == 2);
+        assertTrue(measurer.send(System.nanoTime()));
+        read(second);
+        second.close();
+        pump(() -> failed.size() == 1);
+        assertEquals(FailureReason.RESET, failed.get(0));
+
+        SocketChannel third = accept();
+        pump(() -> available == 3);
+        assertTrue(measurer.send(System.nanoTime()));
+        third.write(read(third));
+        pump(() -> completed.size() == 1);
+
+        assertEquals(2, measurer.reconnects());
+        assertEquals(0, measurer.connectFailures());
+        assertEquals(3, measurer.takeConnectTimes(null).getTotalCount());
+        third.close();
+    }
+
+    @Test
+    void backoffDoublesOnFailedConnectsAndResetsOnceConnected() throws Exception {
+        listen();
+        TCPPingPongMeasurer measurer = start();
+        SocketChannel connection = accept();
+        pump(() -> available == 1);
+
+        // Nothing listens any more, so every reconnect is refused
+        server.close();
+        long before = System.nanoTime();
+        connection.close();
+        pump(() -> !measurer.isConnected());
+        long after = System.nanoTime();
+        long[] broken = {before, after};
+        for (long backoffMs : new long[] {100, 200, 400}) {
+            broken = expectConnectAttempt(measurer, broken, backoffMs);
+        }
+        assertEquals(3, measurer.connectFailures());
+
+        // Listening again, the next attempt, 800 ms on, connects
+        listen(port);
+        waitUntil(broken[1] + 802 * MS);
+        pump(() -> available == 2);
+        SocketChannel reconnected = accept();
+        assertEquals(1, measurer.reconnects());
+        assertEquals(2, measurer.takeConnectTimes(null).getTotalCount());
+
+        server.close();
+        before = System.nanoTime();
+        reconnected.close();
+        pump(() -> !measurer.isConnected());
+        after = System.nanoTime();
+        expectConnectAttempt(measurer, new long[] {before, after}, 100);
+        assertEquals(4, measurer.connectFailures());
+    }
+
+    /**
+     * Check that a connection broken between the given times tries again after exactly this
+     * backoff, by expiring the wheel just before and just after; the attempt is refused.
+     *
+     * @return when the refused attempt broke the connection again, at the earliest and latest
+     */
+    private long[] expectConnectAttempt(TCPPingPongMeasurer measurer, long[] broken, long backoffMs)
+            throws IOException {
+        long failures = measurer.connectFailures();
+        wheel.expire(broken[0] + (backoffMs - 2) * MS);
+        // Deregisters the key of the channel closed last; a new attempt would register another
+        selector.selectNow();
+        assertTrue(selector.keys().isEmpty(), "Connect attempted before " + backoffMs + " ms");
+        assertEquals(failures, measurer.connectFailures(), "Connect attempted before " + backoffMs + " ms");
+
+        long before = System.nanoTime();
+        wheel.expire(broken[1] + (backoffMs + 2) * MS);
+        assertTrue(!selector.keys().isEmpty() || measurer.connectFailures() > failures,
+            "Connect not attempted after " + backoffMs + " ms");
+        pump(() -> measurer.connectFailures() == failures + 1);
+        return new long[] {before, System.nanoTime()};
+    }
+
+    private TCPPingPongMeasurer start() {
+        TCPPingPongMeasurer measurer = new TCPPingPongMeasurer(ResolverCache.uncached("127.0.0.1", port), 1,
+            PAYLOAD_BYTES, TIMEOUT_MS, HistogramSettings.DEFAULT);
+        measurer.start(selector, wheel, listener);
+        return measurer;
+    }
+
+    private void listen() throws IOException {
+        listen(0);
+        port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    private void listen(int port) throws IOException {
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.configureBlocking(false);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * The measurer's next connection, running the reactor until it arrives.
+     */
+    private SocketChannel accept() throws IOException {
+        SocketChannel[] accepted = new SocketChannel[1];
+        pump(() -> {
+            try {
+                return (accepted[0] = server.accept()) != null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        accepted[0].configureBlocking(true);
+        accepted[0].setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return accepted[0];
+    }
+
+    private static ByteBuffer read(SocketChannel connection) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(PAYLOAD_BYTES);
+        while (request.hasRemaining()) {
+            if (connection.read(request) < 0) {
+                throw new IOException("Closed mid-request");
+            }
+        }
+        return request.flip();
+    }
+
+    /**
+     * Run the reactor loop on this thread until the condition holds.
+     */
+    private void pump(BooleanSupplier condition) throws IOException {
+        long deadline = System.nanoTime() + 5_000 * MS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Condition not reached in 5 s");
+            selector.select(10);
+            for (SelectionKey key : selector.selectedKeys()) {
+                ((Selectable) key.attachment()).selected();
+            }
+            selector.selectedKeys().clear();
+            wheel.expire(System.nanoTime());
+        }
+    }
+
+    private static void waitUntil(long nanos) throws InterruptedException {
+        long remaining;
+        while ((remaining = nanos - System.nanoTime()) > 0) {
+            Thread.sleep(remaining / MS + 1);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * UDPEchoMeasurerTest - Echo accounting of the sequence ring.
+ * The test thread plays both the reactor and the reflector: it decides which
+ * datagrams come back, when, and how often, then lets the measurer read them.
+ */
+package com.caladan.latency.measure;
+
+import com.caladan.latency.util.TimerWheel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class UDPEchoMeasurerTest {
+
+    private static final int TIMEOUT_MS = 50;
+
+    private DatagramChannel reflector;
+    private Selector selector;
+    private TimerWheel wheel;
+    private int received;
+    private int lost;
+
+    private final UDPEchoMeasurer.EchoListener listener = new UDPEchoMeasurer.EchoListener() {
+        @Override
+        public void echoReceived(long intendedStartNanos, long sentNanos, long receivedNanos) {
+            received++;
+        }
+
+        @Override
+        public void echoLost(long intendedStartNanos, long sentNanos, long nowNanos) {
+            lost++;
+        }
+    };
+
+    @BeforeEach
+    void open() throws IOException {
+        reflector = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        selector = Selector.open();
+        wheel = new TimerWheel(1_000_000, 64, System.nanoTime());
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        selector.close();
+        reflector.close();
+    }
+
+    @Test
+    void secondEchoIsADuplicate() throws IOException {
+        UDPEchoMeasurer measurer = open(16);
+        send(measurer, 1);
+        List<Datagram> datagrams = take(1);
+
+        echo(datagrams.get(0));
+        echo(datagrams.get(0));
+        drain(measurer, 2);
+
+        assertEquals(1, received);
+        assertEquals(0, lost);
+        assertEquals(1, measurer.duplicates());
+        assertEquals(0, measurer.late());
+        assertEquals(0, measurer.outstanding());
+    }
+
+    @Test
+    void echoAfterTimeoutIsLateOnceThenDuplicate() throws Exception {
+        UDPEchoMeasurer measurer = open(16);
+        // The first is echoed in time, so the given-up one is not the oldest sequence
+        send(measurer, 2);
+        List<Datagram> datagrams = take(2);
+        echo(datagrams.get(0));
+        drain(measurer, 1);
+
+        Thread.sleep(TIMEOUT_MS + 10);
+        wheel.expire(System.nanoTime());
+        assertEquals(1, lost);
+
+        echo(datagrams.get(1));
+        echo(datagrams.get(1));
+        drain(measurer, 2);
+
+        assertEquals(1, received);
+        assertEquals(1, measurer.late());
+        assertEquals(1, measurer.duplicates());
+        assertEquals(0, measurer.outstanding());
+    }
+
+    @Test
+    void reusedSlotGivesUpOnItsDatagram() throws IOException {
+        UDPEchoMeasurer measurer = open(2);
+        send(measurer, 2);
+        List<Datagram> datagrams = take(2);
+        echo(datagrams.get(1));
+        drain(measurer, 1);
+
+        // Sequence 2 takes the slot of sequence 0, still outstanding
+        send(measurer, 1);
+        assertEquals(1, lost);
+        assertEquals(1, measurer.outstanding());
+
+        echo(datagrams.get(0));
+        drain(measurer, 1);
+        assertEquals(1, received);
+        assertEquals(1, measurer.late());
+        assertEquals(0, measurer.duplicates());
+    }
+
+    @Test
+    void grownRingKeepsOutstandingDatagrams() throws IOException {
+        UDPEchoMeasurer measurer = open(2);
+        send(measurer, 2);
+        measurer.ensureWindow(8);
+        send(measurer, 6);
+        for (Datagram datagram : take(8)) {
+            echo(datagram);
+        }
+        drain(measurer, 8);
+
+        assertEquals(8, received);
+        assertEquals(0, lost);
+        assertEquals(0, measurer.duplicates());
+        assertEquals(0, measurer.outstanding());
+    }
+
+    private UDPEchoMeasurer open(int window) throws IOException {
+        InetSocketAddress address = (InetSocketAddress) reflector.getLocalAddress();
+        UDPEchoMeasurer measurer = new UDPEchoMeasurer(
+            ResolverCache.uncached(address.getHostString(), address.getPort()), TIMEOUT_MS,
+            UDPEchoMeasurer.HEADER_BYTES, window);
+        measurer.open(selector, wheel, listener);
+        return measurer;
+    }
+
+    private static void send(UDPEchoMeasurer measurer, int count) {
+        for (int i = 0; i < count; i++) {
+            assertEquals(null, measurer.send(System.nanoTime()));
+        }
+    }
+
+    /**
+     * Receive datagrams at the reflector without echoing them yet.
+     */
+    private List<Datagram> take(int count) throws IOException {
+        List<Datagram> datagrams = new ArrayList<>();
+        while (datagrams.size() < count) {
+            ByteBuffer buffer = ByteBuffer.allocate(UDPEchoMeasurer.HEADER_BYTES);
+            SocketAddress from = reflector.receive(buffer);
+            datagrams.add(new Datagram(buffer.flip(), from));
+        }
+        return datagrams;
+    }
+
+    private void echo(Datagram datagram) throws IOException {
+        reflector.send(datagram.payload.duplicate(), datagram.from);
+    }
+
+    /**
+     * Let the measurer read until it has seen this many echoes.
+     */
+    private void drain(UDPEchoMeasurer measurer, int echoes) throws IOException {
+        long seen = received + measurer.duplicates() + measurer.late();
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (received + measurer.duplicates() + measurer.late() < seen + echoes && System.nanoTime() < deadline) {
+            selector.select(100);
+            selector.selectedKeys().clear();
+            measurer.selected();
+        }
+    }
+
+    private static final class Datagram {
+        final ByteBuffer payload;
+        final SocketAddress from;
+
+        Datagram(ByteBuffer payload, SocketAddress from) {
+            this.payload = payload;
+            this.from = from;
+        }
+    }
+}
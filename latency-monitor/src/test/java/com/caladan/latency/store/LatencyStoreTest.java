@@ -0,0 +1,120 @@
+/*
+ * LatencyStoreTest - Intervals written to a store in a temporary directory
+ * are queried back exactly, before and after the store is reopened, and
+ * ranges pick their tier right at the retention boundaries.
+ */
+package com.caladan.latency.store;
+
+import com.caladan.latency.util.TimingInterval;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LatencyStoreTest {
+
+    private static final long SECOND = 1_000L;
+    private static final long MINUTE = 60_000L;
+    private static final long HOUR = 3_600_000L;
+    private static final long DAY = 86_400_000L;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void queriesTheSameHistogramsAfterReopening() throws IOException {
+        // Two whole minutes of 1 s intervals, ten minutes ago
+        long startMs = (System.currentTimeMillis() - 10 * MINUTE) / MINUTE * MINUTE;
+        Histogram expectedService = new Histogram(3);
+        Histogram expectedResponse = new Histogram(3);
+        LatencyStore store = new LatencyStore(directory, 64 * 1024);
+        for (int i = 0; i < 120; i++) {
+            TimingInterval interval = interval(startMs + i * SECOND, i);
+            store.write("a:1", interval);
+            expectedService.add(interval.getServiceTimesHistogram());
+            expectedResponse.add(interval.getResponseTimesHistogram());
+        }
+        // Another target's records interleave with these in the same segments
+        store.write("b:2", interval(startMs, 999));
+        assertQueries(store, startMs, expectedService, expectedResponse);
+        store.close();
+
+        LatencyStore reopened = new LatencyStore(directory, 64 * 1024);
+        try {
+            assertQueries(reopened, startMs, expectedService, expectedResponse);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static void assertQueries(LatencyStore store, long startMs, Histogram expectedService,
+                                      Histogram expectedResponse) {
+        LatencyStore.QueryResult seconds = store.query("a:1", LatencyStore.RESPONSE_SERIES, startMs, startMs + 2 * MINUTE);
+        assertEquals("1s", seconds.tier);
+        assertEquals(120, seconds.records);
+        assertEquals(expectedResponse, seconds.histogram);
+        assertEquals(expectedService,
+            store.query("a:1", LatencyStore.SERVICE_SERIES, startMs, startMs + 2 * MINUTE).histogram);
+
+        // Half of it
+        LatencyStore.QueryResult half = store.query("a:1", LatencyStore.RESPONSE_SERIES, startMs + MINUTE,
+            startMs + 2 * MINUTE);
+        assertEquals(60, half.records);
+        assertEquals(expectedResponse.getTotalCount() / 2, half.histogram.getTotalCount());
+
+        // Too old for the 1 s tier: the two 1 min records
+        LatencyStore.QueryResult minutes = store.query("a:1", LatencyStore.RESPONSE_SERIES, startMs - HOUR,
+            startMs + 2 * MINUTE);
+        assertEquals("1m", minutes.tier);
+        assertEquals(2, minutes.records);
+        assertEquals(expectedResponse, minutes.histogram);
+
+        assertEquals(1, store.query("b:2", LatencyStore.RESPONSE_SERIES, startMs, startMs + 2 * MINUTE).records);
+        assertEquals(0, store.query("c:3", LatencyStore.RESPONSE_SERIES, startMs, startMs + 2 * MINUTE).records);
+    }
+
+    @Test
+    void selectsTiersAtTheRetentionBoundaries() throws IOException {
+        LatencyStore store = new LatencyStore(directory, 64 * 1024);
+        try {
+            long now = 100 * DAY;
+            // Within an hour: seconds, unless an hour spans 60 minute records
+            assertEquals("1s", store.selectTier(now - 10 * MINUTE, now, now).name);
+            assertEquals("1s", store.selectTier(now - HOUR, now - MINUTE - 1, now).name);
+            assertEquals("1m", store.selectTier(now - HOUR, now, now).name);
+            assertEquals("1m", store.selectTier(now - HOUR - 1, now - HOUR + MINUTE, now).name);
+            // Within a day: minutes, until 60 hour records are spanned
+            assertEquals("1m", store.selectTier(now - DAY, now, now).name);
+            assertEquals("1h", store.selectTier(now - DAY, now + 59 * HOUR, now).name);
+            assertEquals("1h", store.selectTier(now - DAY - 1, now - DAY + MINUTE, now).name);
+            // Hours are kept for 30 days, and are all there is beyond that
+            assertEquals("1h", store.selectTier(now - 30 * DAY, now, now).name);
+            assertEquals("1h", store.selectTier(now - 30 * DAY - 1, now - 29 * DAY, now).name);
+            assertEquals("1h", store.selectTier(0, SECOND, now).name);
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * One second of a target: ten latencies that differ from interval to interval.
+     */
+    static TimingInterval interval(long startMs, int seed) {
+        Histogram service = new Histogram(3);
+        Histogram response = new Histogram(3);
+        for (int i = 0; i < 10; i++) {
+            long latency = 100_000L + seed * 1_000L + i * 10_000L;
+            service.recordValue(latency);
+            response.recordValue(latency + 5_000);
+        }
+        for (Histogram histogram : new Histogram[] {service, response}) {
+            histogram.setStartTimeStamp(startMs);
+            histogram.setEndTimeStamp(startMs + SECOND);
+        }
+        return new TimingInterval(startMs, startMs + SECOND, 10, response, service);
+    }
+}
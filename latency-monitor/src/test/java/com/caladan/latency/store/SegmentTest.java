@@ -0,0 +1,125 @@
+/*
+ * SegmentTest - Records appended to a segment are found again when it is
+ * reopened, and a record torn by a crash before its length was written
+ * reads as the end of the segment.
+ */
+package com.caladan.latency.store;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reopenedSegmentReportsEveryRecord() throws IOException {
+        Path file = directory.resolve("0000000000000000.seg");
+        Segment segment = Segment.create(file, 0, 64 * 1024, 0);
+        List<Integer> offsets = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            offsets.add(segment.append(tag(i), i * 1_000L, (i + 1) * 1_000L, encode(histogram(i))));
+        }
+        assertEquals(histogram(3), segment.read(offsets.get(3)));
+        assertEquals(5_000, segment.maxEndMs());
+        segment.force();
+        segment.close();
+
+        List<String> tags = new ArrayList<>();
+        Segment reopened = Segment.open(file, 0, (visited, tag, startMs, endMs, offset) -> {
+            assertEquals(offsets.get(tags.size()), offset);
+            assertEquals(tags.size() * 1_000L, startMs);
+            assertEquals(startMs + 1_000, endMs);
+            assertEquals(histogram(tags.size()), visited.read(offset));
+            tags.add(tag);
+        });
+        assertEquals(List.of("t0", "t1", "t2", "t3", "t4"), tags);
+        assertEquals(5_000, reopened.maxEndMs());
+        // Reopened segments are full, so the tier rolls a new one
+        assertEquals(-1, reopened.append(tag(5), 5_000, 6_000, encode(histogram(5))));
+        reopened.close();
+    }
+
+    @Test
+    void tornTrailingRecordReadsAsTheEnd() throws IOException {
+        Path file = directory.resolve("0000000000000000.seg");
+        Segment segment = Segment.create(file, 0, 64 * 1024, 0);
+        int last = -1;
+        for (int i = 0; i < 4; i++) {
+            last = segment.append(tag(i), i * 1_000L, (i + 1) * 1_000L, encode(histogram(i)));
+        }
+        segment.force();
+        segment.close();
+
+        // Crashed after the body of the last record, before its length
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES), last);
+        }
+        List<String> tags = new ArrayList<>();
+        Segment reopened = Segment.open(file, 0, (visited, tag, startMs, endMs, offset) -> tags.add(tag));
+        assertEquals(List.of("t0", "t1", "t2"), tags);
+        assertEquals(3_000, reopened.maxEndMs());
+        reopened.close();
+
+        // A length running past the end of the file is no record either
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, 1 << 20), last);
+        }
+        tags.clear();
+        Segment.open(file, 0, (visited, tag, startMs, endMs, offset) -> tags.add(tag)).close();
+        assertEquals(3, tags.size());
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        Path file = Files.write(directory.resolve("0000000000000001.seg"), new byte[64]);
+        IOException e = assertThrows(IOException.class,
+            () -> Segment.open(file, 1, (visited, tag, startMs, endMs, offset) -> { }));
+        assertTrue(e.getMessage().contains("Not a latency store segment"), e.getMessage());
+    }
+
+    @Test
+    void fullSegmentRefusesTheAppend() throws IOException {
+        Segment segment = Segment.create(directory.resolve("0000000000000002.seg"), 2, 256, 0);
+        int appended = 0;
+        while (segment.append(tag(appended), 0, 1_000, encode(histogram(appended))) >= 0) {
+            appended++;
+        }
+        assertTrue(appended > 0 && appended < 10, appended + " records");
+        segment.close();
+    }
+
+    private static byte[] tag(int i) {
+        return ("t" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Histogram histogram(int seed) {
+        Histogram histogram = new Histogram(3);
+        for (int i = 0; i <= seed; i++) {
+            histogram.recordValue(100_000L * (i + 1));
+        }
+        return histogram;
+    }
+
+    private static ByteBuffer encode(Histogram histogram) {
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        histogram.encodeIntoCompressedByteBuffer(buffer);
+        return buffer.flip();
+    }
+}
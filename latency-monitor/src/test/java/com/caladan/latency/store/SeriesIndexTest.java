@@ -0,0 +1,87 @@
+/*
+ * SeriesIndexTest - Binary search over record start times, and dropping the
+ * entries of expired segments from the front, including across growth.
+ */
+package com.caladan.latency.store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SeriesIndexTest {
+
+    @TempDir
+    Path directory;
+
+    private final Segment[] segments = new Segment[4];
+
+    @BeforeEach
+    void setUp() throws IOException {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = Segment.create(directory.resolve(i + ".seg"), i, 64 * 1024, 0);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    @Test
+    void findsTheFirstRecordAtOrAfterATime() {
+        SeriesIndex index = new SeriesIndex();
+        for (int i = 0; i < 200; i++) {
+            index.add(i * 1_000L, segments[0], i * 10);
+        }
+        assertEquals(0, index.firstAtOrAfter(Long.MIN_VALUE));
+        assertEquals(0, index.firstAtOrAfter(0));
+        assertEquals(1, index.firstAtOrAfter(1));
+        assertEquals(150, index.firstAtOrAfter(150_000));
+        assertEquals(151, index.firstAtOrAfter(150_001));
+        assertEquals(200, index.firstAtOrAfter(199_001));
+        assertEquals(200, index.end());
+        assertEquals(1_500, index.offset(150));
+        assertEquals(150_000, index.startMs(150));
+    }
+
+    @Test
+    void dropsTheEntriesOfExpiredSegmentsFromTheFront() {
+        SeriesIndex index = new SeriesIndex();
+        for (int i = 0; i < 100; i++) {
+            index.add(i * 1_000L, segments[i / 25], i);
+        }
+        // Only the oldest segment's entries are a prefix
+        index.dropSegment(segments[1]);
+        assertEquals(0, index.firstAtOrAfter(0));
+        index.dropSegment(segments[0]);
+        assertEquals(25, index.firstAtOrAfter(0));
+        assertSame(segments[1], index.segment(25));
+
+        // Growing reclaims the dropped prefix; searches still start after it
+        for (int i = 100; i < 200; i++) {
+            index.add(i * 1_000L, segments[3], i);
+        }
+        int first = index.firstAtOrAfter(0);
+        assertEquals(25_000, index.startMs(first));
+        assertSame(segments[1], index.segment(first));
+        assertEquals(175, index.end() - first);
+        assertEquals(199, index.offset(index.end() - 1));
+        assertEquals(first + 100, index.firstAtOrAfter(125_000));
+
+        index.dropSegment(segments[1]);
+        index.dropSegment(segments[2]);
+        index.dropSegment(segments[3]);
+        assertTrue(index.isEmpty());
+        assertEquals(index.end(), index.firstAtOrAfter(0));
+    }
+}
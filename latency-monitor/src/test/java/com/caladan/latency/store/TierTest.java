@@ -0,0 +1,135 @@
+/*
+ * TierTest - 1 s records cascade into 1 min and 1 h records that merge to
+ * the same histogram, and expiry deletes only segments whose every record
+ * is past the retention.
+ */
+package com.caladan.latency.store;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TierTest {
+
+    private static final String TAG = "a:1/response";
+    private static final long HOUR = 3_600_000L;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void secondsCascadeIntoMinutesAndHours() throws IOException {
+        Tier hours = new Tier("1h", HOUR, 30 * 24 * HOUR, directory.resolve("1h"), 1 << 20, null);
+        Tier minutes = new Tier("1m", 60_000L, 24 * HOUR, directory.resolve("1m"), 1 << 20, hours);
+        Tier seconds = new Tier("1s", 1_000L, HOUR, directory.resolve("1s"), 1 << 20, minutes);
+        for (Tier tier : new Tier[] {seconds, minutes, hours}) {
+            tier.open();
+        }
+
+        // Two hours and a half of 1 s records
+        long startMs = 1_700_000_000_000L / HOUR * HOUR;
+        Histogram expected = new Histogram(3);
+        for (int i = 0; i < 9_000; i++) {
+            Histogram histogram = histogram(i);
+            seconds.add(TAG, histogram, startMs + i * 1_000L, startMs + (i + 1) * 1_000L);
+            expected.add(histogram);
+        }
+
+        long endMs = startMs + 9_000_000L;
+        assertMerges(seconds, startMs, endMs, 9_000, expected);
+        assertMerges(minutes, startMs, endMs, 150, expected);
+        // Two whole hours and the half still being filled
+        assertMerges(hours, startMs, endMs, 3, expected);
+
+        // An hour record is the merge of its minutes
+        Histogram firstHour = new Histogram(3);
+        assertEquals(60, minutes.merge(TAG, startMs, startMs + HOUR, firstHour));
+        Histogram hour = new Histogram(3);
+        assertEquals(1, hours.merge(TAG, startMs, startMs + 1, hour));
+        assertEquals(firstHour, hour);
+
+        for (Tier tier : new Tier[] {seconds, minutes, hours}) {
+            tier.close();
+        }
+    }
+
+    private static void assertMerges(Tier tier, long fromMs, long toMs, int records, Histogram expected) {
+        Histogram merged = new Histogram(3);
+        assertEquals(records, tier.merge(TAG, fromMs, toMs, merged), tier.name + " records");
+        assertEquals(expected, merged, tier.name);
+    }
+
+    @Test
+    void expiryDeletesWholeSegmentsOnly() throws IOException {
+        // Small segments, so a hundred records span several
+        long retentionMs = 10_000L;
+        Tier tier = new Tier("1s", 1_000L, retentionMs, directory, 1024, null);
+        tier.open();
+        long startMs = 1_700_000_000_000L;
+        for (int i = 0; i < 100; i++) {
+            tier.add(TAG, histogram(i), startMs + i * 1_000L, startMs + (i + 1) * 1_000L);
+        }
+        tier.force();
+        List<Path> files = segmentFiles();
+        assertTrue(files.size() >= 5, files.size() + " segments");
+        int[] records = new int[files.size()];
+        long[] maxEndMs = new long[files.size()];
+        for (int f = 0; f < files.size(); f++) {
+            int file = f;
+            Segment.open(files.get(f), f, (segment, tag, recordStartMs, recordEndMs, offset) -> {
+                records[file]++;
+                maxEndMs[file] = Math.max(maxEndMs[file], recordEndMs);
+            }).close();
+        }
+
+        // Past the retention: the first three segments, and the first record of the fourth
+        long cutoffMs = maxEndMs[2] + 1_001;
+        tier.expire(cutoffMs + retentionMs);
+
+        for (int f = 0; f < 3; f++) {
+            assertFalse(Files.exists(files.get(f)), files.get(f) + " not deleted");
+        }
+        for (int f = 3; f < files.size(); f++) {
+            assertTrue(Files.exists(files.get(f)), files.get(f) + " deleted");
+        }
+        int kept = 100 - records[0] - records[1] - records[2];
+        Histogram merged = new Histogram(3);
+        assertEquals(kept, tier.merge(TAG, 0, Long.MAX_VALUE, merged));
+        Histogram expected = new Histogram(3);
+        for (int i = 100 - kept; i < 100; i++) {
+            expected.add(histogram(i));
+        }
+        assertEquals(expected, merged);
+        // Including the record that ended before the cutoff, whose segment is still needed
+        assertEquals(maxEndMs[2] + 1_000, startMs + (100 - kept + 1) * 1_000L);
+
+        // Everything goes eventually, except the segment being appended to
+        tier.expire(Long.MAX_VALUE);
+        assertEquals(1, segmentFiles().size());
+        tier.close();
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> listing = Files.list(directory)) {
+            return listing.filter(path -> path.toString().endsWith(".seg")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static Histogram histogram(int seed) {
+        Histogram histogram = new Histogram(3);
+        histogram.recordValue(100_000L + seed % 500 * 1_000L);
+        histogram.recordValue(2_000_000L + seed % 7 * 100_000L);
+        return histogram;
+    }
+}
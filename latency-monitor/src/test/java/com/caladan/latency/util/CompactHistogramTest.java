@@ -0,0 +1,66 @@
+/*
+ * CompactHistogramTest - Buckets tile the value range without gaps at the
+ * promised resolution, and drained counts give percentiles.
+ */
+package com.caladan.latency.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactHistogramTest {
+
+    @Test
+    void everyBucketStartsAtItsLowestValue() {
+        for (int i = 0; i < CompactHistogram.BUCKETS; i++) {
+            long low = CompactHistogram.lowestUs(i);
+            assertEquals(i, CompactHistogram.index(low), "Bucket of " + low + " us");
+            if (i > 0) {
+                assertEquals(i - 1, CompactHistogram.index(low - 1), "Bucket of " + (low - 1) + " us");
+            }
+        }
+    }
+
+    @Test
+    void exactBelowEightThenWithinAnEighth() {
+        for (long value = 0; value < 8; value++) {
+            assertEquals(value, CompactHistogram.index(value));
+        }
+        for (int i = 8; i + 1 < CompactHistogram.BUCKETS; i++) {
+            long low = CompactHistogram.lowestUs(i);
+            long width = CompactHistogram.lowestUs(i + 1) - low;
+            assertTrue(width * 8 <= low, "Bucket " + i + " from " + low + " us is " + width + " us wide");
+        }
+    }
+
+    @Test
+    void clampsOutOfRangeValues() {
+        assertEquals(0, CompactHistogram.index(-5));
+        assertEquals(CompactHistogram.BUCKETS - 1, CompactHistogram.index(0xFFFF_FFFFL));
+        assertEquals(CompactHistogram.BUCKETS - 1, CompactHistogram.index(Long.MAX_VALUE));
+        assertEquals(0xF000_0000L, CompactHistogram.lowestUs(CompactHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    void drainResetsAndGivesPercentiles() {
+        CompactHistogram histogram = new CompactHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.recordNanos(3_000);      // 3us, an exact bucket
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.recordNanos(1_000_000);  // 1ms, in [960, 1024) us
+        }
+        int[] counts = new int[CompactHistogram.BUCKETS];
+
+        long total = histogram.drainTo(counts);
+        assertEquals(100, total);
+        assertEquals(90, counts[3]);
+        assertEquals(3.5, CompactHistogram.percentileUs(counts, total, 50), 1e-9);
+        assertEquals(3.5, CompactHistogram.percentileUs(counts, total, 90), 1e-9);
+        assertEquals(992, CompactHistogram.percentileUs(counts, total, 99), 1e-9);
+
+        assertEquals(0, histogram.drainTo(counts), "Draining resets the counts");
+        assertEquals(0, CompactHistogram.percentileUs(counts, 0, 99), 1e-9);
+    }
+}
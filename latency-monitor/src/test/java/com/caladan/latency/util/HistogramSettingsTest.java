@@ -0,0 +1,88 @@
+/*
+ * HistogramSettingsTest - Packed 1 us histograms take a fraction of the heap
+ * of the flat 1 ns to 1 hour ones they replaced, for a realistic spread of
+ * latencies, and report the same percentiles in microseconds.
+ */
+package com.caladan.latency.util;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistogramSettingsTest {
+
+    private static final HistogramSettings FLAT_NANOS = new HistogramSettings(1, 3_600_000_000_000L, 3, false);
+    private static final HistogramSettings FLAT_MICROS = new HistogramSettings(1000, 3_600_000_000_000L, 3, false);
+
+    @Test
+    void packedHistogramsTakeATenthOfTheHeap() {
+        long[] latencies = latencies();
+        Histogram packed = record(HistogramSettings.DEFAULT.newHistogram(), latencies);
+        Histogram flatNanos = record(FLAT_NANOS.newHistogram(), latencies);
+        Histogram flatMicros = record(FLAT_MICROS.newHistogram(), latencies);
+
+        long packedBytes = HistogramSettings.footprintBytes(packed);
+        assertTrue(packedBytes * 10 <= HistogramSettings.footprintBytes(flatNanos),
+            packedBytes + " bytes packed, " + HistogramSettings.footprintBytes(flatNanos) + " flat 1 ns");
+        assertTrue(packedBytes * 10 <= HistogramSettings.footprintBytes(flatMicros),
+            packedBytes + " bytes packed, " + HistogramSettings.footprintBytes(flatMicros) + " flat 1 us");
+    }
+
+    @Test
+    void packedIntervalHistogramsTakeATenthOfTheHeap() {
+        long[] latencies = latencies();
+        Histogram packed = intervalOf(HistogramSettings.DEFAULT.newRecorder(), latencies);
+        Histogram flat = intervalOf(FLAT_NANOS.newRecorder(), latencies);
+
+        long packedBytes = HistogramSettings.footprintBytes(packed);
+        assertTrue(packedBytes * 10 <= HistogramSettings.footprintBytes(flat),
+            packedBytes + " bytes packed, " + HistogramSettings.footprintBytes(flat) + " flat");
+    }
+
+    @Test
+    void packedHistogramsReportTheSamePercentiles() {
+        long[] latencies = latencies();
+        Histogram packed = record(HistogramSettings.DEFAULT.newHistogram(), latencies);
+        Histogram flatNanos = record(FLAT_NANOS.newHistogram(), latencies);
+
+        assertEquals(flatNanos.getTotalCount(), packed.getTotalCount());
+        for (double percentile : new double[] {50, 90, 99, 99.9, 100}) {
+            double expectedUs = flatNanos.getValueAtPercentile(percentile) / 1000.0;
+            double actualUs = packed.getValueAtPercentile(percentile) / 1000.0;
+            // Both within 0.1% of the value, plus the 1 us resolution
+            assertEquals(expectedUs, actualUs, expectedUs * 0.002 + 1, "p" + percentile);
+        }
+    }
+
+    /**
+     * A day-to-day spread: log-normal around 300 us, with a tail of timeouts and retransmits.
+     */
+    private static long[] latencies() {
+        Random random = new Random(24);
+        long[] latencies = new long[100_000];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = random.nextInt(1000) == 0 ? 200_000_000L + random.nextInt(1_000_000_000)
+                : (long) (300_000 * Math.exp(random.nextGaussian() * 0.8));
+        }
+        return latencies;
+    }
+
+    private static Histogram record(Histogram histogram, long[] latencies) {
+        for (long latency : latencies) {
+            histogram.recordValue(HistogramSettings.DEFAULT.clamp(latency));
+        }
+        return histogram;
+    }
+
+    private static Histogram intervalOf(Recorder recorder, long[] latencies) {
+        for (long latency : latencies) {
+            recorder.recordValue(HistogramSettings.DEFAULT.clamp(latency));
+        }
+        return recorder.getIntervalHistogram();
+    }
+}
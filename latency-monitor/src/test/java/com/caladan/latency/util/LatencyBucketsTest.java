@@ -0,0 +1,87 @@
+/*
+ * LatencyBucketsTest - Bucket boundaries and the bucket counts of a histogram.
+ */
+package com.caladan.latency.util;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LatencyBucketsTest {
+
+    @Test
+    void defaultBoundsAreOneTwoFivePerDecade() {
+        LatencyBuckets buckets = LatencyBuckets.DEFAULT;
+
+        assertEquals(19, buckets.size());
+        assertEquals(10, buckets.upperBoundUs(0));
+        assertEquals(20, buckets.upperBoundUs(1));
+        assertEquals(50, buckets.upperBoundUs(2));
+        assertEquals(100, buckets.upperBoundUs(3));
+        assertEquals(10_000_000, buckets.upperBoundUs(18));
+    }
+
+    @Test
+    void logLinearStaysWithinTheRange() {
+        LatencyBuckets buckets = LatencyBuckets.logLinear(30, 2_000, new double[] {1, 2.5, 5});
+
+        double[] bounds = new double[buckets.size()];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = buckets.upperBoundUs(i);
+        }
+        assertArrayEquals(new double[] {50, 100, 250, 500, 1_000}, bounds);
+    }
+
+    @Test
+    void accumulatesIntoBucketsAndInfinity() {
+        LatencyBuckets buckets = LatencyBuckets.parse("100, 1000 ,10000");
+        Histogram histogram = new Histogram(3);
+        histogram.recordValue(5_000);                 // 5us
+        histogram.recordValueWithCount(150_000, 3);   // 150us
+        histogram.recordValue(990_000);               // 990us
+        histogram.recordValue(50_000_000);            // 50ms
+
+        long[] counts = buckets.newCounts();
+        buckets.accumulate(histogram, counts);
+        assertArrayEquals(new long[] {1, 4, 0, 1}, counts);
+
+        // Accumulating adds to what is there
+        buckets.accumulate(histogram, counts);
+        assertArrayEquals(new long[] {2, 8, 0, 2}, counts);
+        assertArrayEquals(new long[] {2, 10, 10, 12}, LatencyBuckets.cumulative(counts));
+    }
+
+    @Test
+    void boundsAreInclusive() {
+        LatencyBuckets buckets = new LatencyBuckets(new double[] {1});
+        Histogram histogram = new Histogram(3);
+        // Below 2048 a 3-digit histogram records every nanosecond exactly
+        histogram.recordValue(1_000);
+        histogram.recordValue(1_001);
+
+        long[] counts = buckets.newCounts();
+        buckets.accumulate(histogram, counts);
+        assertArrayEquals(new long[] {1, 1}, counts);
+    }
+
+    @Test
+    void emptyHistogramLeavesCountsAlone() {
+        long[] counts = LatencyBuckets.DEFAULT.newCounts();
+        LatencyBuckets.DEFAULT.accumulate(new Histogram(3), counts);
+
+        assertEquals(20, counts.length);
+        assertArrayEquals(new long[20], counts);
+    }
+
+    @Test
+    void rejectsInvalidBounds() {
+        assertThrows(IllegalArgumentException.class, () -> new LatencyBuckets(new double[0]));
+        assertThrows(IllegalArgumentException.class, () -> LatencyBuckets.parse("10,5"));
+        assertThrows(IllegalArgumentException.class, () -> LatencyBuckets.parse("10,10"));
+        assertThrows(IllegalArgumentException.class, () -> LatencyBuckets.parse("0,5"));
+        assertThrows(IllegalArgumentException.class, () -> LatencyBuckets.parse("10,x"));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * LatencySummaryTest - The single-pass summary agrees with HdrHistogram's own
+ * getValueAtPercentile and getMean, for plain and packed histograms alike.
+ */
+package com.caladan.latency.util;
+
+import org.HdrHistogram.AbstractHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.PackedHistogram;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LatencySummaryTest {
+
+    private static final double[] PERCENTILES = {0, 1, 25, 50, 90, 95, 99, 99.9, 99.99, 99.999, 100};
+
+    @Test
+    void matchesHistogramPercentiles() {
+        Random random = new Random(7);
+        for (AbstractHistogram histogram : new AbstractHistogram[] {new Histogram(3), new PackedHistogram(2)}) {
+            for (int i = 0; i < 200_000; i++) {
+                // Log-normal around 200us with a long tail, in nanoseconds
+                histogram.recordValue((long) (200_000 * Math.exp(random.nextGaussian())));
+            }
+            LatencySummary summary = LatencySummary.of(histogram, PERCENTILES);
+
+            for (double percentile : PERCENTILES) {
+                assertEquals(histogram.getValueAtPercentile(percentile) / 1000.0, summary.percentileUs(percentile),
+                    "p" + percentile + " of " + histogram.getClass().getSimpleName());
+            }
+            assertEquals(histogram.getTotalCount(), summary.count);
+            assertEquals(histogram.getMean() / 1000.0, summary.meanUs, 1e-6 * summary.meanUs);
+            assertEquals(histogram.getMinNonZeroValue() / 1000.0, summary.minUs);
+            assertEquals(histogram.getMaxValue() / 1000.0, summary.maxUs);
+        }
+    }
+
+    @Test
+    void fewValues() {
+        Histogram histogram = new Histogram(3);
+        histogram.recordValue(1_000);
+        histogram.recordValue(5_000);
+        histogram.recordValue(5_000);
+        LatencySummary summary = LatencySummary.of(histogram);
+
+        for (double percentile : LatencySummary.STANDARD_PERCENTILES) {
+            assertEquals(histogram.getValueAtPercentile(percentile) / 1000.0, summary.percentileUs(percentile));
+        }
+        assertEquals(1.0, summary.minUs);
+        assertEquals(5.0, summary.p99Us(), 0.01);
+    }
+
+    @Test
+    void emptyHistogram() {
+        LatencySummary summary = LatencySummary.of(new Histogram(3));
+
+        assertEquals(0, summary.count);
+        assertEquals(0, summary.meanUs);
+        assertEquals(0, summary.p999Us());
+        assertEquals(0, LatencySummary.EMPTY.p50Us());
+    }
+
+    @Test
+    void onlySummarizedPercentiles() {
+        LatencySummary summary = LatencySummary.of(new Histogram(3), new double[] {50, 99});
+
+        assertEquals(0, summary.percentileUs(99));
+        assertThrows(IllegalArgumentException.class, () -> summary.percentileUs(95));
+    }
+}
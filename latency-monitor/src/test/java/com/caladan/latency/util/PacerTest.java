@@ -0,0 +1,91 @@
+/*
+ * PacerTest - Rate changes rebase the schedule instead of re-timing it.
+ * Schedules start a second away from now, so the real clock moving on while
+ * the test runs does not change which case a rate change hits.
+ */
+package com.caladan.latency.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PacerTest {
+
+    private static final long MS = 1_000_000L;
+    // Schedules are computed in floating point
+    private static final double ROUNDING_NANOS = 1;
+
+    @Test
+    void onPaceRaiseMovesTheNextSendCloser() {
+        Pacer pacer = new Pacer(10);
+        long start = System.nanoTime() + 1_000 * MS;
+        pacer.setInitialStartTime(start);
+
+        pacer.changeThroughput(100);
+
+        // One new interval after the send before it, which was due 100 ms before the next
+        assertEquals(start - 90 * MS, pacer.expectedStartTimeNsec(), ROUNDING_NANOS);
+        assertEquals(100, pacer.getThroughput(), 1e-9);
+        assertEquals(0, pacer.getUnitsCompleted());
+    }
+
+    @Test
+    void onPaceCutMovesTheNextSendAway() {
+        Pacer pacer = new Pacer(10);
+        long start = System.nanoTime() + 1_000 * MS;
+        pacer.setInitialStartTime(start);
+
+        pacer.changeThroughput(1);
+
+        assertEquals(start + 900 * MS, pacer.expectedStartTimeNsec(), ROUNDING_NANOS);
+    }
+
+    @Test
+    void nextSendNeverMovesIntoThePast() {
+        Pacer pacer = new Pacer(1);
+        pacer.setInitialStartTime(System.nanoTime() + 100 * MS);
+
+        long before = System.nanoTime();
+        pacer.changeThroughput(1_000);
+        long after = System.nanoTime();
+
+        // The previous send was due 900 ms ago; a millisecond after it has passed as well
+        long next = pacer.expectedStartTimeNsec();
+        assertTrue(next >= before && next <= after, "Next send rebased to now");
+    }
+
+    @Test
+    void behindScheduleKeepsIntendedStartTimes() {
+        Pacer pacer = new Pacer(10);
+        long start = System.nanoTime() - 1_000 * MS;
+        pacer.setInitialStartTime(start);
+        pacer.acquire(1);
+        long pending = pacer.expectedStartTimeNsec();
+        assertEquals(start + 100 * MS, pending, ROUNDING_NANOS);
+
+        pacer.changeThroughput(20);
+
+        // The backlog keeps its intended start, so its delay still counts against the response time
+        assertEquals(pending, pacer.expectedStartTimeNsec());
+        // Caught up on from now, at three times the new rate
+        assertEquals(0, pacer.nsecToNextSend());
+        pacer.acquire(1);
+        assertEquals(pending + 50 * MS, pacer.expectedStartTimeNsec(), ROUNDING_NANOS);
+        long wait = pacer.nsecToNextSend();
+        assertTrue(wait > 0 && wait <= 1_000_000_000L / 60, "Next catch-up send within 1/60 s: " + wait);
+    }
+
+    @Test
+    void constantRateSchedule() {
+        Pacer pacer = new Pacer(1_000);
+        long start = System.nanoTime() - 10 * MS;
+        pacer.setInitialStartTime(start);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(start + i * MS, pacer.expectedStartTimeNsec(), ROUNDING_NANOS);
+            pacer.acquire(1);
+        }
+        assertEquals(5, pacer.getUnitsCompleted());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * SlidingWindowsTest - Every window always holds exactly the completed slots
+ * within its length, checked against a brute-force model as intervals arrive
+ * irregularly, several per slot, with gaps, and after idling past every window.
+ */
+package com.caladan.latency.util;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SlidingWindowsTest {
+
+    private static final long SLOT_MS = 1_000;
+    private static final long[] WINDOW_MS = {3_000, 5_000};
+
+    // Operations, failures and one distinct latency per slot number
+    private final Map<Long, long[]> model = new HashMap<>();
+
+    @Test
+    void windowsHoldTheCompletedSlotsWithinTheirLength() {
+        SlidingWindows windows = new SlidingWindows(SLOT_MS, new String[] {"3s", "5s"}, WINDOW_MS);
+        Random random = new Random(3);
+        long nowMs = 100_000;
+        for (int step = 0; step < 400; step++) {
+            // Mostly several intervals per slot, sometimes a gap of a few slots, once a long idle spell
+            nowMs += step == 200 ? 60_000 : random.nextInt(10) == 0 ? 2_500 : 300;
+            add(windows, nowMs, random.nextInt(4), random.nextInt(2));
+            check(windows, nowMs / SLOT_MS);
+        }
+    }
+
+    @Test
+    void reportsWhenASlotCompletes() {
+        SlidingWindows windows = new SlidingWindows(SLOT_MS, new String[] {"3s"}, new long[] {3_000});
+
+        assertFalse(add(windows, 10_000, 1, 0));
+        assertFalse(add(windows, 10_500, 1, 0));
+        assertTrue(add(windows, 11_000, 1, 0));
+        assertEquals(2, windows.window(0).getOperations());
+    }
+
+    @Test
+    void failuresCountAsOperations() {
+        SlidingWindows windows = new SlidingWindows(SLOT_MS, new String[] {"3s"}, new long[] {3_000});
+        add(windows, 10_000, 3, 2);
+        add(windows, 11_000, 0, 0);
+
+        assertEquals(5, windows.window(0).getOperations());
+        assertEquals(2, windows.window(0).getFailures());
+        assertEquals(3, windows.window(0).getResponseTimesHistogram().getTotalCount());
+    }
+
+    @Test
+    void rejectsWindowsThatAreNotWholeSlots() {
+        assertThrows(IllegalArgumentException.class,
+            () -> new SlidingWindows(SLOT_MS, new String[] {"1.5s"}, new long[] {1_500}));
+        assertThrows(IllegalArgumentException.class,
+            () -> new SlidingWindows(SLOT_MS, new String[] {"0.5s"}, new long[] {500}));
+        assertThrows(IllegalArgumentException.class, () -> new SlidingWindows(SLOT_MS, new String[0], new long[0]));
+    }
+
+    /**
+     * Add an interval of this many operations, all at the latency of its slot.
+     */
+    private boolean add(SlidingWindows windows, long nowMs, int operations, int failures) {
+        long slot = nowMs / SLOT_MS;
+        long latency = latencyOf(slot);
+        Histogram responseTimes = HistogramSettings.DEFAULT.newHistogram();
+        Histogram serviceTimes = HistogramSettings.DEFAULT.newHistogram();
+        for (int i = 0; i < operations; i++) {
+            responseTimes.recordValue(latency);
+            serviceTimes.recordValue(latency / 2);
+        }
+        long[] totals = model.computeIfAbsent(slot, s -> new long[2]);
+        totals[0] += operations + failures;
+        totals[1] += failures;
+        return windows.add(new TimingInterval(0, 1, operations, responseTimes, serviceTimes), failures, nowMs);
+    }
+
+    private void check(SlidingWindows windows, long currentSlot) {
+        for (int w = 0; w < WINDOW_MS.length; w++) {
+            SlidingWindows.Window window = windows.window(w);
+            long operations = 0;
+            long failures = 0;
+            long recorded = 0;
+            for (long slot = currentSlot - WINDOW_MS[w] / SLOT_MS; slot < currentSlot; slot++) {
+                long[] totals = model.getOrDefault(slot, new long[2]);
+                operations += totals[0];
+                failures += totals[1];
+                recorded += totals[0] - totals[1];
+                assertEquals(totals[0] - totals[1],
+                    window.getResponseTimesHistogram().getCountAtValue(latencyOf(slot)),
+                    "Latencies of slot " + slot + " in " + window.name);
+            }
+            assertEquals(operations, window.getOperations(), window.name + " at slot " + currentSlot);
+            assertEquals(failures, window.getFailures(), window.name + " at slot " + currentSlot);
+            assertEquals(recorded, window.getResponseTimesHistogram().getTotalCount());
+            assertEquals(recorded, window.getServiceTimesHistogram().getTotalCount());
+        }
+    }
+
+    /**
+     * Distinct histogram buckets for the slots any window can hold at once.
+     */
+    private static long latencyOf(long slot) {
+        return (1 + slot % 16) * 1_000_000L;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * TimerAllocationTest - The recording hot path allocates nothing.
+ * Probe threads record into a Timer on every probe, so once its histograms
+ * have grown to the recorded range, recording must not produce garbage;
+ * not even across the IntervalReporter swapping the recorders out.
+ */
+package com.caladan.latency.util;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class TimerAllocationTest {
+
+    private static final int RECORDINGS = 100_000;
+    private static final long[] LATENCIES_NANOS = {87_000, 120_000, 450_000, 1_300_000, 9_800_000, 52_000_000};
+
+    private static com.sun.management.ThreadMXBean threads;
+
+    @BeforeAll
+    static void allocationCounting() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    void recordAllocatesNothing() {
+        for (HistogramSettings settings : new HistogramSettings[] {
+                HistogramSettings.DEFAULT, new HistogramSettings(1000, 3_600_000_000_000L, 3, false)}) {
+            Timer timer = new Timer(new String[] {"connect"}, settings);
+            warmUp(timer);
+
+            long before = threads.getCurrentThreadAllocatedBytes();
+            record(timer);
+            long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+            assertEquals(0, allocated, "Bytes allocated by " + RECORDINGS + " recordings with " + settings);
+        }
+    }
+
+    /**
+     * Record the full range into both recorder phases and compile the recording path.
+     */
+    private static void warmUp(Timer timer) {
+        for (int round = 0; round < 3; round++) {
+            record(timer);
+            timer.takeInterval();
+        }
+        // Calibrate: the allocation counter itself must read the same twice in a row
+        long first = threads.getCurrentThreadAllocatedBytes();
+        long second = threads.getCurrentThreadAllocatedBytes();
+        assumeTrue(first == second, "Allocation counting allocates");
+    }
+
+    private static void record(Timer timer) {
+        long expected = 1_000_000_000L;
+        for (int i = 0; i < RECORDINGS; i++) {
+            long latency = LATENCIES_NANOS[i % LATENCIES_NANOS.length];
+            timer.record(expected, expected + 5_000, expected + 5_000 + latency);
+            timer.recordPhase(0, latency / 2);
+            expected += 1_000;
+        }
+    }
+}
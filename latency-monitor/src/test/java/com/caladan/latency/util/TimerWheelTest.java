@@ -0,0 +1,162 @@
+/*
+ * TimerWheelTest - Timeouts fire once, never early and never a step late,
+ * across ticks, revolutions and deadlines far beyond the far wheel's span.
+ * Time is simulated: the wheel only ever sees the nowNanos it is handed.
+ */
+package com.caladan.latency.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+
+    private static final long TICK = 1_000;
+    private static final long START = 1_000_000_000L;
+
+    @Test
+    void firesEachTimeoutOnceAtTheFirstExpireAfterItsDeadline() {
+        // 8 ticks per revolution: the far wheel spans 64 ticks, deadlines go up to 300
+        TimerWheel wheel = new TimerWheel(TICK, 8, START);
+        Random random = new Random(42);
+        List<Recording> timeouts = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Recording timeout = new Recording();
+            wheel.schedule(timeout, START + (long) (random.nextDouble() * 300 * TICK));
+            timeouts.add(timeout);
+        }
+        assertEquals(1000, wheel.size());
+
+        long previous = START;
+        for (long now = START; now <= START + 310 * TICK; now += 1 + random.nextInt((int) (3 * TICK))) {
+            wheel.expire(now);
+            for (Recording timeout : timeouts) {
+                if (timeout.deadlineNanos() <= now && timeout.deadlineNanos() > previous) {
+                    assertEquals(1, timeout.fired, "Fired by the expire at or after its deadline");
+                    assertEquals(now, timeout.firedAt);
+                } else if (timeout.deadlineNanos() > now) {
+                    assertEquals(0, timeout.fired, "Not fired before its deadline");
+                }
+            }
+            previous = now;
+        }
+        for (Recording timeout : timeouts) {
+            assertEquals(1, timeout.fired);
+            assertFalse(timeout.isScheduled());
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void expireReturnsTheEarliestDeadlineThatFired() {
+        TimerWheel wheel = new TimerWheel(TICK, 8, START);
+        wheel.schedule(new Recording(), START + 5 * TICK + 10);
+        wheel.schedule(new Recording(), START + 3 * TICK + 20);
+        wheel.schedule(new Recording(), START + 9 * TICK);
+
+        assertEquals(Long.MAX_VALUE, wheel.expire(START + TICK));
+        assertEquals(START + 3 * TICK + 20, wheel.expire(START + 6 * TICK));
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    void cancelAndReschedule() {
+        TimerWheel wheel = new TimerWheel(TICK, 8, START);
+        Recording cancelled = new Recording();
+        Recording moved = new Recording();
+        Recording neighbour = new Recording();
+        wheel.schedule(cancelled, START + 2 * TICK);
+        wheel.schedule(moved, START + 2 * TICK);
+        wheel.schedule(neighbour, START + 2 * TICK);
+
+        cancelled.cancel();
+        assertFalse(cancelled.isScheduled());
+        wheel.schedule(moved, START + 100 * TICK);
+        assertEquals(2, wheel.size());
+
+        wheel.expire(START + 50 * TICK);
+        assertEquals(0, cancelled.fired);
+        assertEquals(0, moved.fired);
+        assertEquals(1, neighbour.fired);
+
+        wheel.expire(START + 100 * TICK);
+        assertEquals(1, moved.fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void callbacksMayRescheduleAndCancel() {
+        TimerWheel wheel = new TimerWheel(TICK, 8, START);
+        Recording other = new Recording();
+        Recording periodic = new Recording() {
+            @Override
+            protected void onTimeout(long nowNanos) {
+                super.onTimeout(nowNanos);
+                // Into the tick being expired, which must not fire it again right away
+                wheel.schedule(this, nowNanos + 1);
+                other.cancel();
+            }
+        };
+        wheel.schedule(periodic, START + TICK);
+        wheel.schedule(other, START + TICK + 1);
+
+        wheel.expire(START + TICK);
+        assertEquals(1, periodic.fired);
+        assertEquals(0, other.fired);
+        assertFalse(other.isScheduled());
+        assertTrue(periodic.isScheduled());
+
+        wheel.expire(START + TICK + 1);
+        assertEquals(2, periodic.fired);
+    }
+
+    @Test
+    void pastDeadlinesFireOnTheNextExpire() {
+        TimerWheel wheel = new TimerWheel(TICK, 8, START);
+        wheel.expire(START + 20 * TICK);
+        Recording late = new Recording();
+        wheel.schedule(late, START);
+
+        wheel.expire(START + 20 * TICK);
+        assertEquals(1, late.fired);
+    }
+
+    @Test
+    void nanosToNextTick() {
+        TimerWheel wheel = new TimerWheel(TICK, 8, START);
+        // Nothing near: wait for the next revolution at the latest
+        assertEquals(8 * TICK, wheel.nanosToNextTick(START));
+
+        wheel.schedule(new Recording(), START + 3 * TICK + 500);
+        assertEquals(3 * TICK, wheel.nanosToNextTick(START));
+        assertEquals(3 * TICK - 200, wheel.nanosToNextTick(START + 200));
+
+        // Due now
+        wheel.schedule(new Recording(), START);
+        assertEquals(0, wheel.nanosToNextTick(START + 200));
+    }
+
+    @Test
+    void rejectsDegenerateWheels() {
+        assertThrows(IllegalArgumentException.class, () -> new TimerWheel(0, 8, START));
+        assertThrows(IllegalArgumentException.class, () -> new TimerWheel(TICK, 1, START));
+    }
+
+    private static class Recording extends TimerWheel.Timeout {
+        int fired;
+        long firedAt;
+
+        @Override
+        protected void onTimeout(long nowNanos) {
+            fired++;
+            firedAt = nowNanos;
+        }
+    }
+}